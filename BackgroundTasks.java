@@ -0,0 +1,105 @@
+// BackgroundTasks.java
+
+// Managed execution layer for all background I/O, backed by virtual threads
+import java.util.List; // For the list of scopes
+import java.util.concurrent.*; // For executors, futures, permits and the scope list
+
+public class BackgroundTasks implements AutoCloseable {
+    private static final long SHUTDOWN_TIMEOUT_MS = 2000; // How long close() waits for tasks to finish
+
+    private final List<TaskScope> scopes = new CopyOnWriteArrayList<>(); // Every scope created by this instance
+    private volatile boolean closed; // Set by close()
+
+    /**
+     * Creates a named scope whose tasks run on virtual threads called "name-0", "name-1", ...
+     * At most maxConcurrent tasks of the scope run at once; the rest wait as parked virtual threads,
+     * which costs a few hundred bytes each instead of a platform thread.
+     *
+     * @param name          The scope name, used as thread name prefix.
+     * @param maxConcurrent The number of tasks allowed to run at the same time.
+     * @return The new scope.
+     */
+    public TaskScope scope(String name, int maxConcurrent) {
+        if (closed) {
+            throw new IllegalStateException("Background tasks are shut down");
+        }
+        TaskScope scope = new TaskScope(name, maxConcurrent);
+        scopes.add(scope);
+        return scope;
+    }
+
+    /**
+     * Interrupts every running task and waits briefly for all scopes to finish.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (TaskScope scope : scopes) {
+            scope.executor.shutdownNow(); // Interrupts blocked I/O and waiting tasks
+        }
+        long deadline = System.currentTimeMillis() + SHUTDOWN_TIMEOUT_MS;
+        for (TaskScope scope : scopes) {
+            try {
+                scope.executor.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * A named group of background tasks with a concurrency bound.
+     */
+    public static final class TaskScope implements Executor {
+        private final String name; // Thread name prefix
+        private final Semaphore permits; // Bounds the number of running tasks
+        private final ExecutorService executor; // One virtual thread per task
+
+        private TaskScope(String name, int maxConcurrent) {
+            this.name = name;
+            this.permits = new Semaphore(maxConcurrent);
+            this.executor = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(name + "-", 0).factory());
+        }
+
+        /**
+         * Runs a task on a virtual thread once a permit is available.
+         *
+         * @param task The task to run.
+         * @return A future that completes when the task has finished.
+         */
+        public Future<?> submit(Runnable task) {
+            return executor.submit(() -> {
+                try {
+                    permits.acquire();
+                } catch (InterruptedException e) {
+                    return; // Scope was shut down before the task started
+                }
+                try {
+                    task.run();
+                } finally {
+                    permits.release();
+                }
+            });
+        }
+
+        /**
+         * Runs a task on a virtual thread once a permit is available.
+         *
+         * @param task The task to run.
+         */
+        @Override
+        public void execute(Runnable task) {
+            submit(task);
+        }
+
+        /**
+         * Gets the scope name.
+         *
+         * @return The thread name prefix of this scope.
+         */
+        public String name() {
+            return name;
+        }
+    }
+}
@@ -0,0 +1,43 @@
+// BufferPool.java
+
+// Per-thread scratch buffers for the message hot paths, so encoding, compressing, sealing and opening
+// a chat message allocate nothing once the buffers have grown to the usual message size.
+import java.nio.ByteBuffer; // For the pooled buffers
+
+final class BufferPool {
+    static final int ENCODE = 0; // Plaintext being encoded
+    static final int SEALED = 1; // Ciphertext being written or read
+    static final int PLAIN = 2; // Plaintext being decoded
+    static final int COMPRESS = 3; // Payload being packed by Compression
+    static final int INFLATE = 4; // Payload being inflated by Compression
+    private static final int SLOTS = 5;
+    private static final int MIN_CAPACITY = 1024; // Smallest buffer kept in a slot
+    private static final int MAX_RETAINED = 1024 * 1024; // Larger requests get a one-off buffer
+
+    // Buffers are never shared between threads, so a slot can be handed out without locking
+    private static final ThreadLocal<ByteBuffer[]> LOCAL = ThreadLocal.withInitial(() -> new ByteBuffer[SLOTS]);
+
+    private BufferPool() {
+    }
+
+    /**
+     * Gets the calling thread's buffer for a slot, cleared and with at least the requested capacity.
+     * The buffer stays valid until the same slot is acquired again on the same thread.
+     *
+     * @param slot     One of the slot constants.
+     * @param capacity The number of bytes needed.
+     * @return A heap buffer with position 0 and limit at its capacity.
+     */
+    static ByteBuffer acquire(int slot, int capacity) {
+        if (capacity > MAX_RETAINED) {
+            return ByteBuffer.allocate(capacity); // Do not pin rare large buffers to the thread
+        }
+        ByteBuffer[] slots = LOCAL.get();
+        ByteBuffer buffer = slots[slot];
+        if (buffer == null || buffer.capacity() < capacity) {
+            buffer = ByteBuffer.allocate(Math.max(MIN_CAPACITY, Integer.highestOneBit(capacity - 1) << 1));
+            slots[slot] = buffer;
+        }
+        return buffer.clear();
+    }
+}
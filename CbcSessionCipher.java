@@ -0,0 +1,39 @@
+// CbcSessionCipher.java
+
+// AES-CBC session cipher: a random IV per frame, as spoken by older peers
+import javax.crypto.SecretKey; // Represents the AES key
+import java.nio.ByteBuffer; // For caller-supplied buffers
+import java.security.GeneralSecurityException; // For cipher failures
+
+final class CbcSessionCipher implements SessionCipher {
+    private final SecretKey key; // Key derived from the token
+
+    CbcSessionCipher(SecretKey key) {
+        this.key = key;
+    }
+
+    @Override
+    public CipherSuite suite() {
+        return CipherSuite.AES_CBC;
+    }
+
+    @Override
+    public int sealedSize(int plainLength) {
+        return CipherEngine.encryptedSize(plainLength);
+    }
+
+    @Override
+    public int seal(ByteBuffer plain, ByteBuffer out) throws GeneralSecurityException {
+        return CipherEngine.get().encrypt(plain, out, key);
+    }
+
+    @Override
+    public int open(ByteBuffer sealed, ByteBuffer out) throws GeneralSecurityException {
+        return CipherEngine.get().decrypt(sealed, out, key);
+    }
+
+    @Override
+    public byte[] open(byte[] data, int offset, int length) throws GeneralSecurityException {
+        return CipherEngine.get().decrypt(data, offset, length, key);
+    }
+}
@@ -0,0 +1,35 @@
+// ChatEntry.java
+
+// One row of the chat view: a message, a file notice or an info line.
+// Rows hold only data; ChatView builds the nodes for the few rows that are visible.
+import java.io.File; // For file rows
+
+/**
+ * @param seq       The sequence number in the MessageLog, or -1 if the row is not recorded.
+ * @param kind      What the row shows.
+ * @param sender    The display name of the sender; empty for info rows.
+ * @param timestamp When the row was created or the message was sent, in epoch milliseconds.
+ * @param text      The message text, file description or info text.
+ * @param file      The file to open, for file rows; otherwise null.
+ * @param own       True if the local user sent it.
+ */
+public record ChatEntry(long seq, Kind kind, String sender, long timestamp, String text, File file, boolean own) {
+
+    public enum Kind { MESSAGE, FILE, INFO }
+
+    static ChatEntry message(ChatMessage message, boolean own) {
+        return new ChatEntry(-1, Kind.MESSAGE, message.sender(), message.timestamp(), message.text(), null, own);
+    }
+
+    static ChatEntry file(String sender, String fileName, String fileType, File file, boolean own) {
+        return new ChatEntry(-1, Kind.FILE, sender, System.currentTimeMillis(), fileType + " File: " + fileName, file, own);
+    }
+
+    static ChatEntry info(String text) {
+        return new ChatEntry(-1, Kind.INFO, "", System.currentTimeMillis(), text, null, false);
+    }
+
+    ChatEntry withSeq(long seq) {
+        return new ChatEntry(seq, kind, sender, timestamp, text, file, own);
+    }
+}
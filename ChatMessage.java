@@ -0,0 +1,50 @@
+// ChatMessage.java
+
+// A chat message as shown in the UI: who sent it, when, and what it says.
+// The sender name is resolved from the session; it is not repeated on the wire.
+import java.time.LocalDate; // For dating legacy timestamps
+import java.time.LocalTime; // For parsing legacy timestamps
+import java.time.ZoneId; // For converting legacy timestamps to epoch millis
+import java.time.format.DateTimeParseException; // For unparseable legacy timestamps
+
+/**
+ * @param messageId The sender's message ID; IDs start at 1, and 0 means the sender did not assign one.
+ * @param sender    The display name of the sender.
+ * @param timestamp When the message was sent, in epoch milliseconds.
+ * @param text      The message text.
+ */
+public record ChatMessage(long messageId, String sender, long timestamp, String text) {
+
+    /**
+     * Parses the "sender|time|text" format still sent by peers without binary messages.
+     * The time of day is dated today in the local time zone. A message without the separators
+     * is shown as is, attributed to the peer it came from, rather than dropped.
+     *
+     * @param fullMessage The decrypted message.
+     * @param peerName    The name of the peer it arrived from, used if the message names no sender.
+     * @return The parsed message, with message ID 0.
+     */
+    static ChatMessage fromLegacy(String fullMessage, String peerName) {
+        String[] parts = fullMessage.split("\\|", 3);
+        if (parts.length < 3) {
+            return new ChatMessage(0, peerName, System.currentTimeMillis(), fullMessage);
+        }
+        long timestamp;
+        try {
+            timestamp = LocalDate.now().atTime(LocalTime.parse(parts[1]))
+                    .atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            timestamp = System.currentTimeMillis();
+        }
+        return new ChatMessage(0, parts[0], timestamp, parts[2]);
+    }
+
+    /**
+     * Formats this message as "sender|time|text" for peers without binary messages.
+     *
+     * @return The legacy representation.
+     */
+    String toLegacy() {
+        return sender + "|" + MessageUtils.formatTime(timestamp) + "|" + text;
+    }
+}
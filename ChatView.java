@@ -0,0 +1,277 @@
+// ChatView.java
+
+// Virtualized chat history: a ListView over lightweight ChatEntry rows. Only the visible rows have
+// nodes, and those nodes are recycled as the user scrolls, so the scene graph stays the same size
+// however long the session runs. The list is a bounded window over the MessageLog: older pages are
+// read in when the user scrolls to the top, and rows that fall out of the window are dropped. Rows
+// that are not recorded cannot be read back, so those below the window are held until the user
+// scrolls down again.
+import javafx.geometry.Insets; // For bubble padding
+import javafx.geometry.Orientation; // For finding the vertical scroll bar
+import javafx.geometry.Pos; // For aligning bubbles
+import javafx.scene.Node; // For scroll bar lookup
+import javafx.scene.control.Button; // For the open button of file rows
+import javafx.scene.control.ListCell; // For recycled rows
+import javafx.scene.control.ListView; // For the virtualized list
+import javafx.scene.control.ScrollBar; // For paging on scroll
+import javafx.scene.layout.HBox; // For aligning bubbles
+import javafx.scene.layout.VBox; // For the bubble content
+import javafx.scene.paint.Color; // For text colors
+import javafx.scene.text.*; // For styled text
+import java.io.File; // For file rows
+import java.util.ArrayList; // For rows held while scrolled back
+import java.util.List; // For batches of rows
+import java.util.function.Consumer; // For opening files
+
+public final class ChatView extends ListView<ChatEntry> {
+    public static final int MAX_ENTRIES = 5000; // Rows kept in memory; older rows are dropped
+
+    // Shared by every cell; fonts and styles are created once instead of once per bubble
+    private static final Font NAME_FONT = Font.font("Verdana", FontWeight.BOLD, 12);
+    private static final Font TIME_FONT = Font.font("Verdana", FontPosture.ITALIC, 10);
+    private static final Font MESSAGE_FONT = Font.font("Arial", FontWeight.NORMAL, 14);
+    private static final Font INFO_FONT = Font.font("Verdana", FontWeight.NORMAL, 12);
+    private static final String OWN_STYLE = "-fx-background-color: #1ABC9C; -fx-background-radius: 10;";
+    private static final String PEER_STYLE = "-fx-background-color: #3498DB; -fx-background-radius: 10;";
+    private static final String INFO_STYLE = "-fx-background-color: #95A5A6; -fx-background-radius: 10;";
+    private static final String CELL_STYLE = "-fx-background-color: transparent; -fx-padding: 5 10 5 10;";
+
+    private final Consumer<File> openAction; // Called when the open button of a file row is pressed
+    private MessageLog history; // Source of older pages, or null before attachHistory()
+    private boolean followTail = true; // False after older pages pushed the newest rows out of the window
+    private final List<Held> held = new ArrayList<>(); // Unrecorded rows below the window, oldest first
+    private long recordedEnd; // One past the newest recorded row appended
+    private long windowEnd; // While scrolled back: the first recorded row below the window
+
+    // Constructor
+    public ChatView(Consumer<File> openAction) {
+        this.openAction = openAction;
+        setCellFactory(list -> new ChatCell());
+        setFocusTraversable(false);
+        setStyle("-fx-background-color: #34495E; -fx-control-inner-background: #34495E; -fx-border-color: transparent;");
+        skinProperty().addListener((observable, oldSkin, skin) -> watchScrollBar());
+    }
+
+    /**
+     * Shows the newest page of a history and pages older records in from it on scroll.
+     *
+     * @param history The history to page from.
+     */
+    public void attachHistory(MessageLog history) {
+        this.history = history;
+        showTail();
+    }
+
+    /**
+     * Adds a row at the bottom and scrolls to it.
+     *
+     * @param entry The row to add.
+     */
+    public void append(ChatEntry entry) {
+        appendAll(List.of(entry));
+    }
+
+    /**
+     * Adds rows at the bottom in one list change, trims the window and scrolls to the newest row.
+     *
+     * @param entries The rows to add, oldest first.
+     */
+    public void appendAll(List<ChatEntry> entries) {
+        for (ChatEntry entry : entries) {
+            if (entry.seq() >= 0) {
+                recordedEnd = entry.seq() + 1;
+            } else if (!followTail) {
+                hold(new Held(recordedEnd, entry)); // Not in the history, so it cannot be read back later
+            }
+        }
+        if (entries.isEmpty() || !followTail) {
+            return; // Recorded rows are read back from the history once the user scrolls down again
+        }
+        if (entries.size() >= MAX_ENTRIES) {
+            getItems().setAll(entries.subList(entries.size() - MAX_ENTRIES, entries.size()));
+        } else {
+            int overflow = getItems().size() + entries.size() - MAX_ENTRIES;
+            if (overflow > 0) {
+                getItems().remove(0, overflow); // Drop the oldest rows
+            }
+            getItems().addAll(entries);
+        }
+        scrollTo(getItems().size() - 1);
+    }
+
+    /**
+     * Pages when the vertical scroll bar reaches either end.
+     */
+    private void watchScrollBar() {
+        for (Node node : lookupAll(".scroll-bar")) {
+            if (node instanceof ScrollBar bar && bar.getOrientation() == Orientation.VERTICAL) {
+                bar.valueProperty().addListener((observable, oldValue, value) -> {
+                    if (value.doubleValue() <= bar.getMin()) {
+                        showOlder();
+                    } else if (value.doubleValue() >= bar.getMax() && !followTail) {
+                        showTail();
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Prepends the page of records before the oldest recorded row. If the window overflows,
+     * the newest rows are dropped and live rows stop being appended until showTail().
+     */
+    private void showOlder() {
+        if (history == null) {
+            return;
+        }
+        long before = history.size(); // If no recorded row is shown, every record is older
+        for (ChatEntry entry : getItems()) {
+            if (entry.seq() >= 0) {
+                before = entry.seq();
+                break;
+            }
+        }
+        if (before <= 0) {
+            return; // Already at the start of the history
+        }
+        List<ChatEntry> page = history.read(before - MessageLog.PAGE_SIZE, MessageLog.PAGE_SIZE);
+        getItems().addAll(0, page);
+        int overflow = getItems().size() - MAX_ENTRIES;
+        if (overflow > 0) {
+            List<ChatEntry> dropped = getItems().subList(MAX_ENTRIES, getItems().size());
+            long next = followTail ? recordedEnd : windowEnd;
+            List<Held> unrecorded = new ArrayList<>();
+            for (int i = dropped.size() - 1; i >= 0; i--) { // Newest first, so each row knows the record after it
+                ChatEntry entry = dropped.get(i);
+                if (entry.seq() >= 0) {
+                    next = entry.seq();
+                } else {
+                    unrecorded.add(0, new Held(next, entry));
+                }
+            }
+            held.addAll(0, unrecorded); // Older than anything held so far
+            windowEnd = next;
+            dropped.clear();
+            followTail = false;
+        }
+        scrollTo(page.size()); // Keep the row the user was looking at in place
+    }
+
+    /**
+     * Replaces the rows with the newest page of the history, with the unrecorded rows held meanwhile
+     * back in their places, and follows new rows again.
+     */
+    private void showTail() {
+        followTail = true;
+        List<ChatEntry> page = history.lastPage();
+        List<ChatEntry> rows = new ArrayList<>(page.size() + held.size());
+        int next = 0;
+        for (ChatEntry entry : page) {
+            while (next < held.size() && held.get(next).before() <= entry.seq()) {
+                rows.add(held.get(next++).entry());
+            }
+            rows.add(entry);
+        }
+        while (next < held.size()) {
+            rows.add(held.get(next++).entry());
+        }
+        held.clear();
+        if (!page.isEmpty()) {
+            recordedEnd = Math.max(recordedEnd, page.get(page.size() - 1).seq() + 1);
+        }
+        getItems().setAll(rows.subList(Math.max(0, rows.size() - MAX_ENTRIES), rows.size()));
+        if (!getItems().isEmpty()) {
+            scrollTo(getItems().size() - 1);
+        }
+    }
+
+    /**
+     * Keeps an unrecorded row that is not in the window until showTail(). Like the window, only
+     * the newest MAX_ENTRIES are kept.
+     */
+    private void hold(Held row) {
+        if (held.size() >= MAX_ENTRIES) {
+            held.remove(0);
+        }
+        held.add(row);
+    }
+
+    /**
+     * An unrecorded row below the window.
+     *
+     * @param before The sequence number of the first recorded row after it.
+     * @param entry  The row.
+     */
+    private record Held(long before, ChatEntry entry) {
+    }
+
+    /**
+     * A row whose nodes are built once and refilled for every entry it shows.
+     */
+    private final class ChatCell extends ListCell<ChatEntry> {
+        private final Text nameText = new Text();
+        private final Text timeText = new Text();
+        private final Text messageText = new Text();
+        private final TextFlow textFlow = new TextFlow(nameText, timeText, messageText);
+        private final Button openButton = new Button("Open");
+        private final VBox bubble = new VBox(5, textFlow, openButton);
+        private final HBox row = new HBox(bubble);
+        private String bubbleStyle; // Style currently applied, so it is only re-parsed when it changes
+
+        ChatCell() {
+            nameText.setFill(Color.LIGHTGRAY);
+            nameText.setFont(NAME_FONT);
+            timeText.setFill(Color.LIGHTGRAY);
+            timeText.setFont(TIME_FONT);
+            messageText.setFill(Color.WHITE);
+            UIUtils.styleButton(openButton, "#E74C3C");
+            openButton.setOnAction(e -> {
+                ChatEntry entry = getItem();
+                if (entry != null && entry.file() != null) {
+                    openAction.accept(entry.file());
+                }
+            });
+            bubble.setPadding(new Insets(10));
+            bubble.setMaxWidth(400);
+            textFlow.setMaxWidth(380);
+            setStyle(CELL_STYLE);
+            setPrefWidth(0); // Follow the list width instead of the widest row, so no horizontal scrollbar
+        }
+
+        @Override
+        protected void updateItem(ChatEntry entry, boolean empty) {
+            super.updateItem(entry, empty);
+            if (empty || entry == null) {
+                setGraphic(null);
+                return;
+            }
+            String time = MessageUtils.formatTime(entry.timestamp());
+            if (entry.kind() == ChatEntry.Kind.INFO) {
+                nameText.setText("");
+                timeText.setText("");
+                messageText.setText("[INFO] " + entry.text() + " (" + time + ")");
+                messageText.setFont(INFO_FONT);
+                row.setAlignment(Pos.CENTER); // Center-align info messages
+                applyStyle(INFO_STYLE);
+            } else {
+                nameText.setText(entry.sender() + ": ");
+                timeText.setText("[" + time + "]\n");
+                messageText.setText(entry.text());
+                messageText.setFont(MESSAGE_FONT);
+                row.setAlignment(entry.own() ? Pos.CENTER_RIGHT : Pos.CENTER_LEFT); // Align based on sender
+                applyStyle(entry.own() ? OWN_STYLE : PEER_STYLE);
+            }
+            boolean hasFile = entry.kind() == ChatEntry.Kind.FILE;
+            openButton.setVisible(hasFile);
+            openButton.setManaged(hasFile);
+            setGraphic(row);
+        }
+
+        private void applyStyle(String style) {
+            if (!style.equals(bubbleStyle)) {
+                bubble.setStyle(style);
+                bubbleStyle = style;
+            }
+        }
+    }
+}
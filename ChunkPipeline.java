@@ -0,0 +1,177 @@
+// ChunkPipeline.java
+
+// Bounded reorder buffer for encrypting and decrypting file chunks on several cores. The calling
+// thread fills a slot and submits it; the expensive stage (compress and seal, or open and inflate)
+// runs on the shared crypto pool, and the cheap completion (writing to the socket or the file) runs
+// back on the calling thread strictly in submission order. At most WINDOW chunks are in flight, so
+// memory stays at WINDOW slots however large the file is.
+import java.nio.ByteBuffer; // For the slot buffers
+import java.util.ArrayDeque; // For the in-flight slots, oldest first
+import java.util.concurrent.ExecutionException; // Wraps a failed stage
+import java.util.concurrent.ForkJoinPool; // For the crypto workers
+import java.util.concurrent.ForkJoinTask; // For waiting on one stage
+import java.util.concurrent.ForkJoinWorkerThread; // For naming the workers
+import java.util.concurrent.atomic.AtomicInteger; // For worker numbers
+
+final class ChunkPipeline {
+    private static final int CORES = Runtime.getRuntime().availableProcessors();
+    // Two per core keeps every core busy while the caller completes the oldest chunk. Capped well inside
+    // the group replay window, since group chunks are checked against it as they are opened, out of order.
+    static final int WINDOW = Math.min(ReplayWindow.SIZE / 2, Math.max(4, 2 * CORES));
+
+    // Shared by every connection; the workers are daemon threads and only ever run short CPU-bound stages
+    private static final ForkJoinPool POOL = new ForkJoinPool(CORES, new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+        private final AtomicInteger next = new AtomicInteger();
+
+        @Override
+        public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName("chunk-crypto-" + next.getAndIncrement());
+            return thread;
+        }
+    }, null, false);
+
+    /**
+     * The parallel part of a chunk's work. Runs on a pool thread and may only touch its slot,
+     * its own captured state and thread-safe objects such as a session cipher.
+     */
+    @FunctionalInterface
+    interface Stage {
+
+        /**
+         * Processes the slot.
+         *
+         * @param slot The slot filled by the caller.
+         * @return The work to do on the calling thread once every earlier chunk has completed.
+         * @throws Exception If the chunk cannot be processed; rethrown by the completing call.
+         */
+        Completion run(Slot slot) throws Exception;
+    }
+
+    /**
+     * The in-order part of a chunk's work. Runs on the thread that drives the pipeline.
+     */
+    @FunctionalInterface
+    interface Completion {
+        void complete() throws Exception;
+    }
+
+    /**
+     * Buffers of one chunk in flight. Each grows to the largest chunk it has carried and is reused.
+     */
+    static final class Slot {
+        private ByteBuffer input; // Filled by the caller
+        private ByteBuffer output; // Filled by the stage
+        private ByteBuffer scratch; // Intermediate data of the stage
+        private ForkJoinTask<Completion> task; // Set while the slot is in flight
+
+        ByteBuffer input(int capacity) {
+            return input = grow(input, capacity);
+        }
+
+        ByteBuffer output(int capacity) {
+            return output = grow(output, capacity);
+        }
+
+        ByteBuffer scratch(int capacity) {
+            return scratch = grow(scratch, capacity);
+        }
+
+        private static ByteBuffer grow(ByteBuffer buffer, int capacity) {
+            return buffer == null || buffer.capacity() < capacity ? ByteBuffer.allocate(capacity) : buffer.clear();
+        }
+    }
+
+    private final ArrayDeque<Slot> inFlight = new ArrayDeque<>(WINDOW); // Oldest first
+    private final ArrayDeque<Slot> free = new ArrayDeque<>(WINDOW); // Completed slots, ready for reuse
+
+    /**
+     * Gets a slot for the next chunk. If the window is full, the oldest chunk is completed first.
+     *
+     * @return A slot whose buffers the caller may fill.
+     * @throws Exception If completing the oldest chunk fails.
+     */
+    Slot acquire() throws Exception {
+        if (isFull()) {
+            completeNext();
+        }
+        Slot slot = free.poll();
+        return slot != null ? slot : new Slot();
+    }
+
+    /**
+     * Starts the stage of a slot returned by acquire() on the crypto pool.
+     *
+     * @param slot  The filled slot.
+     * @param stage The work to run in parallel.
+     */
+    void submit(Slot slot, Stage stage) {
+        slot.task = POOL.submit(() -> stage.run(slot));
+        inFlight.add(slot);
+    }
+
+    /**
+     * Returns a slot from acquire() that the caller decided not to submit.
+     *
+     * @param slot The unused slot.
+     */
+    void release(Slot slot) {
+        free.add(slot);
+    }
+
+    boolean isEmpty() {
+        return inFlight.isEmpty();
+    }
+
+    boolean isFull() {
+        return inFlight.size() >= WINDOW;
+    }
+
+    /**
+     * Waits for the oldest chunk's stage and runs its completion.
+     *
+     * @throws Exception If the stage or the completion failed; later chunks stay in flight.
+     */
+    void completeNext() throws Exception {
+        Slot slot = inFlight.poll();
+        if (slot == null) {
+            return;
+        }
+        Completion completion;
+        try {
+            completion = slot.task.get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception cause ? cause : e;
+        } finally {
+            slot.task = null;
+        }
+        try {
+            completion.complete();
+        } finally {
+            free.add(slot);
+        }
+    }
+
+    /**
+     * Completes every chunk in flight, in order.
+     *
+     * @throws Exception If a stage or completion failed.
+     */
+    void completeAll() throws Exception {
+        while (!inFlight.isEmpty()) {
+            completeNext();
+        }
+    }
+
+    /**
+     * Drops every chunk in flight without completing it. Stages already running finish on their own.
+     */
+    void cancel() {
+        Slot slot;
+        while ((slot = inFlight.poll()) != null) {
+            slot.task.cancel(false);
+            slot.task = null;
+        }
+        free.clear();
+    }
+}
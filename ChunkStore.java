@@ -0,0 +1,330 @@
+// ChunkStore.java
+
+// Content-addressed index over the completed downloads. Every file in downloads/ is recorded with
+// the SHA-256 hashes of its chunks, so an incoming transfer can take the chunks the receiver already
+// holds from disk instead of the network, and a file that is shared again is copied, not sent again.
+// The index holds no data: an entry points at the download that holds it, and every read is checked
+// against the hash, so a download the user edits or deletes is simply not reused. Downloads are never
+// linked to each other, since editing one would change the other.
+//
+//   downloads/.store/index   [magic][version] then one record per file, appended:
+//                            [UTF name][long size][long modified][int chunkSize][id 32][hashes 32 each]
+//
+// A later record for the same name replaces the earlier one; stale and replaced records are dropped
+// when the index is rewritten on the next start.
+import java.io.*; // For the index file
+import java.nio.ByteBuffer; // For chunk reads and map keys
+import java.nio.channels.FileChannel; // For positional reads and writes
+import java.nio.file.*; // For the index file
+import java.util.Arrays; // For comparing hashes
+import java.util.HashMap; // For the lookup tables
+import java.util.Map; // For the lookup tables
+import java.util.function.Consumer; // For reporting failures
+
+final class ChunkStore {
+    private static final int MAGIC = 0x50324353; // "P2CS"
+    private static final int VERSION = 1;
+    private static final int HASH_SIZE = TransferState.HASH_SIZE;
+
+    private final Path directory; // downloads/
+    private final Path indexFile; // downloads/.store/index
+    private final int chunkSize; // Chunk size used when indexing downloads that arrived without hashes
+    private final Consumer<String> errors; // Reports failures to the user
+
+    // Guarded by this
+    private final Map<String, Entry> files = new HashMap<>(); // By file name in the directory
+    private final Map<ByteBuffer, Entry> byContent = new HashMap<>(); // By content hash
+    private final Map<Long, ChunkRef> chunks = new HashMap<>(); // By the first 8 bytes of a chunk hash
+
+    /**
+     * One indexed download.
+     */
+    private record Entry(String name, long size, long modified, int chunkSize, byte[] id, byte[] hashes) {
+        int chunkCount() {
+            return hashes.length / HASH_SIZE;
+        }
+    }
+
+    /**
+     * A chunk of an indexed download.
+     */
+    private record ChunkRef(Entry entry, int index) {
+    }
+
+    private ChunkStore(Path directory, int chunkSize, Consumer<String> errors) {
+        this.directory = directory;
+        this.indexFile = directory.resolve(".store").resolve("index");
+        this.chunkSize = chunkSize;
+        this.errors = errors;
+    }
+
+    /**
+     * Opens the store of a download directory. Records of downloads that have changed or
+     * disappeared since they were indexed are dropped. An unreadable index starts empty.
+     *
+     * @param directory The download directory.
+     * @param chunkSize The chunk size for downloads indexed after they arrived.
+     * @param errors    Receives failures worth showing to the user.
+     * @return The store.
+     */
+    static ChunkStore open(Path directory, int chunkSize, Consumer<String> errors) {
+        ChunkStore store = new ChunkStore(directory, chunkSize, errors);
+        if (Files.exists(store.indexFile)) {
+            store.load();
+        }
+        return store;
+    }
+
+    /**
+     * Gets the download directory the store indexes.
+     *
+     * @return The directory.
+     */
+    Path directory() {
+        return directory;
+    }
+
+    private synchronized void load() {
+        boolean compact = false; // Some records are stale, replaced or truncated
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("not a chunk store index");
+            }
+            while (true) {
+                String name;
+                try {
+                    name = in.readUTF();
+                } catch (EOFException e) {
+                    break; // End of the last complete record
+                }
+                Entry entry;
+                try {
+                    long size = in.readLong();
+                    long modified = in.readLong();
+                    int entryChunkSize = in.readInt();
+                    byte[] id = in.readNBytes(HASH_SIZE);
+                    if (size < 0 || entryChunkSize <= 0 || id.length != HASH_SIZE) {
+                        throw new EOFException();
+                    }
+                    byte[] hashes = in.readNBytes(TransferState.chunkCount(size, entryChunkSize) * HASH_SIZE);
+                    if (hashes.length != TransferState.chunkCount(size, entryChunkSize) * HASH_SIZE) {
+                        throw new EOFException();
+                    }
+                    entry = new Entry(name, size, modified, entryChunkSize, id, hashes);
+                } catch (EOFException | IllegalArgumentException e) {
+                    compact = true; // Torn or corrupt record; dropped with everything after it
+                    break;
+                }
+                compact |= files.containsKey(entry.name()) || !isCurrent(entry);
+                if (isCurrent(entry)) {
+                    put(entry);
+                } else {
+                    remove(files.get(entry.name()));
+                }
+            }
+        } catch (IOException e) {
+            errors.accept("Download index was unreadable and is rebuilt: " + e.getMessage());
+            clear();
+            compact = true;
+        }
+        if (compact) {
+            rewrite();
+        }
+    }
+
+    /**
+     * Finds a download that already holds the given content under the given name. A download with
+     * the content under another name is not returned; the transfer copies its chunks instead.
+     *
+     * @param id   The content hash of the file.
+     * @param name The sanitized name the sender announced.
+     * @return The download, or null if no current download has the content under that name.
+     */
+    synchronized File find(byte[] id, String name) {
+        Entry entry = byContent.get(ByteBuffer.wrap(id));
+        if (entry == null || !isCurrent(entry)) {
+            remove(entry);
+            return null;
+        }
+        return entry.name().equals(name) ? directory.resolve(entry.name()).toFile() : null;
+    }
+
+    /**
+     * Copies a chunk that some download already holds into a partial file.
+     *
+     * @param hash   The chunk hash.
+     * @param length The chunk length.
+     * @param target The partial file.
+     * @param offset The chunk's offset in the partial file.
+     * @return True if the chunk was found, matched its hash and was written.
+     * @throws IOException If the partial file cannot be written.
+     */
+    synchronized boolean copyChunk(byte[] hash, int length, FileChannel target, long offset) throws IOException {
+        ChunkRef ref = chunks.get(ByteBuffer.wrap(hash).getLong());
+        if (ref == null) {
+            return false;
+        }
+        Entry entry = ref.entry();
+        long position = (long) ref.index() * entry.chunkSize();
+        if (!Arrays.equals(entry.hashes(), ref.index() * HASH_SIZE, (ref.index() + 1) * HASH_SIZE, hash, 0, HASH_SIZE)
+                || Math.min(entry.chunkSize(), entry.size() - position) != length) {
+            return false; // Another chunk with the same prefix, or the same data at another chunk size
+        }
+        ByteBuffer chunk = ByteBuffer.allocate(length);
+        try (FileChannel source = FileChannel.open(directory.resolve(entry.name()), StandardOpenOption.READ)) {
+            while (chunk.hasRemaining()) {
+                if (source.read(chunk, position + chunk.position()) < 0) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            remove(entry); // Deleted or unreadable since it was indexed
+            return false;
+        }
+        chunk.flip();
+        if (chunk.remaining() != length || !Arrays.equals(TransferState.hashChunk(chunk), hash)) {
+            remove(entry); // Edited since it was indexed
+            return false;
+        }
+        while (chunk.hasRemaining()) {
+            offset += target.write(chunk, offset);
+        }
+        return true;
+    }
+
+    /**
+     * Records a completed download whose chunk hashes are already known.
+     *
+     * @param file      The download.
+     * @param id        Its content hash.
+     * @param chunkSize The chunk size the hashes were computed with.
+     * @param hashes    The chunk hashes, concatenated.
+     */
+    synchronized void add(File file, byte[] id, int chunkSize, byte[] hashes) {
+        Entry entry = new Entry(file.getName(), file.length(), file.lastModified(), chunkSize, id.clone(), hashes.clone());
+        put(entry);
+        append(entry);
+    }
+
+    /**
+     * Records a completed download that arrived without chunk hashes, hashing it first.
+     * Does nothing if the download is already recorded.
+     *
+     * @param file The download.
+     */
+    void index(File file) {
+        synchronized (this) {
+            Entry known = files.get(file.getName());
+            if (known != null && isCurrent(known)) {
+                return;
+            }
+        }
+        byte[] hashes;
+        try {
+            hashes = TransferState.hashChunks(file, chunkSize);
+        } catch (IOException e) {
+            return; // Moved or deleted meanwhile
+        }
+        add(file, TransferState.contentHash(file.length(), chunkSize, hashes), chunkSize, hashes);
+    }
+
+    /**
+     * Records every download not yet in the index, such as files received before the store
+     * existed. Partial downloads and hidden files are skipped.
+     */
+    void indexAll() {
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+        try (DirectoryStream<Path> downloads = Files.newDirectoryStream(directory,
+                path -> Files.isRegularFile(path) && !path.getFileName().toString().startsWith(".")
+                        && !path.getFileName().toString().endsWith(".part"))) {
+            for (Path path : downloads) {
+                index(path.toFile());
+            }
+        } catch (IOException e) {
+            errors.accept("Failed to index downloads: " + e.getMessage());
+        }
+    }
+
+    // Caller holds the lock
+    private boolean isCurrent(Entry entry) {
+        File file = directory.resolve(entry.name()).toFile();
+        return file.isFile() && file.length() == entry.size() && file.lastModified() == entry.modified();
+    }
+
+    private void put(Entry entry) {
+        remove(files.get(entry.name()));
+        files.put(entry.name(), entry);
+        byContent.putIfAbsent(ByteBuffer.wrap(entry.id()), entry);
+        for (int i = 0; i < entry.chunkCount(); i++) {
+            chunks.putIfAbsent(ByteBuffer.wrap(entry.hashes(), i * HASH_SIZE, 8).getLong(), new ChunkRef(entry, i));
+        }
+    }
+
+    private void remove(Entry entry) {
+        if (entry == null || files.get(entry.name()) != entry) {
+            return;
+        }
+        files.remove(entry.name());
+        byContent.remove(ByteBuffer.wrap(entry.id()), entry);
+        for (int i = 0; i < entry.chunkCount(); i++) {
+            long key = ByteBuffer.wrap(entry.hashes(), i * HASH_SIZE, 8).getLong();
+            ChunkRef ref = chunks.get(key);
+            if (ref != null && ref.entry() == entry) {
+                chunks.remove(key);
+            }
+        }
+    }
+
+    private void clear() {
+        files.clear();
+        byContent.clear();
+        chunks.clear();
+    }
+
+    private void append(Entry entry) {
+        try {
+            Files.createDirectories(indexFile.getParent());
+            boolean fresh = !Files.exists(indexFile);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(indexFile,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND)))) {
+                if (fresh) {
+                    out.writeInt(MAGIC);
+                    out.writeInt(VERSION);
+                }
+                write(out, entry);
+            }
+        } catch (IOException e) {
+            errors.accept("Failed to update the download index: " + e.getMessage());
+        }
+    }
+
+    private void rewrite() {
+        Path temp = indexFile.resolveSibling("index.tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            for (Entry entry : files.values()) {
+                write(out, entry);
+            }
+        } catch (IOException e) {
+            errors.accept("Failed to rewrite the download index: " + e.getMessage());
+            return;
+        }
+        try {
+            Files.move(temp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            errors.accept("Failed to rewrite the download index: " + e.getMessage());
+        }
+    }
+
+    private static void write(DataOutputStream out, Entry entry) throws IOException {
+        out.writeUTF(entry.name());
+        out.writeLong(entry.size());
+        out.writeLong(entry.modified());
+        out.writeInt(entry.chunkSize());
+        out.write(entry.id());
+        out.write(entry.hashes());
+    }
+}
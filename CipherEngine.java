@@ -0,0 +1,221 @@
+// CipherEngine.java
+
+// Reusable AES engine with per-thread cached CBC and GCM ciphers and a per-thread SecureRandom.
+// Encrypts and decrypts between caller-supplied ByteBuffers with the IV stored in place.
+// Every encryption and decryption is timed into Metrics, whichever path it comes from.
+import javax.crypto.Cipher; // For performing encryption and decryption
+import javax.crypto.SecretKey; // Represents the AES key
+import javax.crypto.spec.GCMParameterSpec; // Represents the GCM nonce and tag length
+import javax.crypto.spec.IvParameterSpec; // Represents the initialization vector (IV)
+import java.nio.ByteBuffer; // For caller-supplied buffers
+import java.security.GeneralSecurityException; // For cipher failures
+import java.security.SecureRandom; // For generating secure random numbers
+
+public final class CipherEngine {
+    public static final int IV_LENGTH = 16; // AES block size; the IV precedes every ciphertext
+    public static final int GCM_NONCE_LENGTH = 12; // 4-byte direction prefix plus 8-byte counter
+    public static final int GCM_TAG_LENGTH = 16; // Authentication tag appended to every GCM ciphertext
+    private static final String TRANSFORMATION = "AES/CBC/PKCS5Padding"; // Cipher used by every engine
+    private static final String GCM_TRANSFORMATION = "AES/GCM/NoPadding"; // Authenticated cipher
+
+    // One engine per thread: Cipher is not thread-safe, and a per-thread SecureRandom avoids lock contention
+    private static final ThreadLocal<CipherEngine> LOCAL = ThreadLocal.withInitial(CipherEngine::new);
+
+    private final Cipher cipher; // Re-initialized for every message instead of re-created
+    private final SecureRandom random = new SecureRandom(); // IV source for this thread
+    private final byte[] iv = new byte[IV_LENGTH]; // Scratch IV, copied into the output buffer
+    private final byte[] nonce = new byte[GCM_NONCE_LENGTH]; // Scratch GCM nonce
+    private Cipher gcm; // Created on first GCM use
+
+    private CipherEngine() {
+        try {
+            cipher = Cipher.getInstance(TRANSFORMATION);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(TRANSFORMATION + " is not available", e);
+        }
+    }
+
+    /**
+     * Gets the engine cached for the calling thread.
+     *
+     * @return The calling thread's engine.
+     */
+    public static CipherEngine get() {
+        return LOCAL.get();
+    }
+
+    /**
+     * Gets the exact size of the IV plus ciphertext for a plaintext of the given length.
+     *
+     * @param plainLength The plaintext length in bytes.
+     * @return The number of bytes encrypt() writes.
+     */
+    public static int encryptedSize(int plainLength) {
+        return IV_LENGTH + (plainLength / 16 + 1) * 16; // PKCS5 always adds 1 to 16 bytes of padding
+    }
+
+    /**
+     * Encrypts the remaining bytes of plain into out as IV followed by ciphertext.
+     * Both buffers are advanced; out must have encryptedSize(plain.remaining()) bytes free.
+     *
+     * @param plain The plaintext; must not share memory with out.
+     * @param out   The destination buffer.
+     * @param key   The AES SecretKey used for encryption.
+     * @return The number of bytes written to out.
+     * @throws GeneralSecurityException If encryption fails.
+     */
+    public int encrypt(ByteBuffer plain, ByteBuffer out, SecretKey key) throws GeneralSecurityException {
+        long started = System.nanoTime();
+        int start = out.position();
+        Metrics.BYTES_SEALED.add(plain.remaining());
+        random.nextBytes(iv);
+        out.put(iv); // IV goes in place ahead of the ciphertext
+        cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(iv));
+        cipher.doFinal(plain, out);
+        Metrics.SEAL.recordSince(started);
+        return out.position() - start;
+    }
+
+    /**
+     * Decrypts the remaining bytes of sealed (IV followed by ciphertext) into out.
+     * The IV is read in place; both buffers are advanced.
+     *
+     * @param sealed The IV and ciphertext; must not share memory with out.
+     * @param out    The destination buffer, with room for sealed.remaining() - IV_LENGTH bytes.
+     * @param key    The AES SecretKey used for decryption.
+     * @return The number of plaintext bytes written to out.
+     * @throws GeneralSecurityException If decryption fails or the data is invalid.
+     */
+    public int decrypt(ByteBuffer sealed, ByteBuffer out, SecretKey key) throws GeneralSecurityException {
+        if (sealed.remaining() < IV_LENGTH) { // Ensure data contains at least the IV
+            throw new IllegalArgumentException("Invalid encrypted data");
+        }
+        long started = System.nanoTime();
+        int start = out.position();
+        cipher.init(Cipher.DECRYPT_MODE, key, ivSpec(sealed));
+        cipher.doFinal(sealed, out);
+        Metrics.BYTES_OPENED.add(out.position() - start);
+        Metrics.OPEN.recordSince(started);
+        return out.position() - start;
+    }
+
+    /**
+     * Encrypts a region of a byte array into a new array holding the IV followed by the ciphertext.
+     * The result is the only allocation on this path.
+     */
+    byte[] encrypt(byte[] data, int offset, int length, SecretKey key) throws GeneralSecurityException {
+        byte[] sealed = new byte[encryptedSize(length)];
+        encrypt(ByteBuffer.wrap(data, offset, length), ByteBuffer.wrap(sealed), key);
+        return sealed;
+    }
+
+    /**
+     * Decrypts a region of a byte array holding an IV and ciphertext into a new plaintext array.
+     * The result is the only allocation on this path besides the IV spec.
+     */
+    byte[] decrypt(byte[] data, int offset, int length, SecretKey key) throws GeneralSecurityException {
+        if (length < IV_LENGTH) { // Ensure data contains at least the IV
+            throw new IllegalArgumentException("Invalid encrypted data");
+        }
+        long started = System.nanoTime();
+        cipher.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(data, offset, IV_LENGTH));
+        byte[] plain = cipher.doFinal(data, offset + IV_LENGTH, length - IV_LENGTH);
+        Metrics.BYTES_OPENED.add(plain.length);
+        Metrics.OPEN.recordSince(started);
+        return plain;
+    }
+
+    /**
+     * Encrypts the remaining bytes of plain into out with AES-GCM, appending the tag.
+     * The nonce is built from a direction prefix and a counter that must never repeat for the key.
+     *
+     * @param plain   The plaintext; must not share memory with out.
+     * @param out     The destination buffer, with room for plain.remaining() + GCM_TAG_LENGTH bytes.
+     * @param key     The AES session key.
+     * @param prefix  The direction prefix of the nonce.
+     * @param counter The per-direction message counter.
+     * @return The number of bytes written to out.
+     * @throws GeneralSecurityException If encryption fails.
+     */
+    public int sealGcm(ByteBuffer plain, ByteBuffer out, SecretKey key, int prefix, long counter)
+            throws GeneralSecurityException {
+        long started = System.nanoTime();
+        int start = out.position();
+        Metrics.BYTES_SEALED.add(plain.remaining());
+        Cipher aead = gcm();
+        aead.init(Cipher.ENCRYPT_MODE, key, gcmSpec(prefix, counter));
+        aead.doFinal(plain, out);
+        Metrics.SEAL.recordSince(started);
+        return out.position() - start;
+    }
+
+    /**
+     * Verifies and decrypts the remaining bytes of sealed (ciphertext plus tag) into out with AES-GCM.
+     *
+     * @param sealed  The ciphertext and tag; must not share memory with out.
+     * @param out     The destination buffer, with room for sealed.remaining() bytes.
+     * @param key     The AES session key.
+     * @param prefix  The direction prefix of the nonce.
+     * @param counter The counter the sender used.
+     * @return The number of plaintext bytes written to out.
+     * @throws GeneralSecurityException If the tag does not match.
+     */
+    public int openGcm(ByteBuffer sealed, ByteBuffer out, SecretKey key, int prefix, long counter)
+            throws GeneralSecurityException {
+        long started = System.nanoTime();
+        int start = out.position();
+        Cipher aead = gcm();
+        aead.init(Cipher.DECRYPT_MODE, key, gcmSpec(prefix, counter));
+        aead.doFinal(sealed, out);
+        Metrics.BYTES_OPENED.add(out.position() - start);
+        Metrics.OPEN.recordSince(started);
+        return out.position() - start;
+    }
+
+    /**
+     * Verifies and decrypts a region of a byte array holding GCM ciphertext plus tag into a new array.
+     */
+    byte[] openGcm(byte[] data, int offset, int length, SecretKey key, int prefix, long counter)
+            throws GeneralSecurityException {
+        long started = System.nanoTime();
+        Cipher aead = gcm();
+        aead.init(Cipher.DECRYPT_MODE, key, gcmSpec(prefix, counter));
+        byte[] plain = aead.doFinal(data, offset, length);
+        Metrics.BYTES_OPENED.add(plain.length);
+        Metrics.OPEN.recordSince(started);
+        return plain;
+    }
+
+    private Cipher gcm() throws GeneralSecurityException {
+        if (gcm == null) {
+            gcm = Cipher.getInstance(GCM_TRANSFORMATION);
+        }
+        return gcm;
+    }
+
+    private GCMParameterSpec gcmSpec(int prefix, long counter) {
+        nonce[0] = (byte) (prefix >>> 24);
+        nonce[1] = (byte) (prefix >>> 16);
+        nonce[2] = (byte) (prefix >>> 8);
+        nonce[3] = (byte) prefix;
+        for (int i = 0; i < 8; i++) {
+            nonce[4 + i] = (byte) (counter >>> (56 - 8 * i));
+        }
+        return new GCMParameterSpec(GCM_TAG_LENGTH * 8, nonce);
+    }
+
+    /**
+     * Reads the IV at the front of the buffer, without copying when the buffer is array-backed.
+     */
+    private IvParameterSpec ivSpec(ByteBuffer sealed) {
+        IvParameterSpec spec;
+        if (sealed.hasArray()) {
+            spec = new IvParameterSpec(sealed.array(), sealed.arrayOffset() + sealed.position(), IV_LENGTH);
+            sealed.position(sealed.position() + IV_LENGTH);
+        } else {
+            sealed.get(iv);
+            spec = new IvParameterSpec(iv);
+        }
+        return spec;
+    }
+}
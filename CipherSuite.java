@@ -0,0 +1,89 @@
+// CipherSuite.java
+
+// Cipher suites a session can be encrypted with, and their negotiation during the handshake
+import javax.crypto.SecretKey; // Represents the AES key
+
+public enum CipherSuite {
+    AES_GCM("AES-GCM"), // Authenticated encryption with per-session counter nonces
+    AES_CBC("AES-CBC"); // Original suite with a random IV per message; understood by every peer
+
+    private final String wireName; // Name used in the handshake
+
+    CipherSuite(String wireName) {
+        this.wireName = wireName;
+    }
+
+    /**
+     * Gets the name this suite is advertised under in the handshake.
+     *
+     * @return The wire name, e.g. "AES-GCM".
+     */
+    public String wireName() {
+        return wireName;
+    }
+
+    /**
+     * Looks up a suite by its wire name.
+     *
+     * @param wireName The advertised name.
+     * @return The matching suite, or null if it is unknown.
+     */
+    public static CipherSuite fromWireName(String wireName) {
+        for (CipherSuite suite : values()) {
+            if (suite.wireName.equals(wireName)) {
+                return suite;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Gets the comma-separated list of suites to offer, best first.
+     *
+     * @param preferred The locally preferred suite.
+     * @return The suites to advertise in the client hello.
+     */
+    public static String offer(CipherSuite preferred) {
+        return preferred == AES_GCM ? AES_GCM.wireName + "," + AES_CBC.wireName : AES_CBC.wireName;
+    }
+
+    /**
+     * Picks the first suite the peer offered that is allowed locally.
+     * A peer that offered nothing is an older client and gets AES-CBC.
+     *
+     * @param offered   The comma-separated suites from the client hello, or null.
+     * @param preferred The locally preferred suite; AES_CBC disables AES-GCM.
+     * @return The negotiated suite.
+     */
+    public static CipherSuite negotiate(String offered, CipherSuite preferred) {
+        if (offered == null || preferred == AES_CBC) {
+            return AES_CBC;
+        }
+        for (String name : offered.split(",")) {
+            CipherSuite suite = fromWireName(name.trim());
+            if (suite != null) {
+                return suite;
+            }
+        }
+        return AES_CBC;
+    }
+
+    /**
+     * Creates the cipher for one session.
+     *
+     * @param baseKey    The key derived from the shared token.
+     * @param clientSalt The client's handshake salt (unused by AES-CBC).
+     * @param serverSalt The server's handshake salt (unused by AES-CBC).
+     * @param initiator  True on the side that connected, false on the server.
+     * @return The session cipher.
+     * @throws Exception If the session key cannot be derived.
+     */
+    public SessionCipher newSessionCipher(SecretKey baseKey, byte[] clientSalt, byte[] serverSalt, boolean initiator)
+            throws Exception {
+        if (this == AES_GCM) {
+            SecretKey sessionKey = EncryptionUtils.deriveSessionKey(baseKey, clientSalt, serverSalt);
+            return new GcmSessionCipher(sessionKey, initiator);
+        }
+        return new CbcSessionCipher(baseKey);
+    }
+}
@@ -0,0 +1,219 @@
+// Compression.java
+
+// Optional Deflate stage between encoding and encryption, used once both peers have agreed on the
+// "deflate" feature. Every payload gets a one-byte marker:
+//
+//   [0][payload]                            stored as is
+//   [1][length:varint][zlib-deflated payload] deflated; length is the original size
+//
+// Short payloads and payloads that do not shrink by at least an eighth are stored, so chat latency
+// and CPU time on already-compressed media are not spent for nothing.
+import java.io.IOException; // For corrupt or oversized payloads
+import java.nio.BufferUnderflowException; // Signals a truncated payload
+import java.nio.ByteBuffer; // For packing and unpacking in place
+import java.util.zip.DataFormatException; // For corrupt deflate streams
+import java.util.zip.Deflater; // For compressing
+import java.util.zip.Inflater; // For decompressing
+
+final class Compression {
+    static final int STORED = 0; // Payload follows as is
+    static final int DEFLATED = 1; // Payload follows compressed
+    static final int MIN_SIZE = 256; // Shorter payloads are always stored
+    private static final int HEADER_SIZE = 1 + 5; // Marker plus the largest length varint
+    private static final int MAX_BACKOFF = 64; // Most chunks skipped after a stream stops compressing
+
+    // Deflater and Inflater hold native zlib state that is expensive to create, so each thread keeps one
+    private static final ThreadLocal<Compression> LOCAL = ThreadLocal.withInitial(Compression::new);
+
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED); // Favours latency over ratio
+    private final Inflater inflater = new Inflater();
+
+    private Compression() {
+    }
+
+    /**
+     * Gets the largest packed size of a payload, which is the stored form.
+     *
+     * @param plainLength The payload length in bytes.
+     * @return The number of bytes pack() may produce.
+     */
+    static int packedSize(int plainLength) {
+        return plainLength + 1;
+    }
+
+    /**
+     * Packs the remaining bytes of plain into the calling thread's pooled compress buffer,
+     * deflated if that saves at least an eighth and stored otherwise.
+     * The result stays valid until the next pack on the same thread.
+     *
+     * @param plain    The payload; consumed.
+     * @param adaptive The history of the stream the payload belongs to, or null for a one-off payload.
+     * @return The packed payload, flipped for reading.
+     */
+    static ByteBuffer pack(ByteBuffer plain, Adaptive adaptive) {
+        boolean attempt = adaptive != null ? adaptive.shouldTry(plain.remaining()) : plain.remaining() >= MIN_SIZE;
+        ByteBuffer out = pack(plain, attempt);
+        if (attempt && adaptive != null) {
+            adaptive.record(isDeflated(out));
+        }
+        return out;
+    }
+
+    /**
+     * Packs the remaining bytes of plain into the calling thread's pooled compress buffer, like
+     * pack(ByteBuffer, Adaptive), with the decision to try deflating already made by the caller.
+     * Used where payloads of one stream are packed on several threads.
+     *
+     * @param plain   The payload; consumed.
+     * @param attempt True to try deflating; false to store the payload as is.
+     * @return The packed payload, flipped for reading.
+     */
+    static ByteBuffer pack(ByteBuffer plain, boolean attempt) {
+        int length = plain.remaining();
+        ByteBuffer out = BufferPool.acquire(BufferPool.COMPRESS, Math.max(packedSize(length), HEADER_SIZE));
+        if (attempt && length >= MIN_SIZE) {
+            int start = plain.position();
+            out.put((byte) DEFLATED);
+            MessageCodec.putVarLong(out, length);
+            out.limit(1 + length - length / 8); // Give up as soon as the output would not save an eighth
+            if (LOCAL.get().deflate(plain, out)) {
+                return out.flip();
+            }
+            plain.position(start);
+            out.clear();
+        }
+        return out.put((byte) STORED).put(plain).flip();
+    }
+
+    /**
+     * Checks whether a packed payload was deflated rather than stored.
+     *
+     * @param packed A payload returned by pack(), not yet read.
+     * @return True if it is deflated.
+     */
+    static boolean isDeflated(ByteBuffer packed) {
+        return packed.get(packed.position()) == DEFLATED;
+    }
+
+    /**
+     * Unpacks a payload written by pack(). A stored payload is returned as a view of the input;
+     * a deflated one is inflated into the calling thread's pooled inflate buffer.
+     *
+     * @param packed    The packed payload; consumed.
+     * @param maxLength The largest original size the caller accepts.
+     * @return The original payload, flipped for reading.
+     * @throws IOException If the payload is corrupt or larger than maxLength.
+     */
+    static ByteBuffer unpack(ByteBuffer packed, int maxLength) throws IOException {
+        return unpack(packed, maxLength, null);
+    }
+
+    /**
+     * Unpacks a payload written by pack(), inflating into a buffer owned by the caller.
+     * Used where the result outlives the thread that unpacked it.
+     *
+     * @param packed    The packed payload; consumed.
+     * @param maxLength The largest original size the caller accepts.
+     * @param into      Receives a deflated payload; needs maxLength + 1 bytes free. Null for the pooled buffer.
+     * @return The original payload, flipped for reading; a view of packed if it was stored.
+     * @throws IOException If the payload is corrupt or larger than maxLength.
+     */
+    static ByteBuffer unpack(ByteBuffer packed, int maxLength, ByteBuffer into) throws IOException {
+        try {
+            int marker = packed.get();
+            if (marker == STORED) {
+                if (packed.remaining() > maxLength) {
+                    throw new IOException("Payload exceeds " + maxLength + " bytes");
+                }
+                return packed;
+            }
+            if (marker != DEFLATED) {
+                throw new IOException("Unknown compression marker: " + marker);
+            }
+            long length = MessageCodec.getVarLong(packed);
+            if (length < 0 || length > maxLength) {
+                throw new IOException("Payload exceeds " + maxLength + " bytes");
+            }
+            // One spare byte lets the inflater reach the end of the stream and exposes oversized output
+            ByteBuffer out = into != null ? into.clear() : BufferPool.acquire(BufferPool.INFLATE, (int) length + 1);
+            out.limit((int) length + 1);
+            if (!LOCAL.get().inflate(packed, out) || out.position() != length) {
+                throw new IOException("Corrupt compressed payload");
+            }
+            return out.flip();
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated compressed payload", e);
+        }
+    }
+
+    /**
+     * Deflates all of in into out.
+     *
+     * @return False if out filled up before the stream was complete.
+     */
+    private boolean deflate(ByteBuffer in, ByteBuffer out) {
+        deflater.reset();
+        deflater.setInput(in);
+        deflater.finish();
+        while (!deflater.finished() && out.hasRemaining()) {
+            deflater.deflate(out);
+        }
+        return deflater.finished();
+    }
+
+    /**
+     * Inflates a complete stream from in into out.
+     *
+     * @return False if out filled up or the input ended before the stream was complete.
+     */
+    private boolean inflate(ByteBuffer in, ByteBuffer out) throws IOException {
+        inflater.reset();
+        inflater.setInput(in);
+        try {
+            while (!inflater.finished() && out.hasRemaining()) {
+                if (inflater.inflate(out) == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    return false;
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed payload", e);
+        }
+        return inflater.finished();
+    }
+
+    /**
+     * Compression history of one outgoing stream. After a chunk fails to compress, the next
+     * chunks are stored without trying; the number skipped doubles with every further failure.
+     * Not thread-safe; each stream is packed by one thread at a time.
+     */
+    static final class Adaptive {
+        private int backoff; // Chunks to skip after the next failure
+        private int skip; // Chunks still to skip
+
+        /**
+         * Decides whether the next payload of the stream is worth deflating.
+         *
+         * @param length The payload length in bytes.
+         * @return True to try; the outcome must then be passed to record().
+         */
+        boolean shouldTry(int length) {
+            if (length < MIN_SIZE) {
+                return false; // Not counted against the backoff
+            }
+            if (skip > 0) {
+                skip--;
+                return false;
+            }
+            return true;
+        }
+
+        void record(boolean compressed) {
+            if (compressed) {
+                backoff = 0;
+                return;
+            }
+            backoff = Math.min(MAX_BACKOFF, Math.max(1, backoff * 2));
+            skip = backoff;
+        }
+    }
+}
@@ -0,0 +1,49 @@
+// ConnectionListener.java
+
+// Receives what the connection layer has to report: status lines, chat rows and connection
+// state. ConnectionManager and MultiPeerServer only talk to this interface, so they run the same
+// under the JavaFX window (P2PMessenger2) and without a display (LoadGenerator).
+// Every callback may come from any background thread; an implementation that drives a UI hands
+// the work to its own thread.
+public interface ConnectionListener {
+
+    /**
+     * Reports a status or error line.
+     *
+     * @param message The line to show.
+     */
+    void log(String message);
+
+    /**
+     * Reports a message or file notice that was sent or received. The entry has already been
+     * recorded in the history.
+     *
+     * @param entry The chat row.
+     */
+    void addChatEntry(ChatEntry entry);
+
+    /**
+     * Reports that a session is ready for sending.
+     */
+    void onConnected();
+
+    /**
+     * Reports that the session ended.
+     */
+    void onDisconnected();
+
+    /**
+     * Reports fresh round-trip statistics, after every pong.
+     *
+     * @param stats The statistics of the current connection.
+     */
+    void onLinkStats(LinkMonitor.Stats stats);
+
+    /**
+     * Reports that a server is accepting connections.
+     *
+     * @param port The port it listens on.
+     */
+    default void onListening(int port) {
+    }
+}
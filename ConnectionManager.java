@@ -1,32 +1,218 @@
 // ConnectionManager.java
 
 // Manages peer-to-peer connections, message sending, and file transfer
-import javafx.application.Platform; // For safely updating the UI from background threads
 import javax.crypto.SecretKey; // For encryption and decryption
 import java.io.*; // For input/output streams
+import java.net.InetSocketAddress; // For the relay address
 import java.net.ServerSocket; // For server connections
 import java.net.Socket; // For client connections
+import java.nio.ByteBuffer; // For reusable chunk buffers
+import java.nio.channels.FileChannel; // For reading the chunks a resumed transfer still needs
+import java.nio.charset.StandardCharsets; // For UTF-8 conversion
 import java.nio.file.Files; // For file handling
+import java.nio.file.DirectoryStream; // For finding unfinished transfers
+import java.nio.file.FileAlreadyExistsException; // For downloads whose name is taken
 import java.nio.file.Path; // For file paths
-import java.util.concurrent.Executors; // For managing background threads
+import java.nio.file.StandardOpenOption; // For opening files to send
+import java.security.GeneralSecurityException; // For handshakes that cannot be confirmed
+import java.security.MessageDigest; // For binding data connections to a session
+import java.time.Duration; // For keepalive settings
+import java.util.Arrays; // For comparing transfer IDs
+import java.util.HashMap; // For incoming streams by ID
+import java.util.List; // For data connections
+import java.util.Map; // For incoming streams by ID
+import java.util.concurrent.ConcurrentHashMap; // For resumable transfers by stream ID
+import java.util.concurrent.CopyOnWriteArrayList; // For data connections
+import java.util.concurrent.atomic.AtomicInteger; // For outgoing stream IDs
+import java.util.concurrent.atomic.AtomicLong; // For outgoing message IDs
 
 public class ConnectionManager {
-    private static final int PORT = 12345; // Fixed port for connections
+    static final int PORT = 12345; // Default port for connections
+    static final int CHUNK_SIZE = 64 * 1024; // Plaintext bytes per encrypted file chunk
+    static final int MAX_CHUNK_SIZE = 1024 * 1024; // Largest chunk size accepted from a peer
+    static final int MAX_MESSAGE_SIZE = 1024 * 1024; // Largest sealed text frame accepted from a peer
+    private static final int OUTPUT_BUFFER_SIZE = 64 * 1024; // Lets a batch of small frames leave in one write
+    private static final int EVENT_LOOPS = Math.min(4, Runtime.getRuntime().availableProcessors()); // Multi-peer loops
+
+    // Message types shared by the blocking and the multi-peer connection paths
+    static final int MSG_TEXT = 1; // Encrypted text message
+    static final int MSG_FILE = 2; // Legacy single-blob file transfer
+    static final int MSG_FILE_STREAM = 3; // Chunked file transfer
+    static final int MSG_STREAM_OPEN = 4; // Multiplexed file stream: header
+    static final int MSG_STREAM_DATA = 5; // Multiplexed file stream: one encrypted chunk
+    static final int MSG_STREAM_ABORT = 6; // Multiplexed file stream: sender gave up
+    static final int MSG_TRANSFER_OFFER = 7; // Resumable transfer: sealed transfer ID and header
+    static final int MSG_TRANSFER_HAVE = 8; // Resumable transfer: sealed bitmap of the chunks the receiver has
+    static final int MSG_TRANSFER_CHUNK = 9; // Resumable transfer: one encrypted chunk and its hash, by index
+    static final int MSG_TRANSFER_DONE = 10; // Resumable transfer: receiver verified or rejected the file
+    static final int MSG_TRANSFER_SIGNATURES = 11; // Resumable transfer: sealed bitmap plus signature of an older copy
+    static final int MSG_TRANSFER_DELTA = 12; // Resumable transfer: one encrypted chunk as a delta against the older copy
+    static final int MSG_PING = 13; // Keepalive: the sender's clock
+    static final int MSG_PONG = 14; // Keepalive: the echoed clock and how long the ping was held
+    static final int MSG_GROUP_KEY = 15; // Group broadcasts: a group key, sealed under the session cipher
+    static final int MSG_GROUP_TEXT = 16; // Group broadcasts: a text message sealed under the group key
+    static final int MSG_GROUP_STREAM_OPEN = 17; // Group broadcasts: stream header; its chunks are sealed under the group key
+
+    static final int STREAM_CHUNK_SIZE = 16 * 1024; // Smaller chunks so chat interleaves finely with transfers
+    static final Path DOWNLOADS_DIR = Path.of("downloads"); // Received files, under the data directory
+    private static final Path TRANSFERS_DIR = Path.of("transfers"); // States of unfinished outgoing transfers, under the data directory
+    static final int DATA_LANES = 3; // Extra connections a parallel transfer is striped over
+    private static final int MAX_OFFERED_CHUNKS = 1 << 21; // Largest hash list accepted with an offer: 64 MB, 32 GB of file
+    private static final int MAX_OFFER_SIZE = 64 * 1024 + MAX_OFFERED_CHUNKS * TransferState.HASH_SIZE; // Largest sealed offer
+    static final Duration KEEPALIVE_INTERVAL = Duration.ofSeconds(5); // Default time between pings
+    static final Duration DEAD_PEER_TIMEOUT = Duration.ofSeconds(20); // Default silence after which the peer is given up
+
     private ServerSocket serverSocket; // Server socket for listening to incoming connections
     private Socket socket; // Socket for client-server communication
     private DataOutputStream out; // Output stream for sending data
     private DataInputStream in; // Input stream for receiving data
+    private OutboundQueue outbound; // Single writer for everything sent after the handshake
     private SecretKey secretKey; // Encryption key for secure communication
+    private SessionCipher sessionCipher; // Cipher negotiated for the current connection
+    private SecretKey transferIdKey; // Keys the IDs of resumable transfers; from the token, so IDs survive reconnects
+    private boolean streamedFiles; // Peer accepted chunked files; older peers take a file as one sealed blob
+    private boolean multiplexed; // Peer accepted multiplexed file streams
+    private boolean binaryMessages; // Peer accepted MessageCodec chat messages
+    private boolean compressed; // Peer accepted Compression on payloads
+    private boolean resumable; // Peer accepted resumable transfers
+    private boolean striped; // Peer accepts data connections for resumable transfers
+    private boolean deduplicated; // Resumable offers carry chunk hashes
+    private boolean deltaSync; // Hashed offers may be answered with a signature of an older copy
+    private boolean keepAlive; // Peer answers pings
+    private volatile GroupCipher.Keyring groupKeys; // Opens the server's group broadcasts; null unless it sends them
+    private volatile LinkMonitor link; // Liveness and round-trip times of the current connection
+    private volatile Duration keepAliveInterval = KEEPALIVE_INTERVAL;
+    private volatile Duration deadPeerTimeout = DEAD_PEER_TIMEOUT;
+    private volatile boolean parallelTransfers; // Open data connections when connecting
+    private volatile Map<Integer, TransferState> offeredTransfers = new ConcurrentHashMap<>(); // This connection's outgoing resumable transfers
+    private volatile Map<Integer, ResumableFile> receivingTransfers = new ConcurrentHashMap<>(); // This connection's incoming resumable transfers
+    private final List<DataLane> lanes = new CopyOnWriteArrayList<>(); // Data connections of the current session
+    private volatile String laneKey; // Binds data connections to the current session; null without one
+    private volatile ServerSocket laneListener; // Accepts the current session's data connections; null unless accepting
+    private final AtomicLong nextMessageId = new AtomicLong(1); // IDs of messages sent by this user
+    private final AtomicInteger nextStreamId = new AtomicInteger(); // Outgoing stream IDs
+    private volatile CipherSuite cipherSuite = CipherSuite.AES_GCM; // Preferred suite; AES_CBC for older peers
+    private volatile int port = PORT; // Port to listen on or connect to
+    private volatile InetSocketAddress relay; // Relay both peers connect out to; null to connect directly
 
     private String userName; // Local user's name
     private String friendName; // Connected friend's name
     private String serverToken; // Token for secure server authentication
 
-    private P2PMessenger2 app; // Reference to the main app for UI updates
+    private final ConnectionListener app; // Receives status lines, chat rows and connection state
+    private final Path downloadsDir; // Received files
+    private final Path transfersDir; // States of unfinished outgoing transfers
+    private MultiPeerServer multiPeerServer; // Non-blocking server, set only in multi-peer mode
+    private final MessageLog history; // Records every message and file sent or received
+    private final ChunkStore chunkStore; // Chunks of completed downloads, reused by later transfers
+
+    private final BackgroundTasks.TaskScope connectionTasks; // Handshakes and receive loops
+    private final BackgroundTasks.TaskScope transferTasks; // Outgoing file transfers
+    private final BackgroundTasks.TaskScope keyTasks; // Background key derivation
+    private final BackgroundTasks.TaskScope writerTasks; // Outbound writer loops
+    private final BackgroundTasks.TaskScope laneTasks; // Data connection handshakes, receive loops and writers
+    private final BackgroundTasks.TaskScope keepAliveTasks; // Ping loops
 
     // Constructor
-    public ConnectionManager(P2PMessenger2 app) {
+    public ConnectionManager(ConnectionListener app, BackgroundTasks tasks, MessageLog history) {
+        this(app, tasks, history, Path.of(""));
+    }
+
+    /**
+     * Creates a connection manager that keeps its downloads and unfinished transfers under a
+     * directory of its own, so that several can run in one process.
+     *
+     * @param app           Receives status lines, chat rows and connection state.
+     * @param tasks         Runs the connection's background work.
+     * @param history       Records every message and file sent or received.
+     * @param dataDirectory Holds the "downloads" and "transfers" directories; empty for the working directory.
+     */
+    public ConnectionManager(ConnectionListener app, BackgroundTasks tasks, MessageLog history, Path dataDirectory) {
         this.app = app;
+        this.history = history;
+        this.downloadsDir = dataDirectory.resolve(DOWNLOADS_DIR);
+        this.transfersDir = dataDirectory.resolve(TRANSFERS_DIR);
+        this.chunkStore = ChunkStore.open(downloadsDir, STREAM_CHUNK_SIZE, app::log);
+        this.connectionTasks = tasks.scope("connection", 4);
+        this.transferTasks = tasks.scope("transfer", 4);
+        this.keyTasks = tasks.scope("key-derivation", 2);
+        this.writerTasks = tasks.scope("writer", 4);
+        this.laneTasks = tasks.scope("data-lane", 4 * DATA_LANES);
+        this.keepAliveTasks = tasks.scope("keepalive", 2);
+        transferTasks.submit(chunkStore::indexAll); // Downloads from before the store existed
+    }
+
+    /**
+     * Sets the preferred cipher suite for new connections.
+     * AES_GCM is offered with AES_CBC as fallback; AES_CBC alone keeps the handshake identical
+     * to older peers that do not understand negotiation.
+     *
+     * @param cipherSuite The suite to prefer.
+     */
+    public void setCipherSuite(CipherSuite cipherSuite) {
+        this.cipherSuite = cipherSuite;
+    }
+
+    /**
+     * Sets the port servers listen on and connections go to. Takes effect on the next server or
+     * connection; both peers must use the same port.
+     *
+     * @param port The TCP port.
+     */
+    public void setPort(int port) {
+        if (port <= 0 || port > 65535) {
+            throw new IllegalArgumentException("Invalid port: " + port);
+        }
+        this.port = port;
+    }
+
+    /**
+     * Sets a relay to meet the peer at, for peers that cannot reach each other directly. Both
+     * sides connect out to the relay, which pairs them by a digest of the token and forwards the
+     * encrypted session unread. Takes effect on the next server or connection; both peers must
+     * use the same relay.
+     *
+     * @param relay The relay's address; null to connect directly.
+     */
+    public void setRelay(InetSocketAddress relay) {
+        this.relay = relay;
+    }
+
+    /**
+     * Sets whether resumable transfers are striped over several data connections. Takes effect
+     * on the next connection this side opens; a server accepts data connections either way.
+     *
+     * @param parallelTransfers True to open DATA_LANES extra connections to the peer.
+     */
+    public void setParallelTransfers(boolean parallelTransfers) {
+        this.parallelTransfers = parallelTransfers;
+    }
+
+    /**
+     * Sets how often the peer is pinged and how long it may stay silent before the connection is
+     * closed as dead. Takes effect on the next connection; peers that do not answer pings are
+     * never timed out.
+     *
+     * @param interval The time between pings.
+     * @param timeout  The silence after which the connection is closed; at least twice the interval.
+     */
+    public void setKeepAlive(Duration interval, Duration timeout) {
+        if (interval.isNegative() || interval.isZero() || timeout.compareTo(interval.multipliedBy(2)) < 0) {
+            throw new IllegalArgumentException("The timeout must be at least twice the ping interval");
+        }
+        this.keepAliveInterval = interval;
+        this.deadPeerTimeout = timeout;
+    }
+
+    /**
+     * Gets the round-trip statistics of the current connection, to tell a slow link (high RTT)
+     * from a slow peer (high peer delay).
+     *
+     * @return The statistics; null if not connected or the peer does not answer pings.
+     */
+    public LinkMonitor.Stats linkStats() {
+        LinkMonitor current = link;
+        return current != null && keepAlive ? current.stats() : null;
     }
 
     /**
@@ -38,19 +224,28 @@ public class ConnectionManager {
     public void startServer(String userName, String serverToken) {
         this.userName = userName;
         this.serverToken = serverToken;
+        KeyCache.prefetch(serverToken, keyTasks); // Derive the key while waiting for a peer
 
-        Executors.newSingleThreadExecutor().submit(() -> {
+        InetSocketAddress relay = this.relay;
+        connectionTasks.submit(() -> {
             try {
-                serverSocket = new ServerSocket(PORT); // Start server on the specified port
-                app.log("Server started. Waiting for connection...");
+                if (relay != null) {
+                    serverSocket = null;
+                    app.log("Waiting for a peer at relay " + relay.getHostString() + ":" + relay.getPort() + "...");
+                    socket = RelayNode.connect(relay, EncryptionUtils.relayPairingId(serverToken), true);
+                    app.log("Connected through relay " + relay.getHostString());
+                } else {
+                    serverSocket = new ServerSocket(port); // Start server on the specified port
+                    app.log("Server started. Waiting for connection...");
+                    app.onListening(port);
 
-                socket = serverSocket.accept(); // Wait for a client to connect
-                app.log("Connected to: " + socket.getInetAddress().getHostAddress());
+                    socket = serverSocket.accept(); // Wait for a client to connect
+                    app.log("Connected to: " + socket.getInetAddress().getHostAddress());
+                }
 
                 setupStreams(socket); // Initialize input and output streams
 
-                String receivedToken = in.readUTF(); // Read the client's token
-                if (!serverToken.equals(receivedToken)) { // Validate the token
+                if (!isServerToken(in.readUTF())) { // Validate the client's token, or its proof through a relay
                     out.writeUTF("Invalid token. Connection refused.");
                     out.flush();
                     socket.close(); // Close connection if token is invalid
@@ -61,19 +256,76 @@ public class ConnectionManager {
                 out.writeUTF("Connected"); // Acknowledge successful connection
                 out.flush();
 
-                friendName = in.readUTF(); // Receive friend's name
-                out.writeUTF(userName); // Send local user's name
+                String offer = in.readUTF();
+                PeerHello clientHello = PeerHello.parse(offer); // Receive friend's name and cipher offer
+                friendName = clientHello.name();
+                CipherSuite suite = CipherSuite.negotiate(clientHello.param(PeerHello.SUITES), cipherSuite);
+                byte[] serverSalt = EncryptionUtils.newSessionSalt();
+                List<String> features = relay != null ? PeerHello.RELAYED_FEATURES : PeerHello.ONE_TO_ONE_FEATURES;
+                String reply = PeerHello.reply(userName, clientHello, suite, serverSalt, features);
+                out.writeUTF(reply); // Send local user's name
                 out.flush();
 
-                secretKey = EncryptionUtils.deriveKey(serverToken); // Derive encryption key from token
+                secretKey = KeyCache.get(serverToken); // Usually derived before the peer connected
+                transferIdKey = EncryptionUtils.deriveTransferIdKey(secretKey);
+                if (clientHello.hasParams()) { // Older clients send only a name and cannot confirm
+                    EncryptionUtils.confirmHandshake(in, out, secretKey, true, offer, reply);
+                }
+                sessionCipher = suite.newSessionCipher(secretKey, clientHello.bytesParam(PeerHello.SALT), serverSalt, false);
+                streamedFiles = clientHello.hasFeature(PeerHello.STREAM); // The server accepts every feature it knows
+                multiplexed = clientHello.hasFeature(PeerHello.MUX);
+                binaryMessages = clientHello.hasFeature(PeerHello.BINARY_MESSAGES);
+                compressed = clientHello.hasFeature(PeerHello.DEFLATE);
+                resumable = multiplexed && clientHello.hasFeature(PeerHello.RESUME);
+                striped = resumable && features.contains(PeerHello.STRIPE) && clientHello.hasFeature(PeerHello.STRIPE);
+                deduplicated = resumable && clientHello.hasFeature(PeerHello.DEDUP);
+                deltaSync = deduplicated && clientHello.hasFeature(PeerHello.DELTA);
+                keepAlive = clientHello.hasFeature(PeerHello.PING);
+                groupKeys = null; // Only the multi-peer server broadcasts
+                laneKey = striped ? EncryptionUtils.laneKey(secretKey, clientHello.bytesParam(PeerHello.SALT), serverSalt) : null;
+                app.log("Session encrypted with " + suite.wireName());
+                startOutbound();
+                if (striped) {
+                    laneListener = serverSocket;
+                    laneTasks.submit(this::acceptLanes); // The peer may open data connections
+                }
 
-                Platform.runLater(() -> app.onConnected()); // Update UI to show connected state
+                app.onConnected(); // Update UI to show connected state
 
                 app.log("Chatting with " + friendName);
 
                 receiveMessages(); // Start listening for messages
             } catch (IOException e) {
                 app.log("Error starting server: " + e.getMessage());
+            } catch (Exception e) {
+                app.log("Encryption error: " + e.getMessage());
+                closeQuietly(socket); // A handshake that failed leaves nothing to continue
+            }
+        });
+    }
+
+    /**
+     * Starts a non-blocking server that accepts and serves many peers at once.
+     * Every peer gets its own session; all of them are driven by a small, fixed
+     * set of selector event loops instead of one blocked thread per socket.
+     *
+     * @param userName    The local user's name.
+     * @param serverToken The token for authenticating the connections.
+     */
+    public void startMultiPeerServer(String userName, String serverToken) {
+        this.userName = userName;
+        this.serverToken = serverToken;
+        KeyCache.prefetch(serverToken, keyTasks); // Derive the key in parallel with binding the port
+
+        connectionTasks.submit(() -> {
+            try {
+                secretKey = KeyCache.get(serverToken); // Derive encryption key once for all peers
+                multiPeerServer = new MultiPeerServer(app, history, userName, serverToken, secretKey, cipherSuite);
+                multiPeerServer.start(port, EVENT_LOOPS);
+                app.log("Multi-peer server started with " + EVENT_LOOPS + " event loops. Waiting for connections...");
+                app.onListening(port);
+            } catch (IOException e) {
+                app.log("Error starting server: " + e.getMessage());
             } catch (Exception e) {
                 app.log("Encryption error: " + e.getMessage());
             }
@@ -89,17 +341,25 @@ public class ConnectionManager {
      */
     public void connectToFriend(String friendIp, String token, String userName) {
         this.userName = userName;
+        KeyCache.prefetch(token, keyTasks); // Derive the key while connecting and authenticating
 
-        Executors.newSingleThreadExecutor().submit(() -> {
+        InetSocketAddress relay = this.relay;
+        connectionTasks.submit(() -> {
             try {
-                app.log("Connecting to " + friendIp + "...");
+                if (relay != null) {
+                    app.log("Waiting for the peer at relay " + relay.getHostString() + ":" + relay.getPort() + "...");
+                    socket = RelayNode.connect(relay, EncryptionUtils.relayPairingId(token), false);
+                    app.log("Connected through relay " + relay.getHostString());
+                } else {
+                    app.log("Connecting to " + friendIp + "...");
 
-                socket = new Socket(friendIp, PORT); // Connect to the friend's server
-                app.log("Connected to: " + socket.getInetAddress().getHostAddress());
+                    socket = new Socket(friendIp, port); // Connect to the friend's server
+                    app.log("Connected to: " + socket.getInetAddress().getHostAddress());
+                }
 
                 setupStreams(socket); // Initialize input and output streams
 
-                out.writeUTF(token); // Send the token
+                out.writeUTF(relay != null ? EncryptionUtils.tokenProof(token) : token); // The relay must not learn the token
                 out.flush();
 
                 String response = in.readUTF(); // Read server's response
@@ -109,23 +369,56 @@ public class ConnectionManager {
                     return;
                 }
 
-                out.writeUTF(userName); // Send local user's name
+                byte[] clientSalt = EncryptionUtils.newSessionSalt();
+                String offer = PeerHello.offer(userName, cipherSuite, clientSalt);
+                out.writeUTF(offer); // Send local user's name
                 out.flush();
 
-                friendName = in.readUTF(); // Receive friend's name
+                String reply = in.readUTF();
+                PeerHello serverHello = PeerHello.parse(reply); // Receive friend's name and chosen suite
+                friendName = serverHello.name();
+                CipherSuite suite = serverHello.chosenSuite();
+                secretKey = KeyCache.get(token); // Cached on reconnect, otherwise derived during the handshake
+                transferIdKey = EncryptionUtils.deriveTransferIdKey(secretKey);
+                if (PeerHello.parse(offer).hasParams()) {
+                    if (!serverHello.hasParams()) { // An older server, or an offer stripped on the way
+                        throw new GeneralSecurityException("The peer did not negotiate a cipher; choose CBC for older peers");
+                    }
+                    EncryptionUtils.confirmHandshake(in, out, secretKey, false, offer, reply);
+                }
 
                 app.log("Authentication successful.");
                 app.log("Chatting with " + friendName);
 
-                secretKey = EncryptionUtils.deriveKey(token); // Derive encryption key from token
+                sessionCipher = suite.newSessionCipher(secretKey, clientSalt, serverHello.bytesParam(PeerHello.SALT), true);
+                streamedFiles = serverHello.hasFeature(PeerHello.STREAM);
+                multiplexed = serverHello.hasFeature(PeerHello.MUX);
+                binaryMessages = serverHello.hasFeature(PeerHello.BINARY_MESSAGES);
+                compressed = serverHello.hasFeature(PeerHello.DEFLATE);
+                resumable = multiplexed && serverHello.hasFeature(PeerHello.RESUME);
+                striped = resumable && serverHello.hasFeature(PeerHello.STRIPE);
+                deduplicated = resumable && serverHello.hasFeature(PeerHello.DEDUP);
+                deltaSync = deduplicated && serverHello.hasFeature(PeerHello.DELTA);
+                keepAlive = serverHello.hasFeature(PeerHello.PING);
+                groupKeys = multiplexed && binaryMessages && compressed && serverHello.hasFeature(PeerHello.GROUP)
+                        ? new GroupCipher.Keyring() : null;
+                laneKey = striped ? EncryptionUtils.laneKey(secretKey, clientSalt, serverHello.bytesParam(PeerHello.SALT)) : null;
+                app.log("Session encrypted with " + suite.wireName());
+                startOutbound();
+                if (striped && parallelTransfers) {
+                    for (int i = 0; i < DATA_LANES; i++) {
+                        laneTasks.submit(() -> openLane(friendIp, token));
+                    }
+                }
 
-                Platform.runLater(() -> app.onConnected()); // Update UI to show connected state
+                app.onConnected(); // Update UI to show connected state
 
                 receiveMessages(); // Start listening for messages
             } catch (IOException e) {
-                app.log("Failed to connect to " + friendIp + ": " + e.getMessage());
+                app.log("Failed to connect to " + (relay != null ? "relay " + relay.getHostString() : friendIp) + ": " + e.getMessage());
             } catch (Exception e) {
                 app.log("Encryption error: " + e.getMessage());
+                closeQuietly(socket); // A handshake that failed leaves nothing to continue
             }
         });
     }
@@ -136,35 +429,674 @@ public class ConnectionManager {
      * @param socket The socket for communication.
      */
     private void setupStreams(Socket socket) throws IOException {
-        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
-        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        out = new DataOutputStream(new BufferedOutputStream(Metrics.countSent(socket.getOutputStream()), OUTPUT_BUFFER_SIZE));
+        link = new LinkMonitor();
+        in = new DataInputStream(new BufferedInputStream(link.watch(Metrics.countReceived(socket.getInputStream()))));
+    }
+
+    /**
+     * Hands the output stream to a single writer thread once the handshake is done.
+     * From here on nothing writes to the stream directly.
+     */
+    private void startOutbound() {
+        OutboundQueue previous = outbound;
+        if (previous != null) {
+            previous.close(); // Writer of an earlier connection
+        }
+        Socket session = socket;
+        outbound = new OutboundQueue(out, e -> {
+            app.log("Failed to send: " + e.getMessage());
+            closeQuietly(session); // The receive loop then ends the session
+        });
+        outbound.start(writerTasks);
+        offeredTransfers = new ConcurrentHashMap<>();
+        receivingTransfers = new ConcurrentHashMap<>();
+        if (resumable) {
+            transferTasks.submit(this::resumeTransfers); // Offer again what the last connection did not finish
+        }
+        if (keepAlive) {
+            LinkMonitor monitor = link;
+            OutboundQueue queue = outbound;
+            keepAliveTasks.submit(() -> keepAlive(session, monitor, queue));
+        }
+    }
+
+    /**
+     * Pings the peer while the connection lasts and closes it once nothing has been received for
+     * the dead-peer timeout. A half-open connection would otherwise only fail when TCP gives up,
+     * which can take many minutes; closing the socket ends the receive loop, which reports the
+     * disconnect.
+     */
+    private void keepAlive(Socket session, LinkMonitor monitor, OutboundQueue queue) {
+        Duration interval = keepAliveInterval;
+        Duration timeout = deadPeerTimeout;
+        try {
+            while (socket == session && !session.isClosed()) {
+                Thread.sleep(interval);
+                if (monitor.silenceNanos() > timeout.toNanos()) {
+                    app.log("No response from " + friendName + " for " + timeout.toSeconds() + " seconds; closing the connection.");
+                    closeQuietly(session);
+                    return;
+                }
+                queue.enqueue(out -> {
+                    out.writeInt(MSG_PING); // Message type: 13 (keepalive)
+                    out.writeLong(System.nanoTime()); // Taken by the writer, so local queueing is not counted
+                });
+            }
+        } catch (InterruptedException e) {
+            // Shutting down
+        }
     }
 
     /**
      * Continuously listens for incoming messages or file transfers.
      */
     private void receiveMessages() {
+        Map<Integer, IncomingFile> streams = new HashMap<>(); // Multiplexed downloads in progress
+        Map<Integer, ResumableFile> transfers = receivingTransfers; // Resumable downloads of this connection
+        Map<Integer, TransferState> offered = offeredTransfers; // Resumable uploads of this connection
+        ChunkPipeline decrypts = new ChunkPipeline(); // Chunks being decrypted in parallel, written in arrival order
         try {
             while (true) {
+                if (in.available() == 0) {
+                    decrypts.completeAll(); // Nothing more to read yet; land what is in flight before blocking
+                }
                 int messageType = in.readInt(); // Read message type (1 = text, 2 = file)
-                if (messageType == 1) { // Text message
+                if (messageType != MSG_STREAM_DATA && messageType != MSG_TRANSFER_CHUNK && messageType != MSG_TRANSFER_DELTA
+                        && messageType != MSG_PING && messageType != MSG_PONG) {
+                    decrypts.completeAll(); // Other frames act on the same files, so earlier chunks land first
+                }
+                if (messageType == MSG_TEXT) { // Text message
+                    ChatMessage message = receiveText(sessionCipher);
+                    showMessage(message, false);
+                } else if (messageType == MSG_GROUP_TEXT) { // Text message broadcast to the whole group
+                    showMessage(receiveText(groupKeys()), false);
+                } else if (messageType == MSG_GROUP_KEY) { // Key for the group broadcasts that follow
                     int length = in.readInt();
-                    byte[] encryptedMessage = new byte[length];
-                    in.readFully(encryptedMessage);
-                    String decryptedMessage = EncryptionUtils.decrypt(encryptedMessage, secretKey);
-                    Platform.runLater(() -> app.addMessageBubble(decryptedMessage, false));
-                } else if (messageType == 2) { // File transfer
+                    if (length <= 0 || length > MAX_MESSAGE_SIZE) {
+                        throw new IOException("Invalid message length: " + length);
+                    }
+                    byte[] sealed = new byte[length];
+                    in.readFully(sealed);
+                    groupKeys().install(sessionCipher.open(sealed, 0, length));
+                } else if (messageType == MSG_FILE) { // File transfer
                     receiveFile();
+                } else if (messageType == MSG_FILE_STREAM) { // Chunked file transfer
+                    receiveFileStream();
+                } else if (messageType == MSG_STREAM_OPEN || messageType == MSG_GROUP_STREAM_OPEN) { // Multiplexed file transfer: header
+                    SessionCipher cipher = messageType == MSG_GROUP_STREAM_OPEN ? groupKeys() : sessionCipher;
+                    int streamId = in.readInt();
+                    IncomingFile incoming = new IncomingFile(downloadsDir, in.readUTF(), in.readLong(), in.readInt(), cipher, compressed);
+                    IncomingFile previous = streams.put(streamId, incoming);
+                    if (previous != null) {
+                        previous.close();
+                    }
+                    if (incoming.finishIfComplete()) { // Empty file
+                        streams.remove(streamId);
+                        onFileReceived(incoming.file());
+                    }
+                } else if (messageType == MSG_STREAM_DATA) { // Multiplexed file transfer: chunk
+                    int streamId = in.readInt();
+                    int length = in.readInt();
+                    IncomingFile incoming = streams.get(streamId);
+                    if (incoming == null || length <= 0 || length > incoming.maxSealedLength()) {
+                        throw new IOException("Invalid chunk for stream " + streamId);
+                    }
+                    ChunkPipeline.Slot slot = decrypts.acquire();
+                    ByteBuffer sealed = slot.input(length);
+                    in.readFully(sealed.array(), 0, length);
+                    sealed.limit(length);
+                    decrypts.submit(slot, incoming.opener(sealed, () -> {
+                        streams.remove(streamId, incoming);
+                        onFileReceived(incoming.file());
+                    }));
+                    if (incoming.allSubmitted()) {
+                        decrypts.completeAll(); // Last chunk; finish the file without waiting for more frames
+                    }
+                } else if (messageType == MSG_STREAM_ABORT) { // Multiplexed file transfer: cancelled
+                    int streamId = in.readInt();
+                    IncomingFile incoming = streams.remove(streamId);
+                    if (incoming != null) {
+                        incoming.close();
+                        app.log("Transfer of " + incoming.file().getName() + " was cancelled by the sender.");
+                    }
+                    abortTransfer(streamId, transfers);
+                } else if (messageType == MSG_TRANSFER_OFFER) { // Resumable transfer: header
+                    int streamId = in.readInt();
+                    DataInputStream offer = readSealed(MAX_OFFER_SIZE);
+                    byte[] id = offer.readNBytes(TransferState.HASH_SIZE);
+                    String name = offer.readUTF();
+                    long size = offer.readLong();
+                    int chunkSize = offer.readInt();
+                    byte[] hashes = deduplicated ? readOfferedHashes(offer, id, size, chunkSize) : null;
+                    File stored = hashes != null // Downloads are indexed by their unkeyed content hash
+                            ? chunkStore.find(TransferState.contentHash(size, chunkSize, hashes), MessageUtils.sanitizeFileName(name))
+                            : null;
+                    if (stored != null) { // Already downloaded; nothing needs to be sent
+                        sendTransferDone(streamId, true);
+                        onFileReceived(stored);
+                        continue;
+                    }
+                    ResumableFile transfer = ResumableFile.open(id, name, size, chunkSize, hashes, sessionCipher, compressed,
+                            chunkStore, transferIdKey);
+                    if (transfer.reused() > 0) {
+                        app.log("Reusing " + transfer.reused() + " of " + transfer.chunkCount() + " chunks of "
+                                + transfer.file().getName() + " from earlier downloads.");
+                    }
+                    ResumableFile previous = transfers.put(streamId, transfer);
+                    if (previous != null) {
+                        previous.close();
+                    }
+                    File older = deltaSync && !transfer.isComplete() ? previousDownload(transfer.file()) : null;
+                    if (older != null) { // Signing reads the whole copy; keep it off the receive loop
+                        OutboundQueue queue = outbound;
+                        SessionCipher cipher = sessionCipher;
+                        transferTasks.submit(() -> sendSignature(queue, cipher, streamId, transfer, older));
+                    } else {
+                        sendHave(outbound, sessionCipher, streamId, transfer.bitmap());
+                    }
+                    if (transfer.isComplete() && transfers.remove(streamId, transfer)) { // Empty, or every chunk arrived earlier
+                        finishTransfer(transfer, streamId);
+                    }
+                } else if (messageType == MSG_TRANSFER_CHUNK) { // Resumable transfer: chunk
+                    receiveTransferChunk(in, sessionCipher, transfers, decrypts, false);
+                } else if (messageType == MSG_TRANSFER_DELTA) { // Resumable transfer: chunk as a delta
+                    receiveTransferChunk(in, sessionCipher, transfers, decrypts, true);
+                } else if (messageType == MSG_TRANSFER_HAVE) { // Resumable transfer: receiver's bitmap
+                    int streamId = in.readInt();
+                    TransferState state = offered.get(streamId);
+                    state.markAll(readBitmap(streamId, state, readAnswer(streamId, state, 0)));
+                    startTransferSenders(streamId, state, null);
+                } else if (messageType == MSG_TRANSFER_SIGNATURES) { // Resumable transfer: bitmap and older copy
+                    int streamId = in.readInt();
+                    TransferState state = offered.get(streamId);
+                    DataInputStream answer = readAnswer(streamId, state, DeltaSync.MAX_SIGNATURE_SIZE);
+                    state.markAll(readBitmap(streamId, state, answer));
+                    DeltaSync.Signature signature = DeltaSync.Signature.read(answer);
+                    transferTasks.submit(() -> { // Scanning the file takes a while; keep it off the receive loop
+                        DeltaSync.Plan plan = null;
+                        try {
+                            plan = DeltaSync.Plan.build(new File(state.source()), signature);
+                            app.log("The peer has " + plan.matchedBytes() * 100 / Math.max(1, state.size()) + "% of "
+                                    + state.name() + " in an older copy; sending the changes.");
+                        } catch (IOException e) {
+                            app.log("Sending all of " + state.name() + ": " + e.getMessage());
+                        }
+                        if (offered == offeredTransfers && offered.get(streamId) == state) { // Not cancelled or reconnected meanwhile
+                            startTransferSenders(streamId, state, plan);
+                        }
+                    });
+                } else if (messageType == MSG_PING) { // Keepalive: answer with the time the ping waited here
+                    long sentAt = in.readLong();
+                    long receivedAt = System.nanoTime();
+                    outbound.enqueue(out -> {
+                        out.writeInt(MSG_PONG); // Message type: 14 (keepalive answer)
+                        out.writeLong(sentAt);
+                        out.writeLong(System.nanoTime() - receivedAt);
+                    });
+                } else if (messageType == MSG_PONG) { // Keepalive: round trip of one of our pings
+                    LinkMonitor monitor = link;
+                    monitor.pong(in.readLong(), in.readLong());
+                    app.onLinkStats(monitor.stats());
+                } else if (messageType == MSG_TRANSFER_DONE) { // Resumable transfer: receiver finished
+                    int streamId = in.readInt();
+                    boolean verified = in.readBoolean();
+                    TransferState state = offered.remove(streamId);
+                    if (state != null) {
+                        state.delete();
+                        if (verified) {
+                            showFile(new File(state.source()), "Sending", true);
+                        } else {
+                            app.log("Transfer of " + state.name() + " failed verification on the receiving side.");
+                        }
+                    }
                 }
             }
         } catch (IOException e) {
             app.log("Connection lost: " + e.getMessage());
-            Platform.runLater(() -> app.onDisconnected());
+            app.onDisconnected();
         } catch (Exception e) {
             app.log("Decryption error: " + e.getMessage());
+            closeQuietly(socket); // Frames must open in order, so nothing after this one can be read
+            app.onDisconnected();
+        } finally {
+            outbound.close(); // Stop the writer for this connection
+            decrypts.cancel();
+            for (IncomingFile incoming : streams.values()) {
+                incoming.close(); // Discard partial downloads
+            }
+            for (ResumableFile transfer : transfers.values()) {
+                transfer.close(); // Kept on disk, resumed when the sender offers it again
+            }
+            for (TransferState state : offered.values()) {
+                state.close(); // Offered again after the next handshake
+            }
+            offered.clear();
+            closeLanes();
+        }
+    }
+
+    /**
+     * Reads the chunk hashes a sealed resumable offer ends with when the session deduplicates, and
+     * checks them against the transfer ID.
+     */
+    private byte[] readOfferedHashes(DataInputStream offer, byte[] id, long size, int chunkSize) throws IOException {
+        if (id.length != TransferState.HASH_SIZE || size < 0 || chunkSize <= 0 || chunkSize > MAX_CHUNK_SIZE
+                || (size + chunkSize - 1) / chunkSize > MAX_OFFERED_CHUNKS) {
+            throw new IOException("Invalid transfer offer");
+        }
+        byte[] hashes = new byte[TransferState.chunkCount(size, chunkSize) * TransferState.HASH_SIZE];
+        offer.readFully(hashes);
+        if (!MessageDigest.isEqual(TransferState.transferId(transferIdKey, size, chunkSize, hashes), id)) {
+            throw new IOException("Chunk hashes do not match the offered transfer");
+        }
+        return hashes;
+    }
+
+    /**
+     * Reads and opens the receiver's sealed answer to a transfer this side offered. The answer
+     * starts with the receiver's bitmap.
+     *
+     * @param extraLength The most the answer may carry after the bitmap.
+     */
+    private DataInputStream readAnswer(int streamId, TransferState state, int extraLength)
+            throws IOException, GeneralSecurityException {
+        if (state == null) {
+            throw new IOException("Invalid bitmap for transfer " + streamId);
+        }
+        return readSealed(sessionCipher.sealedSize(4 + (state.chunkCount() + 7) / 8 + extraLength));
+    }
+
+    /**
+     * Reads the bitmap an opened answer starts with.
+     */
+    private static byte[] readBitmap(int streamId, TransferState state, DataInputStream answer) throws IOException {
+        int length = answer.readInt();
+        if (length < 0 || length > (state.chunkCount() + 7) / 8) {
+            throw new IOException("Invalid bitmap for transfer " + streamId);
+        }
+        byte[] bitmap = new byte[length];
+        answer.readFully(bitmap);
+        return bitmap;
+    }
+
+    private static void sendHave(OutboundQueue queue, SessionCipher cipher, int streamId, byte[] bitmap) {
+        queue.enqueue(out -> {
+            out.writeInt(MSG_TRANSFER_HAVE); // Message type: 8 (chunks already here)
+            out.writeInt(streamId);
+            writeSealed(out, cipher, ByteBuffer.allocate(4 + bitmap.length).putInt(bitmap.length).put(bitmap).array());
+        });
+    }
+
+    /**
+     * Reads a length-prefixed payload sealed under the session cipher and opens it. Used for the
+     * control frames of resumable transfers, which say what is being sent and what the peer holds.
+     *
+     * @param maxLength The largest sealed length the frame may have.
+     * @return The opened payload.
+     */
+    private DataInputStream readSealed(int maxLength) throws IOException, GeneralSecurityException {
+        int length = in.readInt();
+        if (length <= 0 || length > maxLength) {
+            throw new IOException("Invalid sealed frame length: " + length);
+        }
+        byte[] sealed = new byte[length];
+        in.readFully(sealed);
+        return new DataInputStream(new ByteArrayInputStream(sessionCipher.open(sealed, 0, length)));
+    }
+
+    /**
+     * Seals a payload and writes it with its length. Called on the writer thread, so payloads are
+     * sealed in the order they are sent.
+     */
+    private static void writeSealed(DataOutputStream out, SessionCipher cipher, byte[] payload)
+            throws IOException, GeneralSecurityException {
+        byte[] sealed = cipher.seal(payload, 0, payload.length);
+        out.writeInt(sealed.length);
+        out.write(sealed);
+    }
+
+    /**
+     * Answers an offer with a signature of an older copy of the file, so the sender sends the missing
+     * chunks as deltas against it. Falls back to a plain bitmap if the copy cannot be read.
+     */
+    private void sendSignature(OutboundQueue queue, SessionCipher cipher, int streamId, ResumableFile transfer, File older) {
+        DeltaSync.Signature signature;
+        try {
+            signature = transfer.sign(older);
+        } catch (IOException e) {
+            app.log("Cannot use " + older.getName() + " as an older copy: " + e.getMessage());
+            sendHave(queue, cipher, streamId, transfer.bitmap());
+            return;
+        }
+        byte[] bitmap = transfer.bitmap(); // After signing, which does not change it, so chunks never precede it
+        queue.enqueue(out -> {
+            ByteArrayOutputStream payload = new ByteArrayOutputStream();
+            DataOutputStream answer = new DataOutputStream(payload);
+            answer.writeInt(bitmap.length);
+            answer.write(bitmap);
+            signature.write(answer); // Block checksums of the older copy say as much about it as chunk hashes
+            out.writeInt(MSG_TRANSFER_SIGNATURES); // Message type: 11 (chunks already here and an older copy)
+            out.writeInt(streamId);
+            writeSealed(out, cipher, payload.toByteArray());
+        });
+    }
+
+    /**
+     * Starts sending the chunks of an offered transfer the receiver does not have, over the session
+     * connection and every data connection.
+     *
+     * @param plan Matches against the receiver's older copy; null to send whole chunks.
+     */
+    private void startTransferSenders(int streamId, TransferState state, DeltaSync.Plan plan) {
+        AtomicInteger cursor = new AtomicInteger(); // Shared, so each connection takes the next missing chunk
+        outbound.enqueueStream(new TransferSender(streamId, state, sessionCipher, cursor, plan));
+        for (DataLane lane : lanes) {
+            lane.outbound().enqueueStream(new TransferSender(streamId, state, lane.cipher(), cursor, plan));
+        }
+    }
+
+    /**
+     * Reads one resumable chunk frame and submits it for decryption; the chunk is written when it
+     * completes. Called from the session's receive loop and from every data connection's, each with
+     * its own cipher and pipeline. Chunks of a transfer that was finished or discarded meanwhile are skipped.
+     * A delta frame has the same layout; its sealed data is rebuilt against the receiver's older copy.
+     */
+    private void receiveTransferChunk(DataInputStream in, SessionCipher cipher, Map<Integer, ResumableFile> transfers,
+                                      ChunkPipeline decrypts, boolean delta) throws Exception {
+        int streamId = in.readInt();
+        int index = in.readInt();
+        int length = in.readInt();
+        ResumableFile transfer = transfers.get(streamId);
+        int maxLength = transfer != null ? transfer.maxSealedLength()
+                : cipher.sealedSize(TransferState.HASH_SIZE + Compression.packedSize(MAX_CHUNK_SIZE));
+        if (length <= 0 || length > maxLength) {
+            throw new IOException("Invalid chunk for transfer " + streamId);
+        }
+        ChunkPipeline.Slot slot = decrypts.acquire();
+        ByteBuffer sealed = slot.input(length);
+        in.readFully(sealed.array(), 0, length);
+        sealed.limit(length);
+        if (transfer == null) {
+            cipher.skip(sealed); // Keeps the receive order, or the next frame on this connection would fail
+            decrypts.release(slot);
+            return;
+        }
+        decrypts.submit(slot, transfer.opener(index, sealed, cipher, delta, valid -> {
+            if (!valid) {
+                if (transfers.remove(streamId, transfer)) {
+                    Metrics.TRANSFERS_FAILED.increment();
+                    transfer.discard();
+                    sendTransferDone(streamId, false);
+                    app.log("Transfer of " + transfer.file().getName() + " failed verification and was discarded.");
+                }
+            } else if (transfer.isComplete() && transfers.remove(streamId, transfer)) { // Only one thread finishes it
+                finishTransfer(transfer, streamId);
+            }
+        }));
+    }
+
+    private void abortTransfer(int streamId, Map<Integer, ResumableFile> transfers) {
+        ResumableFile transfer = transfers.remove(streamId);
+        if (transfer != null) {
+            transfer.discard();
+            app.log("Transfer of " + transfer.file().getName() + " was cancelled by the sender.");
+        }
+    }
+
+    /**
+     * An extra authenticated connection of the current session. It has its own cipher and writer,
+     * and carries only resumable chunks, so one transfer can use several congestion windows.
+     */
+    private record DataLane(Socket socket, SessionCipher cipher, OutboundQueue outbound) {
+        void close() {
+            outbound.close();
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // Already closed
+            }
+        }
+    }
+
+    /**
+     * Checks what a connecting client presents: the token itself, or its proof through a relay.
+     */
+    private boolean isServerToken(String received) throws GeneralSecurityException {
+        return serverToken.equals(received) || MessageDigest.isEqual(
+                EncryptionUtils.tokenProof(serverToken).getBytes(StandardCharsets.UTF_8),
+                received.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Accepts data connections for the current session on the server socket, until closeLanes()
+     * closes it. Connections that do not present the session's lane key are refused.
+     */
+    private void acceptLanes() {
+        ServerSocket listener = laneListener;
+        while (listener != null && laneListener == listener && !listener.isClosed()) {
+            Socket laneSocket;
+            try {
+                laneSocket = listener.accept();
+            } catch (IOException e) {
+                return; // Server closed
+            }
+            laneTasks.submit(() -> acceptLane(laneSocket));
+        }
+    }
+
+    private void acceptLane(Socket laneSocket) {
+        try {
+            DataOutputStream laneOut = new DataOutputStream(new BufferedOutputStream(Metrics.countSent(laneSocket.getOutputStream()), OUTPUT_BUFFER_SIZE));
+            DataInputStream laneIn = new DataInputStream(new BufferedInputStream(Metrics.countReceived(laneSocket.getInputStream())));
+            if (!isServerToken(laneIn.readUTF())) { // Validate the token
+                laneOut.writeUTF("Invalid token. Connection refused.");
+                laneOut.flush();
+                laneSocket.close();
+                return;
+            }
+            laneOut.writeUTF("Connected");
+            laneOut.flush();
+            String offer = laneIn.readUTF();
+            PeerHello hello = PeerHello.parse(offer);
+            String key = laneKey;
+            String presented = hello.param(PeerHello.LANE);
+            if (key == null || presented == null || !MessageDigest.isEqual(key.getBytes(StandardCharsets.UTF_8),
+                    presented.getBytes(StandardCharsets.UTF_8))) {
+                laneSocket.close(); // Not a data connection of this session
+                return;
+            }
+            CipherSuite suite = CipherSuite.negotiate(hello.param(PeerHello.SUITES), cipherSuite);
+            byte[] serverSalt = EncryptionUtils.newSessionSalt();
+            String reply = PeerHello.reply(userName, hello, suite, serverSalt, List.of());
+            laneOut.writeUTF(reply);
+            laneOut.flush();
+            EncryptionUtils.confirmHandshake(laneIn, laneOut, secretKey, true, offer, reply);
+            runLane(laneSocket, laneIn, laneOut, suite.newSessionCipher(secretKey, hello.bytesParam(PeerHello.SALT), serverSalt, false));
+        } catch (Exception e) {
+            closeQuietly(laneSocket);
+            app.log("Data connection failed: " + e.getMessage());
+        }
+    }
+
+    private void openLane(String friendIp, String token) {
+        Socket laneSocket = null;
+        try {
+            laneSocket = new Socket(friendIp, port);
+            DataOutputStream laneOut = new DataOutputStream(new BufferedOutputStream(Metrics.countSent(laneSocket.getOutputStream()), OUTPUT_BUFFER_SIZE));
+            DataInputStream laneIn = new DataInputStream(new BufferedInputStream(Metrics.countReceived(laneSocket.getInputStream())));
+            laneOut.writeUTF(token);
+            laneOut.flush();
+            if (!"Connected".equals(laneIn.readUTF())) {
+                throw new IOException("refused by the server");
+            }
+            byte[] clientSalt = EncryptionUtils.newSessionSalt();
+            String offer = PeerHello.laneOffer(userName, cipherSuite, clientSalt, laneKey);
+            laneOut.writeUTF(offer);
+            laneOut.flush();
+            String replyText = laneIn.readUTF();
+            PeerHello reply = PeerHello.parse(replyText);
+            EncryptionUtils.confirmHandshake(laneIn, laneOut, secretKey, false, offer, replyText);
+            SessionCipher cipher = reply.chosenSuite().newSessionCipher(secretKey, clientSalt, reply.bytesParam(PeerHello.SALT), true);
+            runLane(laneSocket, laneIn, laneOut, cipher);
+        } catch (Exception e) {
+            closeQuietly(laneSocket);
+            app.log("Data connection failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Registers a data connection and reads its chunks until it closes. A data connection that
+     * fails while the session is up ends the session; its transfers resume after the reconnect.
+     */
+    private void runLane(Socket laneSocket, DataInputStream laneIn, DataOutputStream laneOut, SessionCipher cipher) {
+        OutboundQueue laneOutbound = new OutboundQueue(laneOut, e -> app.log("Failed to send: " + e.getMessage()));
+        DataLane lane = new DataLane(laneSocket, cipher, laneOutbound);
+        Map<Integer, ResumableFile> transfers = receivingTransfers;
+        ChunkPipeline decrypts = new ChunkPipeline();
+        lanes.add(lane);
+        laneOutbound.start(laneTasks);
+        try {
+            while (true) {
+                if (laneIn.available() == 0) {
+                    decrypts.completeAll();
+                }
+                int messageType = laneIn.readInt();
+                if (messageType == MSG_TRANSFER_CHUNK || messageType == MSG_TRANSFER_DELTA) {
+                    receiveTransferChunk(laneIn, cipher, transfers, decrypts, messageType == MSG_TRANSFER_DELTA);
+                } else if (messageType == MSG_STREAM_ABORT) {
+                    decrypts.completeAll();
+                    abortTransfer(laneIn.readInt(), transfers);
+                } else {
+                    throw new IOException("Unexpected message on a data connection: " + messageType);
+                }
+            }
+        } catch (Exception e) {
+            if (lanes.remove(lane)) { // Still part of the session, so this is not a normal shutdown
+                app.log("Data connection lost: " + e.getMessage());
+                closeQuietly(socket);
+            }
+        } finally {
+            decrypts.cancel();
+            lane.close();
+        }
+    }
+
+    private void closeLanes() {
+        laneKey = null;
+        ServerSocket listener = laneListener;
+        laneListener = null;
+        if (listener != null) { // Otherwise its acceptor would take the next connection to the port
+            try {
+                listener.close();
+            } catch (IOException ignored) {
+                // Already closed
+            }
+        }
+        List<DataLane> closing = List.copyOf(lanes);
+        lanes.clear(); // Before closing, so their receive loops do not report the shutdown
+        for (DataLane lane : closing) {
+            lane.close();
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // Already closed
+            }
+        }
+    }
+
+    /**
+     * Verifies a completed resumable download, moves it into place and tells the sender.
+     */
+    private void finishTransfer(ResumableFile transfer, int streamId) throws IOException {
+        boolean verified = transfer.finish();
+        sendTransferDone(streamId, verified);
+        if (verified) {
+            Metrics.TRANSFERS_COMPLETED.increment();
+            Metrics.TRANSFER_THROUGHPUT.record((long) (transfer.size() * 1e9 / Math.max(1, transfer.elapsedNanos()) / 1024));
+            onFileReceived(transfer.file());
+        } else {
+            Metrics.TRANSFERS_FAILED.increment();
+            app.log("Transfer of " + transfer.file().getName() + " failed verification and was discarded.");
         }
     }
 
+    private void sendTransferDone(int streamId, boolean verified) {
+        outbound.enqueue(out -> {
+            out.writeInt(MSG_TRANSFER_DONE); // Message type: 10 (transfer finished)
+            out.writeInt(streamId);
+            out.writeBoolean(verified);
+        });
+    }
+
+    private void onFileReceived(File file) {
+        showFile(file, "Received", false);
+        transferTasks.submit(() -> chunkStore.index(file)); // Hashed off the receive loop; a no-op for resumable downloads
+    }
+
+    /**
+     * Records a message in the history and shows it.
+     */
+    private void showMessage(ChatMessage message, boolean own) {
+        app.addChatEntry(history.append(ChatEntry.message(message, own)));
+    }
+
+    /**
+     * Records a file notice in the history and shows it.
+     */
+    private void showFile(File file, String fileType, boolean own) {
+        app.addChatEntry(history.append(ChatEntry.file(own ? userName : friendName, file.getName(), fileType, file, own)));
+    }
+
+    /**
+     * Gets the keys of the group broadcasts.
+     *
+     * @return The keyring.
+     * @throws IOException If the server sent a group frame without having agreed to the group feature.
+     */
+    private GroupCipher.Keyring groupKeys() throws IOException {
+        GroupCipher.Keyring keys = groupKeys;
+        if (keys == null) {
+            throw new IOException("Group frame on a session without the group feature");
+        }
+        return keys;
+    }
+
+    /**
+     * Reads, decrypts and decodes one text frame into the receiving thread's pooled buffers.
+     *
+     * @param cipher The session cipher, or the group keys for a group broadcast.
+     * @return The decoded message.
+     * @throws Exception If the frame is too large, cannot be decrypted or is malformed.
+     */
+    private ChatMessage receiveText(SessionCipher cipher) throws Exception {
+        long started = System.nanoTime();
+        int length = in.readInt();
+        if (length <= 0 || length > MAX_MESSAGE_SIZE) {
+            throw new IOException("Invalid message length: " + length);
+        }
+        ByteBuffer sealed = BufferPool.acquire(BufferPool.SEALED, length);
+        in.readFully(sealed.array(), 0, length);
+        sealed.limit(length);
+        ByteBuffer plain = BufferPool.acquire(BufferPool.PLAIN, length);
+        cipher.open(sealed, plain);
+        plain.flip();
+        if (compressed) {
+            plain = Compression.unpack(plain, MAX_MESSAGE_SIZE);
+        }
+        ChatMessage message = binaryMessages
+                ? MessageCodec.decode(plain, senderId -> friendName) // Only the peer itself sends on this session
+                : ChatMessage.fromLegacy(new String(plain.array(), 0, plain.limit(), StandardCharsets.UTF_8), friendName);
+        Metrics.MESSAGES_RECEIVED.increment();
+        Metrics.RECEIVE_TEXT.recordSince(started);
+        return message;
+    }
+
     /**
      * Sends a text message to the connected peer.
      *
@@ -173,46 +1105,591 @@ public class ConnectionManager {
     public void sendMessage(String messageText) {
         try {
             messageText = MessageUtils.sanitizeInput(messageText); // Sanitize input
-            String fullMessage = userName + "|" + MessageUtils.getCurrentTime() + "|" + messageText;
-            byte[] encryptedMessage = EncryptionUtils.encrypt(fullMessage, secretKey); // Encrypt the message
-            out.writeInt(1); // Message type: 1 (text)
-            out.writeInt(encryptedMessage.length);
-            out.write(encryptedMessage);
-            out.flush();
-            app.addMessageBubble(fullMessage, true); // Display the message locally
+            ChatMessage message = new ChatMessage(nextMessageId.getAndIncrement(), userName, System.currentTimeMillis(), messageText);
+            if (multiPeerServer != null) {
+                multiPeerServer.broadcastText(message); // Send to every connected peer
+                showMessage(message, true);
+                return;
+            }
+            outbound.enqueue(out -> { // Encoded and sealed on the writer thread, in its pooled buffers
+                ByteBuffer plain = binaryMessages
+                        ? MessageCodec.encode(message, MessageCodec.SESSION_PEER)
+                        : ByteBuffer.wrap(message.toLegacy().getBytes(StandardCharsets.UTF_8));
+                if (compressed) {
+                    plain = Compression.pack(plain, null); // Short messages are stored without trying
+                }
+                ByteBuffer sealed = BufferPool.acquire(BufferPool.SEALED, sessionCipher.sealedSize(plain.remaining()));
+                int length = sessionCipher.seal(plain, sealed); // Encrypt the message
+                out.writeInt(MSG_TEXT); // Message type: 1 (text)
+                out.writeInt(length);
+                out.write(sealed.array(), 0, length);
+                Metrics.MESSAGES_SENT.increment();
+            });
+            showMessage(message, true); // Display the message locally
         } catch (Exception e) {
             app.log("Encryption error: " + e.getMessage());
         }
     }
 
     /**
-     * Sends a file to the connected peer.
+     * Sends a file to the connected peer as a stream of independently encrypted chunks.
+     * Only one chunk is held in memory at a time, so the file size is not limited by the heap.
+     * A failure after the first chunk has been written ends the connection, since the peer
+     * cannot resynchronize in the middle of a chunk stream. A peer that predates chunked files
+     * gets the file as one sealed blob instead, up to MAX_FILE_SIZE.
      *
      * @param file The file to send.
      */
     public void sendAttachment(File file) {
-        Executors.newSingleThreadExecutor().submit(() -> {
+        if (multiPeerServer != null) {
+            transferTasks.submit(() -> {
+                try {
+                    multiPeerServer.broadcastFile(file); // Stream to every connected peer
+                    showFile(file, "Sending", true);
+                } catch (IOException e) {
+                    app.log("Failed to send file: " + e.getMessage());
+                } catch (Exception e) {
+                    app.log("Encryption error: " + e.getMessage());
+                }
+            });
+            return;
+        }
+        if (resumable) {
+            transferTasks.submit(() -> { // Hashing a large file takes a while; keep it off the UI thread
+                try {
+                    offerTransfer(outgoingState(file));
+                } catch (IOException | RuntimeException e) {
+                    app.log("Failed to send file: " + e.getMessage());
+                }
+            });
+            return;
+        }
+        if (multiplexed) {
+            outbound.enqueueStream(new FileSender(nextStreamId.getAndIncrement(), file)); // Interleaved with chat
+            return;
+        }
+        if (!streamedFiles) {
+            sendLegacyFile(file);
+            return;
+        }
+        outbound.enqueue(out -> { // Runs on the writer thread, so no other frame can split the chunk stream
+            InputStream fileIn;
             try {
-                byte[] fileBytes = Files.readAllBytes(file.toPath());
-                byte[] encryptedFileBytes = EncryptionUtils.encryptBytes(fileBytes, secretKey); // Encrypt the file
-                out.writeInt(2); // Message type: 2 (file)
+                fileIn = new FileInputStream(file);
+            } catch (IOException e) {
+                app.log("Failed to send file: " + e.getMessage());
+                return; // Nothing written yet; the connection is unaffected
+            }
+            try (fileIn) {
+                long size = file.length();
+                out.writeInt(MSG_FILE_STREAM); // Message type: 3 (chunked file)
                 out.writeUTF(file.getName());
-                out.writeLong(encryptedFileBytes.length);
-                out.write(encryptedFileBytes);
-                out.flush();
-                Platform.runLater(() -> app.addFileMessageBubble(file.getName(), "Sending", file, true));
+                out.writeLong(size); // Plaintext size of the whole file
+                out.writeInt(CHUNK_SIZE);
+
+                ChunkPipeline seals = new ChunkPipeline(); // Chunks being encrypted in parallel, written in file order
+                Compression.Adaptive history = new Compression.Adaptive();
+                long remaining = size;
+                try {
+                    while (remaining > 0) {
+                        ChunkPipeline.Slot slot = seals.acquire(); // Writes the oldest chunk once the window is full
+                        ByteBuffer chunk = slot.input(CHUNK_SIZE);
+                        int read = fileIn.readNBytes(chunk.array(), 0, (int) Math.min(CHUNK_SIZE, remaining));
+                        if (read == 0) {
+                            throw new EOFException("File was truncated while sending");
+                        }
+                        chunk.limit(read);
+                        seals.submit(slot, sealer(sessionCipher, chunk, null, history, (sealed, length) -> {
+                            out.writeInt(length);
+                            out.write(sealed, 0, length);
+                        }));
+                        remaining -= read;
+                    }
+                    seals.completeAll();
+                } catch (IOException e) {
+                    writeSealedAhead(seals); // The peer then sees the stream end early rather than a gap in the counters
+                    throw e;
+                } catch (Exception e) {
+                    throw sealingFailed(e);
+                } finally {
+                    seals.cancel();
+                }
+            }
+            showFile(file, "Sending", true);
+        });
+    }
+
+    /**
+     * Sends a file as one sealed blob, the only way peers that predate chunked files can take it.
+     * Such a peer refuses anything larger than MAX_FILE_SIZE, so larger files are not sent.
+     */
+    private void sendLegacyFile(File file) {
+        outbound.enqueue(out -> { // Sealed on the writer thread, in wire order
+            byte[] fileBytes;
+            try {
+                if (file.length() > P2PMessenger2.MAX_FILE_SIZE) {
+                    throw new IOException(file.getName() + " is larger than this peer accepts");
+                }
+                fileBytes = Files.readAllBytes(file.toPath());
+                if (sessionCipher.sealedSize(fileBytes.length) > P2PMessenger2.MAX_FILE_SIZE) {
+                    throw new IOException(file.getName() + " is larger than this peer accepts");
+                }
             } catch (IOException e) {
                 app.log("Failed to send file: " + e.getMessage());
+                return; // Nothing written yet; the connection is unaffected
+            }
+            byte[] sealed = sessionCipher.seal(fileBytes, 0, fileBytes.length);
+            out.writeInt(MSG_FILE); // Message type: 2 (file)
+            out.writeUTF(file.getName());
+            out.writeLong(sealed.length);
+            out.write(sealed);
+            showFile(file, "Sending", true);
+        });
+    }
+
+    /**
+     * Writes a sealed chunk to the connection.
+     */
+    @FunctionalInterface
+    private interface ChunkWriter {
+        void write(byte[] sealed, int length) throws IOException;
+    }
+
+    /**
+     * Builds the stage that packs, if the session is compressed, and seals one chunk on the crypto pool.
+     * The chunk's place in the cipher's frame order and the decision to try compressing it are taken
+     * now, on the writer thread, so they follow the order the chunks are written in.
+     *
+     * @param cipher  The cipher of the connection the chunk is written to.
+     * @param chunk   The plaintext chunk, in the slot's input buffer.
+     * @param header  Bytes sealed ahead of the chunk, or null.
+     * @param history The compression history of the stream.
+     * @param writer  Writes the sealed chunk once every earlier chunk has been written.
+     * @return The stage to submit.
+     */
+    private ChunkPipeline.Stage sealer(SessionCipher cipher, ByteBuffer chunk, byte[] header,
+                                       Compression.Adaptive history, ChunkWriter writer) {
+        SessionCipher.Sealer sealer = cipher.reserve();
+        int plainLength = chunk.remaining();
+        boolean pack = compressed;
+        boolean attempt = pack && history.shouldTry(chunk.remaining());
+        return slot -> {
+            ByteBuffer payload = pack ? Compression.pack(chunk, attempt) : chunk; // Pooled per worker; sealed right away
+            boolean deflated = pack && Compression.isDeflated(payload);
+            ByteBuffer plain = payload;
+            if (header != null) {
+                plain = slot.scratch(header.length + payload.remaining()).put(header).put(payload).flip();
+            }
+            ByteBuffer sealed = slot.output(cipher.sealedSize(plain.remaining()));
+            int length = sealer.seal(plain, sealed); // Encrypt the chunk
+            return () -> {
+                if (attempt) {
+                    history.record(deflated);
+                }
+                writer.write(sealed.array(), length);
+                Metrics.FILE_BYTES_SENT.add(plainLength);
+            };
+        };
+    }
+
+    /**
+     * Writes the chunks a stream has sealed ahead before it stops early. Their counters are already
+     * taken, and the peer only opens the next one, so they are sent rather than dropped.
+     *
+     * @param seals The stream's pipeline; empty afterwards.
+     * @throws IOException If the connection failed, or a chunk could not be sealed and left a gap.
+     */
+    private static void writeSealedAhead(ChunkPipeline seals) throws IOException {
+        try {
+            seals.completeAll();
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw sealingFailed(e);
+        }
+    }
+
+    /**
+     * Wraps a chunk that failed after taking its counter. The peer cannot open anything past
+     * the gap, so the connection ends.
+     */
+    private static IOException sealingFailed(Exception cause) {
+        return new IOException("Failed to seal a chunk: " + cause.getMessage(), cause);
+    }
+
+    /**
+     * Sends one file as a multiplexed stream, one chunk per call from the writer. The next few
+     * chunks are read and sealed ahead in parallel while the writer sends the oldest one.
+     * File errors abort only this stream; the connection and other transfers continue.
+     */
+    private final class FileSender implements OutboundQueue.BulkStream {
+        private final int streamId; // Identifies the stream's frames to the peer
+        private final File file; // File being sent
+        private InputStream fileIn; // Opened when the first frame is written
+        private long remaining; // Plaintext bytes not yet read
+        private final ChunkPipeline seals = new ChunkPipeline(); // Chunks sealed ahead, in file order
+        private final Compression.Adaptive history = new Compression.Adaptive(); // Skips chunks that do not compress
+
+        FileSender(int streamId, File file) {
+            this.streamId = streamId;
+            this.file = file;
+        }
+
+        @Override
+        public boolean writeNext(DataOutputStream out) throws IOException {
+            if (fileIn == null) {
+                return open(out);
+            }
+            try {
+                while (remaining > 0 && !seals.isFull()) {
+                    sealNext(out);
+                }
             } catch (Exception e) {
-                app.log("Encryption error: " + e.getMessage());
+                abort(out, e);
+                return false;
+            }
+            return complete(out, false);
+        }
+
+        @Override
+        public boolean drain(DataOutputStream out) throws IOException {
+            return complete(out, true);
+        }
+
+        /**
+         * Reads the next chunk and starts sealing it.
+         */
+        private void sealNext(DataOutputStream out) throws Exception {
+            ChunkPipeline.Slot slot = seals.acquire();
+            ByteBuffer chunk = slot.input(STREAM_CHUNK_SIZE);
+            int read = fileIn.readNBytes(chunk.array(), 0, (int) Math.min(STREAM_CHUNK_SIZE, remaining));
+            if (read == 0) {
+                throw new EOFException("File was truncated while sending");
+            }
+            chunk.limit(read);
+            remaining -= read;
+            seals.submit(slot, sealer(sessionCipher, chunk, null, history, (sealed, length) -> {
+                out.writeInt(MSG_STREAM_DATA); // Message type: 5 (stream chunk)
+                out.writeInt(streamId);
+                out.writeInt(length);
+                out.write(sealed, 0, length);
+            }));
+        }
+
+        /**
+         * Writes the oldest sealed chunk, or all of them.
+         *
+         * @return True if the stream has more chunks.
+         */
+        private boolean complete(DataOutputStream out, boolean all) throws IOException {
+            try {
+                if (all) {
+                    seals.completeAll();
+                } else {
+                    seals.completeNext();
+                }
+            } catch (IOException e) {
+                throw e; // The connection failed
+            } catch (Exception e) {
+                throw sealingFailed(e);
+            }
+            if (remaining > 0 || !seals.isEmpty()) {
+                return true;
+            }
+            finish();
+            return false;
+        }
+
+        private boolean open(DataOutputStream out) throws IOException {
+            try {
+                fileIn = new FileInputStream(file);
+            } catch (IOException e) {
+                app.log("Failed to send file: " + e.getMessage());
+                return false; // Nothing written yet
+            }
+            remaining = file.length();
+            out.writeInt(MSG_STREAM_OPEN); // Message type: 4 (stream header)
+            out.writeInt(streamId);
+            out.writeUTF(file.getName());
+            out.writeLong(remaining); // Plaintext size of the whole file
+            out.writeInt(STREAM_CHUNK_SIZE);
+            if (remaining > 0) {
+                return true;
             }
+            finish();
+            return false;
+        }
+
+        private void abort(DataOutputStream out, Exception cause) throws IOException {
+            try {
+                writeSealedAhead(seals); // Sent before the abort, so the peer's counter stays in step
+            } finally {
+                cancel();
+            }
+            out.writeInt(MSG_STREAM_ABORT); // Message type: 6 (stream cancelled)
+            out.writeInt(streamId);
+            app.log("Failed to send file: " + cause.getMessage());
+        }
+
+        private void finish() {
+            cancel();
+            showFile(file, "Sending", true);
+        }
+
+        @Override
+        public void cancel() {
+            seals.cancel();
+            if (fileIn != null) {
+                try {
+                    fileIn.close();
+                } catch (IOException ignored) {
+                    // Nothing left to release
+                }
+            }
+        }
+    }
+
+    /**
+     * Finds or creates the persisted state of an outgoing resumable transfer. A file that is
+     * sent again unchanged gets its saved state back, including the chunks the peer already has.
+     *
+     * @param file The file to send.
+     * @return The transfer state.
+     * @throws IOException If the file cannot be hashed or the state cannot be written.
+     */
+    private TransferState outgoingState(File file) throws IOException {
+        long modified = file.lastModified(); // Read first, so a change while hashing is caught later
+        long size = file.length();
+        byte[] hashes = TransferState.hashChunks(file, STREAM_CHUNK_SIZE);
+        byte[] id = TransferState.transferId(transferIdKey, size, STREAM_CHUNK_SIZE, hashes);
+        Files.createDirectories(transfersDir);
+        Path path = transfersDir.resolve(MessageUtils.bytesToHex(id) + ".state");
+        for (TransferState offered : offeredTransfers.values()) {
+            if (Arrays.equals(offered.id(), id)) {
+                throw new IOException(file.getName() + " is already being sent");
+            }
+        }
+        if (Files.exists(path)) {
+            try {
+                TransferState saved = TransferState.open(path);
+                if (saved.source().equals(file.getAbsolutePath()) && saved.sourceModified() == modified) {
+                    return saved;
+                }
+                saved.close();
+            } catch (IOException e) {
+                // Unreadable; replaced below
+            }
+        }
+        return TransferState.create(path, id, size, STREAM_CHUNK_SIZE, modified, file.getName(), file.getAbsolutePath(), hashes);
+    }
+
+    /**
+     * Offers a resumable transfer; the peer answers with the chunks it already has.
+     */
+    private void offerTransfer(TransferState state) {
+        int streamId = nextStreamId.getAndIncrement();
+        offeredTransfers.put(streamId, state);
+        outbound.enqueue(out -> {
+            ByteArrayOutputStream payload = new ByteArrayOutputStream();
+            DataOutputStream header = new DataOutputStream(payload);
+            header.write(state.id());
+            header.writeUTF(state.name());
+            header.writeLong(state.size()); // Plaintext size of the whole file
+            header.writeInt(state.chunkSize());
+            if (deduplicated) {
+                header.write(state.hashes()); // Lets the receiver take the chunks it already holds from disk
+            }
+            out.writeInt(MSG_TRANSFER_OFFER); // Message type: 7 (resumable transfer header)
+            out.writeInt(streamId);
+            writeSealed(out, sessionCipher, payload.toByteArray()); // Name, size, ID and hashes are for the peer only
         });
     }
 
+    /**
+     * Offers every unfinished outgoing transfer again after a reconnect. Transfers whose
+     * file has changed or disappeared are dropped.
+     */
+    private void resumeTransfers() {
+        if (!Files.isDirectory(transfersDir)) {
+            return;
+        }
+        try (DirectoryStream<Path> states = Files.newDirectoryStream(transfersDir, "*.state")) {
+            for (Path path : states) {
+                TransferState state;
+                try {
+                    state = TransferState.open(path);
+                } catch (IOException e) {
+                    Files.deleteIfExists(path);
+                    continue;
+                }
+                File source = new File(state.source());
+                if (source.length() != state.size() || source.lastModified() != state.sourceModified()) {
+                    state.delete();
+                    app.log("Dropped unfinished transfer of " + state.name() + ": the file has changed.");
+                    continue;
+                }
+                app.log("Resuming transfer of " + state.name());
+                offerTransfer(state);
+            }
+        } catch (IOException e) {
+            app.log("Failed to resume transfers: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Sends the chunks of a resumable transfer that the peer does not have, one per call from the writer.
+     * Each chunk is sealed together with its hash so the peer can verify it on arrival; the next few
+     * are read and sealed ahead in parallel while the writer sends the oldest one. A striped
+     * transfer has one sender per connection; they share the cursor, so a faster connection simply
+     * takes more chunks. With a delta plan, a chunk that overlaps the receiver's older copy is sent as
+     * a DeltaSync delta instead, whenever that is shorter.
+     */
+    private final class TransferSender implements OutboundQueue.BulkStream {
+        private final int streamId; // Identifies the transfer's frames to the peer
+        private final TransferState state; // Chunks the peer already has
+        private final SessionCipher cipher; // Cipher of the connection this sender writes to
+        private final AtomicInteger cursor; // Next chunk index to consider, shared by the transfer's senders
+        private final DeltaSync.Plan plan; // Matches against the receiver's older copy; null without one
+        private FileChannel fileIn; // Opened when the first frame is written
+        private boolean exhausted; // Every missing chunk has been taken by this or another sender
+        private final ChunkPipeline seals = new ChunkPipeline(); // Chunks sealed ahead, in cursor order
+        private final Compression.Adaptive history = new Compression.Adaptive(); // Skips chunks that do not compress
+
+        TransferSender(int streamId, TransferState state, SessionCipher cipher, AtomicInteger cursor, DeltaSync.Plan plan) {
+            this.streamId = streamId;
+            this.state = state;
+            this.cipher = cipher;
+            this.cursor = cursor;
+            this.plan = plan;
+        }
+
+        @Override
+        public boolean writeNext(DataOutputStream out) throws IOException {
+            try {
+                if (fileIn == null) {
+                    File source = new File(state.source());
+                    if (source.length() != state.size() || source.lastModified() != state.sourceModified()) {
+                        throw new IOException("the file has changed");
+                    }
+                    fileIn = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+                }
+                while (!exhausted && !seals.isFull()) {
+                    sealNext(out);
+                }
+            } catch (Exception e) {
+                fail(out, e);
+                return false;
+            }
+            return complete(out, false);
+        }
+
+        @Override
+        public boolean drain(DataOutputStream out) throws IOException {
+            return complete(out, true);
+        }
+
+        /**
+         * Takes the next missing chunk, reads it and starts sealing it.
+         */
+        private void sealNext(DataOutputStream out) throws Exception {
+            int index;
+            do {
+                index = cursor.getAndIncrement();
+            } while (index < state.chunkCount() && state.has(index));
+            if (index >= state.chunkCount()) {
+                exhausted = true;
+                return;
+            }
+            ChunkPipeline.Slot slot = seals.acquire();
+            long position = (long) index * state.chunkSize();
+            ByteBuffer chunk = slot.input(state.chunkSize());
+            chunk.limit((int) Math.min(state.chunkSize(), state.size() - position));
+            while (chunk.hasRemaining()) {
+                if (fileIn.read(chunk, position + chunk.position()) < 0) {
+                    throw new EOFException("File was truncated while sending");
+                }
+            }
+            int chunkIndex = index;
+            chunk.flip();
+            ByteBuffer delta = plan != null ? plan.encode(position, chunk) : null;
+            if (delta != null) { // The receiver checks the rebuilt chunk against the hash it was offered
+                seals.submit(slot, sealer(cipher, delta, ByteBuffer.allocate(4).putInt(index).array(), history, (sealed, length) -> {
+                    out.writeInt(MSG_TRANSFER_DELTA); // Message type: 12 (resumable chunk as a delta)
+                    out.writeInt(streamId);
+                    out.writeInt(chunkIndex);
+                    out.writeInt(length);
+                    out.write(sealed, 0, length);
+                }));
+                return;
+            }
+            byte[] header = ByteBuffer.allocate(4 + TransferState.HASH_SIZE).putInt(index).put(state.chunkHash(index)).array();
+            seals.submit(slot, sealer(cipher, chunk, header, history, (sealed, length) -> {
+                out.writeInt(MSG_TRANSFER_CHUNK); // Message type: 9 (resumable chunk)
+                out.writeInt(streamId);
+                out.writeInt(chunkIndex);
+                out.writeInt(length);
+                out.write(sealed, 0, length);
+            })); // The index, hash and chunk are encrypted together
+        }
+
+        /**
+         * Writes the oldest sealed chunk, or all of them.
+         *
+         * @return True if this sender has more chunks.
+         */
+        private boolean complete(DataOutputStream out, boolean all) throws IOException {
+            try {
+                if (all) {
+                    seals.completeAll();
+                } else {
+                    seals.completeNext();
+                }
+            } catch (IOException e) {
+                throw e; // The connection failed
+            } catch (Exception e) {
+                throw sealingFailed(e);
+            }
+            if (!exhausted || !seals.isEmpty()) {
+                return true;
+            }
+            cancel(); // The peer confirms with MSG_TRANSFER_DONE
+            return false;
+        }
+
+        private void fail(DataOutputStream out, Exception cause) throws IOException {
+            try {
+                writeSealedAhead(seals); // Sent before the abort, so the peer's counter stays in step
+            } finally {
+                cancel();
+            }
+            out.writeInt(MSG_STREAM_ABORT); // Message type: 6 (stream cancelled)
+            out.writeInt(streamId);
+            if (offeredTransfers.remove(streamId) != null) { // Reported once, not by every striped sender
+                state.delete();
+                app.log("Failed to send " + state.name() + ": " + cause.getMessage());
+            }
+        }
+
+        @Override
+        public void cancel() {
+            seals.cancel();
+            if (fileIn != null) {
+                try {
+                    fileIn.close();
+                } catch (IOException ignored) {
+                    // Nothing left to release
+                }
+            }
+        }
+    }
+
     /**
      * Receives a file from the connected peer.
+     *
+     * @throws GeneralSecurityException If the file cannot be decrypted; the frames after it
+     *                                  cannot be either, so the connection ends.
      */
-    private void receiveFile() {
+    private void receiveFile() throws GeneralSecurityException {
         try {
             String fileName = in.readUTF();
             fileName = MessageUtils.sanitizeFileName(fileName); // Sanitize file name
@@ -223,25 +1700,146 @@ public class ConnectionManager {
             }
             byte[] encryptedFileBytes = new byte[(int) length];
             in.readFully(encryptedFileBytes);
-            byte[] decryptedFileBytes = EncryptionUtils.decryptBytes(encryptedFileBytes, secretKey); // Decrypt the file
-            Path downloadDir = new File("downloads").toPath(); // Save file in "downloads" directory
-            if (!Files.exists(downloadDir)) {
-                Files.createDirectories(downloadDir); // Create directory if not exists
-            }
-            File file = new File(downloadDir.toFile(), fileName);
-            Files.write(file.toPath(), decryptedFileBytes); // Write file to disk
-            Platform.runLater(() -> app.addFileMessageBubble(file.getName(), "Received", file, false));
+            byte[] decryptedFileBytes = sessionCipher.open(encryptedFileBytes, 0, encryptedFileBytes.length); // Decrypt the file
+            File file = placeDownload(downloadFile(downloadsDir, fileName),
+                    path -> Files.write(path, decryptedFileBytes, StandardOpenOption.CREATE_NEW)); // Write file to disk
+            onFileReceived(file);
         } catch (IOException e) {
             app.log("Failed to receive file: " + e.getMessage());
-        } catch (Exception e) {
-            app.log("Decryption error: " + e.getMessage());
         }
     }
 
+    /**
+     * Receives a chunked file from the connected peer and writes it straight to disk.
+     * Each chunk is decrypted on its own, in parallel with the next few, so memory use stays at
+     * one pipeline window regardless of file size.
+     * The file is written under a ".part" name and only renamed once every chunk has arrived.
+     *
+     * @throws Exception If the stream is malformed or a chunk cannot be decrypted; the
+     *                   connection cannot continue after a partial chunk stream.
+     */
+    private void receiveFileStream() throws Exception {
+        IncomingFile incoming = new IncomingFile(downloadsDir, in.readUTF(), in.readLong(), in.readInt(), sessionCipher, compressed);
+        ChunkPipeline decrypts = new ChunkPipeline();
+        try (incoming) {
+            while (!incoming.finishIfComplete()) {
+                int length = in.readInt();
+                if (length <= 0 || length > incoming.maxSealedLength()) {
+                    throw new IOException("Invalid chunk length: " + length);
+                }
+                ChunkPipeline.Slot slot = decrypts.acquire();
+                ByteBuffer sealed = slot.input(length);
+                in.readFully(sealed.array(), 0, length);
+                sealed.limit(length);
+                decrypts.submit(slot, incoming.opener(sealed, () -> { })); // Completion is checked by the loop
+                if (incoming.allSubmitted()) {
+                    decrypts.completeAll(); // Do not read past the stream waiting for a chunk that was the last
+                }
+            }
+        } finally {
+            decrypts.cancel();
+        } // Closing discards the partial file unless it completed
+        onFileReceived(incoming.file());
+    }
+
+    /**
+     * Resolves the target file for a download, creating the "downloads" directory if needed.
+     *
+     * @param downloadDir The "downloads" directory.
+     * @param fileName    The sanitized file name.
+     * @return The file under the "downloads" directory.
+     * @throws IOException If the directory cannot be created.
+     */
+    static File downloadFile(Path downloadDir, String fileName) throws IOException {
+        if (!Files.exists(downloadDir)) {
+            Files.createDirectories(downloadDir); // Create directory if not exists
+        }
+        return new File(downloadDir.toFile(), fileName);
+    }
+
+    /**
+     * Creates a download at its target path.
+     */
+    @FunctionalInterface
+    interface Placement {
+
+        /**
+         * Creates the file at a path.
+         *
+         * @param path The path to create.
+         * @throws FileAlreadyExistsException If the path is taken; another name is tried.
+         * @throws IOException                If the file cannot be created.
+         */
+        void placeAt(Path path) throws IOException;
+    }
+
+    /**
+     * Puts a completed download in place without replacing another file. A taken name gets a
+     * " (2)", " (3)", ... suffix ahead of its extension.
+     *
+     * @param target    The file under the "downloads" directory the sender's name maps to.
+     * @param placement Creates the file, failing if the path is taken.
+     * @return The file that was created.
+     * @throws IOException If the file cannot be created.
+     */
+    static File placeDownload(File target, Placement placement) throws IOException {
+        String name = target.getName();
+        int dot = name.lastIndexOf('.');
+        String base = dot > 0 ? name.substring(0, dot) : name;
+        String extension = dot > 0 ? name.substring(dot) : "";
+        File file = target;
+        for (int copy = 2; ; copy++) {
+            try {
+                placement.placeAt(file.toPath());
+                return file;
+            } catch (FileAlreadyExistsException e) {
+                file = new File(target.getParentFile(), base + " (" + copy + ")" + extension);
+            }
+        }
+    }
+
+    /**
+     * Finds the newest earlier download under a target's name, including the " (2)", " (3)", ...
+     * copies placeDownload made of it, to serve as the older copy for a delta transfer.
+     *
+     * @param target The file under the "downloads" directory the sender's name maps to.
+     * @return The most recently modified such file; null if there is none.
+     */
+    static File previousDownload(File target) {
+        String name = target.getName();
+        int dot = name.lastIndexOf('.');
+        String base = dot > 0 ? name.substring(0, dot) : name;
+        String extension = dot > 0 ? name.substring(dot) : "";
+        File[] copies = target.getParentFile().listFiles(file -> file.isFile() && (file.getName().equals(name)
+                || file.getName().startsWith(base + " (") && file.getName().endsWith(")" + extension)));
+        File newest = null;
+        for (File copy : copies != null ? copies : new File[0]) {
+            if (newest == null || copy.lastModified() > newest.lastModified()) {
+                newest = copy;
+            }
+        }
+        return newest;
+    }
+
+    /**
+     * Gets the temporary path a download is written to until all of its chunks have arrived.
+     *
+     * @param file The final download target.
+     * @return The ".part" path next to the target.
+     */
+    static Path partialFile(File file) {
+        return file.toPath().resolveSibling(file.getName() + ".part");
+    }
+
     /**
      * Closes all active connections and sockets.
      */
     public void closeConnections() throws IOException {
+        if (outbound != null)
+            outbound.close();
+        closeLanes();
+        if (multiPeerServer != null)
+            multiPeerServer.close();
         if (socket != null)
             socket.close();
         if (serverSocket != null)
@@ -0,0 +1,397 @@
+// DeltaSync.java
+
+// rsync-style delta encoding for sending a new version of a file the receiver holds an older copy of.
+// The receiver signs its copy block by block with a rolling weak checksum and a truncated strong hash.
+// The sender slides a window over the new version, finds the receiver's blocks at any offset, and
+// describes each chunk it would send as copies from the old copy plus the bytes in between. The
+// receiver rebuilds the chunk and checks it against the chunk hash the sender announced, so a false
+// match or an old copy that changed meanwhile is caught like any corrupt chunk.
+//
+//   signature     [int blockSize][long basisSize][int count] then count × [int weak][long strong]
+//   chunk delta   a sequence of [0][varint length][literal bytes] or [1][varlong offset][varint length]
+import java.io.*; // For signatures on the wire and reading files
+import java.nio.ByteBuffer; // For chunks and deltas
+import java.nio.channels.FileChannel; // For reading the old copy
+import java.nio.file.StandardOpenOption; // For opening files
+import java.security.MessageDigest; // For strong block hashes
+import java.security.NoSuchAlgorithmException; // For SHA-256 lookup
+import java.util.Arrays; // For growing the match lists
+import java.util.HashMap; // For looking up weak checksums
+import java.util.Map; // For looking up weak checksums
+
+final class DeltaSync {
+    static final int MIN_BLOCK_SIZE = 2 * 1024; // Smaller blocks cost more signature than they save
+    static final int MAX_BLOCK_SIZE = 64 * 1024;
+    private static final int MAX_BLOCKS = 1 << 20; // Largest signature accepted from a peer: 12 MB
+    static final int MAX_SIGNATURE_SIZE = 4 + 8 + 4 + MAX_BLOCKS * (4 + 8); // Encoded size of the largest signature
+    private static final int SCAN_BUFFER = 1024 * 1024; // Bytes of the new version buffered while scanning
+    private static final int LITERAL = 0;
+    private static final int COPY = 1;
+
+    private DeltaSync() {
+    }
+
+    /**
+     * Picks the block size for an old copy: about the square root of its size, as rsync does, so the
+     * signature and the literal bytes around a change both stay small.
+     */
+    static int blockSize(long basisSize) {
+        long root = (long) Math.sqrt((double) basisSize) & ~1023L;
+        return (int) Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, root));
+    }
+
+    /**
+     * Weak checksums and strong hashes of the whole blocks of the receiver's old copy.
+     * A trailing partial block is not signed; the sender sends those bytes as literals.
+     */
+    static final class Signature {
+        private final int blockSize;
+        private final long basisSize;
+        private final int[] weak; // Rolling checksum of each block
+        private final long[] strong; // First 8 bytes of each block's SHA-256
+
+        private Signature(int blockSize, long basisSize, int[] weak, long[] strong) {
+            this.blockSize = blockSize;
+            this.basisSize = basisSize;
+            this.weak = weak;
+            this.strong = strong;
+        }
+
+        /**
+         * Signs the old copy of a file.
+         *
+         * @param basis The open old copy.
+         * @return The signature.
+         * @throws IOException If the file cannot be read.
+         */
+        static Signature of(FileChannel basis) throws IOException {
+            long size = basis.size();
+            int blockSize = blockSize(size);
+            long count = size / blockSize;
+            if (count > MAX_BLOCKS) {
+                throw new IOException("File too large to sign");
+            }
+            int[] weak = new int[(int) count];
+            long[] strong = new long[(int) count];
+            MessageDigest digest = sha256();
+            ByteBuffer block = ByteBuffer.allocate(blockSize);
+            for (int i = 0; i < count; i++) {
+                block.clear();
+                while (block.hasRemaining()) {
+                    if (basis.read(block, (long) i * blockSize + block.position()) < 0) {
+                        throw new EOFException("File was truncated while signing");
+                    }
+                }
+                weak[i] = Rolling.of(block.array(), 0, blockSize).value();
+                strong[i] = strongHash(digest, block.array(), 0, blockSize);
+            }
+            return new Signature(blockSize, size, weak, strong);
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeInt(blockSize);
+            out.writeLong(basisSize);
+            out.writeInt(weak.length);
+            for (int i = 0; i < weak.length; i++) {
+                out.writeInt(weak[i]);
+                out.writeLong(strong[i]);
+            }
+        }
+
+        /**
+         * Reads a signature sent by the receiver.
+         *
+         * @param in The opened frame that carries the signature.
+         * @return The signature.
+         * @throws IOException If the signature is malformed or too large.
+         */
+        static Signature read(DataInputStream in) throws IOException {
+            int blockSize = in.readInt();
+            long basisSize = in.readLong();
+            int count = in.readInt();
+            if (blockSize < MIN_BLOCK_SIZE || blockSize > MAX_BLOCK_SIZE || basisSize < 0
+                    || count < 0 || count > MAX_BLOCKS || count != basisSize / blockSize) {
+                throw new IOException("Invalid delta signature");
+            }
+            int[] weak = new int[count];
+            long[] strong = new long[count];
+            for (int i = 0; i < count; i++) {
+                weak[i] = in.readInt();
+                strong[i] = in.readLong();
+            }
+            return new Signature(blockSize, basisSize, weak, strong);
+        }
+
+        int blockCount() {
+            return weak.length;
+        }
+    }
+
+    /**
+     * Where the blocks of the receiver's old copy occur in the sender's new version.
+     * Read-only once built, so the senders of every connection a transfer is striped over share it.
+     */
+    static final class Plan {
+        private final int blockSize;
+        private final int count; // Matches found
+        private final long[] offsets; // Offset of each match in the new version, ascending and not overlapping
+        private final long[] basisOffsets; // Offset of the matching block in the old copy
+
+        private Plan(int blockSize, int count, long[] offsets, long[] basisOffsets) {
+            this.blockSize = blockSize;
+            this.count = count;
+            this.offsets = offsets;
+            this.basisOffsets = basisOffsets;
+        }
+
+        /**
+         * Scans the new version for blocks of the old copy, sliding the window one byte at a time
+         * between matches and jumping a whole block after each.
+         *
+         * @param source    The new version.
+         * @param signature The receiver's signature of its old copy.
+         * @return The matches.
+         * @throws IOException If the file cannot be read.
+         */
+        static Plan build(File source, Signature signature) throws IOException {
+            int blockSize = signature.blockSize;
+            Map<Integer, Integer> firstBlock = new HashMap<>(); // Weak checksum to the first block that has it
+            int[] nextBlock = new int[signature.blockCount()]; // Further blocks with the same weak checksum
+            for (int i = signature.blockCount() - 1; i >= 0; i--) {
+                Integer next = firstBlock.put(signature.weak[i], i);
+                nextBlock[i] = next != null ? next : -1;
+            }
+            long[] offsets = new long[16];
+            long[] basisOffsets = new long[16];
+            int count = 0;
+            MessageDigest digest = sha256();
+            byte[] buffer = new byte[Math.max(SCAN_BUFFER, 2 * blockSize)];
+            try (FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ)) {
+                long read = 0; // File bytes read into the buffer so far
+                long position = 0; // File offset of the window
+                int start = 0; // Buffer index of the window
+                int end = 0; // Buffer bytes filled
+                Rolling rolling = null; // Null when the window must be summed afresh
+                while (true) {
+                    int needed = rolling == null ? blockSize : blockSize + 1; // Rolling also needs the next byte
+                    if (end - start < needed) {
+                        System.arraycopy(buffer, start, buffer, 0, end - start);
+                        end -= start;
+                        start = 0;
+                        int n;
+                        while (end < buffer.length && (n = in.read(ByteBuffer.wrap(buffer, end, buffer.length - end), read)) > 0) {
+                            end += n;
+                            read += n;
+                        }
+                        if (end - start < needed) {
+                            break; // Less than a block left; sent as literals
+                        }
+                    }
+                    if (rolling == null) {
+                        rolling = Rolling.of(buffer, start, blockSize);
+                    } else {
+                        rolling.roll(buffer[start], buffer[start + blockSize], blockSize);
+                        start++;
+                        position++;
+                    }
+                    Integer candidate = firstBlock.get(rolling.value());
+                    if (candidate == null) {
+                        continue;
+                    }
+                    long strong = strongHash(digest, buffer, start, blockSize);
+                    for (int block = candidate; block >= 0; block = nextBlock[block]) {
+                        if (signature.strong[block] == strong) {
+                            if (count == offsets.length) {
+                                offsets = Arrays.copyOf(offsets, count * 2);
+                                basisOffsets = Arrays.copyOf(basisOffsets, count * 2);
+                            }
+                            offsets[count] = position;
+                            basisOffsets[count] = (long) block * blockSize;
+                            count++;
+                            start += blockSize;
+                            position += blockSize;
+                            rolling = null;
+                            break;
+                        }
+                    }
+                }
+            }
+            return new Plan(blockSize, count, offsets, basisOffsets);
+        }
+
+        /**
+         * Gets the number of bytes of the new version the receiver's old copy already holds.
+         *
+         * @return The matched bytes.
+         */
+        long matchedBytes() {
+            return (long) count * blockSize;
+        }
+
+        /**
+         * Encodes one chunk of the new version as copies from the old copy and literal bytes.
+         *
+         * @param start The chunk's offset in the new version.
+         * @param chunk The chunk's bytes; not consumed.
+         * @return The delta, flipped for reading; null if it would not be shorter than the chunk.
+         */
+        ByteBuffer encode(long start, ByteBuffer chunk) {
+            long end = start + chunk.remaining();
+            int first = firstMatchEndingAfter(start);
+            if (first >= count || offsets[first] >= end) {
+                return null; // Nothing of this chunk is in the old copy
+            }
+            ByteBuffer delta = ByteBuffer.allocate(chunk.remaining());
+            long cursor = start; // Next byte of the chunk to describe
+            long copyFrom = -1; // Pending copy, merged while the matches are contiguous in the old copy
+            int copyLength = 0;
+            for (int i = first; i < count && offsets[i] < end; i++) {
+                long from = Math.max(offsets[i], start);
+                long to = Math.min(offsets[i] + blockSize, end);
+                long basisFrom = basisOffsets[i] + (from - offsets[i]);
+                if (from > cursor || copyFrom + copyLength != basisFrom) {
+                    if (copyLength > 0 && !putCopy(delta, copyFrom, copyLength)) {
+                        return null;
+                    }
+                    copyLength = 0;
+                    if (from > cursor && !putLiteral(delta, chunk, (int) (cursor - start), (int) (from - cursor))) {
+                        return null;
+                    }
+                    copyFrom = basisFrom;
+                }
+                copyLength += (int) (to - from);
+                cursor = to;
+            }
+            if (copyLength > 0 && !putCopy(delta, copyFrom, copyLength)) {
+                return null;
+            }
+            if (end > cursor && !putLiteral(delta, chunk, (int) (cursor - start), (int) (end - cursor))) {
+                return null;
+            }
+            return delta.flip();
+        }
+
+        private int firstMatchEndingAfter(long offset) {
+            int low = 0;
+            int high = count;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (offsets[middle] + blockSize <= offset) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+
+        private static boolean putCopy(ByteBuffer delta, long offset, int length) {
+            if (delta.remaining() < 1 + 10 + 5) {
+                return false;
+            }
+            delta.put((byte) COPY);
+            MessageCodec.putVarLong(delta, offset);
+            MessageCodec.putVarLong(delta, length);
+            return true;
+        }
+
+        private static boolean putLiteral(ByteBuffer delta, ByteBuffer chunk, int from, int length) {
+            if (delta.remaining() < 1 + 5 + length) {
+                return false;
+            }
+            delta.put((byte) LITERAL);
+            MessageCodec.putVarLong(delta, length);
+            delta.put(delta.position(), chunk, chunk.position() + from, length);
+            delta.position(delta.position() + length);
+            return true;
+        }
+    }
+
+    /**
+     * Rebuilds a chunk from its delta and the receiver's old copy.
+     *
+     * @param delta     The delta; consumed.
+     * @param basis     The old copy the signature was made from.
+     * @param out       Receives the chunk; its remaining space bounds the chunk length.
+     * @return The chunk, flipped for reading.
+     * @throws IOException If the delta is malformed or refers past the end of the old copy.
+     */
+    static ByteBuffer apply(ByteBuffer delta, FileChannel basis, ByteBuffer out) throws IOException {
+        try {
+            while (delta.hasRemaining()) {
+                int op = delta.get();
+                if (op == LITERAL) {
+                    long length = MessageCodec.getVarLong(delta);
+                    if (length < 0 || length > out.remaining() || length > delta.remaining()) {
+                        throw new IOException("Invalid delta literal");
+                    }
+                    out.put(delta.slice(delta.position(), (int) length));
+                    delta.position(delta.position() + (int) length);
+                } else if (op == COPY) {
+                    long offset = MessageCodec.getVarLong(delta);
+                    long length = MessageCodec.getVarLong(delta);
+                    if (offset < 0 || length < 0 || length > out.remaining()) {
+                        throw new IOException("Invalid delta copy");
+                    }
+                    int limit = out.limit();
+                    out.limit(out.position() + (int) length);
+                    while (out.hasRemaining()) {
+                        if (basis.read(out, offset + length - out.remaining()) < 0) {
+                            throw new EOFException("Delta refers past the end of the old copy");
+                        }
+                    }
+                    out.limit(limit);
+                } else {
+                    throw new IOException("Unknown delta operation: " + op);
+                }
+            }
+        } catch (java.nio.BufferUnderflowException e) {
+            throw new IOException("Truncated delta", e);
+        }
+        return out.flip();
+    }
+
+    /**
+     * rsync's rolling checksum: the sum of the window's bytes and the sum of their running sums,
+     * each modulo 2^16, so the window can move by one byte in constant time.
+     */
+    private static final class Rolling {
+        private int a;
+        private int b;
+
+        static Rolling of(byte[] data, int offset, int length) {
+            Rolling rolling = new Rolling();
+            for (int i = 0; i < length; i++) {
+                int x = data[offset + i] & 0xFF;
+                rolling.a += x;
+                rolling.b += (length - i) * x;
+            }
+            rolling.a &= 0xFFFF;
+            rolling.b &= 0xFFFF;
+            return rolling;
+        }
+
+        void roll(byte out, byte in, int length) {
+            int x = out & 0xFF;
+            a = (a - x + (in & 0xFF)) & 0xFFFF;
+            b = (b - length * x + a) & 0xFFFF;
+        }
+
+        int value() {
+            return b << 16 | a;
+        }
+    }
+
+    private static long strongHash(MessageDigest digest, byte[] data, int offset, int length) {
+        digest.update(data, offset, length);
+        return ByteBuffer.wrap(digest.digest()).getLong();
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
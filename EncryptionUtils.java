@@ -1,14 +1,21 @@
 // EncryptionUtils.java
 
-// Utility class for encryption and decryption using AES with CBC mode and PKCS5Padding
-import javax.crypto.Cipher; // For performing encryption and decryption
+// Utility class for encryption and decryption using AES with CBC mode and PKCS5Padding.
+// The per-message work is done by the calling thread's cached CipherEngine.
+import javax.crypto.Mac; // For deriving per-session keys
 import javax.crypto.SecretKey; // Represents the AES key
 import javax.crypto.SecretKeyFactory; // For generating keys from a password
-import javax.crypto.spec.IvParameterSpec; // Represents the initialization vector (IV)
 import javax.crypto.spec.PBEKeySpec; // Specifies the key derivation parameters
 import javax.crypto.spec.SecretKeySpec; // Converts a key to AES format
+import java.io.DataInputStream; // For reading the peer's handshake confirmation
+import java.io.DataOutputStream; // For sending this side's handshake confirmation
+import java.io.IOException; // For connection failures during the handshake
+import java.nio.ByteBuffer; // For length prefixes in the handshake transcript
+import java.nio.charset.StandardCharsets; // For UTF-8 conversion
+import java.security.GeneralSecurityException; // For token digest and handshake failures
+import java.security.MessageDigest; // For comparing confirmations in constant time
+import java.security.SecureRandom; // For generating handshake salts
 import java.security.spec.KeySpec; // Interface for key specifications
-import java.security.SecureRandom; // For generating secure random numbers
 
 public class EncryptionUtils {
 
@@ -16,6 +23,8 @@ public class EncryptionUtils {
     private static final String SALT = "P2PMessengerSalt"; // Salt for key derivation
     private static final int ITERATIONS = 65536; // Number of iterations for PBKDF2
     private static final int KEY_LENGTH = 256; // AES key length in bits
+    public static final int SESSION_SALT_LENGTH = 16; // Random bytes each side contributes to a session key
+    private static final SecureRandom SALT_RANDOM = new SecureRandom(); // Source of handshake salts
 
     /**
      * Derives a SecretKey from a given token using PBKDF2 with HMAC-SHA256.
@@ -25,14 +34,170 @@ public class EncryptionUtils {
      * @throws Exception If the key derivation fails.
      */
     public static SecretKey deriveKey(String token) throws Exception {
+        long started = System.nanoTime();
         // Use PBKDF2 with HMAC-SHA256 to derive a key from the token
         SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
         KeySpec spec = new PBEKeySpec(token.toCharArray(), SALT.getBytes(), ITERATIONS, KEY_LENGTH);
         SecretKey tmp = factory.generateSecret(spec);
+        Metrics.KEY_DERIVATION.recordSince(started);
         // Convert the generated key to AES format
         return new SecretKeySpec(tmp.getEncoded(), "AES");
     }
 
+    /**
+     * Generates a random salt for the handshake.
+     *
+     * @return SESSION_SALT_LENGTH random bytes.
+     */
+    public static byte[] newSessionSalt() {
+        byte[] salt = new byte[SESSION_SALT_LENGTH];
+        SALT_RANDOM.nextBytes(salt);
+        return salt;
+    }
+
+    /**
+     * Derives a per-session AES key from the token key and both handshake salts using HMAC-SHA256.
+     * Counter nonces start at zero in every session, so each session must get a key of its own.
+     *
+     * @param baseKey    The key derived from the token.
+     * @param clientSalt The salt sent by the connecting side.
+     * @param serverSalt The salt sent by the server.
+     * @return A SecretKey used only for this session.
+     * @throws Exception If a salt is missing or the derivation fails.
+     */
+    public static SecretKey deriveSessionKey(SecretKey baseKey, byte[] clientSalt, byte[] serverSalt) throws Exception {
+        if (clientSalt.length != SESSION_SALT_LENGTH || serverSalt.length != SESSION_SALT_LENGTH) {
+            throw new IllegalArgumentException("Invalid session salt");
+        }
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(baseKey.getEncoded(), "HmacSHA256"));
+        mac.update("P2P-GCM-session".getBytes(StandardCharsets.UTF_8)); // Domain separation from the token key
+        mac.update(clientSalt);
+        mac.update(serverSalt);
+        return new SecretKeySpec(mac.doFinal(), "AES");
+    }
+
+    /**
+     * Derives the key a data connection presents to join a session, as an HMAC under the token key
+     * over both handshake salts. The salts travel in clear, so only peers that know the token can
+     * compute it; both sides derive it, so it never has to be sent on its own.
+     *
+     * @param baseKey    The key derived from the token.
+     * @param clientSalt The salt sent by the connecting side.
+     * @param serverSalt The salt sent by the server.
+     * @return The lane key, in hex.
+     * @throws GeneralSecurityException If HMAC-SHA256 is unavailable.
+     */
+    public static String laneKey(SecretKey baseKey, byte[] clientSalt, byte[] serverSalt) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(baseKey.getEncoded(), "HmacSHA256"));
+        mac.update("P2P-lane".getBytes(StandardCharsets.UTF_8));
+        mac.update(clientSalt);
+        mac.update(serverSalt);
+        return MessageUtils.bytesToHex(mac.doFinal());
+    }
+
+    /**
+     * Derives the key that resumable transfer IDs are computed under. It comes from the token key
+     * rather than a session key, so a transfer keeps its ID across reconnects and can resume.
+     *
+     * @param baseKey The key derived from the token.
+     * @return An HMAC-SHA256 key used only for transfer IDs.
+     * @throws GeneralSecurityException If HMAC-SHA256 is unavailable.
+     */
+    public static SecretKey deriveTransferIdKey(SecretKey baseKey) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(baseKey.getEncoded(), "HmacSHA256"));
+        return new SecretKeySpec(mac.doFinal("P2P-transfer-id".getBytes(StandardCharsets.UTF_8)), "HmacSHA256");
+    }
+
+    /**
+     * Computes one side's confirmation of a handshake: an HMAC under the token key over both hellos
+     * exactly as they were sent. Nothing in the hellos is authenticated on its own, so without it an
+     * attacker on the path could strip AES-GCM from the client's offer and downgrade the session.
+     *
+     * @param baseKey     The key derived from the token.
+     * @param server      True for the server's confirmation, false for the client's.
+     * @param clientHello The client hello as sent.
+     * @param serverHello The server's reply as sent.
+     * @return A 32-byte confirmation.
+     * @throws GeneralSecurityException If HMAC-SHA256 is unavailable.
+     */
+    public static byte[] handshakeConfirmation(SecretKey baseKey, boolean server, String clientHello, String serverHello)
+            throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(baseKey.getEncoded(), "HmacSHA256"));
+        mac.update((server ? "P2P-server-finished" : "P2P-client-finished").getBytes(StandardCharsets.UTF_8));
+        for (String hello : new String[]{clientHello, serverHello}) {
+            byte[] bytes = hello.getBytes(StandardCharsets.UTF_8);
+            mac.update(ByteBuffer.allocate(4).putInt(bytes.length).array()); // So bytes cannot move between the hellos
+            mac.update(bytes);
+        }
+        return mac.doFinal();
+    }
+
+    /**
+     * Exchanges handshake confirmations with the peer and checks the peer's. The server sends
+     * first; the client checks it before answering, so neither side starts the session on a
+     * handshake the other saw differently.
+     *
+     * @param in          The connection's input.
+     * @param out         The connection's output.
+     * @param baseKey     The key derived from the token.
+     * @param server      True on the server side.
+     * @param clientHello The client hello as sent.
+     * @param serverHello The server's reply as sent.
+     * @throws IOException              If the connection fails.
+     * @throws GeneralSecurityException If the peer saw a different handshake or does not know the token.
+     */
+    public static void confirmHandshake(DataInputStream in, DataOutputStream out, SecretKey baseKey, boolean server,
+                                        String clientHello, String serverHello) throws IOException, GeneralSecurityException {
+        byte[] own = handshakeConfirmation(baseKey, server, clientHello, serverHello);
+        if (server) {
+            out.write(own);
+            out.flush();
+        }
+        byte[] received = new byte[own.length];
+        in.readFully(received);
+        if (!MessageDigest.isEqual(received, handshakeConfirmation(baseKey, !server, clientHello, serverHello))) {
+            throw new GeneralSecurityException("The handshake was altered in transit");
+        }
+        if (!server) {
+            out.write(own);
+            out.flush();
+        }
+    }
+
+    /**
+     * Derives the ID a relay pairs two peers by. The relay only ever sees this digest, from which
+     * neither the token nor the key derived from it can be recovered.
+     *
+     * @param token The connection token.
+     * @return A 32-byte pairing ID.
+     * @throws GeneralSecurityException If HMAC-SHA256 is unavailable.
+     */
+    public static byte[] relayPairingId(String token) throws GeneralSecurityException {
+        return tokenDigest(token, "P2P-relay-pairing");
+    }
+
+    /**
+     * Derives the proof of the token a client sends instead of the token itself when the
+     * connection runs through a relay, which would otherwise read the token in the handshake.
+     *
+     * @param token The connection token.
+     * @return The proof, as sent in place of the token.
+     * @throws GeneralSecurityException If HMAC-SHA256 is unavailable.
+     */
+    public static String tokenProof(String token) throws GeneralSecurityException {
+        return "proof:" + MessageUtils.bytesToHex(tokenDigest(token, "P2P-token-proof"));
+    }
+
+    private static byte[] tokenDigest(String token, String label) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(token.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+        return mac.doFinal(label.getBytes(StandardCharsets.UTF_8)); // The label keeps pairing IDs and proofs apart
+    }
+
     /**
      * Encrypts a plaintext string using AES encryption with CBC mode and PKCS5Padding.
      *
@@ -42,17 +207,8 @@ public class EncryptionUtils {
      * @throws Exception If encryption fails.
      */
     public static byte[] encrypt(String plainText, SecretKey key) throws Exception {
-        Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding"); // Initialize AES cipher
-        byte[] iv = new byte[16]; // Create a 16-byte IV
-        SecureRandom random = new SecureRandom(); // Generate secure random bytes for IV
-        random.nextBytes(iv);
-        IvParameterSpec ivSpec = new IvParameterSpec(iv); // Wrap the IV in an IvParameterSpec
-        cipher.init(Cipher.ENCRYPT_MODE, key, ivSpec); // Initialize cipher for encryption
-        byte[] encrypted = cipher.doFinal(plainText.getBytes("UTF-8")); // Encrypt plaintext
-        byte[] ivAndEncrypted = new byte[iv.length + encrypted.length]; // Combine IV and encrypted data
-        System.arraycopy(iv, 0, ivAndEncrypted, 0, iv.length); // Copy IV
-        System.arraycopy(encrypted, 0, ivAndEncrypted, iv.length, encrypted.length); // Copy encrypted data
-        return ivAndEncrypted;
+        byte[] plainBytes = plainText.getBytes(StandardCharsets.UTF_8);
+        return CipherEngine.get().encrypt(plainBytes, 0, plainBytes.length, key); // IV and ciphertext in one array
     }
 
     /**
@@ -64,18 +220,8 @@ public class EncryptionUtils {
      * @throws Exception If decryption fails or data is invalid.
      */
     public static String decrypt(byte[] data, SecretKey key) throws Exception {
-        if (data.length < 16) { // Ensure data contains at least the IV
-            throw new IllegalArgumentException("Invalid encrypted data");
-        }
-        byte[] iv = new byte[16]; // Extract the IV
-        System.arraycopy(data, 0, iv, 0, iv.length);
-        IvParameterSpec ivSpec = new IvParameterSpec(iv); // Wrap the IV in an IvParameterSpec
-        byte[] encrypted = new byte[data.length - iv.length]; // Extract the encrypted data
-        System.arraycopy(data, iv.length, encrypted, 0, encrypted.length);
-        Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding"); // Initialize AES cipher
-        cipher.init(Cipher.DECRYPT_MODE, key, ivSpec); // Initialize cipher for decryption
-        byte[] decrypted = cipher.doFinal(encrypted); // Decrypt the data
-        return new String(decrypted, "UTF-8"); // Convert decrypted bytes to string
+        byte[] decrypted = CipherEngine.get().decrypt(data, 0, data.length, key); // IV is read in place
+        return new String(decrypted, StandardCharsets.UTF_8); // Convert decrypted bytes to string
     }
 
     /**
@@ -87,17 +233,22 @@ public class EncryptionUtils {
      * @throws Exception If encryption fails.
      */
     public static byte[] encryptBytes(byte[] data, SecretKey key) throws Exception {
-        Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding"); // Initialize AES cipher
-        byte[] iv = new byte[16]; // Create a 16-byte IV
-        SecureRandom random = new SecureRandom(); // Generate secure random bytes for IV
-        random.nextBytes(iv);
-        IvParameterSpec ivSpec = new IvParameterSpec(iv); // Wrap the IV in an IvParameterSpec
-        cipher.init(Cipher.ENCRYPT_MODE, key, ivSpec); // Initialize cipher for encryption
-        byte[] encrypted = cipher.doFinal(data); // Encrypt the data
-        byte[] ivAndEncrypted = new byte[iv.length + encrypted.length]; // Combine IV and encrypted data
-        System.arraycopy(iv, 0, ivAndEncrypted, 0, iv.length); // Copy IV
-        System.arraycopy(encrypted, 0, ivAndEncrypted, iv.length, encrypted.length); // Copy encrypted data
-        return ivAndEncrypted;
+        return encryptBytes(data, 0, data.length, key);
+    }
+
+    /**
+     * Encrypts a region of a byte array using AES encryption with CBC mode and PKCS5Padding.
+     * Used for chunked file transfer so a single read buffer can be reused for every chunk.
+     *
+     * @param data   The buffer holding the data to encrypt.
+     * @param offset The offset of the first byte to encrypt.
+     * @param length The number of bytes to encrypt.
+     * @param key    The AES SecretKey used for encryption.
+     * @return A byte array containing the IV followed by the encrypted data.
+     * @throws Exception If encryption fails.
+     */
+    public static byte[] encryptBytes(byte[] data, int offset, int length, SecretKey key) throws Exception {
+        return CipherEngine.get().encrypt(data, offset, length, key); // IV and ciphertext in one array
     }
 
     /**
@@ -109,16 +260,21 @@ public class EncryptionUtils {
      * @throws Exception If decryption fails or data is invalid.
      */
     public static byte[] decryptBytes(byte[] data, SecretKey key) throws Exception {
-        if (data.length < 16) { // Ensure data contains at least the IV
-            throw new IllegalArgumentException("Invalid encrypted data");
-        }
-        byte[] iv = new byte[16]; // Extract the IV
-        System.arraycopy(data, 0, iv, 0, iv.length);
-        IvParameterSpec ivSpec = new IvParameterSpec(iv); // Wrap the IV in an IvParameterSpec
-        byte[] encrypted = new byte[data.length - iv.length]; // Extract the encrypted data
-        System.arraycopy(data, iv.length, encrypted, 0, encrypted.length);
-        Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding"); // Initialize AES cipher
-        cipher.init(Cipher.DECRYPT_MODE, key, ivSpec); // Initialize cipher for decryption
-        return cipher.doFinal(encrypted); // Return decrypted bytes
+        return decryptBytes(data, 0, data.length, key);
+    }
+
+    /**
+     * Decrypts a region of a byte array containing an IV and encrypted data.
+     * The IV and ciphertext are read in place, so no intermediate copies are made.
+     *
+     * @param data   The buffer holding the IV and encrypted data.
+     * @param offset The offset of the first IV byte.
+     * @param length The combined length of the IV and encrypted data.
+     * @param key    The AES SecretKey used for decryption.
+     * @return The decrypted data as a byte array.
+     * @throws Exception If decryption fails or data is invalid.
+     */
+    public static byte[] decryptBytes(byte[] data, int offset, int length, SecretKey key) throws Exception {
+        return CipherEngine.get().decrypt(data, offset, length, key); // Return decrypted bytes
     }
 }
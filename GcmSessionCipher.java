@@ -0,0 +1,97 @@
+// GcmSessionCipher.java
+
+// AES-GCM session cipher with deterministic counter nonces.
+// A sealed frame is the 8-byte counter followed by the ciphertext and the 16-byte tag.
+// The connection is one ordered stream, so every frame must carry exactly the next counter: a frame
+// that was replayed, reordered or dropped on the way ends the session instead of being skipped.
+import javax.crypto.SecretKey; // Represents the AES key
+import java.nio.ByteBuffer; // For caller-supplied buffers
+import java.security.GeneralSecurityException; // For cipher failures
+import java.util.concurrent.atomic.AtomicLong; // For the send counter
+
+final class GcmSessionCipher implements SessionCipher {
+    private static final int COUNTER_LENGTH = 8; // Counter sent ahead of every ciphertext
+    private static final int OVERHEAD = COUNTER_LENGTH + CipherEngine.GCM_TAG_LENGTH; // Bytes added per frame
+
+    private final SecretKey key; // Per-session key, never shared with another session
+    private final int sendPrefix; // Nonce prefix for frames this side sends
+    private final int receivePrefix; // Nonce prefix for frames the peer sends
+    private final AtomicLong sendCounter = new AtomicLong(); // Next counter to send
+    private final AtomicLong receiveCounter = new AtomicLong(); // Next counter the peer must send
+
+    GcmSessionCipher(SecretKey key, boolean initiator) {
+        this.key = key;
+        this.sendPrefix = initiator ? 0 : 1; // Each direction has its own nonce space
+        this.receivePrefix = initiator ? 1 : 0;
+    }
+
+    @Override
+    public CipherSuite suite() {
+        return CipherSuite.AES_GCM;
+    }
+
+    @Override
+    public int sealedSize(int plainLength) {
+        return plainLength + OVERHEAD;
+    }
+
+    @Override
+    public int seal(ByteBuffer plain, ByteBuffer out) throws GeneralSecurityException {
+        long counter = sendCounter.getAndIncrement();
+        out.putLong(counter); // Counter goes in place ahead of the ciphertext
+        return COUNTER_LENGTH + CipherEngine.get().sealGcm(plain, out, key, sendPrefix, counter);
+    }
+
+    @Override
+    public Sealer reserve() {
+        long counter = sendCounter.getAndIncrement(); // Taken now, so the frame keeps its place in the order
+        return (plain, out) -> {
+            out.putLong(counter);
+            return COUNTER_LENGTH + CipherEngine.get().sealGcm(plain, out, key, sendPrefix, counter);
+        };
+    }
+
+    @Override
+    public Opener reserveOpen(ByteBuffer sealed, long index) throws GeneralSecurityException {
+        if (sealed.remaining() < OVERHEAD) {
+            throw new GeneralSecurityException("Frame too short");
+        }
+        long counter = sealed.getLong(sealed.position());
+        takeNext(counter); // The counter is the nonce, so a frame that lies about it fails the tag
+        return (frame, out) -> {
+            frame.position(frame.position() + COUNTER_LENGTH);
+            return CipherEngine.get().openGcm(frame, out, key, receivePrefix, counter);
+        };
+    }
+
+    @Override
+    public void skip(ByteBuffer sealed) throws GeneralSecurityException {
+        reserveOpen(sealed, 0); // Never opened, so the frame's contents are never trusted
+    }
+
+    @Override
+    public int open(ByteBuffer sealed, ByteBuffer out) throws GeneralSecurityException {
+        return reserveOpen(sealed, 0).open(sealed, out);
+    }
+
+    @Override
+    public byte[] open(byte[] data, int offset, int length) throws GeneralSecurityException {
+        if (length < OVERHEAD) {
+            throw new GeneralSecurityException("Frame too short");
+        }
+        long counter = ByteBuffer.wrap(data, offset, COUNTER_LENGTH).getLong();
+        takeNext(counter);
+        return CipherEngine.get().openGcm(data, offset + COUNTER_LENGTH, length - COUNTER_LENGTH,
+                key, receivePrefix, counter);
+    }
+
+    /**
+     * Accepts a counter only if it is the next one the peer sends. Checked before the tag, so
+     * replays cost no decryption.
+     */
+    private void takeNext(long counter) throws GeneralSecurityException {
+        if (!receiveCounter.compareAndSet(counter, counter + 1)) {
+            throw new GeneralSecurityException("Frame replayed, reordered or dropped");
+        }
+    }
+}
@@ -0,0 +1,211 @@
+// GroupCipher.java
+
+// AES-GCM cipher for the frames the multi-peer server broadcasts to every member. A payload is sealed
+// once under a random group key, and the same sealed bytes are written to every member, instead of
+// being sealed again under each member's session key. Each member receives the group key inside its
+// own session, so only peers that passed the token check can read group frames.
+//
+// A sealed frame is [int epoch][int channel][long counter] followed by the ciphertext and the tag.
+// The epoch names the key; the server starts a new epoch with a fresh key whenever a member leaves,
+// so a departed member cannot read what follows. The channel and counter form the nonce: channel 0
+// carries text with a running counter, channel streamId + 1 carries a file stream with the chunk
+// index as counter. Streams therefore need no shared counter, and each channel has its own replay
+// window on the receiving side, since text overtakes queued file chunks on the wire.
+import javax.crypto.SecretKey; // Represents the AES key
+import javax.crypto.spec.SecretKeySpec; // For the random and the received group keys
+import java.nio.ByteBuffer; // For caller-supplied buffers
+import java.security.GeneralSecurityException; // For cipher failures
+import java.security.SecureRandom; // For new group keys
+import java.util.LinkedHashMap; // For the keys and replay windows a member keeps
+import java.util.Map; // For the keys and replay windows a member keeps
+import java.util.concurrent.atomic.AtomicLong; // For the text counter
+
+final class GroupCipher {
+    private static final int KEY_LENGTH = 32; // AES-256
+    private static final int HEADER_LENGTH = 16; // Epoch, channel and counter sent ahead of every ciphertext
+    static final int OVERHEAD = HEADER_LENGTH + CipherEngine.GCM_TAG_LENGTH; // Bytes added per frame
+    private static final int TEXT_CHANNEL = 0;
+
+    private final int epoch; // Identifies the key in every frame
+    private final SecretKey key;
+    private final AtomicLong textCounter = new AtomicLong(); // Next counter on the text channel
+
+    private GroupCipher(int epoch, SecretKey key) {
+        this.epoch = epoch;
+        this.key = key;
+    }
+
+    /**
+     * Creates a cipher with a new random key.
+     *
+     * @param epoch The number of the key; a later key must get a larger number.
+     * @return The cipher.
+     */
+    static GroupCipher create(int epoch) {
+        byte[] key = new byte[KEY_LENGTH];
+        new SecureRandom().nextBytes(key);
+        return new GroupCipher(epoch, new SecretKeySpec(key, "AES"));
+    }
+
+    int epoch() {
+        return epoch;
+    }
+
+    /**
+     * Encodes the key for a member, to be sent sealed under that member's session cipher.
+     *
+     * @return The epoch followed by the raw key.
+     */
+    byte[] keyMessage() {
+        return ByteBuffer.allocate(4 + KEY_LENGTH).putInt(epoch).put(key.getEncoded()).array();
+    }
+
+    /**
+     * Gets the exact size of a sealed frame for a plaintext of the given length.
+     *
+     * @param plainLength The plaintext length in bytes.
+     * @return The number of bytes the seal methods write.
+     */
+    static int sealedSize(int plainLength) {
+        return plainLength + OVERHEAD;
+    }
+
+    /**
+     * Seals a text payload. Safe to call from any thread.
+     *
+     * @param plain The plaintext; must not share memory with out.
+     * @param out   The destination, with sealedSize(plain.remaining()) bytes free.
+     * @return The number of bytes written to out.
+     * @throws GeneralSecurityException If encryption fails.
+     */
+    int sealText(ByteBuffer plain, ByteBuffer out) throws GeneralSecurityException {
+        return seal(TEXT_CHANNEL, textCounter.getAndIncrement(), plain, out);
+    }
+
+    /**
+     * Seals one chunk of a file stream.
+     *
+     * @param streamId   The stream id; never reused while this key is in use.
+     * @param chunkIndex The index of the chunk in the stream; each is sealed once.
+     * @param plain      The plaintext; must not share memory with out.
+     * @param out        The destination, with sealedSize(plain.remaining()) bytes free.
+     * @return The number of bytes written to out.
+     * @throws GeneralSecurityException If encryption fails.
+     */
+    int sealChunk(int streamId, long chunkIndex, ByteBuffer plain, ByteBuffer out) throws GeneralSecurityException {
+        return seal(streamId + 1, chunkIndex, plain, out);
+    }
+
+    private int seal(int channel, long counter, ByteBuffer plain, ByteBuffer out) throws GeneralSecurityException {
+        out.putInt(epoch).putInt(channel).putLong(counter);
+        return HEADER_LENGTH + CipherEngine.get().sealGcm(plain, out, key, channel, counter);
+    }
+
+    /**
+     * The group keys a member has received, for opening group frames. Only the server seals them.
+     */
+    static final class Keyring implements SessionCipher {
+        private static final int MAX_KEYS = 8; // Epochs kept for frames sealed before a rotation but still queued
+        private static final int MAX_WINDOWS = 1024; // Channels tracked; finished streams drop out first
+
+        // Guarded by this
+        private final Map<Integer, SecretKey> keys = new LinkedHashMap<>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, SecretKey> eldest) {
+                return size() > MAX_KEYS;
+            }
+        };
+        private final Map<Long, ReplayWindow> windows = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, ReplayWindow> eldest) {
+                return size() > MAX_WINDOWS;
+            }
+        };
+
+        /**
+         * Adds a key received from the server.
+         *
+         * @param keyMessage The key as encoded by keyMessage().
+         * @throws GeneralSecurityException If the message is malformed.
+         */
+        synchronized void install(byte[] keyMessage) throws GeneralSecurityException {
+            if (keyMessage.length != 4 + KEY_LENGTH) {
+                throw new GeneralSecurityException("Invalid group key");
+            }
+            ByteBuffer message = ByteBuffer.wrap(keyMessage);
+            int epoch = message.getInt();
+            keys.put(epoch, new SecretKeySpec(keyMessage, 4, KEY_LENGTH, "AES"));
+        }
+
+        private synchronized SecretKey key(int epoch) throws GeneralSecurityException {
+            SecretKey key = keys.get(epoch);
+            if (key == null) {
+                throw new GeneralSecurityException("Unknown group key " + epoch);
+            }
+            return key;
+        }
+
+        private synchronized ReplayWindow window(int epoch, int channel) {
+            return windows.computeIfAbsent((long) epoch << 32 | (channel & 0xFFFFFFFFL), k -> new ReplayWindow());
+        }
+
+        @Override
+        public CipherSuite suite() {
+            return CipherSuite.AES_GCM;
+        }
+
+        @Override
+        public int sealedSize(int plainLength) {
+            return GroupCipher.sealedSize(plainLength);
+        }
+
+        @Override
+        public int seal(ByteBuffer plain, ByteBuffer out) throws GeneralSecurityException {
+            throw new GeneralSecurityException("Group frames are sealed by the server only");
+        }
+
+        /**
+         * Checks that a stream chunk carries the index of its place in the file. Its nonce is the
+         * chunk index, but chunks may be opened out of order within the replay window, so only this
+         * check stops the server's chunks from being reordered within a file.
+         */
+        @Override
+        public Opener reserveOpen(ByteBuffer sealed, long index) throws GeneralSecurityException {
+            if (sealed.remaining() < OVERHEAD) {
+                throw new GeneralSecurityException("Frame too short");
+            }
+            int channel = sealed.getInt(sealed.position() + 4);
+            long counter = sealed.getLong(sealed.position() + 8);
+            if (channel == TEXT_CHANNEL || counter != index) {
+                throw new GeneralSecurityException("Chunk out of order");
+            }
+            return this::open;
+        }
+
+        @Override
+        public int open(ByteBuffer sealed, ByteBuffer out) throws GeneralSecurityException {
+            if (sealed.remaining() < OVERHEAD) {
+                throw new GeneralSecurityException("Frame too short");
+            }
+            int epoch = sealed.getInt();
+            int channel = sealed.getInt();
+            long counter = sealed.getLong();
+            SecretKey key = key(epoch);
+            ReplayWindow received = window(epoch, channel);
+            received.checkFresh(counter); // Reject replays before spending time on the tag
+            int length = CipherEngine.get().openGcm(sealed, out, key, channel, counter);
+            received.markReceived(counter);
+            return length;
+        }
+
+        @Override
+        public byte[] open(byte[] data, int offset, int length) throws GeneralSecurityException {
+            if (length < OVERHEAD) {
+                throw new GeneralSecurityException("Frame too short");
+            }
+            ByteBuffer plain = ByteBuffer.allocate(length - OVERHEAD);
+            open(ByteBuffer.wrap(data, offset, length), plain);
+            return plain.array();
+        }
+    }
+}
@@ -0,0 +1,144 @@
+// Histogram.java
+
+// Lock-free histogram of non-negative long values, such as latencies in nanoseconds, in the layout
+// HdrHistogram uses: values below 32 have a bucket each, and every power of two above is split into
+// 32 linear sub-buckets. Any value is therefore counted with a relative error below 1/32 (about 3%),
+// over the whole long range, in a fixed 15 KB array. Recording is one array increment, so it is
+// cheap enough for every chunk and every frame; reading takes a copy and never blocks writers.
+import java.util.concurrent.atomic.AtomicLong; // For the maximum
+import java.util.concurrent.atomic.AtomicLongArray; // For the bucket counts
+import java.util.concurrent.atomic.LongAdder; // For the sum
+
+final class Histogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS; // Up to Long.MAX_VALUE
+
+    private final String name; // Dotted name, ending in the unit
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    Histogram(String name) {
+        this.name = name;
+    }
+
+    String name() {
+        return name;
+    }
+
+    /**
+     * Records a value. Negative values are counted as zero.
+     *
+     * @param value The value to record.
+     */
+    void record(long value) {
+        if (!Metrics.ENABLED) {
+            return;
+        }
+        value = Math.max(0, value);
+        counts.getAndIncrement(bucket(value));
+        sum.add(value);
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    /**
+     * Records the nanoseconds elapsed since a System.nanoTime() reading.
+     *
+     * @param startNanos The reading taken when the operation started.
+     */
+    void recordSince(long startNanos) {
+        if (Metrics.ENABLED) {
+            record(System.nanoTime() - startNanos);
+        }
+    }
+
+    private static int bucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value); // At least SUB_BUCKET_BITS
+        int shift = exponent - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    /**
+     * Gets the largest value that falls into a bucket.
+     */
+    private static long highestIn(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long lowest = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return lowest + ((1L << shift) - 1);
+    }
+
+    /**
+     * Copies the counts without stopping writers. Values recorded while copying may or may not be included.
+     *
+     * @return The snapshot.
+     */
+    Snapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+            count += copy[i];
+        }
+        return new Snapshot(copy, count, sum.sum(), max.get());
+    }
+
+    /**
+     * The distribution of a histogram at one moment.
+     */
+    static final class Snapshot {
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        private Snapshot(long[] counts, long count, long sum, long max) {
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        long count() {
+            return count;
+        }
+
+        double mean() {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        long max() {
+            return max;
+        }
+
+        /**
+         * Gets the value at a percentile, to within the bucket resolution.
+         *
+         * @param percentile The percentile, from 0 to 100.
+         * @return The highest value of the bucket the percentile falls in, capped at the maximum; 0 if empty.
+         */
+        long percentile(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(count * Math.min(100, percentile) / 100));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(highestIn(i), max);
+                }
+            }
+            return max;
+        }
+    }
+}
@@ -0,0 +1,173 @@
+// IncomingFile.java
+
+// A file being received as a sequence of encrypted chunks, written straight to disk.
+// Chunks are decrypted in parallel on a ChunkPipeline and appended in the order they arrived.
+// The data goes to downloads/<name>.part and is renamed once every announced byte has arrived.
+import java.io.*; // For file output
+import java.nio.ByteBuffer; // For sealed and decrypted chunks
+import java.nio.file.Files; // For writing downloads
+import java.nio.file.Path; // For the partial file
+import java.security.GeneralSecurityException; // For chunks out of order
+
+class IncomingFile implements Closeable {
+    private File file; // Final download target; renamed if the name is taken when the file completes
+    private final long size; // Announced plaintext size
+    private final SessionCipher cipher; // Cipher of the connection the file arrives on
+    private final int chunkSize; // Largest plaintext chunk the sender may send
+    private final boolean compressed; // Chunks were packed by Compression before encryption
+    private final int maxSealedLength; // Largest sealed chunk the sender may send
+    private final long expectedChunks; // Chunks the sender sends for the announced size
+    private final OutputStream fileOut; // Partial file
+    private long submitted; // Chunks handed to a pipeline so far
+    private long received; // Plaintext bytes written so far
+    private boolean finished; // Renamed to the final name, or aborted
+
+    /**
+     * Opens the partial file for a new incoming transfer.
+     *
+     * @param directory  The "downloads" directory.
+     * @param fileName   The file name as announced by the sender; sanitized here.
+     * @param size       The announced plaintext size.
+     * @param chunkSize  The announced plaintext chunk size.
+     * @param cipher     The cipher of the connection.
+     * @param compressed True if the session negotiated compression.
+     * @throws IOException If the header is invalid or the file cannot be created.
+     */
+    IncomingFile(Path directory, String fileName, long size, int chunkSize, SessionCipher cipher, boolean compressed) throws IOException {
+        if (size < 0 || chunkSize <= 0 || chunkSize > ConnectionManager.MAX_CHUNK_SIZE) {
+            throw new IOException("Invalid file stream header");
+        }
+        this.file = ConnectionManager.downloadFile(directory, MessageUtils.sanitizeFileName(fileName)); // Sanitize file name
+        this.size = size;
+        this.cipher = cipher;
+        this.chunkSize = chunkSize;
+        this.compressed = compressed;
+        this.maxSealedLength = cipher.sealedSize(compressed ? Compression.packedSize(chunkSize) : chunkSize);
+        this.expectedChunks = (size + chunkSize - 1) / chunkSize;
+        this.fileOut = new BufferedOutputStream(Files.newOutputStream(ConnectionManager.partialFile(file)));
+    }
+
+    /**
+     * Gets the largest sealed chunk length the sender may use, for validating frame lengths.
+     *
+     * @return The maximum sealed chunk length.
+     */
+    int maxSealedLength() {
+        return maxSealedLength;
+    }
+
+    /**
+     * Decrypts and, if the session is compressed, unpacks one sealed chunk on the calling thread and
+     * appends it to the partial file. Used by the multi-peer event loops, which must not wait on a pipeline.
+     *
+     * @param sealed The sealed chunk; its remaining bytes are consumed.
+     * @return True once the whole file has arrived and has been renamed to its final name.
+     * @throws Exception If the chunk cannot be decrypted or the file would exceed its announced size.
+     */
+    boolean write(ByteBuffer sealed) throws Exception {
+        if (sealed.remaining() > maxSealedLength) {
+            throw new IOException("Invalid chunk length: " + sealed.remaining());
+        }
+        ByteBuffer decrypted = BufferPool.acquire(BufferPool.PLAIN, maxSealedLength);
+        cipher.reserveOpen(sealed, submitted).open(sealed, decrypted);
+        ByteBuffer chunk = decrypted.flip();
+        if (compressed) {
+            chunk = Compression.unpack(chunk, chunkSize);
+        }
+        submitted++;
+        return append(chunk);
+    }
+
+    /**
+     * Builds the stage that decrypts and, if the session is compressed, unpacks one sealed chunk on
+     * the crypto pool. The chunk is appended to the partial file when it completes.
+     *
+     * @param sealed     The sealed chunk, in the slot's input buffer; its remaining bytes are consumed.
+     * @param onFinished Runs on the completing thread once the whole file has arrived and has been renamed.
+     * @return The stage to submit.
+     * @throws IOException              If the chunk is too long.
+     * @throws GeneralSecurityException If the chunk is out of order.
+     */
+    ChunkPipeline.Stage opener(ByteBuffer sealed, ChunkPipeline.Completion onFinished) throws IOException, GeneralSecurityException {
+        if (sealed.remaining() > maxSealedLength) {
+            throw new IOException("Invalid chunk length: " + sealed.remaining());
+        }
+        SessionCipher.Opener opener = cipher.reserveOpen(sealed, submitted++); // Here, in arrival order
+        return slot -> {
+            ByteBuffer decrypted = slot.output(maxSealedLength);
+            opener.open(sealed, decrypted);
+            decrypted.flip();
+            ByteBuffer chunk = compressed ? Compression.unpack(decrypted, chunkSize, slot.scratch(chunkSize + 1)) : decrypted;
+            return () -> {
+                if (append(chunk)) {
+                    onFinished.complete();
+                }
+            };
+        };
+    }
+
+    /**
+     * Checks whether every chunk the announced size needs has been handed to a pipeline,
+     * so the caller can complete them instead of waiting for more.
+     *
+     * @return True once the last chunk has been submitted.
+     */
+    boolean allSubmitted() {
+        return submitted >= expectedChunks;
+    }
+
+    /**
+     * Appends one decrypted chunk to the partial file.
+     *
+     * @return True once the whole file has arrived and has been renamed to its final name.
+     */
+    private boolean append(ByteBuffer chunk) throws IOException {
+        int length = chunk.remaining();
+        if (received + length > size) {
+            throw new IOException("File stream exceeds announced size");
+        }
+        fileOut.write(chunk.array(), chunk.arrayOffset() + chunk.position(), length); // Write chunk to disk
+        received += length;
+        Metrics.FILE_BYTES_RECEIVED.add(length);
+        return finishIfComplete();
+    }
+
+    /**
+     * Renames the partial file if every announced byte has arrived. Zero-length files complete at once.
+     *
+     * @return True if the file is complete.
+     */
+    boolean finishIfComplete() throws IOException {
+        if (received < size) {
+            return false;
+        }
+        if (!finished) {
+            finished = true;
+            fileOut.close();
+            Path partial = ConnectionManager.partialFile(file);
+            file = ConnectionManager.placeDownload(file, path -> Files.move(partial, path));
+        }
+        return true;
+    }
+
+    File file() {
+        return file;
+    }
+
+    /**
+     * Discards the partial file. Does nothing once the file is complete.
+     */
+    @Override
+    public void close() {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        try {
+            fileOut.close();
+            Files.deleteIfExists(ConnectionManager.partialFile(file));
+        } catch (IOException ignored) {
+            // Best effort cleanup
+        }
+    }
+}
@@ -0,0 +1,114 @@
+// KeyCache.java
+
+// Bounded, expiring in-memory cache of token-derived keys.
+// Keys are looked up by a SHA-256 digest of the token, so the token itself is never kept as a map key.
+import javax.crypto.SecretKey; // Represents the AES key
+import java.nio.charset.StandardCharsets; // For UTF-8 conversion
+import java.security.MessageDigest; // For hashing tokens
+import java.security.NoSuchAlgorithmException; // For a missing SHA-256 provider
+import java.util.Iterator; // For evicting expired entries
+import java.util.LinkedHashMap; // For least-recently-used ordering
+import java.util.Map; // For the cache map
+import java.util.concurrent.CompletableFuture; // For derivations that are still running
+import java.util.concurrent.ExecutionException; // For failed derivations
+import java.util.concurrent.Executor; // For running derivations in the background
+import java.util.concurrent.RejectedExecutionException; // For a shut down executor
+
+public class KeyCache {
+    private static final int MAX_ENTRIES = 16; // Most tokens kept at once
+    private static final long TTL_MS = 30 * 60 * 1000; // How long a derived key stays cached (30 minutes)
+
+    // Digest -> derivation; access-ordered so the least recently used entry is evicted first (guarded by itself)
+    private static final LinkedHashMap<String, Entry> CACHE = new LinkedHashMap<>(MAX_ENTRIES, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    private record Entry(CompletableFuture<SecretKey> key, long expiresAt) {
+    }
+
+    private KeyCache() {
+    }
+
+    /**
+     * Starts deriving the key for a token in the background, unless it is already cached or running.
+     * Called as soon as a token is known so that PBKDF2 is off the connect path.
+     *
+     * @param token    The shared token.
+     * @param executor The executor to derive on.
+     */
+    public static void prefetch(String token, Executor executor) {
+        lookup(token, executor);
+    }
+
+    /**
+     * Gets the key for a token, waiting for a running derivation or deriving on the calling thread.
+     *
+     * @param token The shared token.
+     * @return The SecretKey derived from the token.
+     * @throws Exception If the key derivation fails.
+     */
+    public static SecretKey get(String token) throws Exception {
+        try {
+            return lookup(token, Runnable::run).get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception cause ? cause : e;
+        }
+    }
+
+    /**
+     * Drops every cached key.
+     */
+    public static void clear() {
+        synchronized (CACHE) {
+            CACHE.clear();
+        }
+    }
+
+    private static CompletableFuture<SecretKey> lookup(String token, Executor executor) {
+        String digest = digest(token);
+        long now = System.currentTimeMillis();
+        CompletableFuture<SecretKey> derivation;
+        synchronized (CACHE) {
+            evictExpired(now);
+            Entry entry = CACHE.get(digest);
+            if (entry != null && !entry.key().isCompletedExceptionally()) {
+                return entry.key();
+            }
+            derivation = new CompletableFuture<>();
+            CACHE.put(digest, new Entry(derivation, now + TTL_MS));
+        }
+        try {
+            executor.execute(() -> { // Derive outside the lock; other callers wait on the future
+                try {
+                    derivation.complete(EncryptionUtils.deriveKey(token));
+                } catch (Exception e) {
+                    derivation.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            derivation.completeExceptionally(e); // Executor is shut down; the next lookup derives again
+        }
+        return derivation;
+    }
+
+    private static void evictExpired(long now) {
+        Iterator<Entry> entries = CACHE.values().iterator();
+        while (entries.hasNext()) {
+            if (entries.next().expiresAt() <= now) {
+                entries.remove();
+            }
+        }
+    }
+
+    private static String digest(String token) {
+        try {
+            MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+            return MessageUtils.bytesToHex(sha256.digest(token.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
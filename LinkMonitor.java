@@ -0,0 +1,124 @@
+// LinkMonitor.java
+
+// Liveness and latency of one connection. Every byte read from the socket counts as a sign of life,
+// so a busy transfer never looks dead. Ping frames carry the sender's clock and pongs echo it back
+// together with how long the peer held the ping before answering. The round-trip time therefore
+// measures the link, and the hold time shows when the peer itself is slow. Round-trip samples feed
+// the smoothed estimator TCP uses (RFC 6298) and the interarrival jitter estimator of RTP (RFC 3550).
+import java.io.FilterInputStream; // For watching reads
+import java.io.IOException; // For I/O errors
+import java.io.InputStream; // For the socket input
+import java.time.Duration; // For reporting times
+
+final class LinkMonitor {
+    private volatile long lastHeard = System.nanoTime(); // When the last byte arrived
+
+    // Estimator state, in nanoseconds; guarded by this
+    private long samples;
+    private long smoothedRtt;
+    private long rttVariance;
+    private long minRtt = Long.MAX_VALUE;
+    private long jitter;
+    private long lastRtt;
+    private long peerDelay; // Smoothed time the peer held a ping before answering
+
+    /**
+     * Round-trip statistics of a connection at one moment.
+     *
+     * @param rtt         Smoothed round-trip time over the link.
+     * @param rttVariance Smoothed mean deviation of the round-trip time.
+     * @param minRtt      Smallest round-trip time seen, the link's latency without queueing.
+     * @param jitter      Smoothed change between consecutive round-trip times.
+     * @param peerDelay   Smoothed time the peer took to answer a ping once it had read it.
+     * @param silence     Time since anything was last received.
+     * @param samples     Number of pongs received.
+     */
+    record Stats(Duration rtt, Duration rttVariance, Duration minRtt, Duration jitter, Duration peerDelay,
+                 Duration silence, long samples) {
+
+        @Override
+        public String toString() {
+            return String.format("RTT %.1f ms +/- %.1f ms (min %.1f ms, jitter %.1f ms), peer delay %.1f ms",
+                    millis(rtt), millis(rttVariance), millis(minRtt), millis(jitter), millis(peerDelay));
+        }
+
+        private static double millis(Duration duration) {
+            return duration.toNanos() / 1e6;
+        }
+    }
+
+    /**
+     * Wraps the socket input so that every read that returns data marks the link as alive.
+     *
+     * @param in The socket's input stream.
+     * @return The watched stream.
+     */
+    InputStream watch(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0) {
+                    lastHeard = System.nanoTime();
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                int n = super.read(buffer, offset, length);
+                if (n > 0) {
+                    lastHeard = System.nanoTime();
+                }
+                return n;
+            }
+        };
+    }
+
+    /**
+     * Gets the time since anything was last received.
+     *
+     * @return The silence in nanoseconds.
+     */
+    long silenceNanos() {
+        return System.nanoTime() - lastHeard;
+    }
+
+    /**
+     * Records a pong.
+     *
+     * @param sentAt    The System.nanoTime() the ping was written at, echoed by the peer.
+     * @param heldNanos How long the peer held the ping before writing the pong.
+     */
+    synchronized void pong(long sentAt, long heldNanos) {
+        long total = System.nanoTime() - sentAt;
+        if (total < 0 || heldNanos < 0) {
+            return; // Not a ping of this connection
+        }
+        long rtt = Math.max(0, total - Math.min(heldNanos, total));
+        if (samples == 0) {
+            smoothedRtt = rtt;
+            rttVariance = rtt / 2;
+            peerDelay = heldNanos;
+        } else {
+            rttVariance += (Math.abs(smoothedRtt - rtt) - rttVariance) / 4; // RFC 6298: beta = 1/4
+            smoothedRtt += (rtt - smoothedRtt) / 8; // alpha = 1/8
+            jitter += (Math.abs(rtt - lastRtt) - jitter) / 16; // RFC 3550
+            peerDelay += (heldNanos - peerDelay) / 8;
+        }
+        lastRtt = rtt;
+        minRtt = Math.min(minRtt, rtt);
+        samples++;
+    }
+
+    /**
+     * Gets the current statistics.
+     *
+     * @return The statistics; the times are zero until the first pong.
+     */
+    synchronized Stats stats() {
+        return new Stats(Duration.ofNanos(smoothedRtt), Duration.ofNanos(rttVariance),
+                Duration.ofNanos(samples == 0 ? 0 : minRtt), Duration.ofNanos(jitter), Duration.ofNanos(peerDelay),
+                Duration.ofNanos(silenceNanos()), samples);
+    }
+}
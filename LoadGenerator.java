@@ -0,0 +1,568 @@
+// LoadGenerator.java
+
+// Headless load and soak test over loopback. Starts N pairs of ConnectionManagers on 127.0.0.1,
+// each pair on its own port and with its own data directory. Both peers of a pair send chat
+// messages at a fixed rate and, optionally, files of a fixed size. Progress lines show throughput
+// and latency; the final report adds GC, thread, heap and CPU figures. No JavaFX class is loaded,
+// so it runs on machines without a display:
+//
+//   java -cp app/target/securechat-1.0-SNAPSHOT.jar LoadGenerator --pairs 16 --rate 200 --duration 5m
+//
+// Messages are sent open-loop: each carries the time it was due, so a stalled sender shows up as
+// latency instead of silently lowering the rate. The exit status is 0 when every pair connected,
+// none dropped and everything sent arrived, so CI can fail on it. Latencies are recorded in
+// Histograms, so -Dp2p.metrics=false leaves them empty.
+import com.sun.management.OperatingSystemMXBean; // For the process CPU time
+import javax.management.JMException; // For MBean registration failures
+import java.io.IOException; // For file and report failures
+import java.lang.management.GarbageCollectorMXBean; // For GC counts and times
+import java.lang.management.ManagementFactory; // For the platform MXBeans
+import java.lang.management.ThreadMXBean; // For thread counts
+import java.nio.ByteBuffer; // For writing generated files
+import java.nio.channels.FileChannel; // For writing generated files
+import java.nio.charset.StandardCharsets; // For the report file
+import java.nio.file.Files; // For data directories and generated files
+import java.nio.file.Path; // For data directories and generated files
+import java.nio.file.StandardOpenOption; // For creating files and appending reports
+import java.time.Duration; // For run and report times
+import java.util.ArrayList; // For the pairs
+import java.util.LinkedHashMap; // For report fields in a stable order
+import java.util.List; // For the pairs
+import java.util.Locale; // For number formatting
+import java.util.Map; // For report fields
+import java.util.SplittableRandom; // For file contents that no chunk store can deduplicate
+import java.util.concurrent.CountDownLatch; // For waiting on servers and handshakes
+import java.util.concurrent.TimeUnit; // For latch timeouts
+import java.util.concurrent.atomic.LongAdder; // For result counters
+import java.util.concurrent.locks.LockSupport; // For pacing senders
+
+public final class LoadGenerator {
+    private static final String HOST = "127.0.0.1";
+    private static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(60); // Key derivation and handshake of every pair
+    private static final Duration DRAIN_TIMEOUT = Duration.ofSeconds(30); // Wait for in-flight messages and files after the run
+    private static final String FILE_PREFIX = "load-"; // Generated files are named load-<due nanoTime>.bin
+    private static final int FILE_BUFFER_SIZE = 64 * 1024;
+
+    private final Options options;
+    private final BackgroundTasks tasks = new BackgroundTasks();
+    private final List<Peer> peers = new ArrayList<>();
+    private volatile boolean stopping; // Set once sending has ended; disconnects are expected from then on
+
+    // Results of all pairs
+    private final Histogram messageLatency = new Histogram("load.message.latency.nanos"); // Due time to delivery
+    private final Histogram fileLatency = new Histogram("load.file.latency.nanos"); // sendAttachment to verified download
+    private final Histogram roundTrips = new Histogram("load.rtt.nanos"); // Smoothed RTT after every pong
+    private final LongAdder messagesSent = new LongAdder();
+    private final LongAdder messagesReceived = new LongAdder();
+    private final LongAdder filesSent = new LongAdder();
+    private final LongAdder filesReceived = new LongAdder();
+    private final LongAdder fileBytesReceived = new LongAdder();
+    private final LongAdder disconnects = new LongAdder();
+    private final LongAdder failures = new LongAdder(); // Generated files that could not be written or sent
+
+    /**
+     * Settings of one run.
+     *
+     * @param pairs          Number of connected peer pairs.
+     * @param rate           Messages per second each peer sends; 0 for none.
+     * @param messageSize    Characters per message.
+     * @param fileSize       Bytes per file; 0 for no files.
+     * @param fileInterval   Time between the files each peer sends.
+     * @param duration       How long to send.
+     * @param reportInterval Time between progress lines.
+     * @param basePort       Port of the first pair; pair i listens on basePort + i.
+     * @param directory      Holds every peer's history, downloads and generated files.
+     * @param cipherSuite    Suite the peers negotiate.
+     * @param parallel       Stripe transfers over data connections.
+     * @param reportFile     JSON-lines file the results are appended to; null for none.
+     * @param verbose        Print every status line of every peer.
+     */
+    record Options(int pairs, double rate, int messageSize, long fileSize, Duration fileInterval, Duration duration,
+                   Duration reportInterval, int basePort, Path directory, CipherSuite cipherSuite, boolean parallel,
+                   Path reportFile, boolean verbose) {
+
+        static Options parse(String[] args) throws IOException {
+            int pairs = 4;
+            double rate = 100;
+            int messageSize = 128;
+            long fileSize = 0;
+            Duration fileInterval = Duration.ofSeconds(10);
+            Duration duration = Duration.ofSeconds(30);
+            Duration reportInterval = Duration.ofSeconds(5);
+            int basePort = 23456;
+            Path directory = null;
+            CipherSuite cipherSuite = CipherSuite.AES_GCM;
+            boolean parallel = false;
+            Path reportFile = null;
+            boolean verbose = false;
+            for (int i = 0; i < args.length; i++) {
+                String option = args[i];
+                if (option.equals("--parallel")) {
+                    parallel = true;
+                    continue;
+                }
+                if (option.equals("--verbose")) {
+                    verbose = true;
+                    continue;
+                }
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing value for " + option);
+                }
+                String value = args[++i];
+                switch (option) {
+                    case "--pairs" -> pairs = Integer.parseInt(value);
+                    case "--rate" -> rate = Double.parseDouble(value);
+                    case "--message-size" -> messageSize = (int) parseSize(value);
+                    case "--file-size" -> fileSize = parseSize(value);
+                    case "--file-interval" -> fileInterval = parseDuration(value);
+                    case "--duration" -> duration = parseDuration(value);
+                    case "--report-interval" -> reportInterval = parseDuration(value);
+                    case "--port" -> basePort = Integer.parseInt(value);
+                    case "--dir" -> directory = Path.of(value);
+                    case "--cipher" -> cipherSuite = switch (value.toLowerCase(Locale.ROOT)) {
+                        case "gcm" -> CipherSuite.AES_GCM;
+                        case "cbc" -> CipherSuite.AES_CBC;
+                        default -> throw new IllegalArgumentException("Unknown cipher: " + value);
+                    };
+                    case "--report-file" -> reportFile = Path.of(value);
+                    default -> throw new IllegalArgumentException("Unknown option: " + option);
+                }
+            }
+            if (pairs < 1 || rate < 0 || messageSize < 24 || fileSize < 0 || basePort < 1 || basePort + pairs > 65536
+                    || fileInterval.isNegative() || fileInterval.isZero() || duration.isNegative()
+                    || reportInterval.isNegative() || reportInterval.isZero()) {
+                throw new IllegalArgumentException("Option out of range");
+            }
+            if (directory == null) {
+                directory = Files.createTempDirectory("p2p-load");
+            }
+            return new Options(pairs, rate, messageSize, fileSize, fileInterval, duration, reportInterval, basePort,
+                    directory, cipherSuite, parallel, reportFile, verbose);
+        }
+
+        /**
+         * Parses a byte count with an optional k, m or g suffix (binary units).
+         */
+        private static long parseSize(String value) {
+            String lower = value.toLowerCase(Locale.ROOT);
+            int shift = lower.endsWith("k") ? 10 : lower.endsWith("m") ? 20 : lower.endsWith("g") ? 30 : 0;
+            return Long.parseLong(shift == 0 ? lower : lower.substring(0, lower.length() - 1)) << shift;
+        }
+
+        /**
+         * Parses a time such as "500ms", "30s", "5m" or "2h"; a bare number is seconds.
+         */
+        private static Duration parseDuration(String value) {
+            String lower = value.toLowerCase(Locale.ROOT);
+            if (lower.endsWith("ms")) {
+                return Duration.ofMillis(Long.parseLong(lower.substring(0, lower.length() - 2)));
+            }
+            char unit = lower.charAt(lower.length() - 1);
+            String number = Character.isDigit(unit) ? lower : lower.substring(0, lower.length() - 1);
+            return switch (unit) {
+                case 'm' -> Duration.ofMinutes(Long.parseLong(number));
+                case 'h' -> Duration.ofHours(Long.parseLong(number));
+                default -> Duration.ofSeconds(Long.parseLong(number));
+            };
+        }
+    }
+
+    private LoadGenerator(Options options) {
+        this.options = options;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options;
+        try {
+            options = Options.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: LoadGenerator [--pairs N] [--rate MSG_PER_S] [--message-size N] [--file-size N[k|m|g]]");
+            System.err.println("       [--file-interval T] [--duration T] [--report-interval T] [--port N] [--dir PATH]");
+            System.err.println("       [--cipher gcm|cbc] [--parallel] [--report-file PATH] [--verbose]");
+            System.err.println("Times take ms, s, m or h; a bare number is seconds.");
+            System.exit(2);
+            return;
+        }
+        boolean passed = new LoadGenerator(options).run();
+        System.exit(passed ? 0 : 1); // The connection layer's threads do not end by themselves
+    }
+
+    /**
+     * Connects the pairs, sends for the configured duration, waits for everything in flight and reports.
+     *
+     * @return True if every pair stayed connected and everything sent arrived.
+     */
+    private boolean run() throws Exception {
+        try {
+            Metrics.registerMBeans(); // Lets jconsole watch a long soak
+        } catch (JMException e) {
+            System.err.println("Failed to register metrics: " + e.getMessage());
+        }
+        System.out.printf(Locale.ROOT, "%d pairs on %s:%d-%d, %s, data in %s%n", options.pairs(), HOST, options.basePort(),
+                options.basePort() + options.pairs() - 1, options.cipherSuite().wireName(), options.directory());
+        if (!connect()) {
+            System.out.println("Not every pair connected within " + CONNECT_TIMEOUT.toSeconds() + " s");
+            close();
+            return false;
+        }
+
+        Usage before = Usage.now();
+        long started = System.nanoTime();
+        long end = started + options.duration().toNanos();
+        BackgroundTasks.TaskScope senders = tasks.scope("load", 2 * peers.size());
+        for (Peer peer : peers) {
+            if (options.rate() > 0) {
+                senders.submit(() -> sendMessages(peer, started, end));
+            }
+            if (options.fileSize() > 0) {
+                senders.submit(() -> sendFiles(peer, started, end));
+            }
+        }
+        report(started, end);
+        stopping = true;
+        boolean drained = drain();
+        long elapsed = System.nanoTime() - started;
+        Usage after = Usage.now();
+
+        Map<String, Object> results = results(elapsed, before, after);
+        printSummary(results);
+        appendReport(results);
+        close();
+        long lostMessages = messagesSent.sum() - messagesReceived.sum();
+        long lostFiles = filesSent.sum() - filesReceived.sum();
+        return drained && lostMessages == 0 && lostFiles == 0 && failures.sum() == 0 && disconnects.sum() == 0;
+    }
+
+    /**
+     * Starts every server, then connects every client, and waits for all handshakes.
+     */
+    private boolean connect() throws Exception {
+        List<Peer> servers = new ArrayList<>();
+        for (int i = 0; i < options.pairs(); i++) {
+            Peer server = new Peer("server-" + i);
+            Peer client = new Peer("client-" + i);
+            server.partner = client;
+            client.partner = server;
+            server.connection.setPort(options.basePort() + i);
+            client.connection.setPort(options.basePort() + i);
+            client.connection.setParallelTransfers(options.parallel());
+            server.connection.startServer(server.name, client.token);
+            servers.add(server);
+            peers.add(server);
+            peers.add(client);
+        }
+        long deadline = System.nanoTime() + CONNECT_TIMEOUT.toNanos();
+        for (Peer server : servers) {
+            if (!server.listening.await(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                return false;
+            }
+            Peer client = server.partner;
+            client.connection.connectToFriend(HOST, client.token, client.name);
+        }
+        for (Peer peer : peers) {
+            if (!peer.connected.await(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Sends messages at the configured rate until the end time. Each message starts with the
+     * nanoTime it was due at, for the receiver to measure latency against.
+     */
+    private void sendMessages(Peer peer, long started, long end) {
+        long interval = (long) (1e9 / options.rate());
+        String padding = "x".repeat(options.messageSize());
+        for (long due = started; due < end && !Thread.currentThread().isInterrupted(); due += interval) {
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            String prefix = due + " ";
+            peer.connection.sendMessage(prefix + padding.substring(Math.min(prefix.length(), padding.length())));
+            messagesSent.increment();
+        }
+    }
+
+    /**
+     * Writes a file of random bytes and sends it, once every file interval until the end time.
+     * The file's name carries the time it was handed over, for the receiver to measure latency.
+     */
+    private void sendFiles(Peer peer, long started, long end) {
+        SplittableRandom random = new SplittableRandom();
+        long interval = options.fileInterval().toNanos();
+        for (long due = started; due < end && !Thread.currentThread().isInterrupted(); due += interval) {
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            Path file = null;
+            try {
+                Files.createDirectories(peer.outbox);
+                file = peer.outbox.resolve(FILE_PREFIX + System.nanoTime() + ".bin.tmp");
+                writeRandom(file, options.fileSize(), random);
+                Path named = file.resolveSibling(FILE_PREFIX + System.nanoTime() + ".bin"); // Written; the clock starts now
+                Files.move(file, named);
+                peer.connection.sendAttachment(named.toFile());
+                filesSent.increment();
+            } catch (IOException e) {
+                failures.increment();
+                System.err.println(peer.name + ": failed to write " + file + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private static void writeRandom(Path file, long size, SplittableRandom random) throws IOException {
+        byte[] bytes = new byte[FILE_BUFFER_SIZE];
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            for (long written = 0; written < size; ) {
+                random.nextBytes(bytes);
+                ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, (int) Math.min(bytes.length, size - written));
+                while (buffer.hasRemaining()) {
+                    written += channel.write(buffer);
+                }
+            }
+        }
+    }
+
+    /**
+     * Prints a progress line every report interval until the end time.
+     */
+    private void report(long started, long end) throws InterruptedException {
+        long lastSent = 0;
+        long lastReceived = 0;
+        long lastBytes = Metrics.BYTES_SENT.get();
+        long lastTime = started;
+        long interval = options.reportInterval().toNanos();
+        for (long next = started + interval; lastTime < end; next = Math.min(next + interval, end)) {
+            Thread.sleep(Duration.ofNanos(Math.max(0, next - System.nanoTime())));
+            long now = System.nanoTime();
+            long sent = messagesSent.sum();
+            long received = messagesReceived.sum();
+            long bytes = Metrics.BYTES_SENT.get();
+            double seconds = (now - lastTime) / 1e9;
+            Histogram.Snapshot latency = messageLatency.snapshot();
+            System.out.printf(Locale.ROOT, "[%5.0fs] sent %,d (%,.0f/s)  received %,d (%,.0f/s)  latency p50 %.2f ms p99 %.2f ms"
+                            + "  files %,d/%,d  wire %.1f MB/s%n",
+                    (now - started) / 1e9, sent, (sent - lastSent) / seconds, received, (received - lastReceived) / seconds,
+                    millis(latency.percentile(50)), millis(latency.percentile(99)),
+                    filesReceived.sum(), filesSent.sum(), (bytes - lastBytes) / seconds / 1e6);
+            lastSent = sent;
+            lastReceived = received;
+            lastBytes = bytes;
+            lastTime = now;
+        }
+    }
+
+    /**
+     * Waits until everything sent has arrived, or the drain timeout.
+     *
+     * @return True if nothing is missing.
+     */
+    private boolean drain() throws InterruptedException {
+        long deadline = System.nanoTime() + DRAIN_TIMEOUT.toNanos();
+        while (messagesReceived.sum() < messagesSent.sum() || filesReceived.sum() < filesSent.sum()) {
+            if (System.nanoTime() > deadline || disconnects.sum() > 0) {
+                return false;
+            }
+            Thread.sleep(20);
+        }
+        return true;
+    }
+
+    /**
+     * Collects the results in report order, with times in milliseconds and rates per second.
+     */
+    private Map<String, Object> results(long elapsedNanos, Usage before, Usage after) {
+        double seconds = elapsedNanos / 1e9;
+        Map<String, Object> results = new LinkedHashMap<>();
+        results.put("pairs", options.pairs());
+        results.put("cipher", options.cipherSuite().wireName());
+        results.put("seconds", round(seconds));
+        results.put("messagesSent", messagesSent.sum());
+        results.put("messagesReceived", messagesReceived.sum());
+        results.put("messagesPerSecond", round(messagesReceived.sum() / seconds));
+        putPercentiles(results, "messageLatency", messageLatency.snapshot());
+        results.put("filesSent", filesSent.sum());
+        results.put("filesReceived", filesReceived.sum());
+        results.put("fileMegabytesPerSecond", round(fileBytesReceived.sum() / seconds / 1e6));
+        putPercentiles(results, "fileLatency", fileLatency.snapshot());
+        putPercentiles(results, "rtt", roundTrips.snapshot());
+        results.put("wireMegabytesPerSecond", round((after.bytesSent - before.bytesSent) / seconds / 1e6));
+        results.put("disconnects", disconnects.sum());
+        results.put("failures", failures.sum());
+        results.put("gcCount", after.gcCount - before.gcCount);
+        results.put("gcMillis", after.gcMillis - before.gcMillis);
+        results.put("cpuSeconds", round((after.cpuNanos - before.cpuNanos) / 1e9));
+        long messages = Math.max(1, messagesReceived.sum());
+        results.put("cpuMicrosPerMessage", round((after.cpuNanos - before.cpuNanos) / 1e3 / messages));
+        results.put("platformThreads", after.threads);
+        results.put("peakPlatformThreads", after.peakThreads);
+        results.put("heapUsedMegabytes", round(after.heapUsed / 1e6));
+        return results;
+    }
+
+    private static void putPercentiles(Map<String, Object> results, String name, Histogram.Snapshot snapshot) {
+        results.put(name + "P50Millis", round(millis(snapshot.percentile(50))));
+        results.put(name + "P90Millis", round(millis(snapshot.percentile(90))));
+        results.put(name + "P99Millis", round(millis(snapshot.percentile(99))));
+        results.put(name + "P999Millis", round(millis(snapshot.percentile(99.9))));
+        results.put(name + "MaxMillis", round(millis(snapshot.max())));
+    }
+
+    private static void printSummary(Map<String, Object> results) {
+        System.out.println();
+        for (Map.Entry<String, Object> result : results.entrySet()) {
+            System.out.printf(Locale.ROOT, "%-28s %s%n", result.getKey(), result.getValue());
+        }
+    }
+
+    /**
+     * Appends the results and a snapshot of every metric as one JSON line, for comparing runs.
+     */
+    private void appendReport(Map<String, Object> results) {
+        if (options.reportFile() == null) {
+            return;
+        }
+        StringBuilder json = new StringBuilder("{\"load\":{");
+        for (Map.Entry<String, Object> result : results.entrySet()) {
+            Object value = result.getValue();
+            json.append(json.charAt(json.length() - 1) == '{' ? "" : ",").append('"').append(result.getKey()).append("\":")
+                    .append(value instanceof String ? "\"" + value + "\"" : value);
+        }
+        json.append("},\"metrics\":").append(Metrics.snapshotJson()).append("}\n");
+        try {
+            Path directory = options.reportFile().toAbsolutePath().getParent();
+            if (directory != null) {
+                Files.createDirectories(directory);
+            }
+            Files.write(options.reportFile(), json.toString().getBytes(StandardCharsets.UTF_8),
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            System.err.println("Failed to write the report: " + e.getMessage());
+        }
+    }
+
+    private void close() {
+        stopping = true;
+        for (Peer peer : peers) {
+            try {
+                peer.connection.closeConnections();
+            } catch (IOException e) {
+                // Closing anyway
+            }
+        }
+        tasks.close();
+        for (Peer peer : peers) {
+            peer.history.close();
+        }
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 100) / 100.0;
+    }
+
+    /**
+     * Process-wide resource readings, taken before and after the run.
+     */
+    private record Usage(long gcCount, long gcMillis, long cpuNanos, int threads, int peakThreads, long heapUsed, long bytesSent) {
+
+        static Usage now() {
+            long count = 0;
+            long millis = 0;
+            for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+                count += Math.max(0, collector.getCollectionCount());
+                millis += Math.max(0, collector.getCollectionTime());
+            }
+            long cpu = ManagementFactory.getOperatingSystemMXBean() instanceof OperatingSystemMXBean os
+                    ? os.getProcessCpuTime() : -1;
+            ThreadMXBean threads = ManagementFactory.getThreadMXBean(); // Virtual threads are not counted
+            return new Usage(count, millis, cpu, threads.getThreadCount(), threads.getPeakThreadCount(),
+                    ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed(), Metrics.BYTES_SENT.get());
+        }
+    }
+
+    /**
+     * One side of a pair: a ConnectionManager with its own history and data directory, and the
+     * listener that turns what it reports into results.
+     */
+    private final class Peer implements ConnectionListener {
+        private final String name;
+        private final Path outbox; // Generated files waiting to be sent
+        private final MessageLog history;
+        private final ConnectionManager connection;
+        private final CountDownLatch listening = new CountDownLatch(1);
+        private final CountDownLatch connected = new CountDownLatch(1);
+        private final String token = MessageUtils.generateSecureToken(); // The client's is the one the pair uses
+        private Peer partner; // The other side of the pair
+
+        Peer(String name) {
+            this.name = name;
+            Path directory = options.directory().resolve(name);
+            this.outbox = directory.resolve("outbox");
+            this.history = MessageLog.open(directory.resolve("history"), this::log);
+            this.connection = new ConnectionManager(this, tasks, history, directory);
+            connection.setCipherSuite(options.cipherSuite());
+        }
+
+        @Override
+        public void log(String message) {
+            if (options.verbose()) {
+                System.out.println(name + ": " + message);
+            }
+        }
+
+        @Override
+        public void addChatEntry(ChatEntry entry) {
+            if (entry.own()) {
+                return;
+            }
+            long now = System.nanoTime();
+            if (entry.kind() == ChatEntry.Kind.MESSAGE) {
+                int space = entry.text().indexOf(' ');
+                messageLatency.record(now - Long.parseLong(entry.text().substring(0, space)));
+                messagesReceived.increment();
+            } else if (entry.kind() == ChatEntry.Kind.FILE) {
+                String fileName = entry.file().getName();
+                fileLatency.record(now - Long.parseLong(fileName.substring(FILE_PREFIX.length(), fileName.indexOf('.'))));
+                fileBytesReceived.add(entry.file().length());
+                filesReceived.increment();
+                try { // Both copies are done with; keeps a long soak from filling the disk
+                    Files.deleteIfExists(entry.file().toPath());
+                    Files.deleteIfExists(partner.outbox.resolve(fileName));
+                } catch (IOException e) {
+                    log("Failed to delete " + fileName + ": " + e.getMessage());
+                }
+            }
+        }
+
+        @Override
+        public void onConnected() {
+            connected.countDown();
+        }
+
+        @Override
+        public void onDisconnected() {
+            if (!stopping) {
+                disconnects.increment();
+                System.err.println(name + ": disconnected");
+            }
+        }
+
+        @Override
+        public void onLinkStats(LinkMonitor.Stats stats) {
+            roundTrips.record(stats.rtt().toNanos());
+        }
+
+        @Override
+        public void onListening(int port) {
+            listening.countDown();
+        }
+    }
+}
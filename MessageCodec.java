@@ -0,0 +1,111 @@
+// MessageCodec.java
+
+// Versioned binary encoding of chat messages, used inside encrypted text frames once both peers
+// have agreed on the "msg" feature. Layout of version 1, with unsigned LEB128 varints:
+//
+//   [version:1 byte][senderId:varint][messageId:varint][timestamp:varint epoch millis][length:varint][UTF-8 text]
+//
+// The sender is identified by a small session-scoped ID instead of its name, and the timestamp
+// replaces the formatted "HH:mm:ss" string, so a short message costs about 10 bytes of header
+// instead of the name, two separators and eight characters of time.
+import java.io.IOException; // For malformed messages
+import java.nio.BufferUnderflowException; // Signals a truncated message
+import java.nio.ByteBuffer; // For encoding and decoding in place
+import java.nio.charset.StandardCharsets; // For UTF-8 conversion
+import java.util.function.IntFunction; // For resolving sender IDs to names
+
+public final class MessageCodec {
+    public static final int VERSION = 1; // Layout written by this build
+    public static final int SESSION_PEER = 0; // Sender ID of the peer at the other end of the session
+    private static final int MAX_HEADER_SIZE = 1 + 5 + 10 + 10 + 5; // Version plus the largest varints
+
+    private MessageCodec() {
+    }
+
+    /**
+     * Encodes a message into the calling thread's pooled encode buffer.
+     * The result stays valid until the next encode on the same thread.
+     *
+     * @param message  The message to encode; its sender name is not written.
+     * @param senderId The session-scoped ID of the sender.
+     * @return The encoded message, flipped for reading.
+     */
+    public static ByteBuffer encode(ChatMessage message, int senderId) {
+        byte[] text = message.text().getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = BufferPool.acquire(BufferPool.ENCODE, MAX_HEADER_SIZE + text.length);
+        buffer.put((byte) VERSION);
+        putVarLong(buffer, senderId);
+        putVarLong(buffer, message.messageId());
+        putVarLong(buffer, message.timestamp());
+        putVarLong(buffer, text.length);
+        buffer.put(text);
+        return buffer.flip();
+    }
+
+    /**
+     * Decodes a message from the remaining bytes of a buffer. The text is read straight from the
+     * buffer's backing array without an intermediate copy.
+     *
+     * @param buffer      The decrypted message; consumed.
+     * @param senderNames Resolves a session-scoped sender ID to a display name.
+     * @return The decoded message.
+     * @throws IOException If the message is truncated, malformed or uses an unknown version.
+     */
+    public static ChatMessage decode(ByteBuffer buffer, IntFunction<String> senderNames) throws IOException {
+        try {
+            int version = buffer.get() & 0xFF;
+            if (version != VERSION) {
+                throw new IOException("Unsupported message version: " + version);
+            }
+            long senderId = getVarLong(buffer);
+            long messageId = getVarLong(buffer);
+            long timestamp = getVarLong(buffer);
+            long length = getVarLong(buffer);
+            if (senderId < 0 || senderId > Integer.MAX_VALUE || length != buffer.remaining()) {
+                throw new IOException("Malformed message");
+            }
+            String text;
+            if (buffer.hasArray()) {
+                text = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), (int) length, StandardCharsets.UTF_8);
+                buffer.position(buffer.limit());
+            } else {
+                text = StandardCharsets.UTF_8.decode(buffer).toString();
+            }
+            return new ChatMessage(messageId, senderNames.apply((int) senderId), timestamp, text);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated message", e);
+        }
+    }
+
+    /**
+     * Writes a non-negative value as an unsigned LEB128 varint: seven bits per byte, low bits first,
+     * with the high bit set on every byte but the last.
+     */
+    static void putVarLong(ByteBuffer buffer, long value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("Negative varint: " + value);
+        }
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    /**
+     * Reads an unsigned LEB128 varint of at most ten bytes.
+     *
+     * @throws IOException If the varint is longer than a long allows.
+     */
+    static long getVarLong(ByteBuffer buffer) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("Varint too long");
+    }
+}
@@ -0,0 +1,419 @@
+// MessageLog.java
+
+// Persistent chat history: an encrypted, append-only log split into segment files, plus a
+// memory-mapped index with one fixed-size entry per record, so any record is found in O(1)
+// and the newest page is read at startup in constant time whatever the history size.
+//
+//   history/segment-000000.log   records: [int sealedLength][int noncePrefix][AES-GCM(record)]
+//   history/index.idx            header:  [int magic][int version][long count]
+//                                entries: [int segment][long offset], entry i describes record i
+//   history/history.key          random AES-256 key, readable by the owner only where supported
+//
+// The GCM nonce of a record is its random per-process prefix plus its sequence number, so records
+// cannot be swapped or reordered without failing authentication.
+import javax.crypto.SecretKey; // For the history key
+import javax.crypto.spec.SecretKeySpec; // For loading the history key
+import java.io.File; // For file rows
+import java.io.IOException; // For disk failures
+import java.nio.BufferUnderflowException; // Signals a truncated record
+import java.nio.ByteBuffer; // For record buffers
+import java.nio.MappedByteBuffer; // For the index
+import java.nio.channels.FileChannel; // For positional reads and writes
+import java.nio.charset.StandardCharsets; // For UTF-8 conversion
+import java.nio.file.*; // For history files
+import java.nio.file.attribute.PosixFilePermissions; // For protecting the key file
+import java.security.GeneralSecurityException; // For cipher failures
+import java.security.SecureRandom; // For the key and nonce prefixes
+import java.util.ArrayList; // For pages
+import java.util.List; // For pages
+import java.util.function.Consumer; // For reporting failures
+
+public final class MessageLog implements AutoCloseable {
+    public static final int PAGE_SIZE = 100; // Records the UI loads at a time
+    private static final long SEGMENT_SIZE = 8L * 1024 * 1024; // A new segment starts past this size
+    private static final int INDEX_MAGIC = 0x50324C49; // "P2LI"
+    private static final int INDEX_VERSION = 1;
+    private static final int HEADER_SIZE = 16; // Magic, version and record count
+    private static final int ENTRY_SIZE = 12; // Segment number and offset
+    private static final int INDEX_GROWTH = 64 * 1024; // Entries added to the mapping when it is full
+    private static final int RECORD_HEADER_SIZE = 8; // Sealed length and nonce prefix
+    private static final int MAX_RECORD_SIZE = 4 * 1024 * 1024; // Larger lengths mean a corrupt segment
+    private static final int RECORD_VERSION = 1;
+
+    private final Path directory; // Holds segments, index and key
+    private final Consumer<String> errors; // Reports disk failures to the user
+    private final SecretKey key; // Encrypts every record
+    private final int noncePrefix; // Random per process, so a sequence number is never sealed twice with one nonce
+    private FileChannel indexChannel;
+    private MappedByteBuffer index; // Header plus entries; remapped larger when full
+    private long count; // Records in the log
+    private int segment; // Segment being appended to
+    private FileChannel segmentChannel;
+    private long segmentSize; // Bytes in the current segment
+    private boolean failed; // Set after a write failure; the log then stops recording
+    private Consumer<ChatEntry> listener; // Sees every recorded row, in sequence order
+
+    private MessageLog(Path directory, SecretKey key, Consumer<String> errors) {
+        this.directory = directory;
+        this.key = key;
+        this.errors = errors;
+        int prefix;
+        do {
+            prefix = new SecureRandom().nextInt();
+        } while (prefix == 0 || prefix == 1); // Keep clear of the session direction prefixes
+        this.noncePrefix = prefix;
+    }
+
+    /**
+     * Opens or creates the log in a directory, recovering records written after the last index update.
+     * If the log cannot be opened, the failure is reported and a log that records nothing is returned,
+     * so chat keeps working without history.
+     *
+     * @param directory The history directory.
+     * @param errors    Receives a message for every failure worth showing to the user.
+     * @return The opened log.
+     */
+    public static MessageLog open(Path directory, Consumer<String> errors) {
+        try {
+            Files.createDirectories(directory);
+            MessageLog log = new MessageLog(directory, loadKey(directory.resolve("history.key")), errors);
+            log.openFiles();
+            return log;
+        } catch (IOException e) {
+            errors.accept("History is disabled: " + e.getMessage());
+            MessageLog disabled = new MessageLog(directory, null, errors);
+            disabled.failed = true;
+            return disabled;
+        }
+    }
+
+    /**
+     * Gets the number of records in the log.
+     *
+     * @return The record count; the sequence number the next record will get.
+     */
+    public synchronized long size() {
+        return count;
+    }
+
+    /**
+     * Sets the listener that sees every row recorded from now on. It is called under the log's
+     * lock, in sequence order, so it must be quick.
+     *
+     * @param listener The listener, or null to remove it.
+     */
+    public synchronized void setListener(Consumer<ChatEntry> listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Appends a message or file row. Info rows are not recorded.
+     *
+     * @param entry The row to record.
+     * @return The row with its sequence number, or the row unchanged if it was not recorded.
+     */
+    public synchronized ChatEntry append(ChatEntry entry) {
+        if (failed || entry.kind() == ChatEntry.Kind.INFO) {
+            return entry;
+        }
+        try {
+            long seq = count;
+            ByteBuffer record = encode(entry);
+            ByteBuffer frame = ByteBuffer.allocate(RECORD_HEADER_SIZE + record.remaining() + CipherEngine.GCM_TAG_LENGTH);
+            frame.position(RECORD_HEADER_SIZE);
+            int sealedLength = CipherEngine.get().sealGcm(record, frame, key, noncePrefix, seq);
+            frame.putInt(0, sealedLength).putInt(4, noncePrefix).flip();
+
+            if (segmentSize > 0 && segmentSize + frame.remaining() > SEGMENT_SIZE) {
+                openSegment(segment + 1);
+            }
+            long offset = segmentSize;
+            while (frame.hasRemaining()) {
+                segmentSize += segmentChannel.write(frame, segmentSize);
+            }
+            putEntry(seq, segment, offset); // The record is on disk before the index points at it
+            count = seq + 1;
+            index.putLong(8, count);
+            ChatEntry recorded = entry.withSeq(seq);
+            if (listener != null) {
+                listener.accept(recorded);
+            }
+            return recorded;
+        } catch (IOException | GeneralSecurityException e) {
+            failed = true;
+            errors.accept("History stopped recording: " + e.getMessage());
+            return entry;
+        }
+    }
+
+    /**
+     * Reads consecutive records. Records that fail to decrypt are returned as info rows.
+     *
+     * @param from The sequence number of the first record; clamped to the log.
+     * @param max  The most records to read.
+     * @return The records, oldest first.
+     */
+    public synchronized List<ChatEntry> read(long from, int max) {
+        long start = Math.max(0, from);
+        long end = Math.min(count, from + max);
+        List<ChatEntry> page = new ArrayList<>((int) Math.max(0, end - start));
+        FileChannel channel = null;
+        int channelSegment = -1;
+        try {
+            for (long seq = start; seq < end; seq++) {
+                int recordSegment = index.getInt(entryPosition(seq));
+                long offset = index.getLong(entryPosition(seq) + 4);
+                if (recordSegment != channelSegment) {
+                    if (channel != null && channel != segmentChannel) {
+                        channel.close();
+                    }
+                    channel = recordSegment == segment ? segmentChannel
+                            : FileChannel.open(segmentPath(recordSegment), StandardOpenOption.READ);
+                    channelSegment = recordSegment;
+                }
+                page.add(readRecord(channel, offset, seq));
+            }
+        } catch (IOException e) {
+            errors.accept("Failed to read history: " + e.getMessage());
+        } finally {
+            if (channel != null && channel != segmentChannel) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                    // Read-only channel; nothing to flush
+                }
+            }
+        }
+        return page;
+    }
+
+    /**
+     * Reads the newest page.
+     *
+     * @return Up to PAGE_SIZE records, oldest first.
+     */
+    public List<ChatEntry> lastPage() {
+        long size = size();
+        return read(size - PAGE_SIZE, PAGE_SIZE);
+    }
+
+    /**
+     * Flushes the log and index to disk and closes them.
+     */
+    @Override
+    public synchronized void close() {
+        if (index == null) {
+            return;
+        }
+        try {
+            index.force();
+            segmentChannel.force(false);
+            segmentChannel.close();
+            indexChannel.close();
+        } catch (IOException ignored) {
+            // Best effort; the next open recovers unindexed records
+        }
+        index = null;
+        count = 0;
+        failed = true;
+    }
+
+    private void openFiles() throws IOException {
+        indexChannel = FileChannel.open(directory.resolve("index.idx"),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        boolean fresh = indexChannel.size() < HEADER_SIZE;
+        long capacity = Math.max(indexChannel.size(), HEADER_SIZE + (long) INDEX_GROWTH * ENTRY_SIZE);
+        index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        if (fresh) {
+            index.putInt(0, INDEX_MAGIC).putInt(4, INDEX_VERSION).putLong(8, 0);
+        } else if (index.getInt(0) != INDEX_MAGIC || index.getInt(4) != INDEX_VERSION) {
+            throw new IOException("Unrecognized history index");
+        }
+        count = Math.max(0, Math.min(index.getLong(8), (capacity - HEADER_SIZE) / ENTRY_SIZE));
+
+        segment = count == 0 ? 0 : index.getInt(entryPosition(count - 1));
+        openSegment(segment);
+        recover();
+    }
+
+    /**
+     * Drops index entries whose records are missing, then indexes complete records written after the
+     * last index update and truncates a record that was cut off by a crash.
+     */
+    private void recover() throws IOException {
+        long end = 0;
+        while (count > 0) {
+            int lastSegment = index.getInt(entryPosition(count - 1));
+            long lastOffset = index.getLong(entryPosition(count - 1) + 4);
+            if (lastSegment != segment) {
+                break; // Earlier segments were forced when the log rolled over; the current one is indexed from its start
+            }
+            long recordEnd = recordEnd(lastOffset);
+            if (recordEnd > 0) {
+                end = recordEnd;
+                break;
+            }
+            count--; // Points past the data on disk
+        }
+        index.putLong(8, count);
+        long offset = end;
+        while (true) {
+            long next;
+            while ((next = recordEnd(offset)) > 0) {
+                putEntry(count, segment, offset);
+                index.putLong(8, ++count);
+                offset = next;
+            }
+            if (segmentChannel.size() > offset) {
+                segmentChannel.truncate(offset); // Incomplete record from an interrupted write
+            }
+            segmentSize = offset;
+            if (!Files.exists(segmentPath(segment + 1))) {
+                return;
+            }
+            openSegment(segment + 1); // Rolled over before the first record of the next segment was indexed
+            offset = 0;
+        }
+    }
+
+    /**
+     * Gets the end of the complete record at an offset of the current segment, or -1 if there is none.
+     */
+    private long recordEnd(long offset) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        if (segmentChannel.read(header, offset) < RECORD_HEADER_SIZE) {
+            return -1;
+        }
+        int sealedLength = header.getInt(0);
+        long end = offset + RECORD_HEADER_SIZE + sealedLength;
+        if (sealedLength < CipherEngine.GCM_TAG_LENGTH || sealedLength > MAX_RECORD_SIZE || end > segmentChannel.size()) {
+            return -1;
+        }
+        return end;
+    }
+
+    private void openSegment(int number) throws IOException {
+        if (segmentChannel != null) {
+            segmentChannel.force(false); // A finished segment is never written again
+            segmentChannel.close();
+        }
+        segment = number;
+        segmentChannel = FileChannel.open(segmentPath(number),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        segmentSize = segmentChannel.size();
+    }
+
+    private Path segmentPath(int number) {
+        return directory.resolve(String.format("segment-%06d.log", number));
+    }
+
+    private void putEntry(long seq, int recordSegment, long offset) throws IOException {
+        long position = entryPosition(seq);
+        if (position + ENTRY_SIZE > index.capacity()) {
+            index.force();
+            index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, index.capacity() + (long) INDEX_GROWTH * ENTRY_SIZE);
+        }
+        index.putInt((int) position, recordSegment).putLong((int) position + 4, offset);
+    }
+
+    private static int entryPosition(long seq) {
+        return (int) (HEADER_SIZE + seq * ENTRY_SIZE);
+    }
+
+    private ChatEntry readRecord(FileChannel channel, long offset, long seq) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        channel.read(header, offset);
+        int sealedLength = header.getInt(0);
+        if (sealedLength < CipherEngine.GCM_TAG_LENGTH || sealedLength > MAX_RECORD_SIZE) {
+            return unreadable(seq);
+        }
+        ByteBuffer sealed = BufferPool.acquire(BufferPool.SEALED, sealedLength);
+        sealed.limit(sealedLength);
+        while (sealed.hasRemaining()) {
+            if (channel.read(sealed, offset + RECORD_HEADER_SIZE + sealed.position()) < 0) {
+                return unreadable(seq);
+            }
+        }
+        sealed.flip();
+        ByteBuffer plain = BufferPool.acquire(BufferPool.PLAIN, sealedLength);
+        try {
+            CipherEngine.get().openGcm(sealed, plain, key, header.getInt(4), seq);
+            return decode(plain.flip()).withSeq(seq);
+        } catch (GeneralSecurityException | IOException e) {
+            return unreadable(seq);
+        }
+    }
+
+    private static ChatEntry unreadable(long seq) {
+        return ChatEntry.info("Unreadable history record #" + seq).withSeq(seq); // Keeps its place for paging
+    }
+
+    /**
+     * Encodes a row as [version][kind][own][timestamp][sender][text][file path], with varint
+     * numbers and varint-length-prefixed UTF-8 strings.
+     */
+    private static ByteBuffer encode(ChatEntry entry) {
+        byte[] sender = entry.sender().getBytes(StandardCharsets.UTF_8);
+        byte[] text = entry.text().getBytes(StandardCharsets.UTF_8);
+        byte[] path = entry.file() == null ? new byte[0] : entry.file().getPath().getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = BufferPool.acquire(BufferPool.ENCODE, 3 + 10 + 15 + sender.length + text.length + path.length);
+        buffer.put((byte) RECORD_VERSION).put((byte) entry.kind().ordinal()).put((byte) (entry.own() ? 1 : 0));
+        MessageCodec.putVarLong(buffer, entry.timestamp());
+        for (byte[] field : new byte[][] { sender, text, path }) {
+            MessageCodec.putVarLong(buffer, field.length);
+            buffer.put(field);
+        }
+        return buffer.flip();
+    }
+
+    private static ChatEntry decode(ByteBuffer buffer) throws IOException {
+        try {
+            if (buffer.get() != RECORD_VERSION) {
+                throw new IOException("Unsupported history record");
+            }
+            ChatEntry.Kind kind = ChatEntry.Kind.values()[buffer.get()];
+            boolean own = buffer.get() != 0;
+            long timestamp = MessageCodec.getVarLong(buffer);
+            String sender = readString(buffer);
+            String text = readString(buffer);
+            String path = readString(buffer);
+            return new ChatEntry(-1, kind, sender, timestamp, text, path.isEmpty() ? null : new File(path), own);
+        } catch (BufferUnderflowException | ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Corrupt history record", e);
+        }
+    }
+
+    private static String readString(ByteBuffer buffer) throws IOException {
+        long length = MessageCodec.getVarLong(buffer);
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IOException("Corrupt history record");
+        }
+        String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), (int) length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + (int) length);
+        return value;
+    }
+
+    /**
+     * Loads the history key, creating it with owner-only permissions on first use.
+     */
+    private static SecretKey loadKey(Path keyFile) throws IOException {
+        if (!Files.exists(keyFile)) {
+            byte[] key = new byte[32];
+            new SecureRandom().nextBytes(key);
+            Path temp = keyFile.resolveSibling("history.key.tmp");
+            Files.deleteIfExists(temp);
+            if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+                Files.createFile(temp, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+            } else {
+                Files.createFile(temp);
+            }
+            Files.write(temp, key);
+            Files.move(temp, keyFile, StandardCopyOption.ATOMIC_MOVE);
+        }
+        byte[] key = Files.readAllBytes(keyFile);
+        if (key.length != 32) {
+            throw new IOException("Invalid history key");
+        }
+        return new SecretKeySpec(key, "AES");
+    }
+}
@@ -3,10 +3,13 @@
 // Utility class for message-related operations such as timestamp formatting,
 // token generation, and sanitization of input data.
 import java.security.SecureRandom; // For secure random number generation
+import java.time.Instant; // For formatting message timestamps
 import java.time.LocalTime; // For getting the current time
+import java.time.ZoneId; // For formatting message timestamps
 import java.time.format.DateTimeFormatter; // For formatting the time
 
 public class MessageUtils {
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("HH:mm:ss"); // Shared; formatters are immutable
 
     /**
      * Gets the current time formatted as "HH:mm:ss".
@@ -16,7 +19,17 @@ public class MessageUtils {
      */
     public static String getCurrentTime() {
         // Use LocalTime to fetch the current time and format it using DateTimeFormatter
-        return LocalTime.now().format(DateTimeFormatter.ofPattern("HH:mm:ss"));
+        return LocalTime.now().format(TIME_FORMAT);
+    }
+
+    /**
+     * Formats an epoch-millis timestamp as "HH:mm:ss" in the local time zone.
+     *
+     * @param epochMillis The timestamp to format.
+     * @return A String representing the time of day.
+     */
+    public static String formatTime(long epochMillis) {
+        return TIME_FORMAT.format(Instant.ofEpochMilli(epochMillis).atZone(ZoneId.systemDefault()));
     }
 
     /**
@@ -47,6 +60,30 @@ public class MessageUtils {
         return sb.toString(); // Return the resulting hexadecimal string
     }
 
+    /**
+     * Converts a hexadecimal string back to a byte array.
+     * The inverse of bytesToHex.
+     *
+     * @param hex The hexadecimal string; must have an even length.
+     * @return The decoded bytes.
+     * @throws IllegalArgumentException If the string is not valid hexadecimal.
+     */
+    public static byte[] hexToBytes(String hex) {
+        if (hex.length() % 2 != 0) {
+            throw new IllegalArgumentException("Invalid hexadecimal string");
+        }
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int high = Character.digit(hex.charAt(2 * i), 16);
+            int low = Character.digit(hex.charAt(2 * i + 1), 16);
+            if (high < 0 || low < 0) {
+                throw new IllegalArgumentException("Invalid hexadecimal string");
+            }
+            bytes[i] = (byte) ((high << 4) | low);
+        }
+        return bytes;
+    }
+
     /**
      * Sanitizes user input by removing potentially harmful characters.
      * Prevents injection attacks and other vulnerabilities.
@@ -0,0 +1,329 @@
+// Metrics.java
+
+// Process-wide counters and histograms for the send, receive, crypto and file paths. Recording is
+// lock-free: counters are LongAdders, which spread contended increments over cells, and histograms
+// are Histogram's atomic bucket arrays. Every metric is published as a JMX MBean under
+// "P2PMessenger:type=...,name=..." for jconsole or any JMX client. A background task also appends a
+// snapshot of all of them to a JSON-lines file now and then, so runs of different builds can be
+// compared offline. Setting -Dp2p.metrics=false turns recording into a no-op.
+import javax.management.*; // For publishing metrics over JMX
+import java.io.IOException; // For snapshot write failures
+import java.io.InputStream; // For counting received bytes
+import java.io.FilterInputStream; // For counting received bytes
+import java.io.FilterOutputStream; // For counting sent bytes
+import java.io.OutputStream; // For counting sent bytes
+import java.lang.management.ManagementFactory; // For the platform MBean server
+import java.nio.charset.StandardCharsets; // For writing snapshots
+import java.nio.file.Files; // For writing snapshots
+import java.nio.file.Path; // For the snapshot file
+import java.nio.file.StandardOpenOption; // For appending snapshots
+import java.time.Duration; // For the snapshot period
+import java.util.ArrayList; // For the registry
+import java.util.Hashtable; // For MBean object names
+import java.util.LinkedHashMap; // For MBean attributes in a stable order
+import java.util.List; // For the registry
+import java.util.Map; // For MBean attributes
+import java.util.concurrent.atomic.LongAdder; // For counters
+import java.util.function.Consumer; // For reporting snapshot failures
+import java.util.function.Supplier; // For MBean attributes
+
+final class Metrics {
+    static final boolean ENABLED = !"false".equals(System.getProperty("p2p.metrics"));
+    private static final String DOMAIN = "P2PMessenger"; // JMX domain of every metric
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9}; // Reported for every histogram
+    private static final long STARTED = System.currentTimeMillis(); // Identifies the run in snapshots
+
+    private static final List<Counter> COUNTERS = new ArrayList<>(); // Every counter, in declaration order
+    private static final List<Histogram> HISTOGRAMS = new ArrayList<>(); // Every histogram, in declaration order
+
+    // Network
+    static final Counter BYTES_SENT = counter("net.bytes.sent");
+    static final Counter BYTES_RECEIVED = counter("net.bytes.received");
+    static final Counter MESSAGES_SENT = counter("chat.messages.sent");
+    static final Counter MESSAGES_RECEIVED = counter("chat.messages.received");
+    static final Histogram RECEIVE_TEXT = histogram("chat.receive.nanos"); // Read, decrypt and decode of one text frame
+    static final Counter OUTBOUND_DEPTH = counter("outbound.queue.depth"); // Frames waiting in all writer queues
+    static final Histogram OUTBOUND_BATCH = histogram("outbound.batch.frames"); // Frames written per flush
+    static final Histogram SEND_FRAME = histogram("outbound.frame.nanos"); // Seal and write of one queued frame
+    static final Histogram SEND_CHUNK = histogram("outbound.chunk.nanos"); // One bulk stream step, usually one chunk
+
+    // Crypto
+    static final Histogram SEAL = histogram("crypto.seal.nanos");
+    static final Histogram OPEN = histogram("crypto.open.nanos");
+    static final Counter BYTES_SEALED = counter("crypto.bytes.sealed");
+    static final Counter BYTES_OPENED = counter("crypto.bytes.opened");
+    static final Histogram KEY_DERIVATION = histogram("crypto.key.derivation.nanos");
+
+    // Files
+    static final Counter FILE_BYTES_SENT = counter("file.bytes.sent"); // Chunk payloads before compression and encryption
+    static final Counter FILE_BYTES_RECEIVED = counter("file.bytes.received"); // Bytes written to downloads
+    static final Histogram CHUNK_WRITE = histogram("file.chunk.write.nanos"); // Positional write of a resumable chunk
+    static final Counter TRANSFERS_COMPLETED = counter("file.transfers.completed");
+    static final Counter TRANSFERS_FAILED = counter("file.transfers.failed");
+    static final Histogram TRANSFER_THROUGHPUT = histogram("file.transfer.kib.per.second"); // Per received transfer, reused chunks included
+
+    // Relay
+    static final Counter RELAY_CONNECTIONS = counter("relay.connections.accepted");
+    static final Counter RELAY_WAITING = counter("relay.connections.waiting"); // Connections not paired yet
+    static final Counter RELAY_PAIRS = counter("relay.pairs.active");
+    static final Counter RELAY_BYTES = counter("relay.bytes.forwarded");
+
+    private Metrics() {
+    }
+
+    /**
+     * A monotonic count, or a level that goes up and down such as a queue depth.
+     */
+    static final class Counter {
+        private final String name;
+        private final LongAdder value = new LongAdder();
+
+        private Counter(String name) {
+            this.name = name;
+        }
+
+        String name() {
+            return name;
+        }
+
+        void add(long delta) {
+            if (ENABLED) {
+                value.add(delta);
+            }
+        }
+
+        void increment() {
+            add(1);
+        }
+
+        void decrement() {
+            add(-1);
+        }
+
+        long get() {
+            return value.sum();
+        }
+    }
+
+    private static Counter counter(String name) {
+        Counter counter = new Counter(name);
+        COUNTERS.add(counter);
+        return counter;
+    }
+
+    private static Histogram histogram(String name) {
+        Histogram histogram = new Histogram(name);
+        HISTOGRAMS.add(histogram);
+        return histogram;
+    }
+
+    /**
+     * Wraps a socket's input stream so that every byte read is counted as received.
+     *
+     * @param in The socket's input stream.
+     * @return The counting stream.
+     */
+    static InputStream countReceived(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0) {
+                    BYTES_RECEIVED.increment();
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                int n = super.read(buffer, offset, length);
+                if (n > 0) {
+                    BYTES_RECEIVED.add(n);
+                }
+                return n;
+            }
+        };
+    }
+
+    /**
+     * Wraps a socket's output stream so that every byte written is counted as sent.
+     *
+     * @param out The socket's output stream.
+     * @return The counting stream.
+     */
+    static OutputStream countSent(OutputStream out) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                BYTES_SENT.increment();
+            }
+
+            @Override
+            public void write(byte[] buffer, int offset, int length) throws IOException {
+                out.write(buffer, offset, length); // Not FilterOutputStream's byte-at-a-time default
+                BYTES_SENT.add(length);
+            }
+        };
+    }
+
+    /**
+     * Publishes every metric as an MBean on the platform MBean server. Safe to call more than once.
+     *
+     * @throws JMException If an MBean cannot be registered.
+     */
+    static synchronized void registerMBeans() throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (Counter counter : COUNTERS) {
+            Map<String, Supplier<Object>> attributes = new LinkedHashMap<>();
+            attributes.put("Value", counter::get);
+            register(server, "Counter", counter.name(), attributes);
+        }
+        for (Histogram histogram : HISTOGRAMS) {
+            Map<String, Supplier<Object>> attributes = new LinkedHashMap<>();
+            attributes.put("Count", () -> histogram.snapshot().count());
+            attributes.put("Mean", () -> histogram.snapshot().mean());
+            for (double percentile : PERCENTILES) {
+                attributes.put(percentileName(percentile), () -> histogram.snapshot().percentile(percentile));
+            }
+            attributes.put("Max", () -> histogram.snapshot().max());
+            register(server, "Histogram", histogram.name(), attributes);
+        }
+    }
+
+    private static void register(MBeanServer server, String type, String name, Map<String, Supplier<Object>> attributes)
+            throws JMException {
+        ObjectName objectName = new ObjectName(DOMAIN, new Hashtable<>(Map.of("type", type, "name", name)));
+        if (!server.isRegistered(objectName)) {
+            server.registerMBean(new MetricBean(type + " " + name, attributes), objectName);
+        }
+    }
+
+    private static String percentileName(double percentile) {
+        return "P" + (percentile == Math.rint(percentile) ? String.valueOf((long) percentile) : String.valueOf(percentile).replace(".", ""));
+    }
+
+    /**
+     * Appends a snapshot every period until interrupted, then once more.
+     *
+     * @param file   The JSON-lines file to append to; its directory is created if needed.
+     * @param period The time between snapshots.
+     * @param errors Receives write failures; snapshots continue afterwards.
+     */
+    static void writeSnapshots(Path file, Duration period, Consumer<String> errors) {
+        try {
+            while (true) {
+                Thread.sleep(period);
+                appendSnapshot(file, errors);
+            }
+        } catch (InterruptedException e) {
+            appendSnapshot(file, errors); // Shutting down; keep the final numbers
+        }
+    }
+
+    private static void appendSnapshot(Path file, Consumer<String> errors) {
+        try {
+            Path directory = file.toAbsolutePath().getParent();
+            if (directory != null) {
+                Files.createDirectories(directory);
+            }
+            Files.write(file, (snapshotJson() + "\n").getBytes(StandardCharsets.UTF_8),
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            errors.accept("Failed to write metrics: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Renders every metric as one line of JSON: the run's start time, the snapshot time, the
+     * counters by name and each histogram's count, mean, percentiles and maximum.
+     *
+     * @return The JSON object.
+     */
+    static String snapshotJson() {
+        StringBuilder json = new StringBuilder(4096);
+        long now = System.currentTimeMillis();
+        json.append("{\"run\":").append(STARTED)
+                .append(",\"time\":").append(now)
+                .append(",\"uptimeMillis\":").append(now - STARTED)
+                .append(",\"java\":\"").append(System.getProperty("java.version")).append('"')
+                .append(",\"counters\":{");
+        for (int i = 0; i < COUNTERS.size(); i++) {
+            Counter counter = COUNTERS.get(i);
+            json.append(i > 0 ? "," : "").append('"').append(counter.name()).append("\":").append(counter.get());
+        }
+        json.append("},\"histograms\":{");
+        for (int i = 0; i < HISTOGRAMS.size(); i++) {
+            Histogram histogram = HISTOGRAMS.get(i);
+            Histogram.Snapshot snapshot = histogram.snapshot();
+            json.append(i > 0 ? "," : "").append('"').append(histogram.name()).append("\":{")
+                    .append("\"count\":").append(snapshot.count())
+                    .append(",\"mean\":").append(Math.round(snapshot.mean()));
+            for (double percentile : PERCENTILES) {
+                json.append(",\"").append(percentileName(percentile).toLowerCase()).append("\":").append(snapshot.percentile(percentile));
+            }
+            json.append(",\"max\":").append(snapshot.max()).append('}');
+        }
+        return json.append("}}").toString();
+    }
+
+    /**
+     * A read-only MBean whose attributes are read from the metric on every request.
+     */
+    private static final class MetricBean implements DynamicMBean {
+        private final Map<String, Supplier<Object>> attributes;
+        private final MBeanInfo info;
+
+        MetricBean(String description, Map<String, Supplier<Object>> attributes) {
+            this.attributes = attributes;
+            List<MBeanAttributeInfo> infos = new ArrayList<>();
+            for (Map.Entry<String, Supplier<Object>> attribute : attributes.entrySet()) {
+                String type = attribute.getValue().get() instanceof Double ? "double" : "long";
+                infos.add(new MBeanAttributeInfo(attribute.getKey(), type, attribute.getKey(), true, false, false));
+            }
+            this.info = new MBeanInfo(MetricBean.class.getName(), description,
+                    infos.toArray(new MBeanAttributeInfo[0]), null, null, null);
+        }
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Supplier<Object> value = attributes.get(attribute);
+            if (value == null) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            return value.get();
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Read-only: " + attribute.getName());
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] names) {
+            AttributeList list = new AttributeList();
+            for (String name : names) {
+                Supplier<Object> value = attributes.get(name);
+                if (value != null) {
+                    list.add(new Attribute(name, value.get()));
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList list) {
+            return new AttributeList(); // Nothing is writable
+        }
+
+        @Override
+        public Object invoke(String action, Object[] params, String[] signature) throws ReflectionException {
+            throw new ReflectionException(new NoSuchMethodException(action));
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            return info;
+        }
+    }
+}
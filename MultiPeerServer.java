@@ -0,0 +1,446 @@
+// MultiPeerServer.java
+
+// Non-blocking server that accepts and serves many peers from a small, fixed set of selector event loops.
+// Broadcasts to peers that accept the group feature are sealed once under a shared group key and the
+// same bytes are queued for every such peer, so their cost does not grow with the number of peers.
+import javax.crypto.SecretKey; // For encryption and decryption
+import java.io.*; // For file input and I/O errors
+import java.net.InetSocketAddress; // For binding the server port
+import java.nio.ByteBuffer; // For encoded messages and packed chunks
+import java.nio.charset.StandardCharsets; // For UTF-8 conversion
+import java.nio.channels.*; // For selectors and socket channels
+import java.security.GeneralSecurityException; // For group sealing failures
+import java.util.ArrayList; // For splitting peers into group members and others
+import java.util.Collection; // For the peers a broadcast goes to
+import java.util.Iterator; // For walking selected keys
+import java.util.List; // For splitting peers into group members and others
+import java.util.Queue; // For cross-thread event loop tasks
+import java.util.Set; // For tracking live sessions
+import java.util.concurrent.ConcurrentHashMap; // For the concurrent session set
+import java.util.concurrent.ConcurrentLinkedQueue; // For cross-thread event loop tasks
+import java.util.concurrent.atomic.AtomicInteger; // For stream ids
+
+public class MultiPeerServer {
+    private static final long HIGH_WATER_MARK = 4L * 1024 * 1024; // Queued bytes per peer before file senders wait
+
+    private final ConnectionListener app; // Receives status lines, chat rows and connection state
+    private final MessageLog history; // Records every message and file received
+    private final String userName; // Local user's name
+    private final String serverToken; // Token every peer must present
+    private final SecretKey secretKey; // Encryption key derived from the token
+    private final CipherSuite cipherSuite; // Preferred suite for new sessions
+
+    private final Set<PeerSession> sessions = ConcurrentHashMap.newKeySet(); // Peers that completed the handshake
+    private final Object drainLock = new Object(); // Signalled when a peer's write queue drains
+    private final Object groupLock = new Object(); // Orders joins and key changes, so every member holds the key of what it is sent
+    private GroupCipher groupCipher = GroupCipher.create(0); // Seals broadcasts to group members (guarded by groupLock)
+    private ServerSocketChannel serverChannel; // Listening channel
+    private EventLoop[] loops; // Selector event loops
+    private final AtomicInteger nextStreamId = new AtomicInteger(); // Ids for outgoing file streams
+    private int nextLoop; // Round-robin index for new connections (accessed on the accepting loop only)
+    private volatile boolean running; // Cleared by close()
+
+    // Constructor
+    public MultiPeerServer(ConnectionListener app, MessageLog history, String userName, String serverToken, SecretKey secretKey,
+            CipherSuite cipherSuite) {
+        this.app = app;
+        this.history = history;
+        this.userName = userName;
+        this.serverToken = serverToken;
+        this.secretKey = secretKey;
+        this.cipherSuite = cipherSuite;
+    }
+
+    /**
+     * Binds the server port and starts the event loops.
+     * The first loop also handles accepting; new peers are spread round-robin across all loops.
+     *
+     * @param port      The port to listen on.
+     * @param loopCount The number of event loop threads.
+     * @throws IOException If the port cannot be bound.
+     */
+    public void start(int port, int loopCount) throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+
+        running = true;
+        loops = new EventLoop[Math.max(1, loopCount)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(Selector.open());
+        }
+        serverChannel.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+        for (int i = 0; i < loops.length; i++) {
+            Thread thread = new Thread(loops[i], "peer-loop-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Queues a text message for every connected peer. Group members all get the same frame,
+     * sealed once under the group key; every other session encrypts it for its own peer.
+     * The message is encoded once per format the peers need, and the bytes are shared by all peers.
+     *
+     * @param message The message to send.
+     */
+    public void broadcastText(ChatMessage message) throws GeneralSecurityException {
+        List<PeerSession> members = new ArrayList<>();
+        List<PeerSession> others = new ArrayList<>();
+        GroupCipher cipher = split(sessions, members, others);
+        if (!members.isEmpty()) {
+            ByteBuffer plain = Compression.pack(MessageCodec.encode(message, MessageCodec.SESSION_PEER), null);
+            ByteBuffer frame = ByteBuffer.allocate(8 + GroupCipher.sealedSize(plain.remaining()));
+            frame.putInt(ConnectionManager.MSG_GROUP_TEXT).position(8);
+            frame.putInt(4, cipher.sealText(plain, frame)).flip();
+            ByteBuffer shared = frame.asReadOnlyBuffer();
+            for (PeerSession member : members) {
+                member.sendShared(shared, false);
+            }
+        }
+        byte[][] encodings = new byte[4][]; // Indexed by format; each is built on first use
+        for (PeerSession session : others) {
+            int format = (session.hasBinaryMessages() ? 1 : 0) | (session.isCompressed() ? 2 : 0);
+            if (encodings[format] == null) {
+                ByteBuffer plain = session.hasBinaryMessages()
+                        ? MessageCodec.encode(message, MessageCodec.SESSION_PEER)
+                        : ByteBuffer.wrap(message.toLegacy().getBytes(StandardCharsets.UTF_8));
+                encodings[format] = toArray(session.isCompressed() ? Compression.pack(plain, null) : plain);
+            }
+            session.sendText(encodings[format]);
+        }
+    }
+
+    /**
+     * Streams a file to every connected peer as encrypted chunks. Each chunk is sealed once
+     * under the group key for all group members, and once per session for every other peer.
+     * Peers that support multiplexing keep receiving chat while the file is sent.
+     * Blocks the calling thread while any peer has more than the high-water mark queued,
+     * so a slow peer limits memory use instead of growing its queue without bound.
+     *
+     * @param file The file to send.
+     * @throws Exception If the file cannot be read.
+     */
+    public void broadcastFile(File file) throws Exception {
+        List<PeerSession> members = new ArrayList<>(); // Peers joining mid-transfer are not included
+        List<PeerSession> others = new ArrayList<>();
+        split(sessions, members, others);
+        List<PeerSession> targets = new ArrayList<>(members);
+        targets.addAll(others);
+        int streamId = nextStreamId.getAndIncrement();
+        long size = file.length();
+        byte[] name = PeerSession.encodeUtf(file.getName());
+        if (!members.isEmpty()) {
+            ByteBuffer header = ByteBuffer.allocate(8 + name.length + 8 + 4);
+            header.putInt(ConnectionManager.MSG_GROUP_STREAM_OPEN).putInt(streamId).put(name).putLong(size)
+                    .putInt(ConnectionManager.STREAM_CHUNK_SIZE).flip();
+            ByteBuffer shared = header.asReadOnlyBuffer();
+            for (PeerSession member : members) {
+                member.sendShared(shared, true); // Stays ahead of the stream's chunks
+            }
+        }
+        for (PeerSession session : others) {
+            session.openStream(streamId, name, size, ConnectionManager.STREAM_CHUNK_SIZE);
+        }
+
+        boolean anyCompressed = !members.isEmpty() || others.stream().anyMatch(session -> session.isCompressed() && session.streamsFiles()); // Members always are
+        Compression.Adaptive history = new Compression.Adaptive(); // Skips chunks that do not compress
+        boolean completed = false;
+        try (InputStream fileIn = new FileInputStream(file)) {
+            long remaining = size;
+            for (long index = 0; remaining > 0; index++) {
+                byte[] chunk = new byte[ConnectionManager.STREAM_CHUNK_SIZE]; // Shared by every peer until sealed
+                int read = fileIn.readNBytes(chunk, 0, (int) Math.min(chunk.length, remaining));
+                if (read == 0) {
+                    throw new EOFException("File was truncated while sending");
+                }
+                byte[] packed = anyCompressed ? toArray(Compression.pack(ByteBuffer.wrap(chunk, 0, read), history)) : null; // Packed once for all peers
+                if (!members.isEmpty()) {
+                    GroupCipher cipher = currentGroupCipher(); // A member may have left since the last chunk
+                    ByteBuffer frame = ByteBuffer.allocate(12 + GroupCipher.sealedSize(packed.length));
+                    frame.putInt(ConnectionManager.MSG_STREAM_DATA).putInt(streamId).position(12);
+                    frame.putInt(8, cipher.sealChunk(streamId, index, ByteBuffer.wrap(packed), frame)).flip();
+                    ByteBuffer shared = frame.asReadOnlyBuffer();
+                    for (PeerSession member : members) {
+                        awaitDrain(member);
+                        member.sendShared(shared, true);
+                    }
+                }
+                for (PeerSession session : others) {
+                    awaitDrain(session);
+                    if (session.isCompressed() && session.streamsFiles()) {
+                        session.sendChunk(streamId, packed, packed.length);
+                    } else {
+                        session.sendChunk(streamId, chunk, read);
+                    }
+                }
+                remaining -= read;
+            }
+            completed = true;
+        } finally {
+            for (PeerSession session : targets) {
+                session.closeStream(streamId, completed);
+            }
+        }
+    }
+
+    /**
+     * Splits peers into group members and the rest, and gets the group cipher every member of
+     * the split holds the key of.
+     *
+     * @return The current group cipher.
+     */
+    private GroupCipher split(Collection<PeerSession> peers, List<PeerSession> members, List<PeerSession> others) {
+        synchronized (groupLock) {
+            for (PeerSession session : peers) {
+                (session.isGroupMember() ? members : others).add(session);
+            }
+            return groupCipher;
+        }
+    }
+
+    private GroupCipher currentGroupCipher() {
+        synchronized (groupLock) {
+            return groupCipher;
+        }
+    }
+
+    /**
+     * Replaces the group key after a member has left, so it cannot read later broadcasts.
+     * Frames sealed under the old key may still be queued; members keep a few old keys for them.
+     */
+    private void rotateGroupKey() {
+        synchronized (groupLock) {
+            GroupCipher next = GroupCipher.create(groupCipher.epoch() + 1);
+            byte[] keyMessage = next.keyMessage();
+            for (PeerSession member : sessions) {
+                if (member.isGroupMember()) {
+                    member.sendGroupKey(keyMessage); // Queued ahead of every frame sealed under it
+                }
+            }
+            groupCipher = next;
+        }
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Waits until a peer's write queue drops below the high-water mark or the peer disconnects.
+     */
+    private void awaitDrain(PeerSession session) throws InterruptedException {
+        synchronized (drainLock) {
+            while (running && session.isOpen() && session.queuedBytes() > HIGH_WATER_MARK) {
+                drainLock.wait(100);
+            }
+        }
+    }
+
+    /**
+     * Runs a task on the event loop that owns a session's key.
+     */
+    void execute(SelectionKey key, Runnable task) {
+        for (EventLoop loop : loops) {
+            if (loop.selector == key.selector()) {
+                loop.execute(task);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Called by a session when its write queues have drained or made room.
+     */
+    void onDrained() {
+        synchronized (drainLock) {
+            drainLock.notifyAll();
+        }
+    }
+
+    /**
+     * Called by a session when the handshake has completed.
+     */
+    void onEstablished(PeerSession session) {
+        boolean first;
+        synchronized (groupLock) {
+            if (session.isGroupMember()) {
+                session.sendGroupKey(groupCipher.keyMessage()); // Before it can be picked for a broadcast
+            }
+            first = sessions.isEmpty();
+            sessions.add(session);
+        }
+        app.log(session.friendName() + " joined from " + session.remoteAddress());
+        if (first) {
+            app.onConnected(); // Update UI to show connected state
+        }
+    }
+
+    /**
+     * Called by a session when its channel has been closed.
+     */
+    void onClosed(PeerSession session, String reason) {
+        if (sessions.remove(session)) {
+            app.log(session.friendName() + " left: " + reason);
+            if (session.isGroupMember()) {
+                rotateGroupKey();
+            }
+            if (sessions.isEmpty()) {
+                app.onDisconnected();
+            }
+        }
+        onDrained(); // Release file senders waiting on this peer
+    }
+
+    /**
+     * Called by a session for every decrypted text message.
+     */
+    void onMessage(ChatMessage message) {
+        app.addChatEntry(history.append(ChatEntry.message(message, false)));
+    }
+
+    /**
+     * Called by a session when a file has been written to the downloads directory.
+     */
+    void onFileReceived(PeerSession session, File file) {
+        app.addChatEntry(history.append(ChatEntry.file(session.friendName(), file.getName(), "Received", file, false)));
+    }
+
+    /**
+     * Called by a session when something goes wrong that is worth showing to the user.
+     */
+    void log(String message) {
+        app.log(message);
+    }
+
+    String userName() {
+        return userName;
+    }
+
+    String serverToken() {
+        return serverToken;
+    }
+
+    SecretKey secretKey() {
+        return secretKey;
+    }
+
+    CipherSuite cipherSuite() {
+        return cipherSuite;
+    }
+
+    /**
+     * Gets the number of peers that have completed the handshake.
+     *
+     * @return The number of connected peers.
+     */
+    public int peerCount() {
+        return sessions.size();
+    }
+
+    /**
+     * Stops the event loops and closes the listening channel and every peer.
+     */
+    public void close() throws IOException {
+        running = false;
+        if (loops != null) {
+            for (EventLoop loop : loops) {
+                loop.selector.wakeup();
+            }
+        }
+        if (serverChannel != null) {
+            serverChannel.close();
+        }
+        onDrained();
+    }
+
+    /**
+     * Accepts every pending connection and hands each one to the next event loop.
+     */
+    private void acceptPending() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            EventLoop loop = loops[nextLoop];
+            nextLoop = (nextLoop + 1) % loops.length;
+            SocketChannel accepted = channel;
+            loop.execute(() -> {
+                try {
+                    SelectionKey key = accepted.register(loop.selector, SelectionKey.OP_READ);
+                    key.attach(new PeerSession(this, accepted, key));
+                } catch (IOException e) {
+                    log("Failed to register peer: " + e.getMessage());
+                }
+            });
+        }
+    }
+
+    /**
+     * A single selector thread. Tasks from other threads are queued and run between selects.
+     */
+    private final class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        EventLoop(Selector selector) {
+            this.selector = selector;
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    selector.select();
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            acceptPending();
+                            continue;
+                        }
+                        PeerSession session = (PeerSession) key.attachment();
+                        try {
+                            if (key.isReadable()) {
+                                session.onReadable();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                session.onWritable();
+                            }
+                        } catch (Exception e) {
+                            session.close(e.getMessage());
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                log("Event loop stopped: " + e.getMessage());
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    if (key.attachment() instanceof PeerSession session) {
+                        session.close("Server stopped");
+                    }
+                }
+                try {
+                    selector.close();
+                } catch (IOException ignored) {
+                    // Nothing left to release
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,203 @@
+// OutboundQueue.java
+
+// Single writer for a connection's output stream, fed by lock-free multi-producer queues.
+// Consecutive frames are written into the buffered stream back to back and flushed once per batch.
+// Bulk streams (file transfers) are scheduled one chunk at a time behind the frame queue,
+// so chat never waits for more than the few chunks a stream has already sealed ahead.
+// Queue depth, batch sizes and the time spent on each frame and chunk are recorded in Metrics.
+import java.io.DataOutputStream; // For the connection's output stream
+import java.io.IOException; // For write failures
+import java.util.ArrayDeque; // For the round-robin list of active streams
+import java.util.Queue; // For pending frames
+import java.util.concurrent.ConcurrentLinkedQueue; // Lock-free queue shared by all producers
+import java.util.concurrent.Executor; // For running the writer loop
+import java.util.concurrent.locks.LockSupport; // For parking the idle writer
+import java.util.function.Consumer; // For reporting write failures
+
+public class OutboundQueue {
+
+    /**
+     * A unit of outbound work. Runs on the writer thread, so frames are sealed and written
+     * in the same order and no other thread ever touches the stream.
+     */
+    @FunctionalInterface
+    public interface Frame {
+        void writeTo(DataOutputStream out) throws Exception;
+    }
+
+    /**
+     * A low-priority source of frames, such as a file transfer. Runs on the writer thread.
+     */
+    public interface BulkStream {
+
+        /**
+         * Writes the next frame of the stream.
+         *
+         * @param out The connection's output stream.
+         * @return True if the stream has more frames, false once it has finished.
+         * @throws IOException If writing to the connection fails; the connection is then unusable.
+         */
+        boolean writeNext(DataOutputStream out) throws IOException;
+
+        /**
+         * Writes every frame the stream has already sealed ahead of its next writeNext().
+         * Called before anything else is written, so frames leave in the order they were sealed.
+         *
+         * @param out The connection's output stream.
+         * @return True if the stream has more frames, false if it finished while draining.
+         * @throws IOException If writing to the connection fails; the connection is then unusable.
+         */
+        default boolean drain(DataOutputStream out) throws IOException {
+            return true; // Streams that seal each frame as they write it have nothing ahead
+        }
+
+        /**
+         * Releases the stream's resources when the connection closes before it finished.
+         */
+        void cancel();
+    }
+
+    private final Queue<Frame> queue = new ConcurrentLinkedQueue<>(); // Frames waiting for the writer
+    private final Queue<BulkStream> newStreams = new ConcurrentLinkedQueue<>(); // Streams not yet scheduled
+    private final ArrayDeque<BulkStream> activeStreams = new ArrayDeque<>(); // Round-robin order (writer thread only)
+    private final DataOutputStream out; // Written by the writer thread only
+    private final Consumer<Exception> onError; // Called once if a write fails
+    private volatile Thread writer; // Set when the writer loop starts
+    private volatile boolean closed; // Set by close()
+
+    // Constructor
+    public OutboundQueue(DataOutputStream out, Consumer<Exception> onError) {
+        this.out = out;
+        this.onError = onError;
+    }
+
+    /**
+     * Starts the writer loop.
+     *
+     * @param executor The executor to run the writer on.
+     */
+    public void start(Executor executor) {
+        executor.execute(this::run);
+    }
+
+    /**
+     * Queues a frame. Never blocks, so it is safe to call from the JavaFX thread.
+     *
+     * @param frame The frame to write.
+     */
+    public void enqueue(Frame frame) {
+        if (closed) {
+            return;
+        }
+        queue.add(frame);
+        Metrics.OUTBOUND_DEPTH.increment();
+        LockSupport.unpark(writer); // No-op until the writer has started; it polls before parking
+    }
+
+    /**
+     * Queues a bulk stream. Its frames are interleaved with other streams and sent only when
+     * no regular frame is waiting.
+     *
+     * @param stream The stream to schedule.
+     */
+    public void enqueueStream(BulkStream stream) {
+        if (closed) {
+            stream.cancel();
+            return;
+        }
+        newStreams.add(stream);
+        LockSupport.unpark(writer);
+    }
+
+    /**
+     * Stops the writer. Frames still queued are dropped and streams are cancelled.
+     */
+    public void close() {
+        closed = true;
+        LockSupport.unpark(writer);
+    }
+
+    /**
+     * Lets the stream that wrote last write the frames it has sealed ahead. A stream that
+     * finishes while draining leaves the round-robin.
+     *
+     * @return Always null, since no stream has frames sealed ahead any more.
+     */
+    private BulkStream drain(BulkStream stream) throws IOException {
+        if (stream != null && !stream.drain(out)) {
+            activeStreams.remove(stream);
+        }
+        return null;
+    }
+
+    private void run() {
+        writer = Thread.currentThread();
+        boolean dirty = false; // Bytes are buffered but not flushed
+        BulkStream last = null; // Stream that wrote last and may have frames sealed ahead
+        try {
+            while (!closed) {
+                Frame frame = queue.poll();
+                if (frame != null) {
+                    last = drain(last);
+                    int batch = 0;
+                    do {
+                        Metrics.OUTBOUND_DEPTH.decrement();
+                        long started = System.nanoTime();
+                        frame.writeTo(out); // Lands in the stream buffer unless the batch outgrows it
+                        Metrics.SEND_FRAME.recordSince(started);
+                        batch++;
+                    } while (!closed && (frame = queue.poll()) != null);
+                    out.flush(); // One socket write per batch, sent ahead of any further chunks
+                    Metrics.OUTBOUND_BATCH.record(batch);
+                    dirty = false;
+                    continue;
+                }
+
+                BulkStream stream;
+                while ((stream = newStreams.poll()) != null) {
+                    activeStreams.add(stream);
+                }
+                stream = activeStreams.poll();
+                if (stream != null) {
+                    if (stream != last) {
+                        last = drain(last);
+                    }
+                    long started = System.nanoTime();
+                    boolean more = stream.writeNext(out);
+                    Metrics.SEND_CHUNK.recordSince(started);
+                    if (more) {
+                        activeStreams.add(stream); // Back of the line, so concurrent transfers share the link
+                        last = stream;
+                    } else {
+                        last = null; // Finished streams have nothing ahead
+                    }
+                    dirty = true; // Chunks are flushed when the buffer fills or before the writer idles
+                    continue;
+                }
+
+                if (dirty) {
+                    out.flush();
+                    dirty = false;
+                    continue; // Re-check the queues before parking
+                }
+                LockSupport.park(this); // Woken by enqueue(), enqueueStream() or close()
+            }
+        } catch (Exception e) {
+            if (!closed) {
+                closed = true;
+                onError.accept(e);
+            }
+        } finally {
+            while (queue.poll() != null) {
+                Metrics.OUTBOUND_DEPTH.decrement(); // Keep the depth right for the other connections
+            }
+            BulkStream stream;
+            while ((stream = newStreams.poll()) != null) {
+                activeStreams.add(stream);
+            }
+            while ((stream = activeStreams.poll()) != null) {
+                stream.cancel();
+            }
+        }
+    }
+}
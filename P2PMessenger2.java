@@ -9,43 +9,59 @@ import javafx.scene.Scene;
 import javafx.scene.control.*;
 import javafx.scene.input.KeyCode;
 import javafx.scene.layout.*;
-import javafx.scene.paint.Color;
-import javafx.scene.text.*;
 import javafx.stage.FileChooser;
 import javafx.stage.Stage;
 import javafx.geometry.Side;
 import javafx.stage.FileChooser.ExtensionFilter;
 
+import javax.management.JMException;
 import java.awt.Desktop;
 import java.io.File;
 import java.io.IOException;
-import java.util.concurrent.Executors;
-
-public class P2PMessenger2 extends Application {
-    public static final long MAX_FILE_SIZE = 10 * 1024 * 1024; // Maximum allowed file size (10 MB)
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class P2PMessenger2 extends Application implements ConnectionListener {
+    public static final long MAX_FILE_SIZE = 10 * 1024 * 1024; // Maximum size of a legacy single-blob file transfer (10 MB)
+    private static final int SEARCH_RESULTS = 200; // Most rows shown for one search
+    private static final Path METRICS_FILE = Path.of("metrics", "snapshots.jsonl"); // One JSON snapshot per line
+    private static final Duration METRICS_PERIOD = Duration.ofMinutes(1); // Time between metrics snapshots
 
     // UI components
-    private VBox chatWindow; // Chat display area
+    private ChatView chatView; // Chat display area; only the visible rows have nodes
+    private UiDispatcher uiDispatcher; // Batches chat rows from network threads into once-per-frame updates
+    private MessageLog history; // Encrypted on-disk chat history
+    private SearchIndex searchIndex; // Full-text index over the chat history
+    private BackgroundTasks.TaskScope searchTasks; // Runs searches one at a time, off the UI thread
     private TextField inputField; // Text field for typing messages
     private Button sendButton; // Button to send messages
     private Button startServerButton; // Button to start the server
     private Button connectButton; // Button to connect to a peer
+    private CheckBox multiPeerBox; // Serve many peers at once instead of a single friend
+    private CheckBox legacyCipherBox; // Use AES-CBC only, for peers that predate AES-GCM
+    private CheckBox parallelBox; // Stripe transfers over several connections
     private TextField tokenField; // Field to display or enter a connection token
+    private TextField relayField; // Optional relay both peers meet at, as host:port
     private Label publicIpLabel; // Label to show the public IP address
     private Label localIpLabel; // Label to show the local IP address
 
     // Application state variables
     private String userName; // Name of the user
-    private String friendName; // Name of the connected friend
     private String serverToken; // Server token for secure communication
 
     private FileChooser fileChooser; // File chooser dialog for sending attachments
     private Label statusLabel; // Label to display connection status
+    private Tooltip linkTooltip; // Link statistics of the status label; refilled on every pong
     private boolean isConnected = false; // Flag indicating connection status
 
     private String localIpAddress; // Local IP address of the user
 
     private ConnectionManager connectionManager; // Manages server and client connections
+    private final BackgroundTasks backgroundTasks = new BackgroundTasks(); // Runs all background I/O on virtual threads
 
     public static void main(String[] args) {
         launch(args); // Launch JavaFX application
@@ -79,16 +95,23 @@ public class P2PMessenger2 extends Application {
         nameField.setPromptText("Enter your name"); // Placeholder text
         nameField.setStyle("-fx-font-size: 14px; -fx-background-color: #ECF0F1;");
 
+        // Input field for searching the chat history
+        TextField searchField = new TextField();
+        searchField.setPromptText("Search history");
+        searchField.setStyle("-fx-font-size: 14px; -fx-background-color: #ECF0F1;");
+        searchField.setOnKeyPressed(event -> {
+            if (event.getCode() == KeyCode.ENTER) {
+                search(searchField.getText().trim());
+            }
+        });
+
         // Add components to the top section
-        topSection.getChildren().addAll(localIpLabel, publicIpLabel, nameField);
+        topSection.getChildren().addAll(localIpLabel, publicIpLabel, nameField, searchField);
 
-        // Chat window with a scrollable pane
-        chatWindow = new VBox(10);
-        chatWindow.setPadding(new Insets(10)); // Padding for chat messages
-        chatWindow.setStyle("-fx-background-color: #34495E;"); // Background color for chat area
-        ScrollPane scrollPane = new ScrollPane(chatWindow);
-        scrollPane.setFitToWidth(true); // Allow chat messages to expand horizontally
-        scrollPane.setStyle("-fx-background: #34495E; -fx-border-color: transparent;");
+        // Chat window with a virtualized, scrollable list of messages
+        chatView = new ChatView(this::openFile);
+        uiDispatcher = new UiDispatcher(chatView);
+        VBox.setVgrow(chatView, Priority.ALWAYS); // Give the chat all spare height
 
         // Bottom section for message input and actions
         HBox bottomSection = new HBox(10);
@@ -127,27 +150,42 @@ public class P2PMessenger2 extends Application {
         tokenField.setPromptText("Enter connection token");
         tokenField.setStyle("-fx-font-size: 14px; -fx-background-color: #ECF0F1;");
 
+        relayField = new TextField();
+        relayField.setPromptText("Relay (host:port, optional)");
+        relayField.setStyle("-fx-font-size: 14px; -fx-background-color: #ECF0F1;");
+
         // Buttons for server and peer connection
         startServerButton = new Button("Start Server");
         UIUtils.styleButton(startServerButton, "#27AE60");
 
+        multiPeerBox = new CheckBox("Multi-peer");
+        multiPeerBox.setStyle("-fx-font-size: 14px; -fx-text-fill: white;");
+
+        legacyCipherBox = new CheckBox("CBC (older peers)");
+        legacyCipherBox.setStyle("-fx-font-size: 14px; -fx-text-fill: white;");
+
+        parallelBox = new CheckBox("Parallel transfers");
+        parallelBox.setStyle("-fx-font-size: 14px; -fx-text-fill: white;");
+
         connectButton = new Button("Connect");
         UIUtils.styleButton(connectButton, "#2980B9");
 
         // Label for displaying connection status
         statusLabel = new Label("Not connected");
+        linkTooltip = new Tooltip();
         UIUtils.styleLabel(statusLabel);
 
         // Add components to the connection box
-        connectionBox.getChildren().addAll(startServerButton, friendIpField, connectButton, tokenField, statusLabel);
+        connectionBox.getChildren().addAll(startServerButton, multiPeerBox, friendIpField, connectButton, tokenField, relayField, legacyCipherBox, parallelBox, statusLabel);
 
         // Main layout containing all sections
-        VBox mainLayout = new VBox(10, topSection, connectionBox, scrollPane, bottomSection);
+        VBox mainLayout = new VBox(10, topSection, connectionBox, chatView, bottomSection);
         root.setCenter(mainLayout);
 
         // Create and set the scene
         primaryStage.setScene(new Scene(root, 800, 600));
         primaryStage.show();
+        uiDispatcher.start(); // Start applying queued chat rows once per frame
 
         // Initialize file chooser for sending attachments
         fileChooser = new FileChooser();
@@ -156,13 +194,27 @@ public class P2PMessenger2 extends Application {
 
         // Fetch public IP in a separate thread
         if (!NetworkUtils.isLocalhost(localIpAddress)) {
-            Executors.newSingleThreadExecutor().submit(() -> NetworkUtils.fetchPublicIp(publicIpLabel, localIpAddress));
+            backgroundTasks.scope("public-ip", 1).submit(() -> NetworkUtils.fetchPublicIp(publicIpLabel, localIpAddress));
         } else {
             publicIpLabel.setText("Running on localhost"); // Use localhost as fallback
         }
 
+        // Open the chat history and show its newest page
+        history = MessageLog.open(Path.of("history"), this::log);
+        chatView.attachHistory(history);
+        searchIndex = SearchIndex.open(Path.of("history", "search"), history, backgroundTasks.scope("search-index", 2), this::log);
+        searchTasks = backgroundTasks.scope("search", 1);
+
+        // Publish metrics over JMX and snapshot them to a local file for comparing runs
+        try {
+            Metrics.registerMBeans();
+        } catch (JMException ex) {
+            log("Failed to register metrics: " + ex.getMessage());
+        }
+        backgroundTasks.scope("metrics", 1).submit(() -> Metrics.writeSnapshots(METRICS_FILE, METRICS_PERIOD, this::log));
+
         // Initialize connection manager
-        connectionManager = new ConnectionManager(this);
+        connectionManager = new ConnectionManager(this, backgroundTasks, history);
 
         // Start server button handler
         startServerButton.setOnAction(e -> {
@@ -171,6 +223,17 @@ public class P2PMessenger2 extends Application {
                 alert("Name Required", "Please enter your name before starting the server.");
                 return;
             }
+            InetSocketAddress relay;
+            try {
+                relay = selectedRelay();
+            } catch (IllegalArgumentException ex) {
+                alert("Invalid Relay", ex.getMessage());
+                return;
+            }
+            if (relay != null && multiPeerBox.isSelected()) {
+                alert("Relay Not Supported", "A multi-peer server cannot run through a relay.");
+                return;
+            }
             serverToken = MessageUtils.generateSecureToken(); // Generate secure token for the server
             log("Server token: " + serverToken); // Log the server token
 
@@ -179,7 +242,13 @@ public class P2PMessenger2 extends Application {
                 tokenField.setEditable(false); // Make the token field non-editable
             });
 
-            connectionManager.startServer(userName, serverToken); // Start the server
+            connectionManager.setCipherSuite(selectedCipherSuite());
+            connectionManager.setRelay(relay);
+            if (multiPeerBox.isSelected()) {
+                connectionManager.startMultiPeerServer(userName, serverToken); // Serve many peers at once
+            } else {
+                connectionManager.startServer(userName, serverToken); // Start the server
+            }
         });
 
         // Connect button handler
@@ -191,11 +260,21 @@ public class P2PMessenger2 extends Application {
             }
             String friendIp = friendIpField.getText().trim(); // Get friend's IP
             String token = tokenField.getText().trim(); // Get connection token
-            if (friendIp.isEmpty() || token.isEmpty()) {
+            InetSocketAddress relay;
+            try {
+                relay = selectedRelay();
+            } catch (IllegalArgumentException ex) {
+                alert("Invalid Relay", ex.getMessage());
+                return;
+            }
+            if ((friendIp.isEmpty() && relay == null) || token.isEmpty()) {
                 alert("IP or Token Required", "Please provide both IP address and token.");
                 return;
             }
             tokenField.setEditable(true); // Allow token editing for re-connection
+            connectionManager.setCipherSuite(selectedCipherSuite());
+            connectionManager.setParallelTransfers(parallelBox.isSelected());
+            connectionManager.setRelay(relay);
             connectionManager.connectToFriend(friendIp, token, userName); // Connect to the friend
         });
 
@@ -226,11 +305,7 @@ public class P2PMessenger2 extends Application {
         attachButton.setOnAction(e -> {
             File file = fileChooser.showOpenDialog(null); // Open file chooser dialog
             if (file != null) {
-                if (file.length() > MAX_FILE_SIZE) { // Check if file exceeds size limit
-                    alert("File Too Large", "The selected file exceeds the maximum allowed size of 10 MB.");
-                    return;
-                }
-                connectionManager.sendAttachment(file); // Send the selected file
+                connectionManager.sendAttachment(file); // Stream the selected file in chunks
             }
         });
     }
@@ -248,9 +323,30 @@ public class P2PMessenger2 extends Application {
         emojiMenu.show(inputField, Side.TOP, 0, 0); // Show menu above the input field
     }
 
-    // Log information messages
+    // Get the cipher suite chosen in the connection box
+    private CipherSuite selectedCipherSuite() {
+        return legacyCipherBox.isSelected() ? CipherSuite.AES_CBC : CipherSuite.AES_GCM;
+    }
+
+    // Get the relay entered in the connection box; null to connect directly
+    private InetSocketAddress selectedRelay() {
+        String text = relayField.getText().trim();
+        if (text.isEmpty()) {
+            return null;
+        }
+        int colon = text.lastIndexOf(':');
+        try {
+            int port = colon < 0 ? RelayNode.DEFAULT_PORT : Integer.parseInt(text.substring(colon + 1));
+            return InetSocketAddress.createUnresolved(colon < 0 ? text : text.substring(0, colon), port); // Resolved when connecting, off the UI thread
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("The relay must be given as host:port.");
+        }
+    }
+
+    // Log information messages; safe to call from any thread
+    @Override
     public void log(String message) {
-        Platform.runLater(() -> addInfoBubble("[INFO] " + message + " (" + MessageUtils.getCurrentTime() + ")"));
+        addInfoBubble(message);
     }
 
     // Show an alert dialog with a title and message
@@ -263,129 +359,104 @@ public class P2PMessenger2 extends Application {
         });
     }
 
-    // Add a message bubble to the chat window
-    public void addMessageBubble(String fullMessage, boolean isOwnMessage) {
-        HBox messageBox = new HBox();
-        messageBox.setAlignment(isOwnMessage ? Pos.CENTER_RIGHT : Pos.CENTER_LEFT); // Align based on sender
+    // Add a message or file bubble to the chat window; safe to call from any thread, shown on the next frame
+    @Override
+    public void addChatEntry(ChatEntry entry) {
+        uiDispatcher.post(entry);
+    }
 
-        // Parse the message format: sender|time|message
-        String[] parts = fullMessage.split("\\|", 3);
-        if (parts.length < 3) {
-            log("Invalid message format.");
-            return;
-        }
-        String senderName = parts[0];
-        String time = parts[1];
-        String messageContent = parts[2];
-
-        // Create styled message components
-        Text nameText = new Text(senderName + ": ");
-        nameText.setFill(Color.LIGHTGRAY);
-        nameText.setFont(Font.font("Verdana", FontWeight.BOLD, 12));
-
-        Text timeText = new Text("[" + time + "]\n");
-        timeText.setFill(Color.LIGHTGRAY);
-        timeText.setFont(Font.font("Verdana", FontPosture.ITALIC, 10));
-
-        Text messageText = new Text(messageContent);
-        messageText.setFill(Color.WHITE);
-        messageText.setFont(Font.font("Arial", FontWeight.NORMAL, 14));
-
-        // Combine components into a text flow
-        TextFlow textFlow = new TextFlow(nameText, timeText, messageText);
-        textFlow.setPadding(new Insets(10));
-        textFlow.setMaxWidth(400);
-        textFlow.setStyle(
-                "-fx-background-color: " + (isOwnMessage ? "#1ABC9C" : "#3498DB") + "; -fx-background-radius: 10;");
-
-        messageBox.getChildren().add(textFlow); // Add the text flow to the message box
-        chatWindow.getChildren().add(messageBox); // Add the message box to the chat window
+    // Add an informational message bubble to the chat window; shown on the next frame
+    private void addInfoBubble(String message) {
+        uiDispatcher.post(ChatEntry.info(message));
     }
 
-    // Add a file message bubble with an "Open" button
-    public void addFileMessageBubble(String fileName, String fileType, File file, boolean isOwnMessage) {
-        HBox messageBox = new HBox();
-        messageBox.setAlignment(isOwnMessage ? Pos.CENTER_RIGHT : Pos.CENTER_LEFT); // Align based on sender
-
-        VBox contentBox = new VBox(5); // Box to hold file details and open button
-        contentBox.setPadding(new Insets(10));
-        contentBox.setMaxWidth(400);
-        contentBox.setStyle(
-                "-fx-background-color: " + (isOwnMessage ? "#1ABC9C" : "#3498DB") + "; -fx-background-radius: 10;");
-
-        // File details
-        Text nameText = new Text((isOwnMessage ? userName : friendName) + ": ");
-        nameText.setFill(Color.LIGHTGRAY);
-        nameText.setFont(Font.font("Verdana", FontWeight.BOLD, 12));
-
-        Text timeText = new Text("[" + MessageUtils.getCurrentTime() + "]\n");
-        timeText.setFill(Color.LIGHTGRAY);
-        timeText.setFont(Font.font("Verdana", FontPosture.ITALIC, 10));
-
-        Text messageText = new Text(fileType + " File: " + fileName);
-        messageText.setFill(Color.WHITE);
-        messageText.setFont(Font.font("Arial", FontWeight.NORMAL, 14));
-
-        // Button to open the file
-        Button openButton = new Button("Open");
-        UIUtils.styleButton(openButton, "#E74C3C");
-        openButton.setOnAction(e -> {
-            try {
-                Alert confirmation = new Alert(Alert.AlertType.CONFIRMATION);
-                confirmation.setTitle("Open File");
-                confirmation.setHeaderText("Are you sure you want to open this file?");
-                confirmation.setContentText(file.getName());
-                if (confirmation.showAndWait().get() == ButtonType.OK) {
-                    Desktop desktop = Desktop.getDesktop();
-                    desktop.open(file); // Open the file with the default application
-                }
-            } catch (IOException ex) {
-                alert("Error", "Unable to open file.");
-            }
+    // Search the chat history in the background and show the matches in a dialog
+    private void search(String query) {
+        if (query.isEmpty()) {
+            return;
+        }
+        searchTasks.submit(() -> {
+            List<ChatEntry> results = new ArrayList<>(searchIndex.search(query, SEARCH_RESULTS));
+            Collections.reverse(results); // Oldest first, like the chat
+            uiDispatcher.execute(() -> showSearchResults(query, results));
         });
+    }
 
-        // Add components to the content box and message box
-        contentBox.getChildren().addAll(nameText, timeText, messageText, openButton);
-        messageBox.getChildren().add(contentBox);
-        chatWindow.getChildren().add(messageBox);
+    // Show search results in a chat-styled list
+    private void showSearchResults(String query, List<ChatEntry> results) {
+        ChatView resultView = new ChatView(this::openFile);
+        resultView.appendAll(results);
+        resultView.setPrefSize(600, 400);
+        Dialog<Void> dialog = new Dialog<>();
+        dialog.setTitle("Search");
+        dialog.setHeaderText(results.isEmpty() ? "No messages match \"" + query + "\""
+                : results.size() + " messages match \"" + query + "\"");
+        dialog.getDialogPane().setContent(resultView);
+        dialog.getDialogPane().getButtonTypes().add(ButtonType.CLOSE);
+        dialog.show();
     }
 
-    // Add an informational message bubble to the chat window
-    private void addInfoBubble(String message) {
-        HBox messageBox = new HBox();
-        messageBox.setAlignment(Pos.CENTER); // Center-align info messages
-
-        Text text = new Text(message);
-        text.setFill(Color.WHITE);
-        text.setFont(Font.font("Verdana", FontWeight.NORMAL, 12));
-        TextFlow textFlow = new TextFlow(text);
-        textFlow.setPadding(new Insets(10));
-        textFlow.setMaxWidth(400);
-        textFlow.setStyle("-fx-background-color: #95A5A6; -fx-background-radius: 10;");
-
-        messageBox.getChildren().add(textFlow);
-        chatWindow.getChildren().add(messageBox);
+    // Ask for confirmation, then open a received or sent file with the default application
+    private void openFile(File file) {
+        try {
+            Alert confirmation = new Alert(Alert.AlertType.CONFIRMATION);
+            confirmation.setTitle("Open File");
+            confirmation.setHeaderText("Are you sure you want to open this file?");
+            confirmation.setContentText(file.getName());
+            if (confirmation.showAndWait().get() == ButtonType.OK) {
+                Desktop desktop = Desktop.getDesktop();
+                desktop.open(file); // Open the file with the default application
+            }
+        } catch (IOException ex) {
+            alert("Error", "Unable to open file.");
+        }
     }
 
-    // Update UI when connected
+    // Update UI when connected; safe to call from any thread
+    @Override
     public void onConnected() {
-        inputField.setDisable(false); // Enable the input field
-        sendButton.setDisable(false); // Enable the send button
-        statusLabel.setText("Connected"); // Update status
-        isConnected = true; // Set connection flag
+        Platform.runLater(() -> {
+            inputField.setDisable(false); // Enable the input field
+            sendButton.setDisable(false); // Enable the send button
+            statusLabel.setText("Connected"); // Update status
+            isConnected = true; // Set connection flag
+        });
     }
 
-    // Update UI when disconnected
+    // Show the latest round-trip time next to the connection status
+    @Override
+    public void onLinkStats(LinkMonitor.Stats stats) {
+        uiDispatcher.execute(() -> {
+            if (isConnected) {
+                statusLabel.setText(String.format("Connected (RTT %.0f ms)", stats.rtt().toNanos() / 1e6));
+                linkTooltip.setText(stats.toString());
+                if (statusLabel.getTooltip() != linkTooltip) {
+                    statusLabel.setTooltip(linkTooltip); // Installed once per connection, then only its text changes
+                }
+            }
+        });
+    }
+
+    // Update UI when disconnected; safe to call from any thread
+    @Override
     public void onDisconnected() {
-        statusLabel.setText("Not connected"); // Update status
-        isConnected = false; // Reset connection flag
-        inputField.setDisable(true); // Disable the input field
-        sendButton.setDisable(true); // Disable the send button
+        Platform.runLater(() -> {
+            statusLabel.setText("Not connected"); // Update status
+            statusLabel.setTooltip(null); // Round-trip times of the closed connection
+            isConnected = false; // Reset connection flag
+            inputField.setDisable(true); // Disable the input field
+            sendButton.setDisable(true); // Disable the send button
+        });
     }
 
     @Override
     public void stop() throws Exception {
         super.stop(); // Call parent stop method
+        uiDispatcher.stop(); // Stop per-frame UI updates
         connectionManager.closeConnections(); // Clean up connections
+        searchIndex.close(); // Write the in-memory part of the search index
+        history.close(); // Flush the chat history to disk
+        backgroundTasks.close(); // Stop all background I/O threads
+        KeyCache.clear(); // Drop derived keys from memory
     }
 }
@@ -0,0 +1,211 @@
+// PeerHello.java
+
+// Name exchanged during the handshake, optionally followed by session parameters.
+// Encoded as "name" or "name\0key=value;key=value" so that peers that send only a name still interoperate.
+import java.util.ArrayList; // For the accepted features
+import java.util.Arrays; // For splitting feature lists
+import java.util.LinkedHashMap; // For parameters in insertion order
+import java.util.List; // For feature lists
+import java.util.Map; // For the parameter map
+
+public final class PeerHello {
+    static final String SUITES = "suites"; // Client: cipher suites offered, best first
+    static final String SUITE = "suite"; // Server: cipher suite chosen
+    static final String SALT = "salt"; // Both: random per-session salt, hex encoded
+    static final String FEATURES = "features"; // Client: protocol features offered; server: features accepted
+    static final String LANE = "lane"; // Client: key of the session a data connection joins
+
+    static final String STREAM = "stream"; // Files as a stream of sealed chunks; peers without it take one sealed blob
+    static final String MUX = "mux"; // File transfers as multiplexed streams interleaved with chat
+    static final String BINARY_MESSAGES = "msg"; // Chat messages in MessageCodec format instead of "name|time|text"
+    static final String DEFLATE = "deflate"; // Payloads packed by Compression before they are encrypted
+    static final String RESUME = "resume"; // File transfers identified by content hash and resumed after a reconnect
+    static final String STRIPE = "stripe"; // Resumable transfers striped over extra data connections
+    static final String DEDUP = "dedup"; // Resumable offers carry chunk hashes, so the receiver can reuse chunks it holds
+    static final String DELTA = "delta"; // Receivers of hashed offers may sign an older copy and get chunks as deltas against it
+    static final String PING = "ping"; // Keepalive pings answered with pongs, for round-trip times and dead-peer detection
+    static final String GROUP = "group"; // Broadcasts sealed once under a group key the server hands out; needs mux, msg and deflate
+    static final List<String> SUPPORTED_FEATURES = List.of(STREAM, MUX, BINARY_MESSAGES, DEFLATE, RESUME, STRIPE, DEDUP, DELTA, PING, GROUP); // Features this build understands
+    static final List<String> ONE_TO_ONE_FEATURES = List.of(STREAM, MUX, BINARY_MESSAGES, DEFLATE, RESUME, STRIPE, DEDUP, DELTA, PING); // Features the one-to-one server accepts
+    static final List<String> RELAYED_FEATURES = List.of(STREAM, MUX, BINARY_MESSAGES, DEFLATE, RESUME, DEDUP, DELTA, PING); // Through a relay; data connections cannot follow
+    static final List<String> MULTI_PEER_FEATURES = List.of(STREAM, MUX, BINARY_MESSAGES, DEFLATE, GROUP); // Features the multi-peer server accepts
+
+    private static final char SEPARATOR = '\0'; // Separates the name from the parameters
+
+    private final String name; // The peer's display name
+    private final Map<String, String> params = new LinkedHashMap<>(); // Session parameters
+
+    // Constructor
+    public PeerHello(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Parses a hello received during the handshake.
+     *
+     * @param wire The string read with readUTF.
+     * @return The parsed hello; without parameters if the peer sent only a name.
+     */
+    public static PeerHello parse(String wire) {
+        int separator = wire.indexOf(SEPARATOR);
+        if (separator < 0) {
+            return new PeerHello(wire);
+        }
+        PeerHello hello = new PeerHello(wire.substring(0, separator));
+        for (String pair : wire.substring(separator + 1).split(";")) {
+            int equals = pair.indexOf('=');
+            if (equals > 0) {
+                hello.params.put(pair.substring(0, equals), pair.substring(equals + 1));
+            }
+        }
+        return hello;
+    }
+
+    /**
+     * Builds the client hello. A client that prefers AES-CBC sends only its name,
+     * exactly like an older peer, so it can talk to servers that predate negotiation.
+     *
+     * @param userName   The local user's name.
+     * @param preferred  The locally preferred suite.
+     * @param clientSalt The client's random session salt.
+     * @return The encoded hello.
+     */
+    public static String offer(String userName, CipherSuite preferred, byte[] clientSalt) {
+        if (preferred == CipherSuite.AES_CBC) {
+            return userName;
+        }
+        return new PeerHello(userName)
+                .with(SUITES, CipherSuite.offer(preferred))
+                .with(SALT, MessageUtils.bytesToHex(clientSalt))
+                .with(FEATURES, String.join(",", SUPPORTED_FEATURES))
+                .encode();
+    }
+
+    /**
+     * Builds the hello of a data connection joining an existing session.
+     *
+     * @param userName   The local user's name.
+     * @param preferred  The locally preferred suite.
+     * @param clientSalt The data connection's own random salt.
+     * @param laneKey    The key of the session to join.
+     * @return The encoded hello.
+     */
+    public static String laneOffer(String userName, CipherSuite preferred, byte[] clientSalt, String laneKey) {
+        return new PeerHello(userName)
+                .with(SUITES, CipherSuite.offer(preferred))
+                .with(SALT, MessageUtils.bytesToHex(clientSalt))
+                .with(LANE, laneKey)
+                .encode();
+    }
+
+    /**
+     * Builds the server's reply to a client hello. Clients that sent only a name get only a name back.
+     *
+     * @param userName    The local user's name.
+     * @param clientHello The hello received from the client.
+     * @param suite       The negotiated suite.
+     * @param serverSalt  The server's random session salt.
+     * @param supported   The features this server accepts if the client offers them.
+     * @return The encoded reply.
+     */
+    public static String reply(String userName, PeerHello clientHello, CipherSuite suite, byte[] serverSalt, List<String> supported) {
+        if (!clientHello.hasParams()) {
+            return userName;
+        }
+        List<String> accepted = new ArrayList<>();
+        for (String feature : supported) {
+            if (clientHello.hasFeature(feature)) {
+                accepted.add(feature);
+            }
+        }
+        return new PeerHello(userName)
+                .with(SUITE, suite.wireName())
+                .with(SALT, MessageUtils.bytesToHex(serverSalt))
+                .with(FEATURES, String.join(",", accepted))
+                .encode();
+    }
+
+    /**
+     * Checks whether the hello lists a protocol feature. On a server reply this means
+     * both sides agreed to use it; on a client hello it means the client offered it.
+     *
+     * @param feature The feature name, e.g. "mux".
+     * @return True if the feature is listed.
+     */
+    public boolean hasFeature(String feature) {
+        String features = params.get(FEATURES);
+        return features != null && Arrays.asList(features.split(",")).contains(feature);
+    }
+
+    /**
+     * Gets the suite a server chose. A server that sent only a name is an older peer and uses AES-CBC.
+     *
+     * @return The chosen suite.
+     * @throws IllegalArgumentException If the server chose a suite this peer does not know.
+     */
+    public CipherSuite chosenSuite() {
+        String chosen = params.get(SUITE);
+        if (chosen == null) {
+            return CipherSuite.AES_CBC;
+        }
+        CipherSuite suite = CipherSuite.fromWireName(chosen);
+        if (suite == null) {
+            throw new IllegalArgumentException("Unsupported cipher suite: " + chosen);
+        }
+        return suite;
+    }
+
+    /**
+     * Adds a parameter.
+     *
+     * @param key   The parameter name.
+     * @param value The parameter value; must not contain ';'.
+     * @return This hello, for chaining.
+     */
+    public PeerHello with(String key, String value) {
+        params.put(key, value);
+        return this;
+    }
+
+    /**
+     * Encodes the hello for writeUTF.
+     *
+     * @return The name, followed by the parameters if there are any.
+     */
+    public String encode() {
+        if (params.isEmpty()) {
+            return name;
+        }
+        StringBuilder sb = new StringBuilder(name).append(SEPARATOR);
+        for (Map.Entry<String, String> param : params.entrySet()) {
+            if (sb.charAt(sb.length() - 1) != SEPARATOR) {
+                sb.append(';');
+            }
+            sb.append(param.getKey()).append('=').append(param.getValue());
+        }
+        return sb.toString();
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public String param(String key) {
+        return params.get(key);
+    }
+
+    public boolean hasParams() {
+        return !params.isEmpty();
+    }
+
+    /**
+     * Gets a hex-encoded byte parameter such as a salt.
+     *
+     * @param key The parameter name.
+     * @return The decoded bytes, or an empty array if the parameter is missing.
+     */
+    public byte[] bytesParam(String key) {
+        String value = params.get(key);
+        return value == null ? new byte[0] : MessageUtils.hexToBytes(value);
+    }
+}
@@ -0,0 +1,634 @@
+// PeerSession.java
+
+// Per-peer state for the multi-peer server: handshake, frame decoding, file receive and the write queues
+import java.io.*; // For UTF encoding and I/O errors
+import java.net.Socket; // For the peer address
+import java.nio.BufferUnderflowException; // Signals that a frame is not complete yet
+import java.nio.ByteBuffer; // For frame buffers
+import java.nio.channels.SelectionKey; // For read/write interest
+import java.nio.channels.SocketChannel; // For the peer connection
+import java.nio.charset.StandardCharsets; // For UTF-8 conversion
+import java.nio.file.Files; // For writing downloads
+import java.security.GeneralSecurityException; // For cipher and handshake failures
+import java.security.MessageDigest; // For checking the client's handshake confirmation
+import java.util.ArrayList; // For text held back during a legacy file stream
+import java.util.Arrays; // For clearing written frames
+import java.util.HashMap; // For incoming multiplexed streams
+import java.util.List; // For text held back during a legacy file stream
+import java.util.Map; // For incoming multiplexed streams
+import java.util.Queue; // For the write queues
+import java.util.concurrent.ConcurrentLinkedQueue; // For the write queues
+import java.util.concurrent.atomic.AtomicLong; // For queued byte accounting
+
+class PeerSession {
+    private static final int INITIAL_BUFFER_SIZE = 16 * 1024; // Initial read buffer size
+    private static final int MAX_BUFFER_SIZE = (int) P2PMessenger2.MAX_FILE_SIZE + 64 * 1024; // Fits a legacy file frame
+    private static final byte[] NO_PREFIX = new byte[0]; // Legacy chunks have no type field
+    private static final int MAX_GATHER = 16; // Frames handed to one gathering write
+    private static final int GATHER_BYTES = 64 * 1024; // Frames are gathered up to this size, so text queued next waits behind little
+
+    private enum State { AWAIT_TOKEN, AWAIT_NAME, AWAIT_CONFIRMATION, ESTABLISHED }
+
+    private final MultiPeerServer server; // Owning server
+    private final SocketChannel channel; // Peer connection
+    private final SelectionKey key; // Registration with the owning event loop
+    private final String remoteAddress; // Peer address, kept for logging after close
+
+    private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE); // Bytes received but not yet decoded
+    private final Queue<Outgoing> priorityQueue = new ConcurrentLinkedQueue<>(); // Handshake, text and legacy streams
+    private final Queue<Outgoing> bulkQueue = new ConcurrentLinkedQueue<>(); // Multiplexed file chunks
+    private final AtomicLong queuedBytes = new AtomicLong(); // Bytes in both queues
+    private final ByteBuffer[] writing = new ByteBuffer[MAX_GATHER]; // Sealed frames being written, in wire order (event loop only)
+    private int writingCount; // Frames in writing (event loop only)
+    private final List<byte[]> deferred = new ArrayList<>(); // Text held back while a legacy file is streaming
+    private boolean streaming; // True while a legacy chunk stream owns the wire (guarded by deferred)
+    private byte[] wholeFileName; // Name of a file collected for a peer that takes it as one blob, encoded with encodeUtf()
+    private ByteArrayOutputStream wholeFile; // Its plaintext so far; null if it is not being sent to this peer
+    private boolean closeAfterWrite; // Close once the write queues are empty
+    private volatile boolean open = true; // Cleared by close()
+
+    private State state = State.AWAIT_TOKEN; // Handshake progress
+    private String friendName = "Unknown peer"; // Peer's name once received
+    private byte[] expectedConfirmation; // The client's handshake confirmation, until it has arrived
+    private volatile SessionCipher cipher; // Negotiated once the peer's hello has arrived
+    private volatile boolean streamedFiles; // Peer understands chunked files; older peers take a file as one sealed blob
+    private volatile boolean multiplexed; // Peer understands stream frames
+    private volatile boolean binaryMessages; // Peer understands MessageCodec chat messages
+    private volatile boolean compressed; // Payloads are packed by Compression before encryption
+    private volatile boolean groupMember; // Broadcasts arrive sealed under the server's group key
+
+    private IncomingFile legacyIncoming; // Chunked file being received from a legacy peer, or null
+    private final Map<Integer, IncomingFile> incomingStreams = new HashMap<>(); // Multiplexed files by stream id
+
+    // Constructor
+    PeerSession(MultiPeerServer server, SocketChannel channel, SelectionKey key) {
+        this.server = server;
+        this.channel = channel;
+        this.key = key;
+        Socket socket = channel.socket();
+        this.remoteAddress = socket.getInetAddress() != null ? socket.getInetAddress().getHostAddress() : "unknown";
+    }
+
+    /**
+     * Reads whatever is available from the channel and decodes every complete unit.
+     */
+    void onReadable() throws Exception {
+        int read = channel.read(readBuffer);
+        if (read < 0) {
+            close("Connection closed by peer");
+            return;
+        }
+        readBuffer.flip();
+        while (open && !closeAfterWrite && readBuffer.hasRemaining()) {
+            readBuffer.mark();
+            try {
+                decodeNext();
+            } catch (BufferUnderflowException e) {
+                readBuffer.reset(); // Not enough data yet; wait for more
+                break;
+            }
+        }
+        readBuffer.compact();
+        if (!readBuffer.hasRemaining()) { // A single unit is larger than the buffer
+            if (readBuffer.capacity() >= MAX_BUFFER_SIZE) {
+                throw new IOException("Frame exceeds maximum size");
+            }
+            ByteBuffer larger = ByteBuffer.allocate(Math.min(readBuffer.capacity() * 2, MAX_BUFFER_SIZE));
+            readBuffer.flip();
+            larger.put(readBuffer);
+            readBuffer = larger;
+        }
+    }
+
+    /**
+     * Decodes one handshake step, frame or file chunk from the read buffer.
+     *
+     * @throws BufferUnderflowException If the unit is not complete yet.
+     */
+    private void decodeNext() throws Exception {
+        if (state == State.AWAIT_TOKEN) {
+            String receivedToken = readUtf(readBuffer);
+            if (!server.serverToken().equals(receivedToken)) { // Validate the token
+                enqueueRaw(encodeUtf("Invalid token. Connection refused."));
+                closeAfterWrite = true;
+                server.log("Connection refused from " + remoteAddress + ": Invalid token.");
+                return;
+            }
+            enqueueRaw(encodeUtf("Connected")); // Acknowledge successful connection
+            state = State.AWAIT_NAME;
+        } else if (state == State.AWAIT_NAME) {
+            String offer = readUtf(readBuffer);
+            PeerHello clientHello = PeerHello.parse(offer); // Receive friend's name and cipher offer
+            friendName = clientHello.name();
+            CipherSuite suite = CipherSuite.negotiate(clientHello.param(PeerHello.SUITES), server.cipherSuite());
+            byte[] serverSalt = EncryptionUtils.newSessionSalt();
+            cipher = suite.newSessionCipher(server.secretKey(), clientHello.bytesParam(PeerHello.SALT), serverSalt, false);
+            streamedFiles = clientHello.hasFeature(PeerHello.STREAM);
+            multiplexed = clientHello.hasFeature(PeerHello.MUX);
+            binaryMessages = clientHello.hasFeature(PeerHello.BINARY_MESSAGES);
+            compressed = clientHello.hasFeature(PeerHello.DEFLATE);
+            groupMember = multiplexed && binaryMessages && compressed && clientHello.hasFeature(PeerHello.GROUP);
+            String reply = PeerHello.reply(server.userName(), clientHello, suite, serverSalt, PeerHello.MULTI_PEER_FEATURES);
+            enqueueRaw(encodeUtf(reply));
+            if (!clientHello.hasParams()) { // Older clients send only a name and cannot confirm
+                state = State.ESTABLISHED;
+                server.onEstablished(this);
+                return;
+            }
+            enqueueRaw(EncryptionUtils.handshakeConfirmation(server.secretKey(), true, offer, reply));
+            expectedConfirmation = EncryptionUtils.handshakeConfirmation(server.secretKey(), false, offer, reply);
+            state = State.AWAIT_CONFIRMATION;
+        } else if (state == State.AWAIT_CONFIRMATION) {
+            byte[] received = readBytes(readBuffer, expectedConfirmation.length);
+            if (!MessageDigest.isEqual(received, expectedConfirmation)) {
+                throw new GeneralSecurityException("The handshake was altered in transit");
+            }
+            expectedConfirmation = null;
+            state = State.ESTABLISHED;
+            server.onEstablished(this);
+        } else if (legacyIncoming != null) {
+            readFileChunk();
+        } else {
+            readFrame();
+        }
+    }
+
+    /**
+     * Decodes one complete frame.
+     */
+    private void readFrame() throws Exception {
+        int messageType = readBuffer.getInt();
+        if (messageType == ConnectionManager.MSG_TEXT) { // Text message
+            ByteBuffer sealed = readSealed(ConnectionManager.MAX_MESSAGE_SIZE); // Decrypt in place from the read buffer
+            ByteBuffer plain = BufferPool.acquire(BufferPool.PLAIN, sealed.remaining());
+            cipher.open(sealed, plain);
+            plain.flip();
+            if (compressed) {
+                plain = Compression.unpack(plain, ConnectionManager.MAX_MESSAGE_SIZE);
+            }
+            server.onMessage(binaryMessages
+                    ? MessageCodec.decode(plain, senderId -> friendName) // Only the peer itself sends on this session
+                    : ChatMessage.fromLegacy(new String(plain.array(), 0, plain.limit(), StandardCharsets.UTF_8), friendName));
+        } else if (messageType == ConnectionManager.MSG_FILE) { // Legacy file transfer
+            String fileName = MessageUtils.sanitizeFileName(readUtf(readBuffer));
+            long length = readBuffer.getLong();
+            if (length < 0 || length > P2PMessenger2.MAX_FILE_SIZE) {
+                throw new IOException("Received file exceeds maximum allowed size");
+            }
+            byte[] encryptedFileBytes = readBytes(readBuffer, (int) length);
+            File file = ConnectionManager.downloadFile(ConnectionManager.DOWNLOADS_DIR, fileName);
+            Files.write(file.toPath(), cipher.open(encryptedFileBytes, 0, encryptedFileBytes.length));
+            server.onFileReceived(this, file);
+        } else if (messageType == ConnectionManager.MSG_FILE_STREAM) { // Chunked file transfer
+            String fileName = readUtf(readBuffer);
+            long size = readBuffer.getLong();
+            int chunkSize = readBuffer.getInt();
+            IncomingFile incoming = new IncomingFile(ConnectionManager.DOWNLOADS_DIR, fileName, size, chunkSize, cipher, compressed);
+            if (incoming.finishIfComplete()) {
+                server.onFileReceived(this, incoming.file());
+            } else {
+                legacyIncoming = incoming; // The chunks follow back to back
+            }
+        } else if (messageType == ConnectionManager.MSG_STREAM_OPEN) { // Multiplexed file transfer: header
+            int streamId = readBuffer.getInt();
+            String fileName = readUtf(readBuffer);
+            long size = readBuffer.getLong();
+            int chunkSize = readBuffer.getInt();
+            if (incomingStreams.containsKey(streamId)) {
+                throw new IOException("Duplicate stream id: " + streamId);
+            }
+            IncomingFile incoming = new IncomingFile(ConnectionManager.DOWNLOADS_DIR, fileName, size, chunkSize, cipher, compressed);
+            if (incoming.finishIfComplete()) {
+                server.onFileReceived(this, incoming.file());
+            } else {
+                incomingStreams.put(streamId, incoming);
+            }
+        } else if (messageType == ConnectionManager.MSG_STREAM_DATA) { // Multiplexed file transfer: chunk
+            int streamId = readBuffer.getInt();
+            IncomingFile incoming = incomingStreams.get(streamId);
+            if (incoming == null) {
+                throw new IOException("Unknown stream id: " + streamId);
+            }
+            if (incoming.write(readSealed(incoming.maxSealedLength()))) {
+                incomingStreams.remove(streamId);
+                server.onFileReceived(this, incoming.file());
+            }
+        } else if (messageType == ConnectionManager.MSG_STREAM_ABORT) { // Multiplexed file transfer: cancelled
+            IncomingFile incoming = incomingStreams.remove(readBuffer.getInt());
+            if (incoming != null) {
+                incoming.close();
+                server.log(friendName + " cancelled sending " + incoming.file().getName());
+            }
+        } else {
+            throw new IOException("Unknown message type: " + messageType);
+        }
+    }
+
+    /**
+     * Decodes one encrypted chunk of a legacy file stream and appends it to the file being received.
+     */
+    private void readFileChunk() throws Exception {
+        if (legacyIncoming.write(readSealed(legacyIncoming.maxSealedLength()))) {
+            server.onFileReceived(this, legacyIncoming.file());
+            legacyIncoming = null;
+        }
+    }
+
+    /**
+     * Reads a length-prefixed sealed frame or chunk as a view of the read buffer, so it is decrypted in place.
+     *
+     * @throws BufferUnderflowException If the chunk is not complete yet.
+     */
+    private ByteBuffer readSealed(int maxLength) throws IOException {
+        int length = readBuffer.getInt();
+        if (length <= 0 || length > maxLength) {
+            throw new IOException("Invalid chunk length: " + length);
+        }
+        if (readBuffer.remaining() < length) {
+            throw new BufferUnderflowException();
+        }
+        ByteBuffer sealed = readBuffer.slice(readBuffer.position(), length);
+        readBuffer.position(readBuffer.position() + length);
+        return sealed;
+    }
+
+    /**
+     * Writes as much queued data as the socket accepts. Handshake and text frames go first;
+     * multiplexed file chunks fill the wire whenever nothing more urgent is waiting.
+     * Frames are sealed here, just before they are written, so session counters follow wire order.
+     * Several frames go out in one gathering write, straight from their own buffers, so frames
+     * shared by every group member are never copied per peer.
+     */
+    void onWritable() throws Exception {
+        while (true) {
+            gatherQueued();
+            if (writingCount == 0) {
+                break;
+            }
+            channel.write(writing, 0, writingCount);
+            int written = 0;
+            while (written < writingCount && !writing[written].hasRemaining()) {
+                written++;
+            }
+            if (written < writingCount) {
+                System.arraycopy(writing, written, writing, 0, writingCount - written);
+                Arrays.fill(writing, writingCount - written, writingCount, null);
+                writingCount -= written;
+                server.onDrained(); // Let a waiting file sender refill the queue
+                return; // Socket buffer is full; wait for the next OP_WRITE
+            }
+            Arrays.fill(writing, 0, writingCount, null);
+            writingCount = 0;
+        }
+        key.interestOps(SelectionKey.OP_READ);
+        if (!priorityQueue.isEmpty() || !bulkQueue.isEmpty()) { // A producer raced with the interest change
+            key.interestOpsOr(SelectionKey.OP_WRITE);
+        }
+        server.onDrained();
+        if (closeAfterWrite) {
+            close("Connection refused");
+        }
+    }
+
+    /**
+     * Takes queued frames into the gathering array until it holds MAX_GATHER frames or GATHER_BYTES.
+     */
+    private void gatherQueued() throws GeneralSecurityException {
+        long bytes = 0;
+        for (int i = 0; i < writingCount; i++) {
+            bytes += writing[i].remaining();
+        }
+        while (writingCount < MAX_GATHER && bytes < GATHER_BYTES) {
+            Outgoing next = priorityQueue.poll();
+            if (next == null) {
+                next = bulkQueue.poll();
+            }
+            if (next == null) {
+                return;
+            }
+            queuedBytes.addAndGet(-next.queuedSize());
+            ByteBuffer frame = next.seal(cipher);
+            writing[writingCount++] = frame;
+            bytes += frame.remaining();
+        }
+    }
+
+    /**
+     * Queues a text message for sending. Safe to call from any thread.
+     * On a legacy peer, text sent while a file is streaming is held back until the stream ends,
+     * because that peer expects the chunks of a file to arrive back to back.
+     *
+     * @param messageBytes The encoded message, packed by Compression if isCompressed().
+     */
+    void sendText(byte[] messageBytes) {
+        synchronized (deferred) {
+            if (streaming) {
+                deferred.add(messageBytes);
+                return;
+            }
+            enqueue(priorityQueue, new Outgoing(typePrefix(ConnectionManager.MSG_TEXT, -1), messageBytes, messageBytes.length));
+        }
+    }
+
+    /**
+     * Queues the header of an outgoing file stream.
+     * A multiplexed peer gets a stream header; a legacy peer gets a chunked file header and text is
+     * deferred until closeStream(). A peer that predates chunked files gets nothing yet: the file is
+     * collected and sent as one blob by closeStream(), or not at all if it exceeds MAX_FILE_SIZE.
+     *
+     * @param streamId  The stream id, unique for this server.
+     * @param name      The file name, encoded with encodeUtf().
+     * @param size      The file size in bytes.
+     * @param chunkSize The plaintext size of every chunk but the last.
+     */
+    void openStream(int streamId, byte[] name, long size, int chunkSize) {
+        if (multiplexed) {
+            ByteBuffer header = ByteBuffer.allocate(8 + name.length + 8 + 4);
+            header.putInt(ConnectionManager.MSG_STREAM_OPEN).putInt(streamId).put(name).putLong(size).putInt(chunkSize);
+            enqueue(bulkQueue, new Outgoing(header.array(), null, 0)); // Stays ahead of the stream's chunks
+            return;
+        }
+        if (!streamedFiles) {
+            wholeFileName = name;
+            wholeFile = cipher.sealedSize((int) Math.min(size, Integer.MAX_VALUE - 1024)) <= P2PMessenger2.MAX_FILE_SIZE
+                    ? new ByteArrayOutputStream((int) size) : null;
+            if (wholeFile == null) {
+                server.log(friendName + " only takes files up to " + P2PMessenger2.MAX_FILE_SIZE / (1024 * 1024) + " MB; not sent to them.");
+            }
+            return;
+        }
+        ByteBuffer header = ByteBuffer.allocate(4 + name.length + 8 + 4);
+        header.putInt(ConnectionManager.MSG_FILE_STREAM).put(name).putLong(size).putInt(chunkSize);
+        synchronized (deferred) {
+            enqueue(priorityQueue, new Outgoing(header.array(), null, 0));
+            streaming = true;
+        }
+    }
+
+    /**
+     * Queues one plaintext chunk of an outgoing file stream. It is encrypted when it reaches the wire,
+     * so the same chunk array can be shared by every peer and must not be modified afterwards.
+     *
+     * @param streamId The stream id passed to openStream().
+     * @param chunk    The plaintext chunk, packed by Compression if isCompressed() and streamsFiles().
+     * @param length   The number of bytes in the chunk.
+     */
+    void sendChunk(int streamId, byte[] chunk, int length) {
+        if (!multiplexed && !streamedFiles) {
+            if (wholeFile != null) {
+                wholeFile.write(chunk, 0, length);
+            }
+            return;
+        }
+        if (multiplexed) {
+            enqueue(bulkQueue, new Outgoing(typePrefix(ConnectionManager.MSG_STREAM_DATA, streamId), chunk, length));
+        } else {
+            enqueue(priorityQueue, new Outgoing(NO_PREFIX, chunk, length));
+        }
+    }
+
+    /**
+     * Ends an outgoing file stream. A multiplexed peer is told to discard an incomplete file;
+     * a legacy peer cannot be, so the connection is dropped instead.
+     * Text held back for a legacy peer is sent afterwards.
+     *
+     * @param streamId  The stream id passed to openStream().
+     * @param completed False if the stream ended before every chunk was sent.
+     */
+    void closeStream(int streamId, boolean completed) {
+        if (multiplexed) {
+            if (!completed) {
+                ByteBuffer abort = ByteBuffer.allocate(8).putInt(ConnectionManager.MSG_STREAM_ABORT).putInt(streamId);
+                enqueue(bulkQueue, new Outgoing(abort.array(), null, 0));
+            }
+            return;
+        }
+        if (!streamedFiles) {
+            ByteArrayOutputStream whole = wholeFile;
+            wholeFile = null;
+            if (completed && whole != null) {
+                ByteBuffer prefix = ByteBuffer.allocate(4 + wholeFileName.length + 4);
+                prefix.putInt(ConnectionManager.MSG_FILE).put(wholeFileName).putInt(0); // High half of the long length; the frame adds the low half
+                byte[] plain = whole.toByteArray();
+                enqueue(priorityQueue, new Outgoing(prefix.array(), plain, plain.length));
+            }
+            return;
+        }
+        if (!completed) {
+            server.execute(key, () -> close("File transfer failed"));
+            return;
+        }
+        synchronized (deferred) {
+            streaming = false;
+            for (byte[] messageBytes : deferred) {
+                enqueue(priorityQueue, new Outgoing(typePrefix(ConnectionManager.MSG_TEXT, -1), messageBytes, messageBytes.length));
+            }
+            deferred.clear();
+        }
+    }
+
+    /**
+     * Queues the group key, sealed under this peer's session cipher like any other frame.
+     * Safe to call from any thread.
+     *
+     * @param keyMessage The key as encoded by GroupCipher.keyMessage().
+     */
+    void sendGroupKey(byte[] keyMessage) {
+        enqueue(priorityQueue, new Outgoing(typePrefix(ConnectionManager.MSG_GROUP_KEY, -1), keyMessage, keyMessage.length));
+    }
+
+    /**
+     * Queues a complete frame that was sealed under the group key and is sent to every group
+     * member as it is. The buffer is shared by all of them; each queue gets its own view of it.
+     * Safe to call from any thread.
+     *
+     * @param frame A read-only buffer holding the whole frame; its position and limit are not changed.
+     * @param bulk  True for file streams, which yield to text; false for text.
+     */
+    void sendShared(ByteBuffer frame, boolean bulk) {
+        enqueue(bulk ? bulkQueue : priorityQueue, new Outgoing(null, null, 0, frame.duplicate()));
+    }
+
+    private static byte[] typePrefix(int messageType, int streamId) {
+        ByteBuffer prefix = ByteBuffer.allocate(streamId < 0 ? 4 : 8).putInt(messageType);
+        if (streamId >= 0) {
+            prefix.putInt(streamId);
+        }
+        return prefix.array();
+    }
+
+    private void enqueueRaw(byte[] frame) {
+        enqueue(priorityQueue, new Outgoing(frame, null, 0));
+    }
+
+    private void enqueue(Queue<Outgoing> queue, Outgoing frame) {
+        if (!open) {
+            return;
+        }
+        queuedBytes.addAndGet(frame.queuedSize());
+        queue.add(frame);
+        key.interestOpsOr(SelectionKey.OP_WRITE);
+        key.selector().wakeup();
+    }
+
+    /**
+     * Closes the channel and discards any partial downloads.
+     *
+     * @param reason Shown to the user when the peer had completed the handshake.
+     */
+    void close(String reason) {
+        if (!open) {
+            return;
+        }
+        open = false;
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+            // Already closed
+        }
+        if (legacyIncoming != null) {
+            legacyIncoming.close();
+            legacyIncoming = null;
+        }
+        for (IncomingFile incoming : incomingStreams.values()) {
+            incoming.close();
+        }
+        incomingStreams.clear();
+        priorityQueue.clear();
+        bulkQueue.clear();
+        queuedBytes.set(0);
+        server.onClosed(this, reason);
+    }
+
+    boolean isMultiplexed() {
+        return multiplexed;
+    }
+
+    boolean hasBinaryMessages() {
+        return binaryMessages;
+    }
+
+    boolean isCompressed() {
+        return compressed;
+    }
+
+    /**
+     * Tells whether the peer takes files chunk by chunk. One that does not takes a file as one
+     * unpacked blob, so it is given plain chunks whatever isCompressed() says.
+     */
+    boolean streamsFiles() {
+        return multiplexed || streamedFiles;
+    }
+
+    boolean isGroupMember() {
+        return groupMember;
+    }
+
+    boolean isOpen() {
+        return open;
+    }
+
+    long queuedBytes() {
+        return queuedBytes.get();
+    }
+
+    String friendName() {
+        return friendName;
+    }
+
+    String remoteAddress() {
+        return remoteAddress;
+    }
+
+    SessionCipher cipher() {
+        return cipher;
+    }
+
+    /**
+     * Encodes a string the same way DataOutputStream.writeUTF does.
+     *
+     * @param value The string to encode.
+     * @return The two-byte length followed by the modified UTF-8 bytes.
+     */
+    static byte[] encodeUtf(String value) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(value.length() + 2);
+            new DataOutputStream(bytes).writeUTF(value);
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // Only thrown for strings longer than 65535 bytes
+        }
+    }
+
+    /**
+     * Decodes a string written by DataOutputStream.writeUTF.
+     *
+     * @throws BufferUnderflowException If the string is not complete yet.
+     */
+    static String readUtf(ByteBuffer buffer) throws IOException {
+        int length = buffer.getShort() & 0xFFFF;
+        if (buffer.remaining() < length) {
+            throw new BufferUnderflowException();
+        }
+        byte[] bytes = new byte[length + 2];
+        bytes[0] = (byte) (length >>> 8);
+        bytes[1] = (byte) length;
+        buffer.get(bytes, 2, length);
+        return new DataInputStream(new ByteArrayInputStream(bytes)).readUTF();
+    }
+
+    /**
+     * Reads a length-checked byte array.
+     *
+     * @throws BufferUnderflowException If the bytes are not complete yet.
+     */
+    private static byte[] readBytes(ByteBuffer buffer, int length) throws IOException {
+        if (length < 0 || length > MAX_BUFFER_SIZE) {
+            throw new IOException("Invalid frame length: " + length);
+        }
+        if (buffer.remaining() < length) {
+            throw new BufferUnderflowException();
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+
+    /**
+     * A frame waiting in a write queue: raw bytes, optionally followed by a plaintext that is
+     * sealed on the event loop and written as a length-prefixed ciphertext; or a frame sealed
+     * before it was queued.
+     *
+     * @param prefix The raw bytes written first.
+     * @param plain  The plaintext to seal, or null for a raw frame.
+     * @param length The number of plaintext bytes.
+     * @param sealed A complete frame, written as it is; null for the other kinds.
+     */
+    private record Outgoing(byte[] prefix, byte[] plain, int length, ByteBuffer sealed) {
+        Outgoing(byte[] prefix, byte[] plain, int length) {
+            this(prefix, plain, length, null);
+        }
+
+        int queuedSize() {
+            if (sealed != null) {
+                return sealed.remaining();
+            }
+            return plain == null ? prefix.length : prefix.length + 4 + length;
+        }
+
+        ByteBuffer seal(SessionCipher cipher) throws GeneralSecurityException {
+            if (sealed != null) {
+                return sealed;
+            }
+            if (plain == null) {
+                return ByteBuffer.wrap(prefix);
+            }
+            ByteBuffer frame = ByteBuffer.allocate(prefix.length + 4 + cipher.sealedSize(length));
+            frame.put(prefix).position(prefix.length + 4);
+            frame.putInt(prefix.length, cipher.seal(ByteBuffer.wrap(plain, 0, length), frame)).flip(); // Encrypt straight into the frame
+            return frame;
+        }
+    }
+}
@@ -0,0 +1,486 @@
+// RelayNode.java
+
+// Headless relay for peers that cannot reach each other directly, such as two peers behind NAT.
+// Both peers open an outbound connection to the relay and send a short hello:
+//
+//   [int magic "P2RR"][byte version][byte role: 1 host, 2 guest][32-byte pairing ID]
+//
+// The pairing ID is EncryptionUtils.relayPairingId(token), an HMAC of the connection token, so the
+// relay never learns the token or the key derived from it. Once a host and a guest with the same ID
+// have arrived, the relay sends each a single PAIRED byte and from then on copies bytes between the
+// two sockets without looking at them; the peers run their normal handshake and encrypted session
+// through it. The client does not send the raw token through a relay either, only a proof of it.
+//
+// A few selector event loops serve every connection. Both halves of a pair are moved to the loop
+// the pairing ID hashes to, so pairing needs no locks and each pair is forwarded by one thread.
+// Each direction has one direct buffer: bytes go from one socket into it and from it to the other
+// socket without passing through the Java heap. Java has no socket-to-socket splice, so this is as
+// close to zero-copy as NIO gets. A full buffer stops reading from the sender until the receiver
+// catches up, so a slow peer costs the relay no more than the buffer. With the default 16 KB per
+// direction, 10,000 pairs take about 320 MB of direct memory and 20,000 file descriptors.
+//
+//   java -cp app/target/securechat-1.0-SNAPSHOT.jar RelayNode --port 12346
+import javax.management.JMException; // For MBean registration failures
+import java.io.DataOutputStream; // For the client hello
+import java.io.IOException; // For socket failures
+import java.io.InputStream; // For the pairing status
+import java.net.InetSocketAddress; // For the listen and relay addresses
+import java.net.Socket; // For the client side
+import java.nio.ByteBuffer; // For hellos and forwarding buffers
+import java.nio.channels.*; // For selectors and socket channels
+import java.time.Duration; // For the pairing timeout
+import java.util.HashMap; // For connections waiting for their partner
+import java.util.Iterator; // For walking selected keys
+import java.util.LinkedHashSet; // For unpaired connections in arrival order
+import java.util.Locale; // For option parsing
+import java.util.Map; // For connections waiting for their partner
+import java.util.Queue; // For cross-thread event loop tasks
+import java.util.Set; // For unpaired connections
+import java.util.concurrent.ConcurrentLinkedQueue; // For cross-thread event loop tasks
+
+public final class RelayNode {
+    static final int DEFAULT_PORT = 12346;
+    static final int ROLE_HOST = 1; // The peer that created the token
+    static final int ROLE_GUEST = 2; // The peer that connects with it
+    private static final int MAGIC = 0x50325252; // "P2RR"
+    private static final int VERSION = 1;
+    private static final int ID_SIZE = 32; // HMAC-SHA256
+    private static final int HELLO_SIZE = 4 + 1 + 1 + ID_SIZE;
+    private static final byte PAIRED = 0; // Sent to both peers once paired; everything after it is the peer's
+    private static final int CONNECT_TIMEOUT_MS = 10_000; // Clients reaching the relay
+    private static final long SWEEP_INTERVAL_NANOS = 1_000_000_000L; // How often unpaired connections are checked
+    private static final long HELLO_TIMEOUT_NANOS = 10_000_000_000L; // Connections must send their hello this soon
+
+    private final int bufferSize; // Direct buffer per direction of a pair
+    private final long pairingTimeoutNanos; // Unpaired connections are closed after this long
+    private ServerSocketChannel serverChannel;
+    private EventLoop[] loops;
+    private volatile boolean running;
+
+    /**
+     * Creates a relay; nothing is bound until start().
+     *
+     * @param bufferSize     Bytes buffered per direction of a pair.
+     * @param pairingTimeout How long a connection may wait for its partner.
+     */
+    public RelayNode(int bufferSize, Duration pairingTimeout) {
+        this.bufferSize = bufferSize;
+        this.pairingTimeoutNanos = pairingTimeout.toNanos();
+    }
+
+    public static void main(String[] args) throws Exception {
+        int port = DEFAULT_PORT;
+        int loopCount = Runtime.getRuntime().availableProcessors();
+        int bufferSize = 16 * 1024;
+        Duration pairingTimeout = Duration.ofMinutes(10);
+        Duration statusInterval = Duration.ofMinutes(1);
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String option = args[i];
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing value for " + option);
+                }
+                String value = args[++i];
+                switch (option) {
+                    case "--port" -> port = Integer.parseInt(value);
+                    case "--loops" -> loopCount = Integer.parseInt(value);
+                    case "--buffer" -> bufferSize = Integer.parseInt(value);
+                    case "--pairing-timeout" -> pairingTimeout = Duration.ofSeconds(Long.parseLong(value));
+                    case "--status-interval" -> statusInterval = Duration.ofSeconds(Long.parseLong(value));
+                    default -> throw new IllegalArgumentException("Unknown option: " + option);
+                }
+            }
+            if (port <= 0 || port > 65535 || loopCount < 1 || bufferSize < 1024 || pairingTimeout.isNegative()
+                    || statusInterval.isNegative() || statusInterval.isZero()) {
+                throw new IllegalArgumentException("Option out of range");
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: RelayNode [--port N] [--loops N] [--buffer BYTES] [--pairing-timeout SECONDS] [--status-interval SECONDS]");
+            System.exit(2);
+        }
+
+        RelayNode relay = new RelayNode(bufferSize, pairingTimeout);
+        relay.start(new InetSocketAddress(port), loopCount);
+        Runtime.getRuntime().addShutdownHook(new Thread(relay::close));
+        try {
+            Metrics.registerMBeans();
+        } catch (JMException e) {
+            System.err.println("Failed to register metrics: " + e.getMessage());
+        }
+        System.out.printf(Locale.ROOT, "Relay listening on port %d with %d event loops%n", port, loopCount);
+        while (relay.running) {
+            Thread.sleep(statusInterval);
+            System.out.printf(Locale.ROOT, "%d pairs, %d waiting, %d connections, %.1f MB forwarded%n",
+                    Metrics.RELAY_PAIRS.get(), Metrics.RELAY_WAITING.get(), Metrics.RELAY_CONNECTIONS.get(),
+                    Metrics.RELAY_BYTES.get() / 1e6);
+        }
+    }
+
+    /**
+     * Connects to a relay and waits until the partner with the same pairing ID has arrived.
+     * Blocks for as long as the relay lets the connection wait.
+     *
+     * @param relay     The relay's address.
+     * @param pairingId The ID from EncryptionUtils.relayPairingId().
+     * @param host      True on the side that created the token, false on the side connecting with it.
+     * @return The socket, ready for the peers' own handshake.
+     * @throws IOException If the relay cannot be reached or closes the connection before pairing.
+     */
+    static Socket connect(InetSocketAddress relay, byte[] pairingId, boolean host) throws IOException {
+        if (pairingId.length != ID_SIZE) {
+            throw new IllegalArgumentException("Invalid pairing ID");
+        }
+        Socket socket = new Socket();
+        try {
+            socket.connect(relay.isUnresolved() ? new InetSocketAddress(relay.getHostString(), relay.getPort()) : relay,
+                    CONNECT_TIMEOUT_MS);
+            socket.setTcpNoDelay(true);
+            ByteBuffer hello = ByteBuffer.allocate(HELLO_SIZE);
+            hello.putInt(MAGIC).put((byte) VERSION).put((byte) (host ? ROLE_HOST : ROLE_GUEST)).put(pairingId);
+            new DataOutputStream(socket.getOutputStream()).write(hello.array());
+            InputStream in = socket.getInputStream(); // Read unbuffered, so nothing after the status is consumed
+            int status = in.read();
+            if (status != PAIRED) {
+                throw new IOException(status < 0 ? "The relay closed the connection before a peer arrived"
+                        : "The relay refused the connection");
+            }
+            return socket;
+        } catch (IOException | RuntimeException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Binds the port and starts the event loops. The first loop also accepts.
+     *
+     * @param address   The address to listen on.
+     * @param loopCount The number of event loop threads.
+     * @throws IOException If the port cannot be bound.
+     */
+    public void start(InetSocketAddress address, int loopCount) throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(address, 1024); // Peers often arrive in bursts
+        serverChannel.configureBlocking(false);
+        running = true;
+        loops = new EventLoop[Math.max(1, loopCount)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(Selector.open());
+        }
+        serverChannel.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+        for (int i = 0; i < loops.length; i++) {
+            Thread thread = new Thread(loops[i], "relay-loop-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Stops the event loops and closes every connection.
+     */
+    public void close() {
+        running = false;
+        if (loops != null) {
+            for (EventLoop loop : loops) {
+                loop.selector.wakeup();
+            }
+        }
+        try {
+            if (serverChannel != null) {
+                serverChannel.close();
+            }
+        } catch (IOException ignored) {
+            // Closing anyway
+        }
+    }
+
+    /**
+     * One side of a relayed connection. Touched only by the event loop it is registered with.
+     */
+    private final class Relayed {
+        private final SocketChannel channel;
+        private SelectionKey key;
+        private EventLoop loop;
+        private ByteBuffer hello = ByteBuffer.allocate(HELLO_SIZE); // Null once complete
+        private ByteBuffer pairingId; // Set once the hello is complete
+        private int role;
+        private long since = System.nanoTime(); // When it connected, then when it started waiting for its partner
+        private Relayed partner; // Set once paired
+        private ByteBuffer inbound; // Read from this side, not yet written to the partner; in fill mode
+        private boolean ended; // This side closed its output; its remaining bytes still go to the partner
+        private boolean closed;
+
+        Relayed(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    /**
+     * A single selector thread. Tasks from other threads are queued and run between selects.
+     */
+    private final class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final Map<ByteBuffer, Relayed> waiting = new HashMap<>(); // By pairing ID
+        private final Set<Relayed> greeting = new LinkedHashSet<>(); // Reading the hello, oldest first
+        private final Set<Relayed> unpaired = new LinkedHashSet<>(); // Waiting for the partner, longest waiting first
+        private long lastSweep = System.nanoTime();
+
+        EventLoop(Selector selector) {
+            this.selector = selector;
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    selector.select(1000); // Wakes up now and then to expire unpaired connections
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            acceptPending();
+                            continue;
+                        }
+                        Relayed side = (Relayed) key.attachment();
+                        try {
+                            if (key.isReadable()) {
+                                onReadable(side);
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                onWritable(side);
+                            }
+                        } catch (IOException e) {
+                            close(side);
+                        }
+                    }
+                    sweep();
+                }
+            } catch (IOException e) {
+                System.err.println("Relay event loop stopped: " + e.getMessage());
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    if (key.attachment() instanceof Relayed side) {
+                        close(side);
+                    }
+                }
+                try {
+                    selector.close();
+                } catch (IOException ignored) {
+                    // Nothing left to release
+                }
+            }
+        }
+
+        private void acceptPending() throws IOException {
+            SocketChannel channel;
+            while ((channel = serverChannel.accept()) != null) {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true); // Chat frames are small; do not hold them back
+                Metrics.RELAY_CONNECTIONS.increment();
+                Relayed side = new Relayed(channel);
+                register(side);
+                if (!side.closed) {
+                    greeting.add(side);
+                }
+            }
+        }
+
+        private void register(Relayed side) {
+            try {
+                side.loop = this;
+                side.key = side.channel.register(selector, SelectionKey.OP_READ, side);
+            } catch (IOException e) {
+                close(side);
+            }
+        }
+
+        private void onReadable(Relayed side) throws IOException {
+            if (side.hello != null) {
+                readHello(side);
+            } else if (side.partner == null) { // Waiting peers send nothing until paired
+                close(side);
+            } else {
+                forward(side);
+            }
+        }
+
+        private void readHello(Relayed side) throws IOException {
+            if (side.channel.read(side.hello) < 0) {
+                close(side);
+                return;
+            }
+            if (side.hello.hasRemaining()) {
+                return;
+            }
+            ByteBuffer hello = side.hello.flip();
+            side.hello = null;
+            greeting.remove(side);
+            int role = 0;
+            if (hello.getInt() == MAGIC && hello.get() == VERSION) {
+                role = hello.get();
+            }
+            if (role != ROLE_HOST && role != ROLE_GUEST) {
+                close(side);
+                return;
+            }
+            side.role = role;
+            side.pairingId = hello.slice(); // The ID's content is its key in the waiting map
+            EventLoop owner = loops[Math.floorMod(side.pairingId.hashCode(), loops.length)];
+            if (owner == this) {
+                pair(side);
+                return;
+            }
+            side.key.cancel(); // A channel may be registered with several selectors; this one lets go
+            owner.execute(() -> {
+                owner.register(side);
+                if (!side.closed) {
+                    owner.pair(side);
+                }
+            });
+        }
+
+        /**
+         * Pairs a connection with the waiting one of the other role, or makes it wait. A second
+         * connection of the same role replaces the first, which is most likely a dead connection
+         * of the same peer.
+         */
+        private void pair(Relayed side) {
+            Relayed other = waiting.remove(side.pairingId);
+            if (other != null) {
+                Metrics.RELAY_WAITING.decrement();
+            }
+            if (other == null || other.role == side.role) {
+                if (other != null) {
+                    close(other);
+                }
+                waiting.put(side.pairingId, side);
+                Metrics.RELAY_WAITING.increment();
+                side.since = System.nanoTime();
+                unpaired.add(side); // Last, since it has waited the least; the sweep relies on the order
+                return;
+            }
+            unpaired.remove(other);
+            side.partner = other;
+            other.partner = side;
+            side.inbound = ByteBuffer.allocateDirect(bufferSize).put(PAIRED); // Goes to the partner ahead of everything
+            other.inbound = ByteBuffer.allocateDirect(bufferSize).put(PAIRED);
+            side.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            other.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            Metrics.RELAY_PAIRS.increment();
+        }
+
+        /**
+         * Reads from one side and passes the bytes straight on to its partner. Stops reading from
+         * the side while its buffer is full, until the partner has taken some.
+         */
+        private void forward(Relayed from) throws IOException {
+            int read = from.channel.read(from.inbound);
+            if (read < 0) {
+                from.ended = true;
+                from.key.interestOpsAnd(~SelectionKey.OP_READ);
+            }
+            onWritable(from.partner);
+        }
+
+        /**
+         * Writes what the partner has sent to one side. A side whose buffer drained may be read
+         * again; a side that ended and drained closes the pair.
+         */
+        private void onWritable(Relayed to) throws IOException {
+            Relayed from = to.partner;
+            if (from == null) {
+                return;
+            }
+            ByteBuffer pending = from.inbound.flip();
+            Metrics.RELAY_BYTES.add(to.channel.write(pending));
+            boolean drained = !pending.hasRemaining();
+            pending.compact();
+            if (!drained) {
+                to.key.interestOpsOr(SelectionKey.OP_WRITE);
+                if (!pending.hasRemaining()) {
+                    from.key.interestOpsAnd(~SelectionKey.OP_READ); // Full; let the receiver catch up
+                }
+                return;
+            }
+            to.key.interestOpsAnd(~SelectionKey.OP_WRITE);
+            if (from.ended) {
+                close(to); // Everything the ended side sent has been delivered
+            } else {
+                from.key.interestOpsOr(SelectionKey.OP_READ);
+            }
+        }
+
+        /**
+         * Closes connections that are too slow with their hello or have waited too long for their
+         * partner, at most once per sweep interval.
+         */
+        private void sweep() {
+            long now = System.nanoTime();
+            if (now - lastSweep < SWEEP_INTERVAL_NANOS) {
+                return;
+            }
+            lastSweep = now;
+            expire(greeting, now, HELLO_TIMEOUT_NANOS);
+            expire(unpaired, now, pairingTimeoutNanos);
+        }
+
+        /**
+         * Closes the connections of a set, kept in the order of their since, that are older than a timeout.
+         */
+        private void expire(Set<Relayed> sides, long now, long timeoutNanos) {
+            Iterator<Relayed> oldest = sides.iterator();
+            while (oldest.hasNext()) {
+                Relayed side = oldest.next();
+                if (now - side.since < timeoutNanos) {
+                    break; // Oldest first, so the rest are younger
+                }
+                oldest.remove();
+                close(side);
+            }
+        }
+
+        /**
+         * Closes a connection together with its partner.
+         */
+        private void close(Relayed side) {
+            if (side.closed) {
+                return;
+            }
+            side.closed = true;
+            greeting.remove(side);
+            unpaired.remove(side);
+            if (side.pairingId != null && side.partner == null && side.loop == this && waiting.get(side.pairingId) == side) {
+                waiting.remove(side.pairingId);
+                Metrics.RELAY_WAITING.decrement();
+            }
+            if (side.key != null) {
+                side.key.cancel();
+            }
+            try {
+                side.channel.close();
+            } catch (IOException ignored) {
+                // Already closed
+            }
+            Relayed partner = side.partner;
+            if (partner != null && !partner.closed) {
+                Metrics.RELAY_PAIRS.decrement();
+                close(partner);
+            }
+        }
+    }
+}
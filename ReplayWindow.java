@@ -0,0 +1,56 @@
+// ReplayWindow.java
+
+// Sliding window over the counters of received frames, so a frame is accepted at most once even
+// when frames are opened out of order on several threads. Counters within SIZE of the
+// highest accepted one are still taken; older ones are rejected as stale. Only group channels use
+// it, whose frames are sealed on several threads and may be queued out of counter order; a
+// session's own frames must arrive in exact counter order (GcmSessionCipher).
+import java.security.GeneralSecurityException; // For rejected frames
+
+final class ReplayWindow {
+    static final int SIZE = 64; // Counters this far behind the highest one are still accepted
+
+    // Guarded by this
+    private long highestReceived = -1;
+    private long receivedMask; // Bit i set: highestReceived - i has been accepted
+
+    /**
+     * Rejects a counter that was already accepted or is too old. Called before the tag is
+     * checked, so replays cost no decryption.
+     *
+     * @param counter The frame counter.
+     * @throws GeneralSecurityException If the frame is a replay or stale.
+     */
+    synchronized void checkFresh(long counter) throws GeneralSecurityException {
+        if (counter < 0) {
+            throw new GeneralSecurityException("Invalid frame counter");
+        }
+        if (counter > highestReceived) {
+            return;
+        }
+        long age = highestReceived - counter;
+        if (age >= SIZE || (receivedMask & (1L << age)) != 0) {
+            throw new GeneralSecurityException("Replayed or stale frame");
+        }
+    }
+
+    /**
+     * Records a counter as accepted. Only called once the tag has been verified, so forged
+     * counters cannot move the window. Checks again under the lock, since another thread may
+     * have accepted the same counter in the meantime.
+     *
+     * @param counter The frame counter.
+     * @throws GeneralSecurityException If the frame is a replay or stale.
+     */
+    synchronized void markReceived(long counter) throws GeneralSecurityException {
+        checkFresh(counter);
+        if (counter > highestReceived) {
+            long shift = counter - highestReceived;
+            receivedMask = shift >= SIZE ? 0 : receivedMask << shift;
+            receivedMask |= 1;
+            highestReceived = counter;
+        } else {
+            receivedMask |= 1L << (highestReceived - counter);
+        }
+    }
+}
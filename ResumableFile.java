@@ -0,0 +1,356 @@
+// ResumableFile.java
+
+// A file being received as a resumable transfer. Chunks may arrive in any order and over several
+// connections; each one is checked against the hash the sender sealed with it, written at its own
+// offset in downloads/.transfers/<id>.part and recorded in the TransferState. When the sender lists
+// the chunk hashes up front, chunks some earlier download already holds are copied from the
+// ChunkStore instead. Once every chunk is present the chunk hashes are checked against the transfer
+// ID, the file is moved into place and recorded in the store under its content hash. When the receiver holds an older
+// version of the file, it may sign that copy so the sender sends chunks as DeltaSync deltas against it.
+import javax.crypto.SecretKey; // Keys the transfer ID
+import java.io.*; // For closing and I/O errors
+import java.nio.ByteBuffer; // For sealed and decrypted chunks
+import java.nio.channels.ClosedChannelException; // For chunks that arrive after the transfer ended
+import java.nio.channels.FileChannel; // For positional writes
+import java.nio.file.*; // For partial files and states
+import java.security.GeneralSecurityException; // For chunks that do not match their frame
+import java.util.Arrays; // For comparing chunk hashes
+
+class ResumableFile implements Closeable {
+    private final TransferState state; // Chunks present so far
+    private final Path partial; // Chunk data, written at each chunk's offset
+    private File file; // Final download target; renamed if the name is taken when the file completes
+    private final ChunkStore store; // Records the file once it is complete
+    private final byte[] hashes; // Announced chunk hashes; null if the sender did not list them
+    private final SecretKey idKey; // Key the transfer ID was computed under, for the final check
+    private volatile FileChannel basis; // Older copy that delta chunks copy from; null until signed
+    private int reused; // Chunks copied from earlier downloads when the transfer was opened
+    private final boolean compressed; // Chunks were packed by Compression before encryption
+    private final int maxSealedLength; // Largest sealed chunk the sender may send
+    private final FileChannel data; // Written at each chunk's offset, from any connection's thread
+    private final long opened = System.nanoTime(); // For the transfer's throughput
+
+    private ResumableFile(TransferState state, Path partial, File file, SessionCipher cipher, boolean compressed,
+                          ChunkStore store, byte[] hashes, SecretKey idKey) throws IOException {
+        this.state = state;
+        this.partial = partial;
+        this.file = file;
+        this.store = store;
+        this.hashes = hashes;
+        this.idKey = idKey;
+        this.compressed = compressed;
+        int plainLength = 4 + TransferState.HASH_SIZE + (compressed ? Compression.packedSize(state.chunkSize()) : state.chunkSize());
+        this.maxSealedLength = cipher.sealedSize(plainLength);
+        this.data = FileChannel.open(partial, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Opens the transfer a sender offers, resuming its saved state if there is one.
+     *
+     * @param id         The transfer ID announced by the sender.
+     * @param fileName   The file name as announced; sanitized here.
+     * @param size       The announced plaintext size.
+     * @param chunkSize  The announced plaintext chunk size.
+     * @param hashes     The announced chunk hashes, concatenated, already checked against the ID;
+     *                   null if the sender did not list them.
+     * @param cipher     The cipher of the connection, for sizing chunks.
+     * @param compressed True if the session negotiated compression.
+     * @param store      The chunks of earlier downloads, reused if the hashes are known.
+     * @param idKey      The key the transfer ID was computed under.
+     * @return The transfer, with the chunks that arrived over earlier connections or were found
+     *         in earlier downloads already marked.
+     * @throws IOException If the offer is invalid or the files cannot be opened.
+     */
+    static ResumableFile open(byte[] id, String fileName, long size, int chunkSize, byte[] hashes, SessionCipher cipher,
+                              boolean compressed, ChunkStore store, SecretKey idKey) throws IOException {
+        if (id.length != TransferState.HASH_SIZE || size < 0 || chunkSize <= 0 || chunkSize > ConnectionManager.MAX_CHUNK_SIZE) {
+            throw new IOException("Invalid transfer offer");
+        }
+        String name = MessageUtils.sanitizeFileName(fileName); // Sanitize file name
+        File file = ConnectionManager.downloadFile(store.directory(), name);
+        Path directory = file.toPath().resolveSibling(".transfers");
+        Files.createDirectories(directory);
+        String hex = MessageUtils.bytesToHex(id);
+        Path statePath = directory.resolve(hex + ".state");
+        Path partial = directory.resolve(hex + ".part");
+        TransferState state = null;
+        if (Files.exists(statePath) && Files.exists(partial)) {
+            try {
+                state = TransferState.open(statePath);
+                if (state.size() != size || state.chunkSize() != chunkSize) {
+                    state.close();
+                    state = null; // Same transfer ID but a different layout; start over
+                }
+            } catch (IOException e) {
+                state = null; // Unreadable; start over
+            }
+        }
+        if (state == null) {
+            Files.deleteIfExists(partial);
+            state = TransferState.create(statePath, id, size, chunkSize, 0, name, "", null);
+        }
+        ResumableFile transfer;
+        try {
+            transfer = new ResumableFile(state, partial, file, cipher, compressed, store, hashes, idKey);
+        } catch (IOException e) {
+            state.close();
+            throw e;
+        }
+        if (hashes != null) {
+            try {
+                transfer.reuseChunks();
+            } catch (IOException e) {
+                transfer.close();
+                throw e;
+            }
+        }
+        return transfer;
+    }
+
+    /**
+     * Copies every missing chunk that an earlier download holds, so the sender can skip it.
+     */
+    private void reuseChunks() throws IOException {
+        for (int i = 0; i < state.chunkCount(); i++) {
+            if (state.has(i)) {
+                continue;
+            }
+            byte[] hash = announcedHash(i);
+            long offset = (long) i * state.chunkSize();
+            if (store.copyChunk(hash, (int) Math.min(state.chunkSize(), state.size() - offset), data, offset)) {
+                state.mark(i, hash);
+                reused++;
+            }
+        }
+    }
+
+    private byte[] announcedHash(int index) {
+        return Arrays.copyOfRange(hashes, index * TransferState.HASH_SIZE, (index + 1) * TransferState.HASH_SIZE);
+    }
+
+    /**
+     * Opens an older copy of the file and signs it, so the sender can send the missing chunks as
+     * deltas against it. Only possible when the sender listed the chunk hashes, since a rebuilt
+     * chunk is checked against its announced hash.
+     *
+     * @param previous The older copy, under the "downloads" directory.
+     * @return The signature to send.
+     * @throws IOException If the copy cannot be read.
+     */
+    DeltaSync.Signature sign(File previous) throws IOException {
+        if (hashes == null) {
+            throw new IOException("Chunk hashes were not announced");
+        }
+        FileChannel channel = FileChannel.open(previous.toPath(), StandardOpenOption.READ);
+        try {
+            DeltaSync.Signature signature = DeltaSync.Signature.of(channel);
+            basis = channel;
+            return signature;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Gets the number of chunks copied from earlier downloads instead of being transferred.
+     *
+     * @return The number of reused chunks.
+     */
+    int reused() {
+        return reused;
+    }
+
+    int chunkCount() {
+        return state.chunkCount();
+    }
+
+    long size() {
+        return state.size();
+    }
+
+    /**
+     * Gets the time since the transfer was opened on this connection.
+     *
+     * @return The elapsed nanoseconds.
+     */
+    long elapsedNanos() {
+        return System.nanoTime() - opened;
+    }
+
+    int maxSealedLength() {
+        return maxSealedLength;
+    }
+
+    /**
+     * Gets the chunks already present, to tell the sender which ones to skip.
+     *
+     * @return One bit per chunk, lowest chunk in the lowest bit.
+     */
+    byte[] bitmap() {
+        return state.bitmap();
+    }
+
+    /**
+     * Receives the outcome of one chunk, on the thread that completes it.
+     */
+    @FunctionalInterface
+    interface ChunkListener {
+        void stored(boolean valid) throws Exception;
+    }
+
+    /**
+     * Builds the stage that decrypts one sealed chunk and checks it against its hash on the crypto
+     * pool. The chunk is written at its offset when it completes; a chunk that is already present
+     * is ignored. Safe to use from the pipelines of several connections at once, each with its own cipher.
+     *
+     * @param index    The chunk index.
+     * @param sealed   The sealed chunk, in the slot's input buffer; its remaining bytes are consumed.
+     * @param cipher   The cipher of the connection the chunk arrived on.
+     * @param delta    True if the sealed data is a DeltaSync delta against the signed older copy
+     *                 rather than the chunk's hash and bytes. Either way the sealed data starts
+     *                 with the chunk index, since the one in the frame header is not authenticated.
+     * @param listener Told whether the chunk matched its hash and length; an unmatched chunk is not written.
+     * @return The stage to submit.
+     * @throws IOException              If the chunk is out of range; the stream cannot continue.
+     * @throws GeneralSecurityException If the chunk is out of order on its connection.
+     */
+    ChunkPipeline.Stage opener(int index, ByteBuffer sealed, SessionCipher cipher, boolean delta,
+                               ChunkListener listener) throws IOException, GeneralSecurityException {
+        if (index < 0 || index >= state.chunkCount()) {
+            throw new IOException("Invalid chunk index: " + index);
+        }
+        if (delta && basis == null) {
+            throw new IOException("Delta for a transfer that was not signed");
+        }
+        if (sealed.remaining() > maxSealedLength) {
+            throw new IOException("Invalid chunk length: " + sealed.remaining());
+        }
+        SessionCipher.Opener opener = cipher.reserveOpen(sealed, index); // Here, in arrival order
+        return slot -> {
+            ByteBuffer decrypted = slot.output(maxSealedLength);
+            opener.open(sealed, decrypted);
+            decrypted.flip();
+            if (decrypted.remaining() < 4 || decrypted.getInt() != index) {
+                throw new GeneralSecurityException("Chunk index does not match its frame");
+            }
+            long offset = (long) index * state.chunkSize();
+            byte[] hash;
+            ByteBuffer chunk;
+            if (delta) {
+                hash = announcedHash(index);
+                ByteBuffer instructions = compressed ? Compression.unpack(decrypted, state.chunkSize(), slot.scratch(state.chunkSize() + 1)) : decrypted;
+                try { // The sealed input was consumed by open(), so the rebuilt chunk reuses its buffer
+                    chunk = DeltaSync.apply(instructions, basis, slot.input(state.chunkSize()));
+                } catch (ClosedChannelException e) {
+                    return () -> {
+                    }; // Finished or discarded by another connection's thread meanwhile
+                }
+            } else {
+                if (decrypted.remaining() < TransferState.HASH_SIZE) {
+                    throw new IOException("Truncated chunk");
+                }
+                hash = new byte[TransferState.HASH_SIZE];
+                decrypted.get(hash);
+                chunk = compressed ? Compression.unpack(decrypted, state.chunkSize(), slot.scratch(state.chunkSize() + 1)) : decrypted;
+            }
+            boolean valid = chunk.remaining() == Math.min(state.chunkSize(), state.size() - offset)
+                    && Arrays.equals(TransferState.hashChunk(chunk), hash);
+            return () -> {
+                if (valid) {
+                    store(index, offset, chunk, hash);
+                }
+                listener.stored(valid);
+            };
+        };
+    }
+
+    /**
+     * Writes a verified chunk at its offset and records it, unless it is already present.
+     */
+    private void store(int index, long offset, ByteBuffer chunk, byte[] hash) throws IOException {
+        if (state.has(index)) {
+            return; // Sent again after a reconnect
+        }
+        try {
+            long started = System.nanoTime();
+            int length = chunk.remaining();
+            while (chunk.hasRemaining()) {
+                offset += data.write(chunk, offset);
+            }
+            Metrics.CHUNK_WRITE.recordSince(started);
+            Metrics.FILE_BYTES_RECEIVED.add(length);
+            state.mark(index, hash); // Only after the data, so a set bit always has its chunk on disk
+        } catch (ClosedChannelException e) {
+            // Finished or discarded by another connection's thread meanwhile
+        }
+    }
+
+    boolean isComplete() {
+        return state.isComplete();
+    }
+
+    /**
+     * Checks the completed file against its transfer ID, moves it into place without replacing
+     * another file and records its chunks in the store. The transfer state is deleted either way.
+     *
+     * @return True if the file matched and was moved; false if it was discarded.
+     * @throws IOException If the file cannot be moved.
+     */
+    boolean finish() throws IOException {
+        data.close();
+        closeBasis();
+        boolean verified = state.verify(idKey);
+        byte[] hashes = verified ? state.hashes() : null;
+        state.delete();
+        if (!verified) {
+            Files.deleteIfExists(partial);
+            return false;
+        }
+        file = ConnectionManager.placeDownload(file, path -> Files.move(partial, path));
+        store.add(file, TransferState.contentHash(state.size(), state.chunkSize(), hashes), state.chunkSize(), hashes);
+        return true;
+    }
+
+    /**
+     * Discards the partial file and its state, when the sender gave up on the transfer.
+     */
+    void discard() {
+        close();
+        state.delete();
+        try {
+            Files.deleteIfExists(partial);
+        } catch (IOException ignored) {
+            // Best effort cleanup
+        }
+    }
+
+    File file() {
+        return file;
+    }
+
+    /**
+     * Closes the files; the partial file and state stay so the transfer can resume.
+     */
+    @Override
+    public void close() {
+        try {
+            data.close();
+        } catch (IOException ignored) {
+            // Chunks are written synchronously; nothing is buffered
+        }
+        closeBasis();
+        state.close();
+    }
+
+    private void closeBasis() {
+        FileChannel channel = basis;
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+                // Only read from
+            }
+        }
+    }
+}
@@ -0,0 +1,720 @@
+// SearchIndex.java
+
+// Incremental inverted index over the MessageLog. New records are indexed in memory as they are
+// appended; full buffers are written to immutable segment files in the background, and adjacent
+// segments are merged in the background once there are too many. A query reads the postings of
+// its terms from every segment and intersects them, so it never scans the history itself.
+//
+//   search/seg-00000001.idx   [header][postings][dictionary][sparse dictionary index]
+//
+// Every segment covers a contiguous range of sequence numbers, so the postings of one term are
+// sorted across segments when the segments are read in sequence order. Anything not yet in a
+// segment file is re-indexed from the MessageLog on the next start.
+import java.io.*; // For writing segments
+import java.nio.ByteBuffer; // For reading segments
+import java.nio.MappedByteBuffer; // For reading segments
+import java.nio.channels.FileChannel; // For mapping segments
+import java.nio.charset.StandardCharsets; // For UTF-8 conversion
+import java.nio.file.*; // For segment files
+import java.util.*; // For postings, terms and segment lists
+import java.util.concurrent.Executor; // For flushing and merging in the background
+import java.util.concurrent.RejectedExecutionException; // For a shut down executor
+import java.util.function.Consumer; // For reporting failures
+
+public final class SearchIndex implements AutoCloseable {
+    private static final int MAGIC = 0x50325349; // "P2SI"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 44; // Magic, version, sequence range, term count and two offsets
+    private static final int SPARSE_INTERVAL = 32; // Dictionary entries per sparse index entry
+    private static final int FLUSH_POSTINGS = 100_000; // Postings buffered in memory before a flush
+    private static final int MAX_SEGMENTS = 8; // A merge starts when there are more segments
+    private static final int MERGE_FACTOR = 4; // Adjacent segments combined by one merge
+    private static final int MIN_TERM_LENGTH = 2; // Shorter words are not indexed
+    private static final int MAX_TERM_LENGTH = 32; // Longer words are indexed by their prefix
+    private static final int CATCH_UP_PAGE = 1000; // Records read per step when catching up with the log
+
+    private final Path directory; // Holds the segment files
+    private final MessageLog history; // Source of records and of search results
+    private final Executor executor; // Runs catch-up, flushes and merges
+    private final Consumer<String> errors; // Reports failures to the user
+    private final Object flushLock = new Object(); // Keeps segment files in sequence order
+
+    // Guarded by this
+    private final List<Segment> segments = new ArrayList<>(); // On disk, in sequence order
+    private final List<MemorySegment> flushing = new ArrayList<>(); // Being written, in sequence order
+    private MemorySegment buffer; // Receives new records
+    private long nextSeq; // Sequence number of the next record to index
+    private int nextGeneration; // Number of the next segment file
+    private boolean merging; // A merge is running
+    private boolean closed;
+
+    private SearchIndex(Path directory, MessageLog history, Executor executor, Consumer<String> errors) {
+        this.directory = directory;
+        this.history = history;
+        this.executor = executor;
+        this.errors = errors;
+    }
+
+    /**
+     * Opens the index in a directory, starts indexing every record appended to the log and catches
+     * up in the background with records the index has not seen yet.
+     *
+     * @param directory The index directory.
+     * @param history   The log to index.
+     * @param executor  Runs catch-up, flushes and merges.
+     * @param errors    Receives a message for every failure worth showing to the user.
+     * @return The opened index.
+     */
+    public static SearchIndex open(Path directory, MessageLog history, Executor executor, Consumer<String> errors) {
+        SearchIndex index = new SearchIndex(directory, history, executor, errors);
+        try {
+            index.loadSegments();
+        } catch (IOException e) {
+            errors.accept("Search index is rebuilding: " + e.getMessage());
+            index.segments.clear();
+        }
+        synchronized (index) {
+            index.nextSeq = index.segments.isEmpty() ? 0 : index.segments.get(index.segments.size() - 1).maxSeq;
+            index.buffer = new MemorySegment(index.nextSeq);
+        }
+        history.setListener(index::add); // Called in sequence order, under the log's lock
+        index.submit(index::catchUp);
+        return index;
+    }
+
+    /**
+     * Finds the recorded messages and file notices that contain every word of a query.
+     *
+     * @param query The words to look for; case is ignored.
+     * @param limit The most results to return.
+     * @return The matching rows, newest first.
+     */
+    public List<ChatEntry> search(String query, int limit) {
+        Set<String> terms = terms(query);
+        if (terms.isEmpty() || limit <= 0) {
+            return List.of();
+        }
+        List<Segment> disk;
+        List<long[]> pending = new ArrayList<>(); // Postings not yet on disk, per term
+        synchronized (this) {
+            disk = List.copyOf(segments);
+            for (String term : terms) {
+                pending.add(memoryPostings(term));
+            }
+        }
+        long[] matches = null;
+        int termIndex = 0;
+        for (String term : terms) {
+            long[] postings = concat(disk, term, pending.get(termIndex++));
+            matches = matches == null ? postings : intersect(matches, postings);
+            if (matches.length == 0) {
+                return List.of();
+            }
+        }
+        List<ChatEntry> results = new ArrayList<>(Math.min(limit, matches.length));
+        for (int i = matches.length - 1; i >= 0 && results.size() < limit; i--) {
+            results.addAll(history.read(matches[i], 1));
+        }
+        return results;
+    }
+
+    /**
+     * Writes the in-memory postings to a segment so they do not have to be re-indexed on the next start.
+     */
+    @Override
+    public void close() {
+        MemorySegment last;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            last = buffer;
+        }
+        history.setListener(null);
+        synchronized (flushLock) {
+            if (last.postingCount > 0 && flushingIsEmpty()) {
+                writeFlush(last); // Earlier buffers still being written are re-indexed from the log if cut off
+            }
+        }
+    }
+
+    /**
+     * Indexes one record. Records must arrive in sequence order; a record ahead of the index
+     * is skipped and picked up by catch-up from the log instead.
+     */
+    private synchronized void add(ChatEntry entry) {
+        if (closed || entry.seq() != nextSeq) {
+            return;
+        }
+        if (entry.kind() != ChatEntry.Kind.INFO) { // Unreadable records only advance the sequence
+            for (String term : terms(entry.sender() + " " + entry.text())) {
+                buffer.add(term, entry.seq());
+            }
+        }
+        nextSeq++;
+        buffer.maxSeq = nextSeq;
+        if (buffer.postingCount >= FLUSH_POSTINGS) {
+            MemorySegment full = buffer;
+            flushing.add(full);
+            buffer = new MemorySegment(nextSeq);
+            submit(this::flushOldest);
+        }
+    }
+
+    /**
+     * Indexes records that were appended to the log before this index saw them.
+     */
+    private void catchUp() {
+        long next;
+        while (!isClosed() && (next = nextSeq()) < history.size()) {
+            List<ChatEntry> page = history.read(next, CATCH_UP_PAGE);
+            if (page.isEmpty()) {
+                return; // Read failure, already reported; the rest is indexed on the next start
+            }
+            for (ChatEntry entry : page) {
+                add(entry);
+            }
+        }
+    }
+
+    private synchronized long nextSeq() {
+        return nextSeq;
+    }
+
+    private synchronized boolean isClosed() {
+        return closed;
+    }
+
+    private synchronized boolean flushingIsEmpty() {
+        return flushing.isEmpty();
+    }
+
+    /**
+     * Writes the oldest full memory segment. Flushes run one at a time and oldest first, so the
+     * segment list stays in sequence order whichever task gets to run first.
+     */
+    private void flushOldest() {
+        synchronized (flushLock) {
+            MemorySegment oldest;
+            synchronized (this) {
+                if (flushing.isEmpty()) {
+                    return;
+                }
+                oldest = flushing.get(0);
+            }
+            writeFlush(oldest);
+        }
+    }
+
+    /**
+     * Writes a memory segment to disk and swaps it for the segment file.
+     */
+    private void writeFlush(MemorySegment memory) {
+        try {
+            Path file = write(newSegmentPath(), memory.minSeq, memory.maxSeq, memory.sortedTerms());
+            Segment segment = Segment.open(file);
+            synchronized (this) {
+                flushing.remove(memory);
+                segments.add(segment);
+            }
+            maybeMerge();
+        } catch (IOException e) {
+            synchronized (this) {
+                flushing.remove(memory); // Re-indexed from the log on the next start
+            }
+            errors.accept("Failed to write search index: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Merges the adjacent run of segments with the smallest total size when there are too many.
+     */
+    private void maybeMerge() {
+        List<Segment> inputs;
+        synchronized (this) {
+            if (merging || closed || segments.size() <= MAX_SEGMENTS) {
+                return;
+            }
+            int best = 0;
+            long bestSize = Long.MAX_VALUE;
+            for (int i = 0; i + MERGE_FACTOR <= segments.size(); i++) {
+                long size = 0;
+                for (int j = i; j < i + MERGE_FACTOR; j++) {
+                    size += segments.get(j).size();
+                }
+                if (size < bestSize) {
+                    best = i;
+                    bestSize = size;
+                }
+            }
+            inputs = List.copyOf(segments.subList(best, best + MERGE_FACTOR));
+            merging = true;
+        }
+        submit(() -> merge(inputs));
+    }
+
+    private void merge(List<Segment> inputs) {
+        try {
+            Path file = write(newSegmentPath(), inputs.get(0).minSeq, inputs.get(inputs.size() - 1).maxSeq, mergedTerms(inputs));
+            Segment merged = Segment.open(file);
+            synchronized (this) {
+                int at = segments.indexOf(inputs.get(0));
+                segments.removeAll(inputs);
+                segments.add(at, merged);
+            }
+            for (Segment input : inputs) {
+                Files.deleteIfExists(input.file); // Open mappings stay readable; leftovers are dropped on the next start
+            }
+        } catch (IOException e) {
+            errors.accept("Failed to merge search index: " + e.getMessage());
+        } finally {
+            synchronized (this) {
+                merging = false;
+            }
+        }
+        maybeMerge();
+    }
+
+    private void submit(Runnable task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // Shutting down; the log is re-indexed on the next start
+        }
+    }
+
+    /**
+     * Loads every segment file, dropping segments whose range is covered by a merged segment
+     * and everything after the first gap in the sequence ranges.
+     */
+    private void loadSegments() throws IOException {
+        Files.createDirectories(directory);
+        List<Segment> found = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "seg-*.idx")) {
+            for (Path file : files) {
+                try {
+                    found.add(Segment.open(file));
+                } catch (IOException e) {
+                    Files.deleteIfExists(file); // Torn write; re-indexed from the log
+                }
+                nextGeneration = Math.max(nextGeneration, generation(file) + 1);
+            }
+        }
+        found.sort(Comparator.comparingLong((Segment s) -> s.minSeq).thenComparingLong(s -> -s.maxSeq));
+        long covered = 0;
+        for (Segment segment : found) {
+            if (segment.minSeq == covered && segment.maxSeq > covered && segment.maxSeq <= history.size()) {
+                segments.add(segment);
+                covered = segment.maxSeq;
+            } else {
+                Files.deleteIfExists(segment.file); // Merged away, or ahead of a gap
+            }
+        }
+    }
+
+    private synchronized Path newSegmentPath() {
+        return directory.resolve(String.format("seg-%08d.idx", nextGeneration++));
+    }
+
+    private static int generation(Path file) {
+        String name = file.getFileName().toString();
+        try {
+            return Integer.parseInt(name.substring(4, name.length() - 4));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Collects the postings of a term from the memory segments, in sequence order. Called under the lock.
+     */
+    private long[] memoryPostings(String term) {
+        LongList postings = new LongList();
+        for (MemorySegment memory : flushing) {
+            postings.addAll(memory.postings.get(term));
+        }
+        postings.addAll(buffer.postings.get(term));
+        return postings.toArray();
+    }
+
+    private static long[] concat(List<Segment> disk, String term, long[] memory) {
+        LongList postings = new LongList();
+        for (Segment segment : disk) {
+            segment.readPostings(term, postings);
+        }
+        for (long seq : memory) {
+            postings.add(seq);
+        }
+        return postings.toArray();
+    }
+
+    private static long[] intersect(long[] a, long[] b) {
+        long[] result = new long[Math.min(a.length, b.length)];
+        int i = 0;
+        int j = 0;
+        int n = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                result[n++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(result, n);
+    }
+
+    /**
+     * Splits text into lower-case words of letters and digits.
+     *
+     * @param text The text to split.
+     * @return The distinct words, in order of first appearance.
+     */
+    static Set<String> terms(String text) {
+        Set<String> terms = new LinkedHashSet<>();
+        StringBuilder word = new StringBuilder();
+        for (int i = 0; i <= text.length(); ) {
+            int codePoint = i < text.length() ? text.codePointAt(i) : ' ';
+            if (Character.isLetterOrDigit(codePoint)) {
+                if (word.length() < MAX_TERM_LENGTH) {
+                    word.appendCodePoint(Character.toLowerCase(codePoint));
+                }
+            } else if (word.length() > 0) {
+                if (word.length() >= MIN_TERM_LENGTH) {
+                    terms.add(word.toString());
+                }
+                word.setLength(0);
+            }
+            i += Character.charCount(codePoint);
+        }
+        return terms;
+    }
+
+    /**
+     * The postings of one term, as written to a segment.
+     */
+    private record TermPostings(String term, long[] seqs) {
+    }
+
+    /**
+     * Merges the sorted dictionaries of adjacent segments, concatenating the postings of equal terms.
+     */
+    private static Iterator<TermPostings> mergedTerms(List<Segment> inputs) {
+        List<Iterator<String>> cursors = new ArrayList<>();
+        String[] heads = new String[inputs.size()];
+        for (int i = 0; i < inputs.size(); i++) {
+            Iterator<String> cursor = inputs.get(i).terms();
+            cursors.add(cursor);
+            heads[i] = cursor.hasNext() ? cursor.next() : null;
+        }
+        return new Iterator<>() {
+            @Override
+            public boolean hasNext() {
+                for (String head : heads) {
+                    if (head != null) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+
+            @Override
+            public TermPostings next() {
+                String smallest = null;
+                for (String head : heads) {
+                    if (head != null && (smallest == null || head.compareTo(smallest) < 0)) {
+                        smallest = head;
+                    }
+                }
+                if (smallest == null) {
+                    throw new NoSuchElementException();
+                }
+                LongList postings = new LongList();
+                for (int i = 0; i < heads.length; i++) { // Inputs are in sequence order
+                    if (smallest.equals(heads[i])) {
+                        inputs.get(i).readPostings(smallest, postings);
+                        heads[i] = cursors.get(i).hasNext() ? cursors.get(i).next() : null;
+                    }
+                }
+                return new TermPostings(smallest, postings.toArray());
+            }
+        };
+    }
+
+    /**
+     * Writes a segment file from terms in sorted order, via a temporary file so a crash never
+     * leaves a partial segment under its final name.
+     */
+    private static Path write(Path file, long minSeq, long maxSeq, Iterator<TermPostings> terms) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        ByteArrayOutputStream dictionary = new ByteArrayOutputStream();
+        ByteArrayOutputStream sparse = new ByteArrayOutputStream();
+        int termCount = 0;
+        int sparseCount = 0;
+        long dictOffset;
+        try (CountingOutput out = new CountingOutput(new BufferedOutputStream(Files.newOutputStream(temp), 64 * 1024))) {
+            out.write(new byte[HEADER_SIZE]); // Filled in once the offsets are known
+            while (terms.hasNext()) {
+                TermPostings term = terms.next();
+                byte[] termBytes = term.term().getBytes(StandardCharsets.UTF_8);
+                if (termCount % SPARSE_INTERVAL == 0) {
+                    writeVarLong(sparse, termBytes.length);
+                    sparse.write(termBytes);
+                    writeVarLong(sparse, dictionary.size());
+                    sparseCount++;
+                }
+                writeVarLong(dictionary, termBytes.length);
+                dictionary.write(termBytes);
+                writeVarLong(dictionary, out.position);
+                writeVarLong(dictionary, term.seqs().length);
+                long previous = minSeq;
+                for (long seq : term.seqs()) {
+                    writeVarLong(out, seq - previous); // Deltas keep postings to a byte or two each
+                    previous = seq;
+                }
+                termCount++;
+            }
+            dictOffset = out.position;
+            dictionary.writeTo(out);
+            long sparseOffset = out.position;
+            writeVarLong(out, sparseCount);
+            sparse.writeTo(out);
+            out.flush();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putLong(minSeq).putLong(maxSeq).putInt(termCount)
+                    .putLong(dictOffset).putLong(sparseOffset).flip();
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                channel.write(header, 0);
+                channel.force(true);
+            }
+        }
+        Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE);
+        return file;
+    }
+
+    private static void writeVarLong(OutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    /**
+     * An output stream that knows how many bytes have been written to it.
+     */
+    private static final class CountingOutput extends FilterOutputStream {
+        long position;
+
+        CountingOutput(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            position++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            position += len;
+        }
+    }
+
+    /**
+     * An immutable, memory-mapped segment file. Only the sparse dictionary index is held on the heap;
+     * a lookup binary-searches it and scans at most SPARSE_INTERVAL dictionary entries.
+     */
+    private static final class Segment {
+        final Path file;
+        final long minSeq; // First sequence number covered
+        final long maxSeq; // One past the last sequence number covered
+        private final MappedByteBuffer data;
+        private final int termCount;
+        private final int dictOffset;
+        private final String[] sparseTerms;
+        private final int[] sparseOffsets; // Dictionary positions of the sparse terms
+
+        private Segment(Path file, MappedByteBuffer data) throws IOException {
+            this.file = file;
+            this.data = data;
+            if (data.capacity() < HEADER_SIZE || data.getInt(0) != MAGIC || data.getInt(4) != VERSION) {
+                throw new IOException("Invalid search segment " + file.getFileName());
+            }
+            minSeq = data.getLong(8);
+            maxSeq = data.getLong(16);
+            termCount = data.getInt(24);
+            dictOffset = (int) data.getLong(28);
+            ByteBuffer sparse = data.duplicate().position((int) data.getLong(36));
+            int count = (int) readVarLong(sparse);
+            sparseTerms = new String[count];
+            sparseOffsets = new int[count];
+            for (int i = 0; i < count; i++) {
+                sparseTerms[i] = readString(sparse);
+                sparseOffsets[i] = (int) readVarLong(sparse);
+            }
+        }
+
+        static Segment open(Path file) throws IOException {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                if (channel.size() > Integer.MAX_VALUE) {
+                    throw new IOException("Search segment too large");
+                }
+                return new Segment(file, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+            } catch (RuntimeException e) {
+                throw new IOException("Invalid search segment " + file.getFileName(), e);
+            }
+        }
+
+        long size() {
+            return data.capacity();
+        }
+
+        /**
+         * Appends the postings of a term, if the segment has it.
+         */
+        void readPostings(String term, LongList out) {
+            int block = Arrays.binarySearch(sparseTerms, term);
+            if (block < 0) {
+                block = -block - 2; // The last sparse term before the term
+                if (block < 0) {
+                    return;
+                }
+            }
+            ByteBuffer dictionary = data.duplicate().position(dictOffset + sparseOffsets[block]);
+            for (int i = block * SPARSE_INTERVAL; i < Math.min(termCount, (block + 1) * SPARSE_INTERVAL); i++) {
+                String candidate = readString(dictionary);
+                long offset = readVarLong(dictionary);
+                long count = readVarLong(dictionary);
+                int order = candidate.compareTo(term);
+                if (order == 0) {
+                    ByteBuffer postings = data.duplicate().position((int) offset);
+                    long seq = minSeq;
+                    for (long n = 0; n < count; n++) {
+                        seq += readVarLong(postings);
+                        out.add(seq);
+                    }
+                    return;
+                }
+                if (order > 0) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Iterates over the terms of the dictionary in sorted order.
+         */
+        Iterator<String> terms() {
+            ByteBuffer dictionary = data.duplicate().position(dictOffset);
+            return new Iterator<>() {
+                private int read;
+
+                @Override
+                public boolean hasNext() {
+                    return read < termCount;
+                }
+
+                @Override
+                public String next() {
+                    if (read++ >= termCount) {
+                        throw new NoSuchElementException();
+                    }
+                    String term = readString(dictionary);
+                    readVarLong(dictionary);
+                    readVarLong(dictionary);
+                    return term;
+                }
+            };
+        }
+
+        private static String readString(ByteBuffer buffer) {
+            byte[] bytes = new byte[(int) readVarLong(buffer)];
+            buffer.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        private static long readVarLong(ByteBuffer buffer) {
+            long value = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = buffer.get();
+                value |= (long) (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+        }
+    }
+
+    /**
+     * Postings of records not yet written to a segment file.
+     */
+    private static final class MemorySegment {
+        final long minSeq;
+        long maxSeq; // One past the last record added
+        final Map<String, LongList> postings = new HashMap<>();
+        int postingCount;
+
+        MemorySegment(long minSeq) {
+            this.minSeq = minSeq;
+            this.maxSeq = minSeq;
+        }
+
+        void add(String term, long seq) {
+            postings.computeIfAbsent(term, t -> new LongList()).add(seq);
+            postingCount++;
+        }
+
+        Iterator<TermPostings> sortedTerms() {
+            List<String> terms = new ArrayList<>(postings.keySet());
+            Collections.sort(terms);
+            Iterator<String> cursor = terms.iterator();
+            return new Iterator<>() {
+                @Override
+                public boolean hasNext() {
+                    return cursor.hasNext();
+                }
+
+                @Override
+                public TermPostings next() {
+                    String term = cursor.next();
+                    return new TermPostings(term, postings.get(term).toArray());
+                }
+            };
+        }
+    }
+
+    /**
+     * A growable list of primitive longs.
+     */
+    private static final class LongList {
+        private long[] values = new long[4];
+        private int size;
+
+        void add(long value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        void addAll(LongList other) {
+            if (other == null) {
+                return;
+            }
+            for (int i = 0; i < other.size; i++) {
+                add(other.values[i]);
+            }
+        }
+
+        long[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+}
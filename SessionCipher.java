@@ -0,0 +1,142 @@
+// SessionCipher.java
+
+// Encrypts and decrypts the frames of one connection with the suite negotiated in its handshake
+import java.nio.ByteBuffer; // For caller-supplied buffers
+import java.security.GeneralSecurityException; // For cipher failures
+
+public interface SessionCipher {
+
+    /**
+     * Seals one frame whose place in the send order was reserved earlier.
+     */
+    @FunctionalInterface
+    interface Sealer {
+
+        /**
+         * Encrypts the remaining bytes of plain into out. Both buffers are advanced.
+         * May run on any thread, but only once.
+         *
+         * @param plain The plaintext; must not share memory with out.
+         * @param out   The destination, with sealedSize(plain.remaining()) bytes free.
+         * @return The number of bytes written to out.
+         * @throws GeneralSecurityException If encryption fails.
+         */
+        int seal(ByteBuffer plain, ByteBuffer out) throws GeneralSecurityException;
+    }
+
+    /**
+     * Opens one chunk whose place in the receive order was taken earlier.
+     */
+    @FunctionalInterface
+    interface Opener {
+
+        /**
+         * Decrypts the remaining bytes of sealed into out. Both buffers are advanced.
+         * May run on any thread, but only once.
+         *
+         * @param sealed The sealed chunk passed to reserveOpen(); must not share memory with out.
+         * @param out    The destination, with sealed.remaining() bytes free.
+         * @return The number of plaintext bytes written to out.
+         * @throws GeneralSecurityException If the chunk is invalid or tampered with.
+         */
+        int open(ByteBuffer sealed, ByteBuffer out) throws GeneralSecurityException;
+    }
+
+    /**
+     * Gets the suite this cipher implements.
+     *
+     * @return The negotiated suite.
+     */
+    CipherSuite suite();
+
+    /**
+     * Gets the exact size of a sealed frame for a plaintext of the given length.
+     *
+     * @param plainLength The plaintext length in bytes.
+     * @return The number of bytes seal() writes.
+     */
+    int sealedSize(int plainLength);
+
+    /**
+     * Encrypts the remaining bytes of plain into out. Both buffers are advanced.
+     *
+     * @param plain The plaintext; must not share memory with out.
+     * @param out   The destination, with sealedSize(plain.remaining()) bytes free.
+     * @return The number of bytes written to out.
+     * @throws GeneralSecurityException If encryption fails.
+     */
+    int seal(ByteBuffer plain, ByteBuffer out) throws GeneralSecurityException;
+
+    /**
+     * Reserves the next frame in the send order, so it can be sealed later on another thread
+     * while the frames before it are still being sealed. Reserved frames must be written in the
+     * order they were reserved, and before any frame sealed with seal() after the reservation.
+     *
+     * @return The sealer for the reserved frame.
+     */
+    default Sealer reserve() {
+        return this::seal; // Suites without a frame order need nothing reserved
+    }
+
+    /**
+     * Takes the place of a file chunk in the receive order as it is read off the connection, so it
+     * can be opened later on another thread while the next frames are read. Chunks must be taken
+     * in the order they arrived, and before any frame read after them is opened.
+     *
+     * @param sealed The sealed chunk; not consumed.
+     * @param index  The chunk's index in its file, checked by ciphers whose frames carry it.
+     * @return The opener for the chunk.
+     * @throws GeneralSecurityException If the chunk is out of order.
+     */
+    default Opener reserveOpen(ByteBuffer sealed, long index) throws GeneralSecurityException {
+        return this::open; // Suites without a frame order have nothing to check
+    }
+
+    /**
+     * Takes the place of a frame that is read but not opened, such as a chunk of a transfer that
+     * was discarded meanwhile, so the frames after it still open.
+     *
+     * @param sealed The sealed frame; not consumed.
+     * @throws GeneralSecurityException If the frame is out of order.
+     */
+    default void skip(ByteBuffer sealed) throws GeneralSecurityException {
+        // Suites without a frame order have nothing to take
+    }
+
+    /**
+     * Decrypts the remaining bytes of sealed into out. Both buffers are advanced. Frames must be
+     * opened in the order they arrived.
+     *
+     * @param sealed The sealed frame; must not share memory with out.
+     * @param out    The destination, with sealed.remaining() bytes free.
+     * @return The number of plaintext bytes written to out.
+     * @throws GeneralSecurityException If the frame is invalid, tampered with, replayed or out of order.
+     */
+    int open(ByteBuffer sealed, ByteBuffer out) throws GeneralSecurityException;
+
+    /**
+     * Decrypts a region of a byte array into a new plaintext array.
+     *
+     * @param data   The buffer holding the sealed frame.
+     * @param offset The offset of the frame.
+     * @param length The length of the frame.
+     * @return The plaintext.
+     * @throws GeneralSecurityException If the frame is invalid, tampered with, replayed or out of order.
+     */
+    byte[] open(byte[] data, int offset, int length) throws GeneralSecurityException;
+
+    /**
+     * Encrypts a region of a byte array into a new sealed array.
+     *
+     * @param data   The buffer holding the plaintext.
+     * @param offset The offset of the plaintext.
+     * @param length The length of the plaintext.
+     * @return The sealed frame.
+     * @throws GeneralSecurityException If encryption fails.
+     */
+    default byte[] seal(byte[] data, int offset, int length) throws GeneralSecurityException {
+        byte[] sealed = new byte[sealedSize(length)];
+        seal(ByteBuffer.wrap(data, offset, length), ByteBuffer.wrap(sealed));
+        return sealed;
+    }
+}
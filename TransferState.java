@@ -0,0 +1,398 @@
+// TransferState.java
+
+// Persisted progress of one resumable file transfer, kept by both ends. A transfer is identified
+// by an HMAC of the SHA-256 hashes of its chunks under a key derived from the token, so a reconnect
+// finds the same state again whatever stream ID the new connection uses.
+//
+//   [magic][version][id 32][long size][int chunkSize][int chunkCount][long sourceModified]
+//   [bitmap: one bit per chunk][chunk hashes: 32 bytes each][UTF name][UTF sourcePath]
+//
+// The receiver sets a bit once a verified chunk is on disk; the sender sets the bits the
+// receiver reports, so both sides know which chunks are still missing. The bitmap is shared
+// by the threads of every connection a transfer is striped over.
+import java.io.*; // For the name and path trailer
+import java.nio.ByteBuffer; // For positional reads and writes
+import java.nio.channels.Channels; // For reading the trailer
+import java.nio.channels.FileChannel; // For positional updates
+import java.nio.file.Files; // For deleting states
+import java.nio.file.Path; // For state files
+import java.nio.file.StandardOpenOption; // For opening states
+import javax.crypto.Mac; // For transfer IDs
+import javax.crypto.SecretKey; // Keys transfer IDs
+import java.security.GeneralSecurityException; // For HMAC-SHA256 lookup
+import java.security.MessageDigest; // For chunk and content hashes
+import java.security.NoSuchAlgorithmException; // For SHA-256 lookup
+
+final class TransferState implements Closeable {
+    static final int HASH_SIZE = 32; // SHA-256
+    private static final int MAGIC = 0x50325453; // "P2TS"
+    private static final int VERSION = 2; // Version 1 was named by the unkeyed content hash
+    private static final int HEADER_SIZE = 4 + 4 + HASH_SIZE + 8 + 4 + 4 + 8;
+
+    private final Path path; // The state file
+    private final FileChannel channel;
+    private final byte[] id; // Transfer ID
+    private final long size; // Plaintext size of the file
+    private final int chunkSize;
+    private final int chunkCount;
+    private final long sourceModified; // Last-modified time of the sender's file; 0 on the receiver
+    private final String name; // File name as announced
+    private final String source; // Path of the sender's file; empty on the receiver
+    private final byte[] bitmap; // One bit per chunk that the receiver has
+    private int present; // Bits set in the bitmap
+
+    private TransferState(Path path, FileChannel channel, byte[] id, long size, int chunkSize, long sourceModified,
+                          String name, String source, byte[] bitmap) {
+        this.path = path;
+        this.channel = channel;
+        this.id = id;
+        this.size = size;
+        this.chunkSize = chunkSize;
+        this.chunkCount = chunkCount(size, chunkSize);
+        this.sourceModified = sourceModified;
+        this.name = name;
+        this.source = source;
+        this.bitmap = bitmap;
+        for (int i = 0; i < chunkCount; i++) {
+            if (has(i)) {
+                present++;
+            }
+        }
+    }
+
+    /**
+     * Creates a new state with no chunks present, replacing any state at the path.
+     *
+     * @param path           The state file.
+     * @param id             The transfer ID.
+     * @param size           The plaintext size of the file.
+     * @param chunkSize      The plaintext chunk size.
+     * @param sourceModified The sender file's last-modified time, or 0 on the receiver.
+     * @param name           The file name.
+     * @param source         The sender file's path, or empty on the receiver.
+     * @param hashes         The chunk hashes, concatenated; null if they are not known yet.
+     * @return The new state.
+     * @throws IOException If the file cannot be written.
+     */
+    static TransferState create(Path path, byte[] id, long size, int chunkSize, long sourceModified,
+                                String name, String source, byte[] hashes) throws IOException {
+        int chunkCount = chunkCount(size, chunkSize);
+        byte[] bitmap = new byte[(chunkCount + 7) / 8];
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).put(id).putLong(size).putInt(chunkSize).putInt(chunkCount)
+                    .putLong(sourceModified).flip();
+            write(channel, header, 0);
+            write(channel, ByteBuffer.wrap(bitmap), HEADER_SIZE);
+            long trailerOffset = HEADER_SIZE + bitmap.length + (long) chunkCount * HASH_SIZE;
+            if (hashes != null) {
+                write(channel, ByteBuffer.wrap(hashes), HEADER_SIZE + bitmap.length);
+            }
+            ByteArrayOutputStream trailer = new ByteArrayOutputStream();
+            try (DataOutputStream out = new DataOutputStream(trailer)) {
+                out.writeUTF(name);
+                out.writeUTF(source);
+            }
+            write(channel, ByteBuffer.wrap(trailer.toByteArray()), trailerOffset);
+            channel.force(true);
+            return new TransferState(path, channel, id.clone(), size, chunkSize, sourceModified, name, source, bitmap);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens an existing state.
+     *
+     * @param path The state file.
+     * @return The state.
+     * @throws IOException If the file is missing, truncated or not a transfer state.
+     */
+    static TransferState open(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            read(channel, header, 0);
+            header.flip();
+            if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+                throw new IOException("Not a transfer state: " + path.getFileName());
+            }
+            byte[] id = new byte[HASH_SIZE];
+            header.get(id);
+            long size = header.getLong();
+            int chunkSize = header.getInt();
+            int chunkCount = header.getInt();
+            long sourceModified = header.getLong();
+            if (size < 0 || chunkSize <= 0 || chunkCount != chunkCount(size, chunkSize)) {
+                throw new IOException("Corrupt transfer state: " + path.getFileName());
+            }
+            byte[] bitmap = new byte[(chunkCount + 7) / 8];
+            read(channel, ByteBuffer.wrap(bitmap), HEADER_SIZE);
+            DataInputStream trailer = new DataInputStream(new BufferedInputStream(Channels.newInputStream(
+                    channel.position(HEADER_SIZE + bitmap.length + (long) chunkCount * HASH_SIZE))));
+            String name = trailer.readUTF();
+            String source = trailer.readUTF();
+            return new TransferState(path, channel, id, size, chunkSize, sourceModified, name, source, bitmap);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e instanceof IOException io ? io : new IOException("Corrupt transfer state: " + path.getFileName(), e);
+        }
+    }
+
+    /**
+     * Hashes a file chunk by chunk.
+     *
+     * @param file      The file to hash.
+     * @param chunkSize The chunk size of the transfer.
+     * @return The chunk hashes, concatenated.
+     * @throws IOException If the file cannot be read.
+     */
+    static byte[] hashChunks(File file, int chunkSize) throws IOException {
+        long size = file.length();
+        int chunkCount = chunkCount(size, chunkSize);
+        byte[] hashes = new byte[chunkCount * HASH_SIZE];
+        MessageDigest digest = sha256();
+        byte[] chunk = new byte[chunkSize];
+        try (InputStream in = new FileInputStream(file)) {
+            for (int i = 0; i < chunkCount; i++) {
+                int length = (int) Math.min(chunkSize, size - (long) i * chunkSize);
+                if (in.readNBytes(chunk, 0, length) != length) {
+                    throw new EOFException("File was truncated while hashing");
+                }
+                digest.update(chunk, 0, length);
+                System.arraycopy(digest.digest(), 0, hashes, i * HASH_SIZE, HASH_SIZE);
+            }
+        }
+        return hashes;
+    }
+
+    /**
+     * Computes the content hash that identifies a transfer.
+     *
+     * @param size      The plaintext size of the file.
+     * @param chunkSize The chunk size of the transfer.
+     * @param hashes    The chunk hashes, concatenated.
+     * @return The SHA-256 of the size, the chunk size and the chunk hashes.
+     */
+    static byte[] contentHash(long size, int chunkSize, byte[] hashes) {
+        MessageDigest digest = sha256();
+        digest.update(ByteBuffer.allocate(12).putLong(size).putInt(chunkSize).array());
+        digest.update(hashes);
+        return digest.digest();
+    }
+
+    /**
+     * Computes the ID a transfer goes by between two peers: an HMAC of what the content hash covers.
+     * Unlike the content hash it tells nobody without the token which file is being sent, and it
+     * stays the same across reconnects, so an interrupted transfer finds its state again.
+     *
+     * @param key       The transfer ID key of the connection.
+     * @param size      The plaintext size of the file.
+     * @param chunkSize The chunk size of the transfer.
+     * @param hashes    The chunk hashes, concatenated.
+     * @return The HMAC-SHA256 of the size, the chunk size and the chunk hashes.
+     */
+    static byte[] transferId(SecretKey key, long size, int chunkSize, byte[] hashes) {
+        Mac mac;
+        try {
+            mac = Mac.getInstance("HmacSHA256");
+            mac.init(key);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HMAC-SHA256 is not available", e);
+        }
+        mac.update(ByteBuffer.allocate(12).putLong(size).putInt(chunkSize).array());
+        mac.update(hashes);
+        return mac.doFinal();
+    }
+
+    /**
+     * Hashes one chunk.
+     *
+     * @param chunk The chunk; its remaining bytes are hashed without being consumed.
+     * @return The SHA-256 of the chunk.
+     */
+    static byte[] hashChunk(ByteBuffer chunk) {
+        MessageDigest digest = sha256();
+        digest.update(chunk.duplicate());
+        return digest.digest();
+    }
+
+    static int chunkCount(long size, int chunkSize) {
+        long count = (size + chunkSize - 1) / chunkSize;
+        if (count > Integer.MAX_VALUE / HASH_SIZE) {
+            throw new IllegalArgumentException("File has too many chunks");
+        }
+        return (int) count;
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    synchronized boolean has(int index) {
+        return (bitmap[index >>> 3] & (1 << (index & 7))) != 0;
+    }
+
+    /**
+     * Records that a chunk is present, storing its hash first so a set bit always has a hash.
+     *
+     * @param index The chunk index.
+     * @param hash  The chunk hash, or null to keep the stored one.
+     * @throws IOException If the state cannot be written.
+     */
+    synchronized void mark(int index, byte[] hash) throws IOException {
+        if (has(index)) {
+            return;
+        }
+        if (hash != null) {
+            write(channel, ByteBuffer.wrap(hash), hashOffset(index));
+        }
+        bitmap[index >>> 3] |= (byte) (1 << (index & 7));
+        write(channel, ByteBuffer.wrap(bitmap, index >>> 3, 1), HEADER_SIZE + (index >>> 3));
+        present++;
+    }
+
+    /**
+     * Records every chunk a peer reports as present.
+     *
+     * @param peerBitmap The peer's bitmap; extra bits are ignored.
+     * @throws IOException If the state cannot be written.
+     */
+    synchronized void markAll(byte[] peerBitmap) throws IOException {
+        for (int i = 0; i < chunkCount; i++) {
+            if ((i >>> 3) < peerBitmap.length && (peerBitmap[i >>> 3] & (1 << (i & 7))) != 0) {
+                bitmap[i >>> 3] |= (byte) (1 << (i & 7));
+            }
+        }
+        write(channel, ByteBuffer.wrap(bitmap), HEADER_SIZE);
+        present = 0;
+        for (int i = 0; i < chunkCount; i++) {
+            if (has(i)) {
+                present++;
+            }
+        }
+    }
+
+    /**
+     * Reads the stored hash of a chunk.
+     *
+     * @param index The chunk index.
+     * @return The chunk hash.
+     * @throws IOException If the state cannot be read.
+     */
+    byte[] chunkHash(int index) throws IOException {
+        byte[] hash = new byte[HASH_SIZE];
+        read(channel, ByteBuffer.wrap(hash), hashOffset(index));
+        return hash;
+    }
+
+    /**
+     * Checks the stored chunk hashes against the transfer ID.
+     *
+     * @param key The transfer ID key the ID was computed with.
+     * @return True if the chunks stored add up to the file the transfer is named after.
+     * @throws IOException If the state cannot be read.
+     */
+    boolean verify(SecretKey key) throws IOException {
+        return MessageDigest.isEqual(transferId(key, size, chunkSize, hashes()), id);
+    }
+
+    /**
+     * Reads every stored chunk hash.
+     *
+     * @return The chunk hashes, concatenated.
+     * @throws IOException If the state cannot be read.
+     */
+    byte[] hashes() throws IOException {
+        byte[] hashes = new byte[chunkCount * HASH_SIZE];
+        read(channel, ByteBuffer.wrap(hashes), hashOffset(0));
+        return hashes;
+    }
+
+    synchronized byte[] bitmap() {
+        return bitmap.clone();
+    }
+
+    synchronized boolean isComplete() {
+        return present == chunkCount;
+    }
+
+    byte[] id() {
+        return id.clone();
+    }
+
+    long size() {
+        return size;
+    }
+
+    int chunkSize() {
+        return chunkSize;
+    }
+
+    int chunkCount() {
+        return chunkCount;
+    }
+
+    long sourceModified() {
+        return sourceModified;
+    }
+
+    String name() {
+        return name;
+    }
+
+    String source() {
+        return source;
+    }
+
+    /**
+     * Closes and deletes the state, once the transfer has finished or been given up.
+     */
+    void delete() {
+        close();
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException ignored) {
+            // A stale state is replaced or rejected the next time
+        }
+    }
+
+    /**
+     * Closes the state; it stays on disk so the transfer can resume later.
+     */
+    @Override
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+            // Every update was already written
+        }
+    }
+
+    private long hashOffset(int index) {
+        return HEADER_SIZE + bitmap.length + (long) index * HASH_SIZE;
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private static void read(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new EOFException("Truncated transfer state");
+            }
+            position += read;
+        }
+    }
+}
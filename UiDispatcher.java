@@ -0,0 +1,94 @@
+// UiDispatcher.java
+
+// Collects UI updates from network threads and applies them in batches once per frame,
+// instead of posting one Platform.runLater per event. Chat rows that arrive together are
+// added to the ChatView in a single list change, and each frame stops after a fixed budget
+// so a burst of messages spreads over several frames instead of freezing the window.
+import javafx.animation.AnimationTimer; // For running once per pulse on the FX thread
+import java.util.ArrayList; // For the rows of one batch
+import java.util.List; // For the rows of one batch
+import java.util.Queue; // For pending updates
+import java.util.concurrent.ConcurrentLinkedQueue; // For pending updates from any thread
+
+public final class UiDispatcher {
+    private static final int MAX_ROWS_PER_FRAME = 500; // Rows added to the chat in one frame
+    private static final long FRAME_BUDGET_NANOS = 4_000_000; // Time spent on updates in one frame (4 ms)
+    private static final int BUDGET_CHECK_INTERVAL = 64; // Updates drained between clock reads
+
+    private final ChatView chatView; // Receives the batched rows
+    private final Queue<Object> pending = new ConcurrentLinkedQueue<>(); // ChatEntry rows and Runnable tasks, in order
+    private final List<ChatEntry> batch = new ArrayList<>(); // Rows of the current frame (FX thread only)
+    private final AnimationTimer timer = new AnimationTimer() {
+        @Override
+        public void handle(long now) {
+            drain();
+        }
+    };
+
+    // Constructor
+    public UiDispatcher(ChatView chatView) {
+        this.chatView = chatView;
+    }
+
+    /**
+     * Starts draining once per frame. Must be called on the FX thread.
+     */
+    public void start() {
+        timer.start();
+    }
+
+    /**
+     * Stops draining; updates still queued are dropped.
+     */
+    public void stop() {
+        timer.stop();
+        pending.clear();
+    }
+
+    /**
+     * Queues a chat row. Safe to call from any thread.
+     *
+     * @param entry The row to add.
+     */
+    public void post(ChatEntry entry) {
+        pending.add(entry);
+    }
+
+    /**
+     * Queues a UI task to run on the FX thread after the rows queued before it.
+     * Safe to call from any thread.
+     *
+     * @param task The task to run.
+     */
+    public void execute(Runnable task) {
+        pending.add(task);
+    }
+
+    /**
+     * Applies queued updates until the queue is empty or this frame's budget is spent.
+     */
+    private void drain() {
+        long deadline = System.nanoTime() + FRAME_BUDGET_NANOS;
+        int drained = 0;
+        Object update;
+        while (batch.size() < MAX_ROWS_PER_FRAME && (update = pending.poll()) != null) {
+            if (update instanceof ChatEntry entry) {
+                batch.add(entry);
+            } else {
+                flushBatch(); // Keep rows and tasks in the order they were queued
+                ((Runnable) update).run();
+            }
+            if (++drained % BUDGET_CHECK_INTERVAL == 0 && System.nanoTime() > deadline) {
+                break; // The rest waits for the next frame
+            }
+        }
+        flushBatch();
+    }
+
+    private void flushBatch() {
+        if (!batch.isEmpty()) {
+            chatView.appendAll(batch);
+            batch.clear();
+        }
+    }
+}
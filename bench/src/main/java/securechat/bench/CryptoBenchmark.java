@@ -0,0 +1,57 @@
+// CryptoBenchmark.java
+
+// Throughput of the EncryptionUtils entry points (AES-CBC with a random IV) across payload sizes.
+// Run with -prof gc to see the allocation per operation, which for the byte[] variants is the
+// result array alone.
+package securechat.bench;
+
+import org.openjdk.jmh.annotations.*; // For the benchmark annotations
+import javax.crypto.SecretKey; // For the session key
+import java.util.concurrent.TimeUnit; // For the reporting unit
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class CryptoBenchmark {
+
+    @Param({"16", "1024", "65536", "1048576", "67108864"}) // 16 B to 64 MB
+    public int size;
+
+    private SecretKey key;
+    private String text;
+    private byte[] data;
+    private byte[] encryptedText;
+    private byte[] encryptedData;
+
+    @Setup
+    public void setUp() throws Throwable {
+        key = Target.deriveKey("benchmark-token");
+        text = Payloads.text(size);
+        data = Payloads.bytes(size);
+        encryptedText = Target.encrypt(text, key);
+        encryptedData = Target.encryptBytes(data, key);
+    }
+
+    @Benchmark
+    public byte[] encrypt() throws Throwable {
+        return Target.encrypt(text, key);
+    }
+
+    @Benchmark
+    public String decrypt() throws Throwable {
+        return Target.decrypt(encryptedText, key);
+    }
+
+    @Benchmark
+    public byte[] encryptBytes() throws Throwable {
+        return Target.encryptBytes(data, key);
+    }
+
+    @Benchmark
+    public byte[] decryptBytes() throws Throwable {
+        return Target.decryptBytes(encryptedData, key);
+    }
+}
@@ -0,0 +1,26 @@
+// KeyDerivationBenchmark.java
+
+// Time of one PBKDF2 key derivation. It is deliberately slow and independent of the token length,
+// so it is measured per call rather than across payload sizes.
+package securechat.bench;
+
+import org.openjdk.jmh.annotations.*; // For the benchmark annotations
+import javax.crypto.SecretKey; // For the derived key
+import java.util.concurrent.TimeUnit; // For the reporting unit
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class KeyDerivationBenchmark {
+
+    @Param({"benchmark-token"})
+    public String token;
+
+    @Benchmark
+    public SecretKey deriveKey() throws Throwable {
+        return Target.deriveKey(token);
+    }
+}
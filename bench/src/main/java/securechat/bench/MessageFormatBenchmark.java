@@ -0,0 +1,57 @@
+// MessageFormatBenchmark.java
+
+// Throughput of the chat message formats across text sizes: the legacy "sender|time|text" line
+// (parsed by ChatMessage.fromLegacy, which replaced the parsing in addMessageBubble) and the
+// binary MessageCodec layout.
+package securechat.bench;
+
+import org.openjdk.jmh.annotations.*; // For the benchmark annotations
+import java.nio.ByteBuffer; // For encoded messages
+import java.util.concurrent.TimeUnit; // For the reporting unit
+import java.util.function.IntFunction; // For sender name lookup
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class MessageFormatBenchmark {
+    private static final IntFunction<String> SENDER = id -> "peer";
+
+    @Param({"16", "1024", "65536", "1048576", "67108864"}) // 16 B to 64 MB
+    public int size;
+
+    private Object message;
+    private String legacy;
+    private byte[] encoded;
+
+    @Setup
+    public void setUp() throws Throwable {
+        message = Target.newMessage(42, "alice", System.currentTimeMillis(), Payloads.text(size));
+        legacy = Target.toLegacy(message);
+        ByteBuffer buffer = Target.encode(message, 0);
+        encoded = new byte[buffer.remaining()];
+        buffer.get(encoded);
+    }
+
+    @Benchmark
+    public Object parseLegacy() throws Throwable {
+        return Target.fromLegacy(legacy, "peer");
+    }
+
+    @Benchmark
+    public String formatLegacy() throws Throwable {
+        return Target.toLegacy(message);
+    }
+
+    @Benchmark
+    public ByteBuffer encode() throws Throwable {
+        return Target.encode(message, 0);
+    }
+
+    @Benchmark
+    public Object decode() throws Throwable {
+        return Target.decode(ByteBuffer.wrap(encoded), SENDER);
+    }
+}
@@ -0,0 +1,44 @@
+// MessageUtilsBenchmark.java
+
+// Throughput of the MessageUtils string helpers across payload sizes. sanitizeInput and
+// sanitizeFileName run on every message and every received file name.
+package securechat.bench;
+
+import org.openjdk.jmh.annotations.*; // For the benchmark annotations
+import java.util.concurrent.TimeUnit; // For the reporting unit
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class MessageUtilsBenchmark {
+
+    @Param({"16", "1024", "65536", "1048576", "67108864"}) // 16 B to 64 MB
+    public int size;
+
+    private String text;
+    private byte[] bytes;
+
+    @Setup
+    public void setUp() {
+        text = Payloads.text(size);
+        bytes = Payloads.bytes(size);
+    }
+
+    @Benchmark
+    public String sanitizeInput() throws Throwable {
+        return Target.sanitizeInput(text);
+    }
+
+    @Benchmark
+    public String sanitizeFileName() throws Throwable {
+        return Target.sanitizeFileName(text);
+    }
+
+    @Benchmark
+    public String bytesToHex() throws Throwable {
+        return Target.bytesToHex(bytes);
+    }
+}
@@ -0,0 +1,38 @@
+// Payloads.java
+
+// Deterministic benchmark inputs, so every run and every build measures the same bytes.
+package securechat.bench;
+
+import java.util.SplittableRandom; // For reproducible content
+
+final class Payloads {
+    private static final String CHAT_ALPHABET = "abcdefghijklmnopqrstuvwxyz ABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789.,!?<>\"'%;()&+";
+    private static final long SEED = 0x5EC0C4A7L;
+
+    private Payloads() {
+    }
+
+    /**
+     * Random bytes, as in a file being sent.
+     */
+    static byte[] bytes(int size) {
+        byte[] bytes = new byte[size];
+        SplittableRandom random = new SplittableRandom(SEED);
+        for (int i = 0; i < size; i++) {
+            bytes[i] = (byte) random.nextInt(256);
+        }
+        return bytes;
+    }
+
+    /**
+     * ASCII chat text, including the characters sanitizeInput removes.
+     */
+    static String text(int size) {
+        SplittableRandom random = new SplittableRandom(SEED);
+        char[] chars = new char[size];
+        for (int i = 0; i < size; i++) {
+            chars[i] = CHAT_ALPHABET.charAt(random.nextInt(CHAT_ALPHABET.length()));
+        }
+        return new String(chars);
+    }
+}
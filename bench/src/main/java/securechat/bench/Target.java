@@ -0,0 +1,138 @@
+// Target.java
+
+// Typed access to the messenger's classes for the benchmarks. The app lives in the unnamed package,
+// which named packages cannot import, and JMH does not accept benchmarks in the unnamed package.
+// So each method is looked up once into a static final MethodHandle. The JIT treats those as
+// constants and inlines invokeExact straight into the benchmark loop, so the bridge adds nothing
+// measurable.
+package securechat.bench;
+
+import javax.crypto.SecretKey; // For the key parameter
+import java.lang.invoke.MethodHandle; // For calling into the unnamed package
+import java.lang.invoke.MethodHandles; // For looking the methods up
+import java.lang.invoke.MethodType; // For method signatures
+import java.nio.ByteBuffer; // For encoded messages
+import java.util.function.IntFunction; // For sender name lookup
+
+final class Target {
+    private static final Class<?> CHAT_MESSAGE = type("ChatMessage");
+
+    private static final MethodHandle DERIVE_KEY = find("EncryptionUtils", "deriveKey", SecretKey.class, String.class);
+    private static final MethodHandle ENCRYPT = find("EncryptionUtils", "encrypt", byte[].class, String.class, SecretKey.class);
+    private static final MethodHandle DECRYPT = find("EncryptionUtils", "decrypt", String.class, byte[].class, SecretKey.class);
+    private static final MethodHandle ENCRYPT_BYTES = find("EncryptionUtils", "encryptBytes", byte[].class, byte[].class, SecretKey.class);
+    private static final MethodHandle DECRYPT_BYTES = find("EncryptionUtils", "decryptBytes", byte[].class, byte[].class, SecretKey.class);
+    private static final MethodHandle SANITIZE_INPUT = find("MessageUtils", "sanitizeInput", String.class, String.class);
+    private static final MethodHandle SANITIZE_FILE_NAME = find("MessageUtils", "sanitizeFileName", String.class, String.class);
+    private static final MethodHandle BYTES_TO_HEX = find("MessageUtils", "bytesToHex", String.class, byte[].class);
+    private static final MethodHandle FROM_LEGACY = find("ChatMessage", "fromLegacy", CHAT_MESSAGE, String.class, String.class)
+            .asType(MethodType.methodType(Object.class, String.class, String.class));
+    private static final MethodHandle TO_LEGACY = virtual("ChatMessage", "toLegacy", String.class)
+            .asType(MethodType.methodType(String.class, Object.class));
+    private static final MethodHandle ENCODE = find("MessageCodec", "encode", ByteBuffer.class, CHAT_MESSAGE, int.class)
+            .asType(MethodType.methodType(ByteBuffer.class, Object.class, int.class));
+    private static final MethodHandle DECODE = find("MessageCodec", "decode", CHAT_MESSAGE, ByteBuffer.class, IntFunction.class)
+            .asType(MethodType.methodType(Object.class, ByteBuffer.class, IntFunction.class));
+    private static final MethodHandle NEW_MESSAGE = constructor("ChatMessage", long.class, String.class, long.class, String.class)
+            .asType(MethodType.methodType(Object.class, long.class, String.class, long.class, String.class));
+
+    private Target() {
+    }
+
+    static SecretKey deriveKey(String token) throws Throwable {
+        return (SecretKey) DERIVE_KEY.invokeExact(token);
+    }
+
+    static byte[] encrypt(String plainText, SecretKey key) throws Throwable {
+        return (byte[]) ENCRYPT.invokeExact(plainText, key);
+    }
+
+    static String decrypt(byte[] data, SecretKey key) throws Throwable {
+        return (String) DECRYPT.invokeExact(data, key);
+    }
+
+    static byte[] encryptBytes(byte[] data, SecretKey key) throws Throwable {
+        return (byte[]) ENCRYPT_BYTES.invokeExact(data, key);
+    }
+
+    static byte[] decryptBytes(byte[] data, SecretKey key) throws Throwable {
+        return (byte[]) DECRYPT_BYTES.invokeExact(data, key);
+    }
+
+    static String sanitizeInput(String input) throws Throwable {
+        return (String) SANITIZE_INPUT.invokeExact(input);
+    }
+
+    static String sanitizeFileName(String fileName) throws Throwable {
+        return (String) SANITIZE_FILE_NAME.invokeExact(fileName);
+    }
+
+    static String bytesToHex(byte[] bytes) throws Throwable {
+        return (String) BYTES_TO_HEX.invokeExact(bytes);
+    }
+
+    /**
+     * Creates a ChatMessage.
+     *
+     * @return The message, typed as Object since its class cannot be named here.
+     */
+    static Object newMessage(long messageId, String sender, long timestamp, String text) throws Throwable {
+        return NEW_MESSAGE.invokeExact(messageId, sender, timestamp, text);
+    }
+
+    static Object fromLegacy(String fullMessage, String peerName) throws Throwable {
+        return FROM_LEGACY.invokeExact(fullMessage, peerName);
+    }
+
+    static String toLegacy(Object message) throws Throwable {
+        return (String) TO_LEGACY.invokeExact(message);
+    }
+
+    static ByteBuffer encode(Object message, int senderId) throws Throwable {
+        return (ByteBuffer) ENCODE.invokeExact(message, senderId);
+    }
+
+    static Object decode(ByteBuffer buffer, IntFunction<String> senderNames) throws Throwable {
+        return DECODE.invokeExact(buffer, senderNames);
+    }
+
+    private static Class<?> type(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("The messenger classes are not on the class path", e);
+        }
+    }
+
+    private static MethodHandles.Lookup lookup(Class<?> owner) throws IllegalAccessException {
+        // Both sides are in the class path's unnamed module, so package-private members are reachable too
+        return MethodHandles.privateLookupIn(owner, MethodHandles.lookup());
+    }
+
+    private static MethodHandle find(String owner, String name, Class<?> returnType, Class<?>... parameters) {
+        Class<?> type = type(owner);
+        try {
+            return lookup(type).findStatic(type, name, MethodType.methodType(returnType, parameters));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Missing " + owner + "." + name, e);
+        }
+    }
+
+    private static MethodHandle virtual(String owner, String name, Class<?> returnType, Class<?>... parameters) {
+        Class<?> type = type(owner);
+        try {
+            return lookup(type).findVirtual(type, name, MethodType.methodType(returnType, parameters));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Missing " + owner + "." + name, e);
+        }
+    }
+
+    private static MethodHandle constructor(String owner, Class<?>... parameters) {
+        Class<?> type = type(owner);
+        try {
+            return lookup(type).findConstructor(type, MethodType.methodType(void.class, parameters));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Missing " + owner + " constructor", e);
+        }
+    }
+}